@@ -0,0 +1,157 @@
+package com.gelakinetic.mtgfam;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Make sure searching with the full text index returns exactly what the LIKE clauses return, and
+ * log how long each path takes on the bundled database
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class FullTextSearchTests {
+
+    private static final String TAG = "FullTextSearchTests";
+    private static final int ITERATIONS = 5;
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .closeDatabase(false);
+    }
+
+    /**
+     * Run a search both ways, assert the results are identical, and log the timing.
+     *
+     * @param description A description of the search, for the log
+     * @param criteria    The criteria to search with
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private void compareSearches(String description, SearchCriteria criteria)
+            throws FamiliarDbException {
+        long likeTime = 0;
+        long ftsTime = 0;
+        List<Long> likeIds = null;
+        List<Long> ftsIds = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            likeIds = search(criteria, false);
+            likeTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            ftsIds = search(criteria, true);
+            ftsTime += System.nanoTime() - start;
+        }
+        Log.i(TAG, description + ": " + likeIds.size() + " results, LIKE " +
+                (likeTime / ITERATIONS / 1000) + "us, FTS " + (ftsTime / ITERATIONS / 1000) + "us");
+        assertEquals(description, likeIds, ftsIds);
+    }
+
+    /**
+     * Run a search and return the IDs of all the results, in order.
+     *
+     * @param criteria         The criteria to search with
+     * @param useFullTextIndex Whether or not to use the full text index
+     * @return The IDs of all the results
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private List<Long> search(SearchCriteria criteria, boolean useFullTextIndex)
+            throws FamiliarDbException {
+        ArrayList<Long> ids = new ArrayList<>();
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                useFullTextIndex, mDatabase);
+        if (cursor != null) {
+            int idIndex = cursor.getColumnIndex(CardDbAdapter.KEY_ID);
+            while (!cursor.isAfterLast()) {
+                ids.add(cursor.getLong(idIndex));
+                cursor.moveToNext();
+            }
+            cursor.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void nameSearch_Matches() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "bolt";
+        compareSearches("name 'bolt'", criteria);
+
+        criteria.name = "ajani goldmane";
+        compareSearches("name 'ajani goldmane'", criteria);
+
+        criteria.name = "aether";
+        compareSearches("name 'aether'", criteria);
+    }
+
+    @Test
+    public void textSearchAllWords_Matches() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.textLogic = 0;
+        criteria.text = "draw card !discard";
+        compareSearches("all 'draw card !discard'", criteria);
+
+        criteria.text = "+1/+1 counter";
+        compareSearches("all '+1/+1 counter'", criteria);
+    }
+
+    @Test
+    public void textSearchAnyWord_Matches() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.textLogic = 1;
+        criteria.text = "flying reach !trample";
+        compareSearches("any 'flying reach !trample'", criteria);
+    }
+
+    @Test
+    public void textSearchExactPhrase_Matches() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.textLogic = 2;
+        criteria.text = "enters the battlefield tapped";
+        compareSearches("exact 'enters the battlefield tapped'", criteria);
+    }
+
+    @Test
+    public void flavorAndArtistSearch_Matches() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.flavor = "urza";
+        compareSearches("flavor 'urza'", criteria);
+
+        criteria = new SearchCriteria();
+        criteria.artist = "rebecca";
+        compareSearches("artist 'rebecca'", criteria);
+    }
+}
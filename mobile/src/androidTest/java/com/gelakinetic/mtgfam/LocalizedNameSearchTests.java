@@ -0,0 +1,213 @@
+package com.gelakinetic.mtgfam;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.CardNameIndex;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure cards can be found by the name printed on them in any language, both by searching and
+ * by suggestion, and that searching every language costs about the same as searching English
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LocalizedNameSearchTests {
+
+    private static final String TAG = "LocalizedNameSearch";
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .closeDatabase(false);
+    }
+
+    /**
+     * @param column A localized name column
+     * @return The localized name and the English name of some card printed in that language
+     */
+    private String[] getPrintedName(String column) {
+        Cursor cursor = mDatabase.rawQuery("SELECT " + column + ", " + CardDbAdapter.KEY_NAME +
+                " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " WHERE " + column + " IS NOT NULL AND " + column + " != ''" +
+                " ORDER BY " + CardDbAdapter.KEY_ID + " LIMIT 1", null);
+        assertTrue(cursor.moveToFirst());
+        String[] names = {cursor.getString(0), cursor.getString(1)};
+        cursor.close();
+        return names;
+    }
+
+    /**
+     * Run a search and return the English names of all the results, in order.
+     *
+     * @param name           The name to search for
+     * @param localizedNames true to match every language, false to match English only
+     * @return The names of all the results
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private List<String> search(String name, boolean localizedNames) throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = name;
+        criteria.localizedNames = localizedNames;
+        ArrayList<String> names = new ArrayList<>();
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                true, mDatabase);
+        if (cursor != null) {
+            int nameIndex = cursor.getColumnIndex(CardDbAdapter.KEY_NAME);
+            while (!cursor.isAfterLast()) {
+                names.add(cursor.getString(nameIndex));
+                cursor.moveToNext();
+            }
+            cursor.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void foldName_FoldsEveryScript() {
+        assertEquals("eclair", CardDbAdapter.foldName("Éclair"));
+        assertEquals("молния", CardDbAdapter.foldName("МОЛНИЯ"));
+        assertEquals("еж", CardDbAdapter.foldName("Ёж"));
+        assertEquals("bolt", CardDbAdapter.foldName("ＢＯＬＴ"));
+        assertEquals("稲妻 精霊", CardDbAdapter.foldName("稲妻・精霊"));
+        assertEquals("번개 화살", CardDbAdapter.foldName("번개　화살"));
+    }
+
+    @Test
+    public void search_FindsPrintedNames() throws FamiliarDbException {
+        String[] columns = {
+                CardDbAdapter.KEY_NAME_FRENCH,
+                CardDbAdapter.KEY_NAME_GERMAN,
+                CardDbAdapter.KEY_NAME_RUSSIAN,
+                CardDbAdapter.KEY_NAME_JAPANESE,
+                CardDbAdapter.KEY_NAME_CHINESE_SIMPLIFIED,
+                CardDbAdapter.KEY_NAME_KOREAN
+        };
+        for (String column : columns) {
+            String[] names = getPrintedName(column);
+
+            /* Typed in a different case, and in pieces, like the search form does */
+            List<String> results = search(names[0].toUpperCase(Locale.ROOT), true);
+            assertTrue(column + " " + names[0], results.contains(names[1]));
+
+            /* Languages without spaces are still found by part of a name */
+            if (names[0].length() > 2 && !names[0].contains(" ")) {
+                results = search(names[0].substring(1, names[0].length() - 1), true);
+                assertTrue(column + " " + names[0], results.contains(names[1]));
+            }
+        }
+    }
+
+    @Test
+    public void search_IncludesEnglishResults() throws FamiliarDbException {
+        for (String name : new String[]{"bolt", "goblin", "æther", "jace"}) {
+            List<String> english = search(name, false);
+            List<String> localized = search(name, true);
+            assertTrue(name, localized.containsAll(english));
+        }
+    }
+
+    @Test
+    public void suggestions_IncludePrintedNames() throws FamiliarDbException {
+        CardNameIndex.load(mFamiliarActivityRule.getActivity());
+        CardNameIndex index = CardNameIndex.getIndex();
+        assertNotNull(index);
+
+        String name = getPrintedName(CardDbAdapter.KEY_NAME_RUSSIAN)[0];
+        int[] suggestions = index.suggest(name.toLowerCase(Locale.ROOT), 10, null);
+        assertNotNull(suggestions);
+        boolean found = false;
+        for (int suggestion : suggestions) {
+            found |= name.equals(index.getName(suggestion));
+        }
+        assertTrue(name, found);
+
+        Cursor cursor = CardDbAdapter.getCardsByNamePrefix(name, mDatabase);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(name, cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NAME)));
+        cursor.close();
+
+        /* Lists look cards up by their English names, so they aren't offered printed names */
+        suggestions = index.suggest(name.toLowerCase(Locale.ROOT), 10, false, null);
+        assertNotNull(suggestions);
+        for (int suggestion : suggestions) {
+            assertFalse(name.equals(index.getName(suggestion)));
+        }
+        cursor = CardDbAdapter.getCardsByNamePrefix(name, false, mDatabase);
+        if (cursor != null) {
+            assertFalse(cursor.moveToFirst());
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void benchmark_AllLanguagesCostNoMoreThanEnglish() throws FamiliarDbException {
+        String[] names = {"bolt", "goblin", "dragon", "angel", "serra", "counter", "wrath"};
+        long englishNanos = 0;
+        long localizedNanos = 0;
+        for (String name : names) {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                search(name, false);
+                search(name, true);
+            }
+            long english = 0;
+            long localized = 0;
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                search(name, false);
+                english += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                search(name, true);
+                localized += System.nanoTime() - start;
+            }
+            Log.i(TAG, name + ": English " + (english / MEASURED_ITERATIONS / 1000) +
+                    "us, every language " + (localized / MEASURED_ITERATIONS / 1000) + "us");
+            englishNanos += english;
+            localizedNanos += localized;
+        }
+        Log.i(TAG, "Total: English " + (englishNanos / 1000000) + "ms, every language " +
+                (localizedNanos / 1000000) + "ms");
+
+        /* Leave some room for noise */
+        assertTrue(localizedNanos <= englishNanos * 5 / 4);
+    }
+}
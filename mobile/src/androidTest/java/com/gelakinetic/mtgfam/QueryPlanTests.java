@@ -0,0 +1,228 @@
+package com.gelakinetic.mtgfam;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.support.test.filters.SmallTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure the hot path queries in CardDbAdapter use the secondary indices rather than scanning
+ * the whole cards table. The SQL is captured from CardDbAdapter itself, so changes to how it builds
+ * queries are checked too
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class QueryPlanTests {
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private static final String CARDS = CardDbAdapter.DATABASE_TABLE_CARDS;
+    private static final String SQL_PREFIX = "SQLiteQuery: ";
+
+    /* Every query run through mCapturingDatabase, in order */
+    private final List<String> mCapturedSql = new ArrayList<>();
+    private SQLiteDatabase mDatabase;
+    private SQLiteDatabase mCapturingDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+
+        /* A second connection to the same database which records the SQL of every query */
+        mCapturingDatabase = SQLiteDatabase.openDatabase(mDatabase.getPath(),
+                new SQLiteDatabase.CursorFactory() {
+                    @Override
+                    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                                            String editTable, SQLiteQuery query) {
+                        String sql = query.toString();
+                        if (sql.startsWith(SQL_PREFIX)) {
+                            sql = sql.substring(SQL_PREFIX.length());
+                        }
+                        mCapturedSql.add(sql);
+                        return new SQLiteCursor(masterQuery, editTable, query);
+                    }
+                }, SQLiteDatabase.OPEN_READONLY);
+    }
+
+    @After
+    public void tearDown() {
+        mCapturingDatabase.close();
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .closeDatabase(false);
+    }
+
+    /**
+     * Run EXPLAIN QUERY PLAN on the given SQL, and return true if any step scans the given table
+     * without an index. Placeholders are left unbound, which doesn't change the plan.
+     *
+     * @param sql   The query to explain
+     * @param table The table which shouldn't be scanned
+     * @return true if the table is scanned, false otherwise
+     */
+    private boolean scansTable(String sql, String table) {
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        int detailIndex = cursor.getColumnIndex("detail");
+        boolean scans = false;
+        while (cursor.moveToNext()) {
+            String detail = cursor.getString(detailIndex);
+            if (detail.startsWith("SCAN") && detail.matches(".*\\b" + table + "\\b.*") &&
+                    !detail.contains("USING")) {
+                scans = true;
+            }
+        }
+        cursor.close();
+        return scans;
+    }
+
+    /**
+     * Make sure CardDbAdapter ran at least one query, and none of them scan the given tables
+     *
+     * @param tables The tables which shouldn't be scanned
+     */
+    private void assertCapturedSqlUsesIndices(String... tables) {
+        assertTrue(mCapturedSql.size() > 0);
+        for (String sql : mCapturedSql) {
+            for (String table : tables) {
+                assertFalse(table + ": " + sql, scansTable(sql, table));
+            }
+        }
+        mCapturedSql.clear();
+    }
+
+    @Test
+    public void fetchCardByName_UsesIndex() throws FamiliarDbException {
+        CardDbAdapter.fetchCardByName("Lightning Bolt",
+                Arrays.asList(CARDS + "." + CardDbAdapter.KEY_ID), true, mCapturingDatabase).close();
+        assertCapturedSqlUsesIndices(CARDS);
+    }
+
+    @Test
+    public void fetchCardByNameAndSet_UsesIndex() throws FamiliarDbException {
+        CardDbAdapter.fetchCardByNameAndSet("Lightning Bolt", "M10",
+                Arrays.asList(CARDS + "." + CardDbAdapter.KEY_ID), mCapturingDatabase).close();
+        assertCapturedSqlUsesIndices(CARDS);
+    }
+
+    @Test
+    public void fetchCardByMultiverseId_UsesIndex() throws FamiliarDbException {
+        CardDbAdapter.fetchCardByMultiverseId(191089,
+                new String[]{CARDS + "." + CardDbAdapter.KEY_ID}, mCapturingDatabase).close();
+        assertCapturedSqlUsesIndices(CARDS);
+    }
+
+    @Test
+    public void getIdFromSetAndNumber_UsesIndex() throws FamiliarDbException {
+        CardDbAdapter.getIdFromSetAndNumber("M10", "146", mCapturingDatabase);
+        assertCapturedSqlUsesIndices(CARDS);
+    }
+
+    @Test
+    public void checkLegality_UsesIndex() throws FamiliarDbException {
+        /* A card in the legality matrix */
+        CardDbAdapter.checkLegality("Lightning Bolt", "Modern", mCapturingDatabase);
+        assertCapturedSqlUsesIndices(CARDS, "banned_cards", "legality_matrix");
+
+        /* A card which isn't, so the legality is computed from the legality tables */
+        CardDbAdapter.checkLegality("Not A Card", "Modern", mCapturingDatabase);
+        assertCapturedSqlUsesIndices(CARDS, "banned_cards", "legality_matrix");
+    }
+
+    @Test
+    public void searchFormatFilter_UsesIndex() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "Lightning Bolt";
+        criteria.format = "Modern";
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                mCapturingDatabase);
+        if (cursor != null) {
+            cursor.close();
+        }
+        assertCapturedSqlUsesIndices(CARDS + "_B", "legal_sets", "legality_matrix");
+    }
+
+    @Test
+    public void searchBroadText_OrderedAfterIndexedPredicates() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        /* Part of far too many words to be narrowed by the full text index */
+        criteria.text = "e";
+        criteria.textLogic = 2;
+        criteria.sets = Arrays.asList("M10");
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                mCapturingDatabase);
+        if (cursor != null) {
+            cursor.close();
+        }
+
+        /* The plain LIKE is checked after the set code, not ranked like an indexed predicate */
+        String setPredicate = CARDS + "." + CardDbAdapter.KEY_SET + " IN (";
+        String textPredicate = CARDS + "." + CardDbAdapter.KEY_ABILITY + " LIKE ?";
+        boolean found = false;
+        for (String sql : mCapturedSql) {
+            if (sql.contains(textPredicate)) {
+                found = true;
+                assertTrue(sql, sql.indexOf(setPredicate) < sql.indexOf(textPredicate));
+                assertFalse(sql, sql.contains(" MATCH ?"));
+            }
+        }
+        assertTrue(found);
+        mCapturedSql.clear();
+    }
+
+    @Test
+    public void searchExcludedText_OrderedAfterIndexedPredicates() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        /* Excluding a word doesn't narrow the scan, even when the full text index finds it */
+        criteria.text = CardDbAdapter.EXCLUDE_TOKEN + "flying";
+        criteria.textLogic = 0;
+        criteria.sets = Arrays.asList("M10");
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                mCapturingDatabase);
+        if (cursor != null) {
+            cursor.close();
+        }
+
+        /* Either the anti-join or the plain NOT LIKE is checked after the set code */
+        String setPredicate = CARDS + "." + CardDbAdapter.KEY_SET + " IN (";
+        String textPredicate = CARDS + "." + CardDbAdapter.KEY_ABILITY + " IS NOT NULL AND ";
+        String likePredicate = CARDS + "." + CardDbAdapter.KEY_ABILITY + " NOT LIKE ?";
+        boolean found = false;
+        for (String sql : mCapturedSql) {
+            int textIndex = sql.contains(textPredicate) ? sql.indexOf(textPredicate) : sql.indexOf(likePredicate);
+            if (textIndex >= 0) {
+                found = true;
+                assertTrue(sql, sql.indexOf(setPredicate) >= 0);
+                assertTrue(sql, sql.indexOf(setPredicate) < textIndex);
+            }
+        }
+        assertTrue(found);
+        mCapturedSql.clear();
+    }
+}
@@ -0,0 +1,208 @@
+package com.gelakinetic.mtgfam;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.model.Comparison;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Benchmark a corpus of realistic searches against the bundled database. Each search is warmed up
+ * before it's measured, so the compiled statement cache is populated like it would be after a few
+ * searches in the app.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchBenchmarkTests {
+
+    private static final String TAG = "SearchBenchmarkTests";
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .closeDatabase(false);
+    }
+
+    /**
+     * @return A list of searches like the ones people actually run
+     */
+    private static List<SearchCriteria> getCorpus() {
+        ArrayList<SearchCriteria> corpus = new ArrayList<>();
+
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "bolt";
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.name = "goblin";
+        criteria.format = "Modern";
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.text = "draw a card";
+        criteria.textLogic = 2;
+        criteria.color = "wUbrgl";
+        criteria.colorLogic = 0;
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.superTypes = Collections.singletonList("Creature");
+        criteria.subTypes = Arrays.asList("Elf", "Warrior");
+        criteria.typeLogic = 1;
+        criteria.cmc = 3;
+        criteria.cmcLogic = "<=";
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.superTypes = Collections.singletonList("Creature");
+        criteria.powChoice = 4;
+        criteria.powLogic = ">=";
+        criteria.touChoice = 2;
+        criteria.touLogic = "<";
+        criteria.rarity = "rm";
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.sets = Arrays.asList("M10", "M11", "M12");
+        criteria.text = "flying";
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.manaCost = Arrays.asList("U", "U");
+        criteria.manaCostLogic = Comparison.CT;
+        criteria.format = "Legacy";
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.colorIdentity = "WUbrgl";
+        criteria.colorIdentityLogic = 1;
+        criteria.setLogic = CardDbAdapter.FIRST_PRINTING;
+        corpus.add(criteria);
+
+        criteria = new SearchCriteria();
+        criteria.artist = "rebecca";
+        criteria.flavor = "the";
+        corpus.add(criteria);
+
+        return corpus;
+    }
+
+    /**
+     * Run a search and return the IDs of all the results, in order.
+     *
+     * @param criteria The criteria to search with
+     * @return The IDs of all the results
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private List<Long> search(SearchCriteria criteria) throws FamiliarDbException {
+        ArrayList<Long> ids = new ArrayList<>();
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                true, mDatabase);
+        if (cursor != null) {
+            int idIndex = cursor.getColumnIndex(CardDbAdapter.KEY_ID);
+            while (!cursor.isAfterLast()) {
+                ids.add(cursor.getLong(idIndex));
+                cursor.moveToNext();
+            }
+            cursor.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void searchCorpus_Benchmark() throws FamiliarDbException {
+        long totalNanos = 0;
+        int totalSearches = 0;
+        for (SearchCriteria criteria : getCorpus()) {
+            List<Long> expected = null;
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                expected = search(criteria);
+            }
+
+            long buildNanos = 0;
+            long queryNanos = 0;
+            long elapsedNanos = 0;
+            for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                List<Long> results = search(criteria);
+                elapsedNanos += System.nanoTime() - start;
+
+                CardDbAdapter.SearchTiming timing = CardDbAdapter.getLastSearchTiming();
+                assertNotNull(timing);
+                buildNanos += timing.buildNanos;
+                queryNanos += timing.queryNanos;
+
+                /* The same search should always return the same thing */
+                assertEquals(expected, results);
+            }
+            totalNanos += elapsedNanos;
+            totalSearches += MEASURED_ITERATIONS;
+
+            Log.i(TAG, CardDbAdapter.getLastSearchTiming().sql);
+            Log.i(TAG, expected.size() + " results, build " +
+                    (buildNanos / MEASURED_ITERATIONS / 1000) + "us, query " +
+                    (queryNanos / MEASURED_ITERATIONS / 1000) + "us, total " +
+                    (elapsedNanos / MEASURED_ITERATIONS / 1000) + "us");
+        }
+        Log.i(TAG, "Mean of " + totalSearches + " searches: " +
+                (totalNanos / totalSearches / 1000) + "us");
+    }
+
+    @Test
+    public void similarSearches_ShareSql() throws FamiliarDbException {
+        /* Searches which only differ by value should compile to the same statement */
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "bolt";
+        criteria.format = "Modern";
+        criteria.cmc = 1;
+        criteria.cmcLogic = "=";
+        search(criteria);
+        String firstSql = CardDbAdapter.getLastSearchTiming().sql;
+
+        criteria.name = "shock";
+        criteria.format = "Standard";
+        criteria.cmc = 5;
+        search(criteria);
+        String secondSql = CardDbAdapter.getLastSearchTiming().sql;
+
+        assertEquals(firstSql, secondSql);
+        assertTrue(!firstSql.contains("Modern") && !firstSql.contains("bolt"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure card images are looked for in the same places, in the same order, as the card view
+ * always has, and that the prefetcher's statistics add up
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CardImagePrefetcherTests {
+
+    @Test
+    public void getImageUrls_EnglishTriesScryfallFirst() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        CardImageInfo info = new CardImageInfo(442051, "Opt", "XLN", "xln", "65", "Instant", 1,
+                "Ixalan");
+
+        ArrayList<URL> urls = info.getImageUrls(context, "en");
+        assertEquals(3, urls.size());
+        assertTrue(urls.get(0).getHost().equals("api.scryfall.com"));
+        assertEquals("http://magiccards.info/scans/en/xln/65.jpg", urls.get(1).toString());
+        assertTrue(urls.get(2).getHost().equals("gatherer.wizards.com"));
+        assertEquals("442051en", info.getImageKey("en"));
+    }
+
+    @Test
+    public void getImageUrls_OtherLanguageTriesMagicCardsInfoFirst() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        CardImageInfo info = new CardImageInfo(442051, "Opt", "XLN", "xln", "65", "Instant", 1,
+                "Ixalan");
+
+        ArrayList<URL> urls = info.getImageUrls(context, "de");
+        assertEquals(4, urls.size());
+        assertEquals("http://magiccards.info/scans/de/xln/65.jpg", urls.get(0).toString());
+        assertTrue(urls.get(1).getHost().equals("api.scryfall.com"));
+        assertEquals("http://magiccards.info/scans/en/xln/65.jpg", urls.get(2).toString());
+        assertTrue(urls.get(3).getHost().equals("gatherer.wizards.com"));
+    }
+
+    @Test
+    public void getImageUrls_TokensOnlyComeFromGatherer() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        CardImageInfo info = new CardImageInfo(201844, "Elemental", "DDA", "evg", "T1",
+                "Creature - Elemental", 0, "Duel Decks: Elves vs. Goblins");
+
+        ArrayList<URL> urls = info.getImageUrls(context, "en");
+        assertEquals(1, urls.size());
+        assertTrue(urls.get(0).getHost().equals("gatherer.wizards.com"));
+    }
+
+    @Test
+    public void statistics_CountHitsAndTimeToFirstImage() {
+        CardImagePrefetcher prefetcher = new CardImagePrefetcher();
+
+        prefetcher.recordLookup("1en", CardImagePrefetcher.SOURCE_MEMORY);
+        prefetcher.recordLookup("2en", CardImagePrefetcher.SOURCE_DISK);
+        prefetcher.recordLookup("3en", CardImagePrefetcher.SOURCE_NETWORK);
+        prefetcher.recordLookup("4en", CardImagePrefetcher.SOURCE_NETWORK);
+        assertEquals(0.5f, prefetcher.getHitRate());
+
+        /* An image which shows before its page is selected takes no time at all */
+        prefetcher.onImageShown(10);
+        prefetcher.onPageSelected(10);
+        assertEquals(0.0, prefetcher.getAverageTimeToFirstImageMillis());
+
+        prefetcher.onPageSelected(11);
+        prefetcher.onImageShown(11);
+        assertTrue(prefetcher.getAverageTimeToFirstImageMillis() >= 0);
+    }
+}
@@ -0,0 +1,363 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure cards survive a round trip through the binary card list format, that the old text
+ * formats are read and migrated correctly, that malformed files only ever throw IOExceptions, and
+ * benchmark the binary format against the text one
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CardListFileTests {
+
+    private static final String TAG = "CardListFileTests";
+    private static final String DECK_NAME = "card_list_file_test.deck";
+    private static final int NUM_FUZZ_CARDS = 2000;
+    private static final int NUM_CORRUPTIONS = 2000;
+    private static final int BENCHMARK_SIZE = 10000;
+
+    /* Names and set codes are picked from these, so they repeat like they do in real lists */
+    private static final String NAME_CHARACTERS =
+            "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ',-:!?&/æÆéúâöí";
+    private static final List<String> SET_CODES = Arrays.asList("LEA", "M10", "DDC", "pMEI", "RIX");
+    private static final List<String> COLORS = Arrays.asList("W", "U", "B", "R", "G", "C", "WU", "BRG");
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteFile(DECK_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteFile(DECK_NAME);
+    }
+
+    /**
+     * @param random Where to get randomness from
+     * @return A random card name, which never has the text formats' delimiter in it
+     */
+    private static String makeName(Random random) {
+        StringBuilder name = new StringBuilder();
+        int length = 1 + random.nextInt(30);
+        for (int i = 0; i < length; i++) {
+            name.append(NAME_CHARACTERS.charAt(random.nextInt(NAME_CHARACTERS.length())));
+        }
+        return name.toString();
+    }
+
+    /**
+     * @param random Where to get randomness from
+     * @param names  Names to reuse, so that the string table is exercised
+     * @return A card with every field a list saves filled in randomly
+     */
+    private static MtgCard makeCard(Random random, List<String> names) {
+        MtgCard card = new MtgCard();
+        if (names.isEmpty() || random.nextInt(4) == 0) {
+            names.add(makeName(random));
+        }
+        card.mName = names.get(random.nextInt(names.size()));
+        card.setCode = SET_CODES.get(random.nextInt(SET_CODES.size()));
+        card.numberOf = 1 + random.nextInt(random.nextBoolean() ? 4 : 1000);
+        card.mNumber = Integer.toString(1 + random.nextInt(300)) + (random.nextInt(10) == 0 ? "b" : "");
+        card.mRarity = "CURMST".charAt(random.nextInt(6));
+        card.foil = random.nextBoolean();
+        card.customPrice = random.nextInt(3) == 0;
+        card.price = card.customPrice ? random.nextInt(100000) : 0;
+        card.mSide = random.nextInt(2);
+        card.mCmc = random.nextInt(16);
+        card.mColor = COLORS.get(random.nextInt(COLORS.size()));
+        return card;
+    }
+
+    /**
+     * @param seed The seed for the randomness, so failures can be reproduced
+     * @param size How many cards to make
+     * @return A list of random cards, with some names repeated
+     */
+    private static List<MtgCard> makeCards(long seed, int size) {
+        Random random = new Random(seed);
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<MtgCard> cards = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            cards.add(makeCard(random, names));
+        }
+        return cards;
+    }
+
+    private static void assertWishlistFieldsEqual(MtgCard expected, MtgCard actual) {
+        assertEquals(expected.mName, actual.mName);
+        assertEquals(expected.setCode, actual.setCode);
+        assertEquals(expected.numberOf, actual.numberOf);
+        assertEquals(expected.mNumber, actual.mNumber);
+        assertEquals(expected.mRarity, actual.mRarity);
+        assertEquals(expected.foil, actual.foil);
+    }
+
+    private static void assertTradeFieldsEqual(MtgCard expected, MtgCard actual) {
+        assertEquals(expected.mSide, actual.mSide);
+        assertEquals(expected.mName, actual.mName);
+        assertEquals(expected.setCode, actual.setCode);
+        assertEquals(expected.numberOf, actual.numberOf);
+        assertEquals(expected.customPrice, actual.customPrice);
+        assertEquals(expected.price, actual.price);
+        assertEquals(expected.foil, actual.foil);
+        assertEquals(expected.mCmc, actual.mCmc);
+        assertEquals(expected.mColor, actual.mColor);
+    }
+
+    /**
+     * @param cards The cards to write as a trade
+     * @return The binary trade
+     * @throws IOException If it can't be written
+     */
+    private static byte[] writeTrade(List<MtgCard> cards) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CardListFile.Writer writer = new CardListFile.Writer(bytes);
+        for (MtgCard card : cards) {
+            writer.writeTradeCard(card, card.mSide);
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes A binary card list
+     * @return Every card in it
+     * @throws IOException If it's malformed
+     */
+    private static List<MtgCard> readAll(byte[] bytes) throws IOException {
+        ArrayList<MtgCard> cards = new ArrayList<>();
+        CardListFile.Reader reader = new CardListFile.Reader(new ByteArrayInputStream(bytes));
+        MtgCard card;
+        while ((card = reader.read()) != null) {
+            cards.add(card);
+        }
+        reader.close();
+        return cards;
+    }
+
+    /**
+     * @param line A line written by toWishlistString() or toTradeString()
+     * @return The line without its trailing newline, like BufferedReader.readLine() returns
+     */
+    private static String stripNewline(String line) {
+        return line.substring(0, line.length() - 1);
+    }
+
+    @Test
+    public void everyListKind_SurvivesRoundTrip() throws IOException {
+        List<MtgCard> cards = makeCards(0, NUM_FUZZ_CARDS);
+        /* Cards made without a set still have to round trip */
+        MtgCard noSet = new MtgCard();
+        noSet.mName = "Storm Crow";
+        cards.add(noSet);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CardListFile.Writer writer = new CardListFile.Writer(bytes);
+        for (int i = 0; i < cards.size(); i++) {
+            switch (i % 3) {
+                case 0:
+                    writer.writeWishlistCard(cards.get(i));
+                    break;
+                case 1:
+                    writer.writeDeckCard(cards.get(i), i % 2 == 0);
+                    break;
+                case 2:
+                    writer.writeTradeCard(cards.get(i), cards.get(i).mSide);
+                    break;
+            }
+        }
+        writer.close();
+
+        assertTrue(CardListFile.isBinary(new BufferedInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))));
+        CardListFile.Reader reader = new CardListFile.Reader(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < cards.size(); i++) {
+            MtgCard card = reader.read();
+            assertWishlistFieldsEqual(cards.get(i), card);
+            switch (i % 3) {
+                case 1:
+                    assertEquals(i % 2 == 0, reader.isSideboard());
+                    break;
+                case 2:
+                    assertFalse(reader.isSideboard());
+                    assertTradeFieldsEqual(cards.get(i), card);
+                    break;
+            }
+        }
+        assertNull(reader.read());
+        reader.close();
+    }
+
+    @Test
+    public void legacyWishlistLines_SurviveMigration() throws IOException {
+        for (MtgCard card : makeCards(1, NUM_FUZZ_CARDS)) {
+            MtgCard legacy = MtgCard.parseWishlistString(stripNewline(card.toWishlistString()));
+            assertWishlistFieldsEqual(card, legacy);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CardListFile.Writer writer = new CardListFile.Writer(bytes);
+            writer.writeWishlistCard(legacy);
+            writer.close();
+            assertWishlistFieldsEqual(card, readAll(bytes.toByteArray()).get(0));
+        }
+    }
+
+    @Test
+    public void legacyTradeLines_SurviveMigration() throws IOException {
+        List<MtgCard> cards = makeCards(2, NUM_FUZZ_CARDS);
+        ArrayList<MtgCard> legacy = new ArrayList<>(cards.size());
+        for (MtgCard card : cards) {
+            MtgCard parsed = MtgCard.parseTradeString(stripNewline(card.toTradeString(card.mSide)));
+            assertTradeFieldsEqual(card, parsed);
+            legacy.add(parsed);
+        }
+
+        List<MtgCard> migrated = readAll(writeTrade(legacy));
+        assertEquals(cards.size(), migrated.size());
+        for (int i = 0; i < cards.size(); i++) {
+            assertTradeFieldsEqual(cards.get(i), migrated.get(i));
+        }
+    }
+
+    @Test
+    public void legacyDecklist_IsMigrated() throws IOException {
+        List<MtgCard> cards = makeCards(3, 100);
+        FileOutputStream fos = mContext.openFileOutput(DECK_NAME, Context.MODE_PRIVATE);
+        for (int i = 0; i < cards.size(); i++) {
+            fos.write(((i % 4 == 0 ? "SB:" : "") + cards.get(i).toWishlistString()).getBytes());
+        }
+        fos.close();
+
+        for (int pass = 0; pass < 2; pass++) {
+            ArrayList<Pair<MtgCard, Boolean>> decklist =
+                    DecklistHelpers.ReadDecklist(mContext, DECK_NAME);
+            assertEquals(cards.size(), decklist.size());
+            for (int i = 0; i < cards.size(); i++) {
+                assertWishlistFieldsEqual(cards.get(i), decklist.get(i).first);
+                assertEquals(i % 4 == 0, (boolean) decklist.get(i).second);
+            }
+
+            /* The first read should have rewritten it */
+            InputStream in = new BufferedInputStream(mContext.openFileInput(DECK_NAME));
+            assertTrue(CardListFile.isBinary(in));
+            in.close();
+        }
+    }
+
+    @Test
+    public void malformedFiles_OnlyThrowIOExceptions() throws IOException {
+        byte[] good = writeTrade(makeCards(4, 50));
+        Random random = new Random(5);
+        int failures = 0;
+        for (int i = 0; i < NUM_CORRUPTIONS; i++) {
+            byte[] bad = Arrays.copyOf(good, random.nextInt(good.length + 1));
+            int flips = random.nextInt(8);
+            for (int j = 0; j < flips && bad.length > 0; j++) {
+                bad[random.nextInt(bad.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                readAll(bad);
+            } catch (IOException e) {
+                failures++;
+            }
+        }
+        /* Most corruptions should be noticed, but none should throw anything else */
+        Log.i(TAG, failures + " of " + NUM_CORRUPTIONS + " corrupted files were rejected");
+    }
+
+    @Test
+    public void largeList_Benchmark() throws IOException {
+        List<MtgCard> cards = makeCards(6, BENCHMARK_SIZE);
+        File textFile = new File(mContext.getCacheDir(), "card_list_benchmark.txt");
+        File binaryFile = new File(mContext.getCacheDir(), "card_list_benchmark.bin");
+
+        /* Save and load the text format the way older versions did */
+        long start = System.nanoTime();
+        FileOutputStream fos = new FileOutputStream(textFile);
+        for (MtgCard card : cards) {
+            fos.write(card.toTradeString(card.mSide).getBytes());
+        }
+        fos.close();
+        long textSave = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ArrayList<MtgCard> textCards = new ArrayList<>(BENCHMARK_SIZE);
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(textFile)));
+        String line;
+        while ((line = br.readLine()) != null) {
+            textCards.add(MtgCard.parseTradeString(line));
+        }
+        br.close();
+        long textLoad = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        CardListFile.Writer writer = new CardListFile.Writer(new FileOutputStream(binaryFile));
+        for (MtgCard card : cards) {
+            writer.writeTradeCard(card, card.mSide);
+        }
+        writer.close();
+        long binarySave = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        ArrayList<MtgCard> binaryCards = new ArrayList<>(BENCHMARK_SIZE);
+        CardListFile.Reader reader = new CardListFile.Reader(
+                new BufferedInputStream(new FileInputStream(binaryFile)));
+        MtgCard card;
+        while ((card = reader.read()) != null) {
+            binaryCards.add(card);
+        }
+        reader.close();
+        long binaryLoad = System.nanoTime() - start;
+
+        assertEquals(BENCHMARK_SIZE, textCards.size());
+        assertEquals(BENCHMARK_SIZE, binaryCards.size());
+        for (int i = 0; i < BENCHMARK_SIZE; i++) {
+            assertTradeFieldsEqual(textCards.get(i), binaryCards.get(i));
+        }
+
+        Log.i(TAG, BENCHMARK_SIZE + " cards, text: " + textFile.length() + " bytes, save " +
+                (textSave / 1000000) + "ms, load " + (textLoad / 1000000) + "ms");
+        Log.i(TAG, BENCHMARK_SIZE + " cards, binary: " + binaryFile.length() + " bytes, save " +
+                (binarySave / 1000000) + "ms, load " + (binaryLoad / 1000000) + "ms");
+        //noinspection ResultOfMethodCallIgnored
+        textFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        binaryFile.delete();
+    }
+}
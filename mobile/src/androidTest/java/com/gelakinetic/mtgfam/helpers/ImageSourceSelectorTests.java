@@ -0,0 +1,287 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Race image downloads between local HTTP servers which stand in for image hosts, with injected
+ * latency and failures, and make sure the fastest healthy one wins
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ImageSourceSelectorTests {
+
+    private static final String TAG = "ImageSourceSelector";
+    private static final long COOL_DOWN_MILLIS = 500;
+
+    private final ArrayList<StandInHost> mHosts = new ArrayList<>();
+    private ImageSourceSelector mSelector;
+    private ImageSourceSelector.Downloader mDownloader;
+    private byte[] mImage;
+
+    /**
+     * A local HTTP server which answers every request with an image, or an error, after a delay
+     */
+    private static class StandInHost extends Thread {
+        private final ServerSocket mSocket;
+        private final byte[] mImage;
+        volatile long mDelayMillis;
+        volatile int mStatus = 200;
+        final AtomicInteger mRequests = new AtomicInteger();
+
+        StandInHost(byte[] image, long delayMillis) throws IOException {
+            mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mImage = image;
+            mDelayMillis = delayMillis;
+            start();
+        }
+
+        URL getUrl(String path) throws IOException {
+            return new URL("http", "127.0.0.1", mSocket.getLocalPort(), path);
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket client = mSocket.accept();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            answer(client);
+                        }
+                    }.start();
+                } catch (IOException e) {
+                    /* The server was closed */
+                }
+            }
+        }
+
+        private void answer(Socket client) {
+            try {
+                BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(client.getInputStream()));
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    /* Skip the request headers */
+                }
+                mRequests.incrementAndGet();
+                SystemClock.sleep(mDelayMillis);
+
+                byte[] body = mStatus == 200 ? mImage : new byte[0];
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.1 " + mStatus + " Stand-in\r\n" +
+                        "Content-Type: image/png\r\n" +
+                        "Content-Length: " + body.length + "\r\n" +
+                        "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                /* The client gave up */
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        bitmap.recycle();
+        mImage = stream.toByteArray();
+
+        mSelector = new ImageSourceSelector(100, COOL_DOWN_MILLIS);
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDownloader = new ImageSourceSelector.Downloader() {
+            @Override
+            public byte[] download(URL url) throws IOException {
+                byte[] bytes = CardImageInfo.download(url, context);
+                if (bytes == null || !CardImageInfo.isImage(bytes)) {
+                    throw new IOException("Not an image: " + url);
+                }
+                return bytes;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (StandInHost host : mHosts) {
+            host.close();
+        }
+        mHosts.clear();
+    }
+
+    private StandInHost startHost(long delayMillis) throws IOException {
+        StandInHost host = new StandInHost(mImage, delayMillis);
+        mHosts.add(host);
+        return host;
+    }
+
+    @Test
+    public void download_SlowHostIsHedged() throws IOException {
+        StandInHost slow = startHost(6000);
+        StandInHost fast = startHost(0);
+
+        /* Neither host is known, so the slow one is tried first, in the order given */
+        long start = SystemClock.elapsedRealtime();
+        byte[] image = mSelector.download(
+                Arrays.asList(slow.getUrl("/slow.png"), fast.getUrl("/fast.png")), 0, mDownloader);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Hedged download took " + elapsed + "ms. " + mSelector);
+
+        assertTrue(Arrays.equals(mImage, image));
+        assertTrue(elapsed < 6000);
+        assertEquals(1, mSelector.getHedges());
+        assertEquals(1, slow.mRequests.get());
+        assertEquals(1, fast.mRequests.get());
+    }
+
+    @Test
+    public void order_FasterHostGoesFirst() throws IOException {
+        StandInHost slow = startHost(400);
+        StandInHost fast = startHost(0);
+        URL slowUrl = slow.getUrl("/slow.png");
+        URL fastUrl = fast.getUrl("/fast.png");
+
+        for (int i = 0; i < 3; i++) {
+            mSelector.download(Collections.singletonList(slowUrl), 0, mDownloader);
+            mSelector.download(Collections.singletonList(fastUrl), 0, mDownloader);
+        }
+        assertTrue(mSelector.getLatencyMillis(fastUrl) < mSelector.getLatencyMillis(slowUrl));
+
+        List<URL> ordered = mSelector.order(Arrays.asList(slowUrl, fastUrl), 0);
+        assertEquals(fastUrl, ordered.get(0));
+        assertEquals(slowUrl, ordered.get(1));
+
+        /* The fast host answers well before the slow one would be hedged, so only it is asked */
+        int slowRequests = slow.mRequests.get();
+        assertNotNull(mSelector.download(Arrays.asList(slowUrl, fastUrl), 0, mDownloader));
+        assertEquals(slowRequests, slow.mRequests.get());
+    }
+
+    @Test
+    public void download_FailingHostIsCircuitBroken() throws IOException {
+        StandInHost failing = startHost(0);
+        failing.mStatus = 500;
+        StandInHost healthy = startHost(0);
+        URL failingUrl = failing.getUrl("/failing.png");
+        URL healthyUrl = healthy.getUrl("/healthy.png");
+
+        for (int i = 0; i < 3; i++) {
+            assertFalse(mSelector.isCircuitOpen(failingUrl));
+            try {
+                mSelector.download(Collections.singletonList(failingUrl), 0, mDownloader);
+                fail("The failing host shouldn't have returned an image");
+            } catch (IOException e) {
+                /* Expected */
+            }
+        }
+        assertTrue(mSelector.isCircuitOpen(failingUrl));
+        assertTrue(mSelector.getFailureRate(failingUrl) > 0.5);
+
+        /* While the circuit is open, the failing host isn't asked at all */
+        assertNotNull(mSelector.download(Arrays.asList(failingUrl, healthyUrl), 0, mDownloader));
+        assertEquals(3, failing.mRequests.get());
+
+        /* After the cool-down, it gets one more chance, and it recovers */
+        SystemClock.sleep(COOL_DOWN_MILLIS + 100);
+        assertFalse(mSelector.isCircuitOpen(failingUrl));
+        failing.mStatus = 200;
+        assertNotNull(mSelector.download(Collections.singletonList(failingUrl), 0, mDownloader));
+        assertEquals(4, failing.mRequests.get());
+        assertFalse(mSelector.isCircuitOpen(failingUrl));
+        Log.i(TAG, mSelector.toString());
+    }
+
+    @Test
+    public void download_PinnedHostIsAlwaysTriedFirst() throws IOException {
+        StandInHost pinned = startHost(300);
+        StandInHost fast = startHost(0);
+        URL pinnedUrl = pinned.getUrl("/de/pinned.png");
+        URL fastUrl = fast.getUrl("/en/fast.png");
+
+        mSelector.download(Collections.singletonList(fastUrl), 0, mDownloader);
+        int fastRequests = fast.mRequests.get();
+
+        /* Even though the other host is faster, the pinned one has the right language */
+        assertNotNull(mSelector.download(Arrays.asList(pinnedUrl, fastUrl), 1, mDownloader));
+        assertEquals(1, pinned.mRequests.get());
+        assertEquals(fastRequests, fast.mRequests.get());
+
+        /* And if it fails, the rest are tried */
+        pinned.mStatus = 404;
+        assertNotNull(mSelector.download(Arrays.asList(pinnedUrl, fastUrl), 1, mDownloader));
+        assertEquals(fastRequests + 1, fast.mRequests.get());
+    }
+
+    @Test
+    public void download_FailingPinnedHostIsCircuitBroken() throws IOException {
+        StandInHost pinned = startHost(0);
+        pinned.mStatus = 500;
+        StandInHost healthy = startHost(0);
+        URL pinnedUrl = pinned.getUrl("/de/pinned.png");
+        URL healthyUrl = healthy.getUrl("/en/healthy.png");
+        List<URL> urls = Arrays.asList(pinnedUrl, healthyUrl);
+
+        /* Each download asks the pinned host first, until its circuit opens */
+        for (int i = 0; i < 3; i++) {
+            assertEquals(pinnedUrl, mSelector.order(urls, 1).get(0));
+            assertNotNull(mSelector.download(urls, 1, mDownloader));
+        }
+        assertEquals(3, pinned.mRequests.get());
+        assertTrue(mSelector.isCircuitOpen(pinnedUrl));
+
+        /* Then it loses its place, and isn't asked at all while the other host works */
+        List<URL> ordered = mSelector.order(urls, 1);
+        assertEquals(healthyUrl, ordered.get(0));
+        assertEquals(pinnedUrl, ordered.get(1));
+        assertNotNull(mSelector.download(urls, 1, mDownloader));
+        assertEquals(3, pinned.mRequests.get());
+
+        /* After the cool-down, it's pinned again */
+        SystemClock.sleep(COOL_DOWN_MILLIS + 100);
+        assertEquals(pinnedUrl, mSelector.order(urls, 1).get(0));
+    }
+}
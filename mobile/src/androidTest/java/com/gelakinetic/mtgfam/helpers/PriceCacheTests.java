@@ -0,0 +1,339 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.octo.android.robospice.persistence.exception.CacheCreationException;
+import com.octo.android.robospice.persistence.exception.CacheLoadingException;
+import com.octo.android.robospice.persistence.exception.CacheSavingException;
+import com.octo.android.robospice.persistence.file.InFileObjectPersister;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure prices survive a round trip through the PriceCache file, and compare loading a large
+ * wishlist's prices from it against one file per price
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PriceCacheTests {
+
+    private static final String TAG = "PriceCacheTests";
+    private static final int WISHLIST_SIZE = 1000;
+    private static final long ONE_DAY = 24 * 60 * 60 * 1000L;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mFile = new File(context.getCacheDir(), "price_cache_test.bin");
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    /**
+     * @param i Which price to make
+     * @return A price which is different for every i
+     */
+    private static PriceInfo makePrice(int i) {
+        PriceInfo priceInfo = new PriceInfo();
+        priceInfo.mLow = i;
+        priceInfo.mAverage = i + 0.25;
+        priceInfo.mHigh = i + 0.5;
+        priceInfo.mFoilAverage = i + 0.75;
+        priceInfo.mUrl = "http://store.tcgplayer.com/magic/card-" + i;
+        return priceInfo;
+    }
+
+    /**
+     * @param i Which key to make
+     * @return A cache key like the ones PriceFetchBatcher makes
+     */
+    private static String makeKey(int i) {
+        return PriceFetchBatcher.getCacheKey("Card Number " + i, "SET" + (i % 10));
+    }
+
+    private static void assertPriceEquals(PriceInfo expected, PriceInfo actual) {
+        assertNotNull(actual);
+        assertEquals(expected.mLow, actual.mLow);
+        assertEquals(expected.mAverage, actual.mAverage);
+        assertEquals(expected.mHigh, actual.mHigh);
+        assertEquals(expected.mFoilAverage, actual.mFoilAverage);
+        assertEquals(expected.mUrl, actual.mUrl);
+    }
+
+    @Test
+    public void legacyCache_Deleted() throws IOException {
+        File legacyCacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "price_cache_test_legacy");
+        assertTrue(legacyCacheDir.isDirectory() || legacyCacheDir.mkdir());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(new File(legacyCacheDir, makeKey(i)).createNewFile());
+        }
+
+        PriceCache cache = new PriceCache(mFile);
+        cache.deleteLegacyCache(legacyCacheDir);
+        cache.flush();
+        assertFalse(legacyCacheDir.exists());
+
+        /* Doing it again when there's nothing left is fine */
+        cache.deleteLegacyCache(legacyCacheDir);
+        cache.flush();
+        assertFalse(legacyCacheDir.exists());
+    }
+
+    @Test
+    public void prices_SurviveReload() throws IOException {
+        PriceCache cache = new PriceCache(mFile);
+        for (int i = 0; i < 100; i++) {
+            cache.put(makeKey(i), makePrice(i));
+        }
+        /* Replace and remove a few */
+        cache.put(makeKey(5), makePrice(500));
+        assertTrue(cache.remove(makeKey(6)));
+        assertFalse(cache.remove("Not A Real Card-XXX"));
+        cache.flush();
+
+        PriceCache reloaded = new PriceCache(mFile);
+        assertEquals(99, reloaded.getKeys().size());
+        for (int i = 0; i < 100; i++) {
+            PriceInfo priceInfo = reloaded.get(makeKey(i), ONE_DAY);
+            if (i == 5) {
+                assertPriceEquals(makePrice(500), priceInfo);
+            } else if (i == 6) {
+                assertNull(priceInfo);
+            } else {
+                assertPriceEquals(makePrice(i), priceInfo);
+            }
+        }
+    }
+
+    @Test
+    public void prices_Expire() throws IOException {
+        PriceCache cache = new PriceCache(mFile);
+        cache.put(makeKey(0), makePrice(0));
+        long timestamp = cache.getTimestamp(makeKey(0));
+        assertTrue(timestamp > 0);
+        SystemClock.sleep(50);
+
+        assertNotNull(cache.get(makeKey(0), ONE_DAY));
+        assertNotNull(cache.get(makeKey(0), 0));
+        assertNull(cache.get(makeKey(0), 10));
+        assertFalse(cache.contains(makeKey(0), 10));
+    }
+
+    @Test
+    public void partialRecord_IsDropped() throws IOException {
+        PriceCache cache = new PriceCache(mFile);
+        for (int i = 0; i < 10; i++) {
+            cache.put(makeKey(i), makePrice(i));
+        }
+        cache.flush();
+
+        /* Pretend the app was killed in the middle of appending a record */
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        long goodLength = file.length();
+        file.seek(goodLength);
+        file.writeInt(100);
+        file.writeLong(System.currentTimeMillis());
+        file.close();
+
+        PriceCache reloaded = new PriceCache(mFile);
+        assertEquals(10, reloaded.getKeys().size());
+        assertEquals(goodLength, mFile.length());
+
+        /* And make sure appending after that works */
+        reloaded.put(makeKey(10), makePrice(10));
+        reloaded.flush();
+        assertPriceEquals(makePrice(10), new PriceCache(mFile).get(makeKey(10), 0));
+    }
+
+    @Test
+    public void corruptRecord_IsDroppedWithEverythingAfterIt() throws IOException {
+        PriceCache cache = new PriceCache(mFile);
+        for (int i = 0; i < 10; i++) {
+            cache.put(makeKey(i), makePrice(i));
+        }
+        cache.flush();
+
+        /* Every record is the same size, so break the first byte of the sixth record's key. The
+         * header is 8 bytes, and each record has its length, a timestamp, four prices, and then
+         * the key's UTF length */
+        long recordBytes = (mFile.length() - 8) / 10;
+        long corruptRecord = 8 + 5 * recordBytes;
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(corruptRecord + 4 + 8 + 4 * 8 + 2);
+        file.write(0xFF);
+        file.close();
+
+        PriceCache reloaded = new PriceCache(mFile);
+        assertEquals(5, reloaded.getKeys().size());
+        for (int i = 0; i < 5; i++) {
+            assertPriceEquals(makePrice(i), reloaded.get(makeKey(i), 0));
+        }
+        assertEquals(corruptRecord, mFile.length());
+
+        /* Appending after that keeps the records before the corrupt one */
+        reloaded.put(makeKey(10), makePrice(10));
+        reloaded.flush();
+        PriceCache appended = new PriceCache(mFile);
+        assertEquals(6, appended.getKeys().size());
+        assertPriceEquals(makePrice(4), appended.get(makeKey(4), 0));
+        assertPriceEquals(makePrice(10), appended.get(makeKey(10), 0));
+    }
+
+    @Test
+    public void rewrites_AreCompacted() throws IOException {
+        PriceCache cache = new PriceCache(mFile);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                cache.put(makeKey(i), makePrice(i + round));
+            }
+            cache.flush();
+        }
+
+        /* Twenty rounds of 100 records, over 100 bytes each, would be over 200KB uncompacted */
+        assertEquals(cache.getFileBytes(), mFile.length());
+        Log.i(TAG, "Compacted file is " + mFile.length() + " bytes");
+        assertTrue(mFile.length() < 100 * 1024);
+
+        PriceCache reloaded = new PriceCache(mFile);
+        assertEquals(100, reloaded.getKeys().size());
+        for (int i = 0; i < 100; i++) {
+            assertPriceEquals(makePrice(i + 19), reloaded.get(makeKey(i), 0));
+        }
+    }
+
+    @Test
+    public void wishlistLoad_Benchmark() throws IOException, CacheCreationException,
+            CacheLoadingException, CacheSavingException {
+        Application application = (Application) InstrumentationRegistry.getTargetContext()
+                .getApplicationContext();
+
+        /* Fill both caches with the same prices */
+        InFileObjectPersister<PriceInfo> filePersister = new OneFilePerPricePersister(application);
+        filePersister.removeAllDataFromCache();
+        PriceCache cache = new PriceCache(mFile);
+        for (int i = 0; i < WISHLIST_SIZE; i++) {
+            filePersister.saveDataToCacheAndReturnData(makePrice(i), makeKey(i));
+            cache.put(makeKey(i), makePrice(i));
+        }
+        cache.flush();
+
+        /* Cold loads start with nothing in memory */
+        long start = System.nanoTime();
+        filePersister = new OneFilePerPricePersister(application);
+        for (int i = 0; i < WISHLIST_SIZE; i++) {
+            assertNotNull(filePersister.loadDataFromCache(makeKey(i), ONE_DAY));
+        }
+        long filesCold = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < WISHLIST_SIZE; i++) {
+            assertNotNull(filePersister.loadDataFromCache(makeKey(i), ONE_DAY));
+        }
+        long filesWarm = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        cache = new PriceCache(mFile);
+        for (int i = 0; i < WISHLIST_SIZE; i++) {
+            assertPriceEquals(makePrice(i), cache.get(makeKey(i), ONE_DAY));
+        }
+        long cacheCold = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < WISHLIST_SIZE; i++) {
+            assertNotNull(cache.get(makeKey(i), ONE_DAY));
+        }
+        long cacheWarm = System.nanoTime() - start;
+
+        Log.i(TAG, WISHLIST_SIZE + " prices, one file each: cold " + (filesCold / 1000000) +
+                "ms, warm " + (filesWarm / 1000000) + "ms");
+        Log.i(TAG, WISHLIST_SIZE + " prices, PriceCache: cold " + (cacheCold / 1000000) +
+                "ms, warm " + (cacheWarm / 1000000) + "ms");
+        filePersister.removeAllDataFromCache();
+    }
+
+    /**
+     * The persister PriceFetchService used before PriceCache, which keeps each price in its own
+     * file, for comparison
+     */
+    private static class OneFilePerPricePersister extends InFileObjectPersister<PriceInfo> {
+
+        OneFilePerPricePersister(Application application) throws CacheCreationException {
+            super(application, PriceInfo.class);
+        }
+
+        @Override
+        public PriceInfo loadDataFromCache(Object cacheKey, long maxTimeInCacheBeforeExpiry)
+                throws CacheLoadingException {
+            File file = getCacheFile(cacheKey);
+            if (file.exists()) {
+                long timeInCache = System.currentTimeMillis() - file.lastModified();
+                if (maxTimeInCacheBeforeExpiry == 0 || timeInCache <= maxTimeInCacheBeforeExpiry) {
+                    return readCacheDataFromFile(file);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public PriceInfo saveDataToCacheAndReturnData(PriceInfo data, Object cacheKey)
+                throws CacheSavingException {
+            try {
+                BufferedOutputStream bos = new BufferedOutputStream(
+                        new FileOutputStream(getCacheFile(cacheKey)));
+                bos.write(data.toBytes());
+                bos.flush();
+                bos.close();
+            } catch (IOException e) {
+                throw new CacheSavingException(e);
+            }
+            return data;
+        }
+
+        @Override
+        protected PriceInfo readCacheDataFromFile(File file) throws CacheLoadingException {
+            try {
+                byte[] buffer = new byte[(int) file.length()];
+                InputStream ios = new FileInputStream(file);
+                if (ios.read(buffer) == -1) {
+                    throw new IOException("EOF reached while trying to read the whole file");
+                }
+                ios.close();
+                return new PriceInfo(buffer);
+            } catch (IOException e) {
+                throw new CacheLoadingException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.octo.android.robospice.persistence.exception.SpiceException;
+import com.octo.android.robospice.request.listener.RequestListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Serve prices from a local HTTP stand-in with an artificial delay, and make sure a long list of
+ * cards with duplicates is fetched with one request per distinct card, several at a time
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PriceFetchBatcherTests {
+
+    private static final String TAG = "PriceFetchBatcherTests";
+    private static final int NUM_CARDS = 100;
+    private static final int COPIES_PER_CARD = 3;
+    private static final long SERVER_DELAY_MS = 200;
+    private static final String PRICE_XML = "<products><product><id>1</id>" +
+            "<hiprice>3.00</hiprice><lowprice>1.00</lowprice><avgprice>2.00</avgprice>" +
+            "<foilavgprice>4.00</foilavgprice><link>http://example.com</link></product></products>";
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private final AtomicInteger mServedRequests = new AtomicInteger();
+    private final List<String> mRequestLines = Collections.synchronizedList(new ArrayList<String>());
+    private ServerSocket mServerSocket;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerSocket = new ServerSocket(0);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    } catch (IOException e) {
+                        /* The socket was closed */
+                    }
+                }
+            }
+        }).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+    }
+
+    /**
+     * Answer a single HTTP GET after SERVER_DELAY_MS with the same price for every card
+     *
+     * @param socket The connection to answer
+     */
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            mRequestLines.add(reader.readLine());
+            /* Skip the headers */
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                /* Nothing to do */
+            }
+            mServedRequests.incrementAndGet();
+
+            SystemClock.sleep(SERVER_DELAY_MS);
+
+            byte[] body = PRICE_XML.getBytes("UTF-8");
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + body.length +
+                    "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            out.write(body);
+            out.flush();
+            socket.close();
+        } catch (IOException e) {
+            /* The test will fail when the price isn't returned */
+        }
+    }
+
+    /**
+     * @return NUM_CARDS distinct card names and set codes from the database
+     * @throws FamiliarDbException If the database can't be opened
+     */
+    private List<String[]> getCards() throws FamiliarDbException {
+        ArrayList<String[]> cards = new ArrayList<>();
+        SQLiteDatabase database = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+        Cursor cursor = database.rawQuery("SELECT DISTINCT " + CardDbAdapter.KEY_NAME + ", " +
+                CardDbAdapter.KEY_SET + " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " LIMIT " + NUM_CARDS, null);
+        while (cursor.moveToNext()) {
+            cards.add(new String[]{cursor.getString(0), cursor.getString(1)});
+        }
+        cursor.close();
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false).closeDatabase(false);
+        return cards;
+    }
+
+    @Test
+    public void duplicateCards_FetchedOnce() throws Exception {
+        final List<String[]> cards = getCards();
+        final FamiliarActivity activity = mFamiliarActivityRule.getActivity();
+        activity.mSpiceManager.removeAllDataFromCache();
+
+        final CountDownLatch latch = new CountDownLatch(cards.size() * COPIES_PER_CARD);
+        final AtomicInteger failures = new AtomicInteger();
+        final RequestListener<PriceInfo> listener = new RequestListener<PriceInfo>() {
+            @Override
+            public void onRequestFailure(SpiceException spiceException) {
+                failures.incrementAndGet();
+                latch.countDown();
+            }
+
+            @Override
+            public void onRequestSuccess(PriceInfo priceInfo) {
+                if (priceInfo == null || priceInfo.mAverage != 2.0) {
+                    failures.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+
+        long start = SystemClock.elapsedRealtime();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                PriceFetchBatcher batcher = new PriceFetchBatcher(activity.mSpiceManager, activity);
+                batcher.setPriceUrl("http://localhost:" + mServerSocket.getLocalPort() + "/p");
+                /* Like a list with a few copies of each card, in different fragments */
+                for (int i = 0; i < COPIES_PER_CARD; i++) {
+                    for (String[] card : cards) {
+                        batcher.fetchPrice(card[0], card[1], null, listener);
+                    }
+                }
+            }
+        });
+
+        assertTrue(latch.await(cards.size() * SERVER_DELAY_MS * 2, TimeUnit.MILLISECONDS));
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, cards.size() * COPIES_PER_CARD + " prices, " + mServedRequests.get() +
+                " requests, " + elapsed + "ms");
+
+        assertEquals(0, failures.get());
+        /* Anything which wasn't cleared from the cache in time isn't fetched at all */
+        assertTrue(mServedRequests.get() <= cards.size());
+        /* More than one request should be in flight at once */
+        assertTrue(elapsed < cards.size() * SERVER_DELAY_MS);
+    }
+
+    @Test
+    public void cancelAll_FailsEveryListener() throws Exception {
+        final List<String[]> cards = getCards();
+        final FamiliarActivity activity = mFamiliarActivityRule.getActivity();
+        activity.mSpiceManager.removeAllDataFromCache();
+
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger successes = new AtomicInteger();
+        final RequestListener<PriceInfo> listener = new RequestListener<PriceInfo>() {
+            @Override
+            public void onRequestFailure(SpiceException spiceException) {
+                failures.incrementAndGet();
+            }
+
+            @Override
+            public void onRequestSuccess(PriceInfo priceInfo) {
+                successes.incrementAndGet();
+            }
+        };
+
+        final PriceFetchBatcher batcher = new PriceFetchBatcher(activity.mSpiceManager, activity);
+        batcher.setPriceUrl("http://localhost:" + mServerSocket.getLocalPort() + "/p");
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                /* Half the cards are flushed and looked up, the other half are still pending */
+                for (String[] card : cards.subList(0, cards.size() / 2)) {
+                    batcher.fetchPrice(card[0], card[1], null, listener);
+                }
+            }
+        });
+        /* Give the first half time to get to RoboSpice, but not long enough to be answered */
+        SystemClock.sleep(SERVER_DELAY_MS / 4);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (String[] card : cards) {
+                    batcher.fetchPrice(card[0], card[1], null, listener);
+                }
+                batcher.cancelAll();
+                assertEquals(0, batcher.getPendingRequestCount());
+            }
+        });
+
+        /* Every listener heard about it, and nothing finished afterwards */
+        assertEquals(cards.size() / 2 + cards.size(), failures.get());
+        SystemClock.sleep(SERVER_DELAY_MS * 2);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals(cards.size() / 2 + cards.size(), failures.get());
+        assertEquals(0, successes.get());
+    }
+
+    @Test
+    public void cardNumber_UsedInsteadOfLookedUpNumber() throws Exception {
+        /* Find a basic land with more than one number in a set. Only one of them is looked up */
+        SQLiteDatabase database = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+        Cursor cursor = database.rawQuery("SELECT " + CardDbAdapter.KEY_NAME + ", " +
+                CardDbAdapter.KEY_SET + ", MIN(" + CardDbAdapter.KEY_NUMBER + "), MAX(" +
+                CardDbAdapter.KEY_NUMBER + ") FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " WHERE " + CardDbAdapter.KEY_SUPERTYPE + " LIKE 'Basic Land%'" +
+                " GROUP BY " + CardDbAdapter.KEY_NAME + ", " + CardDbAdapter.KEY_SET +
+                " HAVING COUNT(DISTINCT " + CardDbAdapter.KEY_NUMBER + ") > 1 LIMIT 1", null);
+        assertTrue(cursor.moveToFirst());
+        final String name = cursor.getString(0);
+        final String setCode = cursor.getString(1);
+        String[] numbers = {cursor.getString(2), cursor.getString(3)};
+        cursor.close();
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false).closeDatabase(false);
+
+        final FamiliarActivity activity = mFamiliarActivityRule.getActivity();
+        for (final String number : numbers) {
+            activity.mSpiceManager.removeAllDataFromCache();
+            mRequestLines.clear();
+            final CountDownLatch latch = new CountDownLatch(1);
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    PriceFetchBatcher batcher = new PriceFetchBatcher(activity.mSpiceManager, activity);
+                    batcher.setPriceUrl("http://localhost:" + mServerSocket.getLocalPort() + "/p");
+                    batcher.fetchPrice(name, setCode, number, new RequestListener<PriceInfo>() {
+                        @Override
+                        public void onRequestFailure(SpiceException spiceException) {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onRequestSuccess(PriceInfo priceInfo) {
+                            latch.countDown();
+                        }
+                    });
+                }
+            });
+            assertTrue(latch.await(SERVER_DELAY_MS * 10, TimeUnit.MILLISECONDS));
+
+            /* Basic lands are requested by number, e.g. "Forest (250)" */
+            assertEquals(1, mRequestLines.size());
+            String requestLine = mRequestLines.get(0);
+            assertTrue(requestLine, requestLine.contains(URLEncoder.encode(" (" + number + ")", "UTF-8")));
+        }
+    }
+}
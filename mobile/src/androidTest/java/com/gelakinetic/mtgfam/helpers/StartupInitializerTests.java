@@ -0,0 +1,133 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure the database is installed and opened off the main thread during startup, that only
+ * callers which need the database wait for it, and that every stage shows up in the startup trace
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StartupInitializerTests {
+
+    private static final String TAG = "StartupInitializerTests";
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    @Test
+    public void coldStart_FirstFrameDoesNotWaitForDatabase() throws InterruptedException {
+        StartupTrace trace = StartupInitializer.getInstance().getTrace();
+
+        /* Wait for the first frame */
+        for (int i = 0; i < 100 && trace.getStage(StartupTrace.STAGE_FIRST_FRAME) == null; i++) {
+            Thread.sleep(100);
+        }
+        StartupTrace.Stage firstFrame = trace.getStage(StartupTrace.STAGE_FIRST_FRAME);
+        assertNotNull(firstFrame);
+        assertTrue(firstFrame.mOnMainThread);
+
+        /* The database was installed in the background */
+        StartupInitializer.getInstance().awaitDatabase();
+        StartupTrace.Stage database = trace.getStage(StartupTrace.STAGE_DATABASE);
+        assertNotNull(database);
+        assertFalse(database.mOnMainThread);
+
+        /* And the main thread didn't wait for it before the first frame */
+        for (StartupTrace.Stage stage : trace.getStages()) {
+            if (stage.mOnMainThread && stage.mName.equals(StartupTrace.STAGE_DATABASE_WAIT)) {
+                assertTrue(stage.mStartMillis > firstFrame.mStartMillis);
+            }
+        }
+
+        /* Every stage was recorded */
+        for (String name : new String[]{StartupTrace.STAGE_CONTENT_VIEW,
+                StartupTrace.STAGE_PREFERENCES, StartupTrace.STAGE_DRAWER,
+                StartupTrace.STAGE_INTENT}) {
+            assertTrue(trace.getStage(name).mOnMainThread);
+        }
+        Log.i(TAG, trace.toString());
+    }
+
+    @Test
+    public void awaitDatabase_BlocksUntilDatabaseIsReady() {
+        StartupInitializer startup = new StartupInitializer();
+
+        /* Nothing was started in the background, so there's nothing to wait for */
+        assertTrue(startup.isDatabaseReady());
+        startup.awaitDatabase();
+        assertNull(startup.getTrace().getStage(StartupTrace.STAGE_DATABASE_WAIT));
+
+        /* Hold the background thread, so the database stage is queued behind this */
+        final long stallMillis = 500;
+        startup.submit("stall", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(stallMillis);
+                } catch (InterruptedException e) {
+                    /* Eat it */
+                }
+            }
+        });
+        startup.startDatabase(InstrumentationRegistry.getTargetContext());
+        assertFalse(startup.isDatabaseReady());
+
+        startup.awaitDatabase();
+        assertTrue(startup.isDatabaseReady());
+        /* The database was opened in the background too, so its indices were already rebuilt */
+        assertEquals(CardDbAdapter.DATABASE_INDEX_VERSION,
+                PreferenceAdapter.getDatabaseIndexVersion(InstrumentationRegistry.getTargetContext()));
+
+        StartupTrace trace = startup.getTrace();
+        StartupTrace.Stage stall = trace.getStage("stall");
+        StartupTrace.Stage database = trace.getStage(StartupTrace.STAGE_DATABASE);
+        StartupTrace.Stage wait = trace.getStage(StartupTrace.STAGE_DATABASE_WAIT);
+        assertNotNull(database);
+        assertNotNull(wait);
+        /* Stages run one after another, and the wait lasted until the database was ready */
+        assertTrue(database.mStartMillis >= stall.getEndMillis());
+        assertTrue(wait.getEndMillis() >= database.getEndMillis());
+        assertTrue(wait.mDurationMillis >= stallMillis / 2);
+        Log.i(TAG, trace.toString());
+    }
+
+    @Test
+    public void submitOnce_SkipsStagesAlreadySubmitted() throws Exception {
+        StartupInitializer startup = new StartupInitializer();
+        final int[] runs = {0};
+        Runnable stage = new Runnable() {
+            @Override
+            public void run() {
+                runs[0]++;
+            }
+        };
+
+        /* Like an Activity being recreated, the second submission is skipped */
+        Future<?> first = startup.submitOnce("once", stage);
+        assertNotNull(first);
+        assertNull(startup.submitOnce("once", stage));
+        first.get();
+        assertEquals(1, runs[0]);
+    }
+}
@@ -0,0 +1,249 @@
+package com.gelakinetic.mtgfam.helpers;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure the wishlist store merges entries and replays its log correctly, and benchmark loading,
+ * adding to, and saving a large wishlist
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class WishlistStoreTests {
+
+    private static final String TAG = "WishlistStoreTests";
+    private static final int LARGE_WISHLIST_SIZE = 10000;
+    private static final int NUM_ADDS = 100;
+
+    private File mSnapshotFile;
+    private File mLogFile;
+
+    @Before
+    public void setUp() {
+        File filesDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mSnapshotFile = new File(filesDir, "test.wishlist");
+        mLogFile = new File(filesDir, "test.wishlist.log");
+        tearDown();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mSnapshotFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mLogFile.delete();
+    }
+
+    /**
+     * @param name     The card's name
+     * @param set      The card's set code
+     * @param numberOf How many copies are wanted
+     * @param foil     Whether the card is foil
+     * @return A wishlist entry
+     */
+    private static MtgCard makeCard(String name, String set, int numberOf, boolean foil) {
+        MtgCard card = new MtgCard();
+        card.mName = name;
+        card.setCode = set;
+        card.numberOf = numberOf;
+        card.mNumber = "1";
+        card.mRarity = 'C';
+        card.foil = foil;
+        return card;
+    }
+
+    /**
+     * @param size How many entries to make
+     * @return A wishlist with that many distinct entries
+     */
+    private static List<MtgCard> makeWishlist(int size) {
+        ArrayList<MtgCard> cards = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            cards.add(makeCard("Card " + i, "S" + (i % 50), 1 + (i % 4), i % 7 == 0));
+        }
+        return cards;
+    }
+
+    /**
+     * Write a wishlist the way older versions did, one line per entry
+     *
+     * @param cards The wishlist to write
+     * @throws IOException If the file can't be written
+     */
+    private void writeLegacySnapshot(List<MtgCard> cards) throws IOException {
+        FileOutputStream fos = new FileOutputStream(mSnapshotFile);
+        for (MtgCard card : cards) {
+            fos.write(card.toWishlistString().getBytes());
+        }
+        fos.close();
+    }
+
+    @Test
+    public void add_MergesByNameSetNumberAndFoil() throws IOException {
+        WishlistStore store = new WishlistStore(mSnapshotFile, mLogFile);
+        store.add(Collections.singletonList(makeCard("Lightning Bolt", "M10", 2, false)));
+        store.add(Collections.singletonList(makeCard("Lightning Bolt", "M10", 3, false)));
+        store.add(Collections.singletonList(makeCard("Lightning Bolt", "M10", 1, true)));
+        store.add(Collections.singletonList(makeCard("Lightning Bolt", "M11", 1, false)));
+
+        List<MtgCard> cards = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(3, cards.size());
+        assertEquals(5, cards.get(0).numberOf);
+        assertEquals(1, cards.get(1).numberOf);
+        assertEquals(1, cards.get(2).numberOf);
+    }
+
+    @Test
+    public void reset_ReadsImportedSnapshot() throws IOException {
+        WishlistStore store = new WishlistStore(mSnapshotFile, mLogFile);
+        store.replace(makeWishlist(10));
+        store.set(Collections.singletonList(makeCard("Card 3", "S3", 0, false)));
+        assertTrue(mLogFile.exists());
+
+        /* Like importing a backup, whose snapshot has a different wishlist */
+        store.reset();
+        assertFalse(mLogFile.exists());
+        writeLegacySnapshot(Collections.singletonList(makeCard("Imported", "S1", 2, false)));
+
+        /* Neither the old entries nor the old log come back */
+        List<MtgCard> cards = store.read();
+        assertEquals(1, cards.size());
+        assertEquals("Imported", cards.get(0).mName);
+        store.add(Collections.singletonList(makeCard("Card 4", "S4", 1, false)));
+        cards = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(2, cards.size());
+        assertEquals("Imported", cards.get(0).mName);
+        assertEquals("Card 4", cards.get(1).mName);
+    }
+
+    @Test
+    public void set_RemovesAndReplays() throws IOException {
+        WishlistStore store = new WishlistStore(mSnapshotFile, mLogFile);
+        store.replace(makeWishlist(10));
+        store.set(Collections.singletonList(makeCard("Card 3", "S3", 0, false)));
+        store.set(Collections.singletonList(makeCard("Card 4", "S4", 9, false)));
+
+        /* Only the changes should have been appended */
+        assertTrue(mLogFile.exists());
+        List<MtgCard> cards = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(9, cards.size());
+        for (MtgCard card : cards) {
+            assertFalse(card.mName.equals("Card 3"));
+        }
+        /* Changed entries keep their place */
+        assertEquals("Card 4", cards.get(3).mName);
+        assertEquals(9, cards.get(3).numberOf);
+    }
+
+    @Test
+    public void replace_ReorderedRewritesSnapshot() throws IOException {
+        WishlistStore store = new WishlistStore(mSnapshotFile, mLogFile);
+        List<MtgCard> wishlist = makeWishlist(10);
+        store.replace(wishlist);
+
+        Collections.reverse(wishlist);
+        store.replace(wishlist);
+        assertFalse(mLogFile.exists());
+
+        List<MtgCard> cards = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(wishlist.size(), cards.size());
+        for (int i = 0; i < wishlist.size(); i++) {
+            assertEquals(wishlist.get(i).toWishlistString(), cards.get(i).toWishlistString());
+        }
+    }
+
+    @Test
+    public void log_IsCompacted() throws IOException {
+        WishlistStore store = new WishlistStore(mSnapshotFile, mLogFile);
+        store.replace(makeWishlist(10));
+        for (int i = 0; i < 200; i++) {
+            store.set(Collections.singletonList(makeCard("Card 0", "S0", 1 + i, true)));
+        }
+        /* The log can't grow much longer than the compaction threshold */
+        assertTrue(!mLogFile.exists() || mLogFile.length() < mSnapshotFile.length() * 20);
+
+        List<MtgCard> cards = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(10, cards.size());
+        assertEquals(200, cards.get(0).numberOf);
+    }
+
+    @Test
+    public void legacySnapshot_IsMigrated() throws IOException {
+        List<MtgCard> wishlist = makeWishlist(10);
+        /* Older versions could write the same entry twice */
+        wishlist.add(makeCard("Card 0", "S0", 2, true));
+        writeLegacySnapshot(wishlist);
+        FileInputStream in = new FileInputStream(mSnapshotFile);
+        assertFalse(CardListFile.isBinary(new BufferedInputStream(in)));
+        in.close();
+
+        List<MtgCard> cards = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(10, cards.size());
+        assertEquals(3, cards.get(0).numberOf);
+
+        in = new FileInputStream(mSnapshotFile);
+        assertTrue(CardListFile.isBinary(new BufferedInputStream(in)));
+        in.close();
+        List<MtgCard> reloaded = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(cards.size(), reloaded.size());
+        for (int i = 0; i < cards.size(); i++) {
+            assertEquals(cards.get(i).toWishlistString(), reloaded.get(i).toWishlistString());
+        }
+    }
+
+    @Test
+    public void largeWishlist_Benchmark() throws IOException {
+        List<MtgCard> wishlist = makeWishlist(LARGE_WISHLIST_SIZE);
+        new WishlistStore(mSnapshotFile, mLogFile).replace(wishlist);
+
+        /* Load it cold */
+        long start = System.nanoTime();
+        WishlistStore store = new WishlistStore(mSnapshotFile, mLogFile);
+        assertEquals(LARGE_WISHLIST_SIZE, store.read().size());
+        long loadNanos = System.nanoTime() - start;
+
+        /* Add cards one at a time, like from the search results */
+        start = System.nanoTime();
+        for (int i = 0; i < NUM_ADDS; i++) {
+            store.add(Collections.singletonList(makeCard("Card " + (i * 37), "S" + ((i * 37) % 50),
+                    1, (i * 37) % 7 == 0)));
+        }
+        long addNanos = System.nanoTime() - start;
+
+        /* Save the whole list with one change, like leaving the wishlist */
+        List<MtgCard> edited = store.read();
+        edited.set(LARGE_WISHLIST_SIZE / 2, makeCard("Card " + (LARGE_WISHLIST_SIZE / 2),
+                "S" + ((LARGE_WISHLIST_SIZE / 2) % 50), 99, (LARGE_WISHLIST_SIZE / 2) % 7 == 0));
+        start = System.nanoTime();
+        store.replace(edited);
+        long saveNanos = System.nanoTime() - start;
+
+        List<MtgCard> reloaded = new WishlistStore(mSnapshotFile, mLogFile).read();
+        assertEquals(LARGE_WISHLIST_SIZE, reloaded.size());
+        assertEquals(99, reloaded.get(LARGE_WISHLIST_SIZE / 2).numberOf);
+
+        Log.i(TAG, LARGE_WISHLIST_SIZE + " entries: load " + (loadNanos / 1000000) + "ms, " +
+                NUM_ADDS + " adds " + (addNanos / 1000000) + "ms, save " + (saveNanos / 1000000) +
+                "ms");
+    }
+}
@@ -0,0 +1,338 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.MediumTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.PatchDelta;
+import com.gelakinetic.GathererScraper.Language;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Apply patches and delta patches to a scratch database, and make sure unchanged cards aren't
+ * rewritten, bad deltas are rolled back, and the full text, name, and legality tables follow the
+ * cards
+ */
+@RunWith(AndroidJUnit4.class)
+@MediumTest
+public class CardDbBulkLoaderTests {
+
+    private static final String SET_CODE = "TST";
+    private static final String FORMAT = "Test Format";
+    private static final int NUM_CARDS = 10;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = SQLiteDatabase.create(null);
+        CardDbAdapter.dropCreateDB(mDatabase);
+        CardDbAdapter.createFormat(FORMAT, mDatabase);
+        CardDbAdapter.addLegalSet(SET_CODE, FORMAT, mDatabase);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    /**
+     * @param number The card's collector's number
+     * @param text   The card's rules text
+     * @return A card in SET_CODE
+     */
+    private static Card makeCard(int number, String text) {
+        Card card = new Card();
+        card.mName = "Test Card " + number;
+        card.mExpansion = SET_CODE;
+        card.mNumber = Integer.toString(number);
+        card.mType = "Creature - Test";
+        card.mText = text;
+        card.mRarity = 'C';
+        Card.ForeignPrinting printing = new Card.ForeignPrinting();
+        printing.mLanguageCode = Language.French;
+        printing.mName = "Carte d'essai " + number;
+        printing.mMultiverseId = 1000 + number;
+        card.mForeignPrintings.add(printing);
+        return card;
+    }
+
+    /**
+     * @param digest The expansion's digest
+     * @return SET_CODE's expansion
+     */
+    private static Expansion makeExpansion(String digest) {
+        Expansion expansion = new Expansion();
+        expansion.mCode_gatherer = SET_CODE;
+        expansion.mName_gatherer = "Test Set";
+        expansion.mDigest = digest;
+        return expansion;
+    }
+
+    /**
+     * Load NUM_CARDS cards into SET_CODE, like a full patch
+     *
+     * @throws FamiliarDbException If the cards can't be loaded
+     */
+    private void loadPatch() throws FamiliarDbException {
+        CardDbBulkLoader loader = new CardDbBulkLoader(mDatabase, null);
+        try {
+            loader.beginPatch(NUM_CARDS);
+            loader.addExpansion(makeExpansion("base"));
+            for (int i = 0; i < NUM_CARDS; i++) {
+                loader.addCard(makeCard(i, "Original text " + i));
+            }
+            loader.commitPatch();
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * @param delta The delta to apply
+     * @return true if the delta was applied
+     * @throws FamiliarDbException If the database can't be written
+     */
+    private boolean applyDelta(PatchDelta delta) throws FamiliarDbException {
+        CardDbBulkLoader loader = new CardDbBulkLoader(mDatabase, null);
+        try {
+            return loader.applyDelta(delta);
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * @return A delta from the "base" digest to "next" which changes nothing yet
+     */
+    private static PatchDelta makeDelta() {
+        PatchDelta delta = new PatchDelta();
+        delta.mExpansion = makeExpansion("next");
+        delta.mBaseDigest = "base";
+        delta.mAdded = new ArrayList<>();
+        delta.mChanged = new ArrayList<>();
+        delta.mRemoved = new ArrayList<>();
+        return delta;
+    }
+
+    /**
+     * @param sql  A query which returns a single number
+     * @param args The query's arguments
+     * @return The number
+     */
+    private long queryLong(String sql, String... args) {
+        return DatabaseUtils.longForQuery(mDatabase, sql, args);
+    }
+
+    /**
+     * @param number A card's collector's number
+     * @return The card's KEY_ID and KEY_CONTENT_HASH
+     */
+    private String[] getIdAndHash(int number) {
+        Cursor cursor = mDatabase.rawQuery("SELECT " + CardDbAdapter.KEY_ID + ", " +
+                CardDbAdapter.KEY_CONTENT_HASH + " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " WHERE " + CardDbAdapter.KEY_NUMBER + " = ?", new String[]{Integer.toString(number)});
+        assertTrue(cursor.moveToFirst());
+        String[] values = {cursor.getString(0), cursor.getString(1)};
+        cursor.close();
+        return values;
+    }
+
+    /**
+     * @param text Rules text to search for
+     * @return How many cards in the full text index have the text
+     */
+    private long countFullTextMatches(String text) {
+        return queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS_FTS +
+                " WHERE " + CardDbAdapter.KEY_ABILITY + " MATCH ?", "\"" + text + "\"");
+    }
+
+    /**
+     * @param name A name in any language
+     * @return How many names in the name index match it
+     */
+    private long countNameMatches(String name) {
+        return queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_NAMES_FTS +
+                " WHERE " + CardDbAdapter.KEY_NAME_FOLDED + " MATCH ?",
+                "\"" + CardDbAdapter.foldName(name) + "\"");
+    }
+
+    /**
+     * @param name A card name
+     * @return How many rows the legality matrix has for the card
+     */
+    private long countLegalityRows(String name) {
+        return queryLong("SELECT COUNT(*) FROM legality_matrix WHERE " + CardDbAdapter.KEY_NAME +
+                " = ?", name);
+    }
+
+    @Test
+    public void patch_FillsEveryIndex() throws FamiliarDbException {
+        loadPatch();
+        assertEquals(NUM_CARDS, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS));
+        assertEquals(1, countFullTextMatches("Original text 3"));
+        assertEquals(1, countNameMatches("Test Card 3"));
+        assertEquals(1, countNameMatches("Carte d'essai 3"));
+    }
+
+    @Test
+    public void patch_AddsMissingContentHashColumn() throws FamiliarDbException {
+        /* Like the packaged database before DatabaseHelper migrates it */
+        mDatabase.execSQL("DROP TABLE " + CardDbAdapter.DATABASE_TABLE_CARDS);
+        mDatabase.execSQL(CardDbAdapter.DATABASE_CREATE_CARDS.replace(", " +
+                CardDbAdapter.KEY_CONTENT_HASH + " text", ""));
+
+        loadPatch();
+        assertEquals(NUM_CARDS, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " WHERE " + CardDbAdapter.KEY_CONTENT_HASH + " IS NOT NULL"));
+    }
+
+    @Test
+    public void delta_SkipsUnchangedCards() throws FamiliarDbException {
+        loadPatch();
+        String[] before = getIdAndHash(1);
+        /* Mark the card behind the hash's back, so a rewrite would be noticed */
+        mDatabase.execSQL("UPDATE " + CardDbAdapter.DATABASE_TABLE_CARDS + " SET " +
+                CardDbAdapter.KEY_FLAVOR + " = 'marker' WHERE " + CardDbAdapter.KEY_NUMBER + " = '1'");
+
+        /* The same card again has the same hash, so it isn't rewritten */
+        PatchDelta delta = makeDelta();
+        delta.mChanged.add(makeCard(1, "Original text 1"));
+        delta.mChanged.add(makeCard(2, "Errata text 2"));
+        assertTrue(applyDelta(delta));
+
+        String[] after = getIdAndHash(1);
+        assertEquals(before[0], after[0]);
+        assertEquals(before[1], after[1]);
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " WHERE " + CardDbAdapter.KEY_FLAVOR + " = 'marker'"));
+        assertEquals(1, countFullTextMatches("Original text 1"));
+
+        /* The changed card is rewritten, and its old text is gone from the index */
+        assertFalse(before[1].equals(getIdAndHash(2)[1]));
+        assertEquals(0, countFullTextMatches("Original text 2"));
+        assertEquals(1, countFullTextMatches("Errata text 2"));
+        assertEquals(1, countNameMatches("Carte d'essai 2"));
+
+        /* The digest is updated */
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_SETS +
+                " WHERE " + CardDbAdapter.KEY_DIGEST + " = 'next'"));
+    }
+
+    @Test
+    public void delta_RollsBackWhenCardIsNotFound() throws FamiliarDbException {
+        loadPatch();
+
+        /* The removal and the change are valid, but the last change doesn't match any card */
+        PatchDelta delta = makeDelta();
+        delta.mRemoved.add("4");
+        delta.mChanged.add(makeCard(5, "Errata text 5"));
+        delta.mChanged.add(makeCard(NUM_CARDS + 1, "Errata text"));
+        delta.mAdded.add(makeCard(NUM_CARDS + 2, "Added text"));
+        assertFalse(applyDelta(delta));
+
+        /* Nothing changed */
+        assertEquals(NUM_CARDS, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS));
+        assertEquals(1, countFullTextMatches("Original text 4"));
+        assertEquals(1, countFullTextMatches("Original text 5"));
+        assertEquals(0, countFullTextMatches("Errata text 5"));
+        assertEquals(0, countFullTextMatches("Added text"));
+        assertEquals(1, countNameMatches("Carte d'essai 4"));
+        assertEquals(1, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_SETS +
+                " WHERE " + CardDbAdapter.KEY_DIGEST + " = 'base'"));
+    }
+
+    @Test
+    public void delta_KeepsIndicesInSync() throws FamiliarDbException {
+        loadPatch();
+        CardDbAdapter.rebuildLegalityMatrix(mDatabase);
+        assertEquals(1, countLegalityRows("Test Card 6"));
+
+        PatchDelta delta = makeDelta();
+        delta.mRemoved.add("6");
+        delta.mAdded.add(makeCard(NUM_CARDS, "Added text"));
+        CardDbBulkLoader loader = new CardDbBulkLoader(mDatabase, null);
+        try {
+            assertTrue(loader.applyDelta(delta));
+        } finally {
+            loader.close();
+        }
+        assertTrue(loader.haveNamesChanged());
+        assertEquals(2, loader.getTouchedNames().size());
+        /* DbUpdaterService only rebuilds the touched cards' rows after applying deltas */
+        CardDbAdapter.updateLegalityMatrix(loader.getTouchedNames(), mDatabase);
+        assertEquals(1, countLegalityRows("Test Card 5"));
+
+        /* The removed card is gone from every index */
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " WHERE " + CardDbAdapter.KEY_NUMBER + " = '6'"));
+        assertEquals(0, countFullTextMatches("Original text 6"));
+        assertEquals(0, countNameMatches("Test Card 6"));
+        assertEquals(0, countNameMatches("Carte d'essai 6"));
+        assertEquals(0, countLegalityRows("Test Card 6"));
+
+        /* The added card is in every index */
+        assertEquals(1, countFullTextMatches("Added text"));
+        assertEquals(1, countNameMatches("Test Card " + NUM_CARDS));
+        assertEquals(1, countNameMatches("Carte d'essai " + NUM_CARDS));
+        assertEquals(1, countLegalityRows("Test Card " + NUM_CARDS));
+        assertEquals(CardDbAdapter.LEGAL, CardDbAdapter.checkLegality("Test Card " + NUM_CARDS,
+                FORMAT, mDatabase));
+
+        /* Every card row has exactly one full text row */
+        assertEquals(queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS),
+                queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS_FTS));
+        assertEquals(0, queryLong("SELECT COUNT(*) FROM " + CardDbAdapter.DATABASE_TABLE_CARDS_FTS +
+                " WHERE " + CardDbAdapter.KEY_DOCID + " NOT IN (SELECT " + CardDbAdapter.KEY_ID +
+                " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS + ")"));
+    }
+
+    @Test
+    public void delta_ReportsTouchedNames() throws FamiliarDbException {
+        loadPatch();
+
+        /* Errata doesn't change any names, so the name index is still current */
+        PatchDelta delta = makeDelta();
+        delta.mChanged.add(makeCard(1, "Original text 1"));
+        delta.mChanged.add(makeCard(2, "Errata text 2"));
+        CardDbBulkLoader loader = new CardDbBulkLoader(mDatabase, null);
+        try {
+            assertTrue(loader.applyDelta(delta));
+        } finally {
+            loader.close();
+        }
+        assertFalse(loader.haveNamesChanged());
+        /* The unchanged card wasn't touched */
+        assertEquals(1, loader.getTouchedNames().size());
+        assertTrue(loader.getTouchedNames().contains("Test Card 2"));
+
+        /* A new printed name does change the name index */
+        delta = makeDelta();
+        delta.mBaseDigest = "next";
+        Card renamed = makeCard(3, "Original text 3");
+        renamed.mForeignPrintings.get(0).mName = "Nouvelle carte 3";
+        delta.mChanged.add(renamed);
+        loader = new CardDbBulkLoader(mDatabase, null);
+        try {
+            assertTrue(loader.applyDelta(delta));
+        } finally {
+            loader.close();
+        }
+        assertTrue(loader.haveNamesChanged());
+        assertTrue(loader.getTouchedNames().contains("Test Card 3"));
+    }
+}
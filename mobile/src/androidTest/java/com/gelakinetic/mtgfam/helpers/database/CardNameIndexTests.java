@@ -0,0 +1,205 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Make sure the in-memory name index suggests the same names the database does, plus infix and
+ * fuzzy matches, that it survives being written and read, and that it's much faster
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CardNameIndexTests {
+
+    private static final String TAG = "CardNameIndexTests";
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    /**
+     * @return A small index with some names which share prefixes and infixes, and one printed name
+     */
+    private static CardNameIndex buildSmallIndex() {
+        ArrayList<String> names = new ArrayList<>(Arrays.asList("Lightning Bolt",
+                "Chain Lightning", "Lightning Helix", "Séance", "Sol Ring", "Bolt of Keranos"));
+        ArrayList<Long> ids = new ArrayList<>();
+        ArrayList<Boolean> localized = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            ids.add((long) i + 100);
+            localized.add(false);
+        }
+        /* Lightning Bolt's German name */
+        names.add("Blitzschlag");
+        ids.add(100L);
+        localized.add(true);
+        return CardNameIndex.build("test", names, ids, localized);
+    }
+
+    /**
+     * @param index       The index to look in
+     * @param query       What was typed
+     * @return The names suggested, in order
+     */
+    private static ArrayList<String> suggest(CardNameIndex index, String query) {
+        ArrayList<String> names = new ArrayList<>();
+        for (int suggestion : index.suggest(query, CardNameIndex.MAX_SUGGESTIONS, null)) {
+            names.add(index.getName(suggestion));
+        }
+        return names;
+    }
+
+    @Test
+    public void suggest_PrefixThenInfixThenFuzzy() {
+        CardNameIndex index = buildSmallIndex();
+
+        assertEquals(Arrays.asList("Lightning Bolt", "Lightning Helix", "Chain Lightning"),
+                suggest(index, "light"));
+        assertEquals(Arrays.asList("Bolt of Keranos", "Lightning Bolt"), suggest(index, "BOLT"));
+        /* Accents are ignored on both sides */
+        assertEquals(Arrays.asList("Séance"), suggest(index, "seance"));
+        assertEquals(Arrays.asList("Séance"), suggest(index, "Séan"));
+        /* One substitution, deletion or insertion away */
+        assertEquals(Arrays.asList("Lightning Bolt", "Lightning Helix"), suggest(index, "ligtning"));
+        assertEquals(Arrays.asList("Lightning Bolt", "Lightning Helix"), suggest(index, "lightnxng"));
+        assertEquals(Arrays.asList("Sol Ring"), suggest(index, "sool"));
+        assertTrue(suggest(index, "").isEmpty());
+        assertTrue(suggest(index, "zzzzzz").isEmpty());
+
+        int[] bolt = index.suggest("lightning b", 1, null);
+        assertEquals(1, bolt.length);
+        assertEquals(100, index.getId(bolt[0]));
+
+        /* Printed names are only suggested when they're asked for */
+        assertEquals(Arrays.asList("Blitzschlag"), suggest(index, "blitz"));
+        assertEquals(0, index.suggest("blitz", CardNameIndex.MAX_SUGGESTIONS, false, null).length);
+        assertEquals(3, index.suggest("light", CardNameIndex.MAX_SUGGESTIONS, false, null).length);
+
+        /* The results are only as big as they can be, not as big as asked for */
+        assertEquals(3, index.suggest("o", Integer.MAX_VALUE, null).length);
+    }
+
+    @Test
+    public void suggest_StopsWhenCancelled() {
+        CardNameIndex index = buildSmallIndex();
+        assertNull(index.suggest("o", 10, new CardNameIndex.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return true;
+            }
+        }));
+    }
+
+    @Test
+    public void index_SurvivesWriteAndRead() throws IOException {
+        CardNameIndex index = buildSmallIndex();
+        File file = new File(mFamiliarActivityRule.getActivity().getCacheDir(), TAG);
+        index.write(file);
+        CardNameIndex read = CardNameIndex.read(file);
+        assertTrue(file.delete());
+
+        assertEquals(index.size(), read.size());
+        for (String query : new String[]{"light", "bolt", "ligtning", "an", "s", "blitz"}) {
+            assertEquals(suggest(index, query), suggest(read, query));
+        }
+    }
+
+    /**
+     * Write an index, overwrite an int in the file, and make sure reading it fails cleanly
+     *
+     * @param position Where to overwrite, or negative to count back from the end of the file
+     * @param value    What to overwrite it with
+     */
+    private void assertBrokenFileIsRejected(long position, int value) throws IOException {
+        File file = new File(mFamiliarActivityRule.getActivity().getCacheDir(), TAG);
+        buildSmallIndex().write(file);
+        RandomAccessFile broken = new RandomAccessFile(file, "rw");
+        broken.seek(position >= 0 ? position : broken.length() + position);
+        broken.writeInt(value);
+        broken.close();
+        try {
+            CardNameIndex.read(file);
+            fail("A broken index was read");
+        } catch (IOException e) {
+            /* Expected */
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void index_BrokenFileIsRejected() throws IOException {
+        /* The name count is after the magic number, the version, and the "test" stamp */
+        assertBrokenFileIsRejected(14, Integer.MAX_VALUE);
+        assertBrokenFileIsRejected(14, -1);
+        /* The last suffix points past the text */
+        assertBrokenFileIsRejected(-4, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void index_MatchesDatabaseAndIsFaster() throws FamiliarDbException {
+        CardNameIndex.load(mFamiliarActivityRule.getActivity());
+        CardNameIndex index = CardNameIndex.getIndex();
+        assertNotNull(index);
+
+        SQLiteDatabase database = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(),
+                false).openDatabase(false);
+        try {
+            String[] queries = {"li", "light", "serra a", "jace, t", "aether", "sol r", "wrath"};
+            long databaseNanos = 0;
+            long indexNanos = 0;
+            for (String query : queries) {
+                /* Every name the database suggests is suggested first, as prefix matches */
+                HashSet<String> fromDatabase = new HashSet<>();
+                long start = System.nanoTime();
+                Cursor cursor = CardDbAdapter.getCardsByNamePrefix(query, database);
+                while (cursor.moveToNext()) {
+                    fromDatabase.add(cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NAME)));
+                }
+                cursor.close();
+                databaseNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                int[] suggestions = index.suggest(query, Integer.MAX_VALUE, null);
+                indexNanos += System.nanoTime() - start;
+
+                HashSet<String> prefixes = new HashSet<>();
+                for (int i = 0; i < fromDatabase.size(); i++) {
+                    prefixes.add(index.getName(suggestions[i]));
+                }
+                assertEquals(query, fromDatabase, prefixes);
+            }
+            Log.i(TAG, String.format(Locale.US, "%d names. Database: %.2fms/query, index: %.3fms/query",
+                    index.size(), databaseNanos / 1000000.0 / queries.length,
+                    indexNanos / 1000000.0 / queries.length));
+            assertTrue(indexNanos < databaseNanos);
+        } finally {
+            DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                    .closeDatabase(false);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Time installing the packaged database, and make sure it replaces an interrupted install
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DatabaseInstallerTests {
+
+    private static final String TAG = "DatabaseInstallerTests";
+
+    private Context mContext;
+    private File mTarget;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mTarget = new File(mContext.getCacheDir(), "installer_test");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mTarget.delete();
+    }
+
+    /**
+     * @param file The file to checksum
+     * @return The CRC32 of the whole file
+     * @throws IOException If the file can't be read
+     */
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream stream = new FileInputStream(file);
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = stream.read(buffer)) > 0) {
+            crc.update(buffer, 0, length);
+        }
+        stream.close();
+        return crc.getValue();
+    }
+
+    /**
+     * Copy the database the way CardDbAdapter.copyDB() used to, for comparison.
+     *
+     * @param target Where to copy the database to
+     * @throws IOException If the database can't be copied
+     */
+    private void legacyCopy(File target) throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(mContext.getResources().openRawResource(R.raw.datagz));
+        FileOutputStream fos = new FileOutputStream(target);
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = gis.read(buffer)) > 0) {
+            fos.write(buffer, 0, length);
+        }
+        fos.flush();
+        fos.close();
+        gis.close();
+    }
+
+    @Test
+    public void install_MatchesLegacyCopy() throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        legacyCopy(mTarget);
+        long legacyTime = SystemClock.elapsedRealtime() - start;
+        long legacyChecksum = checksum(mTarget);
+        long legacyLength = mTarget.length();
+        assertTrue(mTarget.delete());
+
+        start = SystemClock.elapsedRealtime();
+        DatabaseInstaller.install(mContext.getResources().openRawResource(R.raw.datagz), mTarget);
+        long installTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Database version " + CardDbAdapter.DATABASE_VERSION + ", " + legacyLength +
+                " bytes: legacy copy " + legacyTime + "ms, install " + installTime + "ms");
+        assertEquals(legacyLength, mTarget.length());
+        assertEquals(legacyChecksum, checksum(mTarget));
+    }
+
+    @Test
+    public void install_ReplacesInterruptedCopy() throws IOException {
+        DatabaseInstaller.install(mContext.getResources().openRawResource(R.raw.datagz), mTarget);
+        long expectedChecksum = checksum(mTarget);
+        long length = mTarget.length();
+
+        /* Pretend the process was killed partway through, after writing some garbage */
+        long goodBytes = (length * 2) / 5;
+        RandomAccessFile partial = new RandomAccessFile(mTarget, "rw");
+        partial.setLength(goodBytes);
+        partial.seek(goodBytes);
+        partial.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        partial.close();
+
+        DatabaseInstaller.install(mContext.getResources().openRawResource(R.raw.datagz), mTarget);
+        assertEquals(length, mTarget.length());
+        assertEquals(expectedChecksum, checksum(mTarget));
+
+        /* A longer file is truncated too */
+        partial = new RandomAccessFile(mTarget, "rw");
+        partial.seek(length);
+        partial.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        partial.close();
+
+        DatabaseInstaller.install(mContext.getResources().openRawResource(R.raw.datagz), mTarget);
+        assertEquals(length, mTarget.length());
+        assertEquals(expectedChecksum, checksum(mTarget));
+    }
+}
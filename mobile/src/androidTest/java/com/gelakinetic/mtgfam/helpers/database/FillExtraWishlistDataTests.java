@@ -0,0 +1,240 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.CardHelpers.CompressedCardInfo;
+import com.gelakinetic.mtgfam.helpers.MtgCard;
+import com.gelakinetic.mtgfam.helpers.WishlistHelpers.CompressedWishlistInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Make sure fillExtraWishlistData() fills in exactly what the old OR-chain query and nested loop
+ * did, and benchmark both for lists of different sizes
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class FillExtraWishlistDataTests {
+
+    private static final String TAG = "FillExtraWishlistData";
+    private static final int[] LIST_SIZES = {100, 1000, 5000};
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .closeDatabase(false);
+    }
+
+    /**
+     * Make a list like a wishlist or decklist. Some entries have no set code, and reprints put some
+     * names in the list more than once with different sets.
+     *
+     * @param size How many entries to make
+     * @return The list, with no extra data filled in
+     */
+    private ArrayList<CompressedWishlistInfo> makeList(int size) {
+        ArrayList<CompressedWishlistInfo> list = new ArrayList<>(size);
+        Cursor cursor = mDatabase.rawQuery("SELECT " + CardDbAdapter.KEY_NAME + ", " +
+                CardDbAdapter.KEY_SET + " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " ORDER BY " + CardDbAdapter.KEY_ID + " LIMIT " + size, null);
+        int i = 0;
+        while (cursor.moveToNext()) {
+            MtgCard card = new MtgCard();
+            card.mName = cursor.getString(0);
+            card.setCode = (i % 5 == 0) ? "" : cursor.getString(1);
+            list.add(new CompressedWishlistInfo(card, i));
+            i++;
+        }
+        cursor.close();
+        return list;
+    }
+
+    /**
+     * Build the WHERE clause the old fillExtraWishlistData() used, one OR term per entry
+     *
+     * @param mCompressedCard The entries to look up
+     * @return The WHERE clause
+     */
+    private static String getOldWhereClause(List<? extends CompressedCardInfo> mCompressedCard) {
+        String sql = " WHERE (";
+        boolean first = true;
+        for (CompressedCardInfo cwi : mCompressedCard) {
+            if (cwi.mType == null || cwi.mType.equals("")) {
+                if (first) {
+                    first = false;
+                } else {
+                    sql += " OR ";
+                }
+                if (cwi.setCode != null && !cwi.setCode.equals("")) {
+                    sql += "(" + CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_NAME + " = " +
+                            DatabaseUtils.sqlEscapeString(cwi.mName.trim()) +
+                            " AND " + CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_SET +
+                            " = '" + cwi.setCode + "')";
+                } else {
+                    sql += "(" + CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_NAME_NO_ACCENT +
+                            " = " + DatabaseUtils.sqlEscapeString(
+                            CardDbAdapter.removeAccentMarks(cwi.mName).trim()) + ")";
+                }
+            }
+        }
+        return sql + ")";
+    }
+
+    /**
+     * Copy a row's data into every entry with the same name, the way the old
+     * fillExtraWishlistData() did
+     *
+     * @param cursor          A cursor on the row
+     * @param mCompressedCard The entries to fill in
+     */
+    private static void oldFillFromRow(Cursor cursor, List<? extends CompressedCardInfo> mCompressedCard) {
+        String name = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NAME));
+        for (CompressedCardInfo cwi : mCompressedCard) {
+            if (name != null && name.equals(cwi.mName)) {
+                cwi.mType = CardDbAdapter.getTypeLine(cursor);
+                cwi.mRarity = (char) cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_RARITY));
+                cwi.mManaCost = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_MANACOST));
+                cwi.mPower = cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_POWER));
+                cwi.mToughness = cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_TOUGHNESS));
+                cwi.mLoyalty = cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_LOYALTY));
+                cwi.mText = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_ABILITY));
+                cwi.mFlavor = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_FLAVOR));
+                cwi.mNumber = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NUMBER));
+                cwi.mCmc = cursor.getInt((cursor.getColumnIndex(CardDbAdapter.KEY_CMC)));
+                cwi.mColor = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_COLOR));
+            }
+        }
+    }
+
+    /**
+     * @return The SELECT and FROM clauses the old fillExtraWishlistData() used
+     */
+    private static String getOldSelect() {
+        return "SELECT " + TextUtils.join(", ", CardDbAdapter.ALL_CARD_DATA_KEYS) +
+                " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                " JOIN " + CardDbAdapter.DATABASE_TABLE_SETS + " ON " +
+                CardDbAdapter.DATABASE_TABLE_SETS + "." + CardDbAdapter.KEY_CODE + " = " +
+                CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_SET;
+    }
+
+    /**
+     * Run the old fillExtraWishlistData() exactly as it was, for timing. Large lists can exceed
+     * SQLite's expression depth limit, in which case this returns false.
+     *
+     * @param mCompressedCard The list to fill in
+     * @return true if the query could be run, false otherwise
+     */
+    private boolean oldFillExtraWishlistData(List<? extends CompressedCardInfo> mCompressedCard) {
+        try {
+            Cursor cursor = mDatabase.rawQuery(getOldSelect() + getOldWhereClause(mCompressedCard), null);
+            while (cursor.moveToNext()) {
+                oldFillFromRow(cursor, mCompressedCard);
+            }
+            cursor.close();
+            return true;
+        } catch (SQLiteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The old fillExtraWishlistData(), made deterministic for comparison. The original query had
+     * no ORDER BY, so which of several rows matching a name won was up to the query plan. Here
+     * the matching rows are applied in ID order, so the highest ID wins, which is what the new
+     * implementation guarantees. The OR chain is also split so it never gets too deep.
+     *
+     * @param mCompressedCard The list to fill in
+     */
+    private void referenceFillExtraWishlistData(List<? extends CompressedCardInfo> mCompressedCard) {
+        TreeSet<Long> ids = new TreeSet<>();
+        for (int start = 0; start < mCompressedCard.size(); start += 500) {
+            List<? extends CompressedCardInfo> chunk =
+                    mCompressedCard.subList(start, Math.min(mCompressedCard.size(), start + 500));
+            Cursor cursor = mDatabase.rawQuery("SELECT " + CardDbAdapter.DATABASE_TABLE_CARDS + "." +
+                    CardDbAdapter.KEY_ID + getOldSelect().substring(getOldSelect().indexOf(" FROM ")) +
+                    getOldWhereClause(chunk), null);
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            cursor.close();
+        }
+        for (long id : ids) {
+            Cursor cursor = mDatabase.rawQuery(getOldSelect() + " WHERE " +
+                    CardDbAdapter.DATABASE_TABLE_CARDS + "." + CardDbAdapter.KEY_ID + " = " + id, null);
+            if (cursor.moveToFirst()) {
+                oldFillFromRow(cursor, mCompressedCard);
+            }
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void fillExtraWishlistData_MatchesOldImplementation() throws FamiliarDbException {
+        for (int size : LIST_SIZES) {
+            ArrayList<CompressedWishlistInfo> expected = makeList(size);
+            referenceFillExtraWishlistData(expected);
+
+            ArrayList<CompressedWishlistInfo> actual = makeList(size);
+            long start = System.nanoTime();
+            CardDbAdapter.fillExtraWishlistData(actual, mDatabase);
+            long newNanos = System.nanoTime() - start;
+
+            ArrayList<CompressedWishlistInfo> old = makeList(size);
+            start = System.nanoTime();
+            boolean oldSucceeded = oldFillExtraWishlistData(old);
+            long oldNanos = System.nanoTime() - start;
+
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                CompressedWishlistInfo e = expected.get(i);
+                CompressedWishlistInfo a = actual.get(i);
+                assertEquals(e.mName, e.mType, a.mType);
+                assertEquals(e.mName, e.mRarity, a.mRarity);
+                assertEquals(e.mName, e.mManaCost, a.mManaCost);
+                assertEquals(e.mName, e.mPower, a.mPower);
+                assertEquals(e.mName, e.mToughness, a.mToughness);
+                assertEquals(e.mName, e.mLoyalty, a.mLoyalty);
+                assertEquals(e.mName, e.mText, a.mText);
+                assertEquals(e.mName, e.mFlavor, a.mFlavor);
+                assertEquals(e.mName, e.mNumber, a.mNumber);
+                assertEquals(e.mName, e.mCmc, a.mCmc);
+                assertEquals(e.mName, e.mColor, a.mColor);
+            }
+
+            Log.i(TAG, size + " entries: old " +
+                    (oldSucceeded ? (oldNanos / 1000000) + "ms" : "failed") +
+                    ", new " + (newNanos / 1000000) + "ms");
+        }
+    }
+}
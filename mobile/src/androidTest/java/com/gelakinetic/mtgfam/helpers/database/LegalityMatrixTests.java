@@ -0,0 +1,162 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure the legality matrix returns exactly what computing legality from the legality tables
+ * returns, for every card in every format
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class LegalityMatrixTests {
+
+    private static final String TAG = "LegalityMatrixTests";
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), true)
+                .openDatabase(true);
+        CardDbAdapter.rebuildLegalityMatrix(mDatabase);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), true)
+                .closeDatabase(true);
+    }
+
+    /**
+     * @return The names of all the formats
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private List<String> getFormats() throws FamiliarDbException {
+        ArrayList<String> formats = new ArrayList<>();
+        Cursor cursor = CardDbAdapter.fetchAllFormats(mDatabase);
+        while (cursor.moveToNext()) {
+            formats.add(cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NAME)));
+        }
+        cursor.close();
+        return formats;
+    }
+
+    /**
+     * @return The name of every card in the database
+     */
+    private List<String> getCardNames() {
+        ArrayList<String> names = new ArrayList<>();
+        Cursor cursor = mDatabase.rawQuery("SELECT DISTINCT " + CardDbAdapter.KEY_NAME +
+                " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS, null);
+        while (cursor.moveToNext()) {
+            names.add(cursor.getString(0));
+        }
+        cursor.close();
+        return names;
+    }
+
+    /**
+     * Run a search and return the IDs of all the results, in order.
+     *
+     * @param criteria The criteria to search with
+     * @return The IDs of all the results
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private List<Long> search(SearchCriteria criteria) throws FamiliarDbException {
+        ArrayList<Long> ids = new ArrayList<>();
+        Cursor cursor = CardDbAdapter.Search(criteria, true,
+                new String[]{CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME}, false, null,
+                false, mDatabase);
+        if (cursor != null) {
+            int idIndex = cursor.getColumnIndex(CardDbAdapter.KEY_ID);
+            while (!cursor.isAfterLast()) {
+                ids.add(cursor.getLong(idIndex));
+                cursor.moveToNext();
+            }
+            cursor.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void matrix_MatchesComputedLegality() throws FamiliarDbException {
+        List<String> formats = getFormats();
+        List<String> names = getCardNames();
+        assertFalse(formats.isEmpty());
+        assertFalse(names.isEmpty());
+
+        long start = System.nanoTime();
+        HashMap<String, HashMap<String, Integer>> matrix = CardDbAdapter.getLegalities(names, mDatabase);
+        long matrixTime = System.nanoTime() - start;
+
+        long computeTime = 0;
+        for (String format : formats) {
+            for (String name : names) {
+                start = System.nanoTime();
+                int computed = CardDbAdapter.computeLegality(name, format, mDatabase);
+                computeTime += System.nanoTime() - start;
+                assertEquals(name + " in " + format, computed, (int) matrix.get(name).get(format));
+                assertEquals(name + " in " + format, computed,
+                        CardDbAdapter.checkLegality(name, format, mDatabase));
+            }
+        }
+        Log.i(TAG, names.size() + " cards in " + formats.size() + " formats: matrix " +
+                (matrixTime / 1000000) + "ms, computed " + (computeTime / 1000000) + "ms");
+    }
+
+    @Test
+    public void unknownCard_MatchesComputedLegality() throws FamiliarDbException {
+        /* Cards which aren't in the database aren't in the matrix either */
+        for (String format : getFormats()) {
+            assertEquals(format, CardDbAdapter.computeLegality("Not A Real Card", format, mDatabase),
+                    CardDbAdapter.checkLegality("Not A Real Card", format, mDatabase));
+        }
+    }
+
+    @Test
+    public void searchFormatFilter_MatchesSubqueries() throws FamiliarDbException {
+        for (String format : getFormats()) {
+            SearchCriteria criteria = new SearchCriteria();
+            criteria.format = format;
+
+            List<Long> matrixIds = search(criteria);
+
+            /* Drop the matrix temporarily, so Search() falls back to the sub-queries */
+            mDatabase.execSQL("SAVEPOINT without_matrix");
+            mDatabase.execSQL("DROP TABLE legality_matrix");
+            assertFalse(CardDbAdapter.hasLegalityMatrix(mDatabase));
+            List<Long> subqueryIds = search(criteria);
+            mDatabase.execSQL("ROLLBACK TO without_matrix");
+            mDatabase.execSQL("RELEASE without_matrix");
+            assertTrue(CardDbAdapter.hasLegalityMatrix(mDatabase));
+
+            assertEquals(format, subqueryIds, matrixIds);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure paging through a search returns every result exactly once, in order, and measure how
+ * much sooner the first page is ready than the whole search
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SearchPagerTests {
+
+    private static final String TAG = "SearchPagerTests";
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private static final String[] RETURN_TYPES = {CardDbAdapter.KEY_ID, CardDbAdapter.KEY_NAME,
+            CardDbAdapter.KEY_SET, CardDbAdapter.KEY_RARITY, CardDbAdapter.KEY_MANACOST,
+            CardDbAdapter.KEY_SUPERTYPE, CardDbAdapter.KEY_SUBTYPE, CardDbAdapter.KEY_ABILITY,
+            CardDbAdapter.KEY_POWER, CardDbAdapter.KEY_TOUGHNESS, CardDbAdapter.KEY_LOYALTY,
+            CardDbAdapter.KEY_NUMBER, CardDbAdapter.KEY_CMC, CardDbAdapter.KEY_COLOR};
+
+    private static final String[] SORT_ORDERS = {
+            null,
+            "name asc,color asc,supertype asc,cmc asc,power asc,toughness asc,expansion asc",
+            "cmc desc,name asc,color asc,supertype asc,power asc,toughness asc,expansion asc",
+            "power desc,toughness asc,name desc,color asc,supertype asc,cmc asc,expansion asc",
+            "expansion asc,color desc,name asc,supertype asc,cmc asc,power asc,toughness asc"
+    };
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws FamiliarDbException {
+        mDatabase = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .openDatabase(false);
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                .closeDatabase(false);
+    }
+
+    /**
+     * @param setLogic How printings are consolidated
+     * @return Criteria for every creature
+     */
+    private static SearchCriteria getCreatures(int setLogic) {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.superTypes = Collections.singletonList("Creature");
+        criteria.setLogic = setLogic;
+        return criteria;
+    }
+
+    /**
+     * @param setLogic How printings are consolidated
+     * @return true if the search has one row per card name
+     */
+    private static boolean isConsolidated(int setLogic) {
+        return setLogic == CardDbAdapter.MOST_RECENT_PRINTING ||
+                setLogic == CardDbAdapter.FIRST_PRINTING;
+    }
+
+    /**
+     * Load every page of a search and return the IDs in order
+     *
+     * @param pager The search to page through
+     * @return The IDs of every row of every page
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private static List<Long> loadAllPages(SearchPager pager) throws FamiliarDbException {
+        while (pager.hasMore()) {
+            pager.loadNextPage();
+        }
+        ArrayList<Long> ids = new ArrayList<>();
+        Cursor cursor = pager.getCursor();
+        if (cursor != null) {
+            int idIndex = cursor.getColumnIndex(CardDbAdapter.KEY_ID);
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                ids.add(cursor.getLong(idIndex));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void parseSortKeys_AddsTieBreakers() {
+        List<SearchPager.SortKey> keys = SearchPager.parseSortKeys(null, true);
+        assertEquals(2, keys.size());
+        assertEquals("name COLLATE UNICODE ASC", keys.get(0).getOrderTerm());
+        assertEquals("_id ASC", keys.get(1).getOrderTerm());
+
+        keys = SearchPager.parseSortKeys("cmc desc,name asc", false);
+        assertEquals(4, keys.size());
+        assertEquals("cmc DESC", keys.get(0).getOrderTerm());
+        assertEquals("name ASC", keys.get(1).getOrderTerm());
+        assertEquals("date DESC", keys.get(2).getOrderTerm());
+        assertEquals("_id ASC", keys.get(3).getOrderTerm());
+    }
+
+    @Test
+    public void pages_MatchSearch() throws FamiliarDbException {
+        for (int setLogic : new int[]{CardDbAdapter.MOST_RECENT_PRINTING,
+                CardDbAdapter.ALL_PRINTINGS}) {
+            for (String sortOrder : SORT_ORDERS) {
+                String description = setLogic + " " + sortOrder;
+                SearchCriteria criteria = getCreatures(setLogic);
+                boolean consolidate = isConsolidated(setLogic);
+
+                /* What the whole search returns */
+                HashSet<Long> expected = new HashSet<>();
+                Cursor cursor = CardDbAdapter.Search(criteria, true, RETURN_TYPES, consolidate,
+                        sortOrder, mDatabase);
+                assertNotNull(description, cursor);
+                int expectedCount = cursor.getCount();
+                int idIndex = cursor.getColumnIndex(CardDbAdapter.KEY_ID);
+                for (; !cursor.isAfterLast(); cursor.moveToNext()) {
+                    expected.add(cursor.getLong(idIndex));
+                }
+                cursor.close();
+                assertTrue(description, expectedCount > SearchPager.PAGE_SIZE);
+
+                /* What the pages return, each row once */
+                SearchPager pager = SearchPager.search(criteria, RETURN_TYPES, consolidate,
+                        sortOrder, mDatabase);
+                assertNotNull(description, pager);
+                List<Long> paged = loadAllPages(pager);
+                assertEquals(description, expectedCount, paged.size());
+                assertEquals(description, expectedCount, new HashSet<>(paged).size());
+                assertEquals(description, expected, new HashSet<>(paged));
+                assertEquals(description, expectedCount, pager.fetchCount());
+
+                /* The first sort key is in order across page boundaries */
+                if (sortOrder != null && sortOrder.startsWith("cmc desc")) {
+                    Cursor pages = pager.getCursor();
+                    int cmcIndex = pages.getColumnIndex(CardDbAdapter.KEY_CMC);
+                    long last = Long.MAX_VALUE;
+                    for (pages.moveToFirst(); !pages.isAfterLast(); pages.moveToNext()) {
+                        long cmc = pages.getLong(cmcIndex);
+                        assertTrue(description, cmc <= last);
+                        last = cmc;
+                    }
+                }
+
+                /* All the IDs at once, in the same order */
+                long[] allIds = pager.fetchAllIds();
+                assertEquals(description, paged.size(), allIds.length);
+                for (int i = 0; i < allIds.length; i++) {
+                    assertEquals(description, (long) paged.get(i), allIds[i]);
+                }
+
+                pager.close();
+            }
+        }
+    }
+
+    @Test
+    public void queriedPage_NotLoadedUntilAdded() throws FamiliarDbException {
+        SearchPager pager = SearchPager.search(getCreatures(CardDbAdapter.ALL_PRINTINGS),
+                RETURN_TYPES, false, null, mDatabase);
+        assertNotNull(pager);
+        pager.loadNextPage();
+        Cursor firstCursor = pager.getCursor();
+        assertEquals(SearchPager.PAGE_SIZE, pager.getLoadedCount());
+
+        /* Querying doesn't change the loaded rows, like when it runs off the UI thread */
+        Cursor page = pager.queryNextPage();
+        assertNotNull(page);
+        assertEquals(SearchPager.PAGE_SIZE, pager.getLoadedCount());
+        assertTrue(firstCursor == pager.getCursor());
+
+        pager.addPage(page);
+        assertEquals(SearchPager.PAGE_SIZE + page.getCount(), pager.getLoadedCount());
+        assertFalse(firstCursor == pager.getCursor());
+        pager.close();
+    }
+
+    @Test
+    public void emptySearch_HasNoPages() throws FamiliarDbException {
+        SearchCriteria criteria = new SearchCriteria();
+        criteria.name = "This is not the name of any card";
+        SearchPager pager = SearchPager.search(criteria, RETURN_TYPES, true, null, mDatabase);
+        assertNotNull(pager);
+        assertEquals(0, pager.loadNextPage());
+        assertFalse(pager.hasMore());
+        assertNull(pager.getCursor());
+        assertEquals(0, pager.fetchCount());
+        pager.close();
+    }
+
+    /**
+     * @param criteria    The search to run
+     * @param consolidate true to not include multiple printings of the same card
+     * @return The average nanoseconds until the whole search is loaded and counted
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private long timeWholeSearch(SearchCriteria criteria, boolean consolidate)
+            throws FamiliarDbException {
+        long total = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = CardDbAdapter.Search(criteria, true, RETURN_TYPES, consolidate, null,
+                    mDatabase);
+            assertNotNull(cursor);
+            cursor.getCount();
+            long elapsed = System.nanoTime() - start;
+            cursor.close();
+            if (i >= WARMUP_ITERATIONS) {
+                total += elapsed;
+            }
+        }
+        return total / MEASURED_ITERATIONS;
+    }
+
+    /**
+     * @param criteria    The search to run
+     * @param consolidate true to not include multiple printings of the same card
+     * @return The average nanoseconds until the first page is loaded
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    private long timeFirstPage(SearchCriteria criteria, boolean consolidate)
+            throws FamiliarDbException {
+        long total = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            SearchPager pager = SearchPager.search(criteria, RETURN_TYPES, consolidate, null,
+                    mDatabase);
+            assertNotNull(pager);
+            pager.loadNextPage();
+            long elapsed = System.nanoTime() - start;
+            pager.close();
+            if (i >= WARMUP_ITERATIONS) {
+                total += elapsed;
+            }
+        }
+        return total / MEASURED_ITERATIONS;
+    }
+
+    @Test
+    public void benchmark_FirstPageLatency() throws FamiliarDbException {
+        /* Every printing of every creature, the kind of search paging is for */
+        SearchCriteria broad = getCreatures(CardDbAdapter.ALL_PRINTINGS);
+        long broadWhole = timeWholeSearch(broad, false);
+        long broadPaged = timeFirstPage(broad, false);
+        Log.i(TAG, "Every creature: whole search " + (broadWhole / 1000) + "us, first page " +
+                (broadPaged / 1000) + "us");
+
+        /* A search which fits on one page shouldn't cost much more */
+        SearchCriteria narrow = new SearchCriteria();
+        narrow.name = "bolt";
+        long narrowWhole = timeWholeSearch(narrow, true);
+        long narrowPaged = timeFirstPage(narrow, true);
+        Log.i(TAG, "bolt: whole search " + (narrowWhole / 1000) + "us, first page " +
+                (narrowPaged / 1000) + "us");
+
+        assertTrue(broadPaged < broadWhole);
+    }
+}
@@ -0,0 +1,176 @@
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure the BitmapPool hands back bitmaps which fit and never grows past its maximum size, and
+ * that once it's warm, decoding card images to fit the screen doesn't allocate any bitmaps
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BitmapPoolTests {
+
+    private static final String TAG = "BitmapPoolTests";
+
+    /* The size Scryfall's "normal" card images are */
+    private static final int CARD_WIDTH = 488;
+    private static final int CARD_HEIGHT = 680;
+    private static final int DECODES = 50;
+
+    /**
+     * @param width  The image's width
+     * @param height The image's height
+     * @return A JPEG with something drawn in it
+     */
+    private static byte[] makeJpeg(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.WHITE);
+        Paint paint = new Paint();
+        paint.setColor(Color.BLUE);
+        canvas.drawCircle(width / 2, height / 2, width / 3, paint);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void get_ReturnsPooledBitmapWhichFits() {
+        BitmapPool pool = new BitmapPool(16 * 1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(100, 140, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        assertEquals(BitmapPool.getAllocationBytes(bitmap), pool.getBytes());
+
+        /* A bitmap isn't pooled twice */
+        pool.put(bitmap);
+        assertEquals(BitmapPool.getAllocationBytes(bitmap), pool.getBytes());
+
+        Bitmap pooled = pool.get(100, 140, Bitmap.Config.ARGB_8888);
+        assertSame(bitmap, pooled);
+        assertEquals(100, pooled.getWidth());
+        assertEquals(140, pooled.getHeight());
+        assertEquals(0, pool.getBytes());
+        assertNull(pool.get(100, 140, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void put_RecyclesImmutableBitmaps() {
+        BitmapPool pool = new BitmapPool(16 * 1024 * 1024);
+        Bitmap bitmap = Bitmap.createBitmap(new int[100 * 100], 100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        assertTrue(bitmap.isRecycled());
+        assertEquals(0, pool.getBytes());
+    }
+
+    @Test
+    public void put_EvictsOldestToStayUnderMax() {
+        int bitmapBytes = 100 * 100 * 4;
+        BitmapPool pool = new BitmapPool(bitmapBytes * 3);
+        Bitmap[] bitmaps = new Bitmap[5];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+            pool.put(bitmaps[i]);
+            assertTrue(pool.getBytes() <= bitmapBytes * 3);
+        }
+        assertEquals(2, pool.getEvictions());
+        assertTrue(bitmaps[0].isRecycled());
+        assertTrue(bitmaps[1].isRecycled());
+        for (int i = 2; i < bitmaps.length; i++) {
+            assertTrue(!bitmaps[i].isRecycled());
+        }
+
+        /* A bitmap larger than the whole pool is just recycled */
+        Bitmap huge = Bitmap.createBitmap(200, 200, Bitmap.Config.ARGB_8888);
+        pool.put(huge);
+        assertTrue(huge.isRecycled());
+        assertEquals(bitmapBytes * 3, pool.getBytes());
+    }
+
+    @Test
+    public void decodeToFit_ScalesToTarget() {
+        BitmapDecoder decoder = new BitmapDecoder(new BitmapPool(16 * 1024 * 1024));
+        byte[] jpeg = makeJpeg(CARD_WIDTH, CARD_HEIGHT);
+
+        /* Narrower than the card's aspect ratio, so width limits it */
+        Bitmap bitmap = decoder.decodeToFit(jpeg, 200, 1000);
+        assertNotNull(bitmap);
+        assertEquals(200, bitmap.getWidth());
+        assertEquals(Math.round(CARD_HEIGHT * (200 / (float) CARD_WIDTH)), bitmap.getHeight());
+
+        /* Not scaled at all */
+        bitmap = decoder.decodeToFit(jpeg, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertNotNull(bitmap);
+        assertEquals(CARD_WIDTH, bitmap.getWidth());
+        assertEquals(CARD_HEIGHT, bitmap.getHeight());
+
+        assertNull(decoder.decodeToFit(new byte[]{1, 2, 3, 4}, 200, 200));
+    }
+
+    @Test
+    public void calculateInSampleSize_KeepsImageAtLeastTargetSize() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(488, 680, 488, 680));
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(488, 680, 300, 418));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(488, 680, 244, 340));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(488, 680, 200, 279));
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(488, 680, 100, 139));
+    }
+
+    @Test
+    public void decodeToFit_WarmPoolDoesNotAllocate() {
+        BitmapPool pool = new BitmapPool(16 * 1024 * 1024);
+        BitmapDecoder decoder = new BitmapDecoder(pool);
+        byte[] jpeg = makeJpeg(CARD_WIDTH, CARD_HEIGHT);
+
+        /* Like paging through cards, where each image is released when the next one shows */
+        Bitmap shown = null;
+        int warmAllocations = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < DECODES; i++) {
+            Bitmap next = decoder.decodeToFit(jpeg, 200, 300);
+            assertNotNull(next);
+            pool.put(shown);
+            shown = next;
+            if (i == 1) {
+                warmAllocations = decoder.getAllocations();
+            }
+        }
+        long pooledNanos = System.nanoTime() - start;
+
+        assertEquals(warmAllocations, decoder.getAllocations());
+        assertEquals(0, decoder.getFullSizeAllocations());
+        assertTrue(pool.getHits() > 0);
+
+        /* Compare against what the card view used to do, decode full size and scale a copy */
+        start = System.nanoTime();
+        for (int i = 0; i < DECODES; i++) {
+            Bitmap full = android.graphics.BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+            Bitmap scaled = Bitmap.createScaledBitmap(full, 200, 279, true);
+            full.recycle();
+            scaled.recycle();
+        }
+        long oldNanos = System.nanoTime() - start;
+
+        Log.i(TAG, DECODES + " decodes: old " + (oldNanos / 1000000) + "ms, new " +
+                (pooledNanos / 1000000) + "ms. " + decoder);
+    }
+}
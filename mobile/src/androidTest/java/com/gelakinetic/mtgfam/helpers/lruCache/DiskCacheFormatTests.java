@@ -0,0 +1,194 @@
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Compare how large, and how fast to write and read, card images are in the disk cache when
+ * they're stored as downloaded versus re-encoded, and make sure the disk cache fits in the free
+ * space
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DiskCacheFormatTests {
+
+    private static final String TAG = "DiskCacheFormatTests";
+
+    /* The size Scryfall's "normal" card images are */
+    private static final int CARD_WIDTH = 488;
+    private static final int CARD_HEIGHT = 680;
+    private static final int IMAGES = 20;
+    private static final long MB = 1024 * 1024;
+
+    private File mDirectory;
+
+    /**
+     * What one encoding cost
+     */
+    private static class Result {
+        long mBytesPerImage;
+        double mWriteMillis;
+        double mReadMillis;
+    }
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), TAG);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    /**
+     * @param seed Something to make each image different
+     * @return A bitmap which looks something like a photo, with gradients, edges and noise
+     */
+    private static Bitmap makeCardBitmap(int seed) {
+        Random random = new Random(seed);
+        Bitmap bitmap = Bitmap.createBitmap(CARD_WIDTH, CARD_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.BLACK);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, CARD_WIDTH, CARD_HEIGHT,
+                random.nextInt() | Color.BLACK, random.nextInt() | Color.BLACK,
+                Shader.TileMode.CLAMP));
+        canvas.drawRect(20, 20, CARD_WIDTH - 20, CARD_HEIGHT - 20, paint);
+        paint.setShader(null);
+        for (int i = 0; i < 2000; i++) {
+            paint.setColor(random.nextInt());
+            canvas.drawPoint(random.nextInt(CARD_WIDTH), random.nextInt(CARD_HEIGHT), paint);
+        }
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(24);
+        canvas.drawText("Card " + seed, 40, 60, paint);
+        return bitmap;
+    }
+
+    /**
+     * Write images to a fresh disk cache, then read them all back
+     *
+     * @param format  The format to encode with, or null to store the downloaded bytes as-is
+     * @param quality The quality to encode with
+     * @return What it cost
+     * @throws IOException If the cache can't be written
+     */
+    private Result measure(Bitmap.CompressFormat format, int quality) throws IOException {
+        tearDown();
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, 100 * MB);
+
+        /* Pretend these were downloaded */
+        Bitmap[] bitmaps = new Bitmap[IMAGES];
+        byte[][] downloads = new byte[IMAGES][];
+        for (int i = 0; i < IMAGES; i++) {
+            bitmaps[i] = makeCardBitmap(i);
+            ByteArrayOutputStream download = new ByteArrayOutputStream();
+            bitmaps[i].compress(Bitmap.CompressFormat.JPEG, 85, download);
+            downloads[i] = download.toByteArray();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) {
+            DiskLruCache.Editor editor = cache.edit("image" + i);
+            OutputStream out = editor.newOutputStream(0);
+            if (format == null) {
+                out.write(downloads[i]);
+            } else {
+                bitmaps[i].compress(format, quality, out);
+            }
+            out.close();
+            editor.commit();
+        }
+        cache.flush();
+        Result result = new Result();
+        result.mWriteMillis = (System.nanoTime() - start) / 1000000.0 / IMAGES;
+        result.mBytesPerImage = cache.size() / IMAGES;
+
+        for (Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+
+        /* Read them the same way ImageCache.getBitmapFromDiskCache() does */
+        start = System.nanoTime();
+        for (int i = 0; i < IMAGES; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("image" + i);
+            FileInputStream in = (FileInputStream) snapshot.getInputStream(0);
+            Bitmap bitmap = BitmapDecoder.getInstance().decodeToFit(in.getFD(),
+                    Integer.MAX_VALUE, Integer.MAX_VALUE);
+            assertNotNull(bitmap);
+            assertEquals(CARD_WIDTH, bitmap.getWidth());
+            snapshot.close();
+            BitmapPool.getInstance().put(bitmap);
+        }
+        result.mReadMillis = (System.nanoTime() - start) / 1000000.0 / IMAGES;
+
+        cache.delete();
+        Log.i(TAG, String.format(Locale.US, "%s: %d bytes/image, %.1fms write, %.1fms read",
+                format == null ? "As downloaded" : format + " " + quality,
+                result.mBytesPerImage, result.mWriteMillis, result.mReadMillis));
+        return result;
+    }
+
+    @Test
+    public void benchmark_StoringDownloadedBytesIsSmallestAndFastest() throws IOException {
+        Result png = measure(Bitmap.CompressFormat.PNG, 100);
+        Result jpeg = measure(Bitmap.CompressFormat.JPEG, 90);
+        Result webp = measure(Bitmap.CompressFormat.WEBP, 90);
+        Result asDownloaded = measure(null, 0);
+
+        assertTrue(asDownloaded.mBytesPerImage < png.mBytesPerImage);
+        assertTrue(jpeg.mBytesPerImage < png.mBytesPerImage);
+        assertTrue(webp.mBytesPerImage < png.mBytesPerImage);
+        /* Writing bytes is always faster than encoding them first */
+        assertTrue(asDownloaded.mWriteMillis < png.mWriteMillis);
+        assertTrue(asDownloaded.mWriteMillis < jpeg.mWriteMillis);
+    }
+
+    @Test
+    public void getAdaptiveDiskCacheSize_FitsInFreeSpace() {
+        /* Plenty of room, so the requested size */
+        assertEquals(50 * MB, ImageCache.getAdaptiveDiskCacheSize(50 * MB, 10000 * MB, 0));
+        /* Only half the free space is used */
+        assertEquals(20 * MB, ImageCache.getAdaptiveDiskCacheSize(50 * MB, 40 * MB, 0));
+        /* Space the cache already uses counts as free */
+        assertEquals(30 * MB, ImageCache.getAdaptiveDiskCacheSize(50 * MB, 40 * MB, 20 * MB));
+        /* A small request is raised to the minimum */
+        assertEquals(5 * MB, ImageCache.getAdaptiveDiskCacheSize(1 * MB, 10000 * MB, 0));
+        /* A nearly full disk shrinks the cache to the minimum, rather than turning it off */
+        assertEquals(5 * MB, ImageCache.getAdaptiveDiskCacheSize(50 * MB, 4 * MB, 0));
+    }
+}
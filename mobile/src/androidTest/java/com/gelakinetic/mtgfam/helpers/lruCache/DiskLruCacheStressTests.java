@@ -0,0 +1,270 @@
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Hammer the disk cache from many threads at once, making sure every read sees a whole value
+ * which was written for that key, and measure how much faster it is than when every operation
+ * was serialized behind one lock. Also make sure journals written before are still read.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DiskLruCacheStressTests {
+
+    private static final String TAG = "DiskLruCacheStress";
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 500;
+    private static final int KEYS = 200;
+    private static final int VALUE_SIZE = 16 * 1024;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), TAG);
+        tearDown();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    /**
+     * @param key  The key the value is for
+     * @param seed Something to make each write different
+     * @return A value which starts with its key, so a read can tell it's whole and for that key
+     */
+    private static byte[] makeValue(String key, int seed) {
+        byte[] value = new byte[VALUE_SIZE];
+        new Random(seed).nextBytes(value);
+        byte[] header = key.getBytes();
+        System.arraycopy(header, 0, value, 0, header.length);
+        value[header.length] = ' ';
+        return value;
+    }
+
+    /**
+     * @param key   The key the value was read from
+     * @param value What was read
+     * @return true if the value is whole and was written for this key
+     */
+    private static boolean isValueFor(String key, byte[] value) {
+        byte[] header = key.getBytes();
+        return value.length == VALUE_SIZE
+                && Arrays.equals(header, Arrays.copyOf(value, header.length))
+                && value[header.length] == ' ';
+    }
+
+    /**
+     * Run a mix of reads and writes, mostly reads like scrolling through card images, from
+     * several threads at once
+     *
+     * @param cache      The cache to run against
+     * @param globalLock A lock to hold around every operation, like ImageCache used to, or null
+     * @return How many operations were done each second
+     * @throws Exception If anything went wrong on any thread
+     */
+    private double runWorkload(final DiskLruCache cache, final Object globalLock)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int thread = 0; thread < THREADS; thread++) {
+            final int seed = thread;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        String key = "key" + random.nextInt(KEYS);
+                        boolean write = random.nextInt(4) == 0;
+                        if (globalLock == null) {
+                            operate(cache, key, write, random.nextInt());
+                        } else {
+                            synchronized (globalLock) {
+                                operate(cache, key, write, random.nextInt());
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        return (THREADS * OPERATIONS_PER_THREAD) / (elapsed / 1000000000.0);
+    }
+
+    /**
+     * Read or write one entry, checking anything read
+     *
+     * @param cache The cache to use
+     * @param key   The entry to use
+     * @param write true to write the entry, false to read it
+     * @param seed  Something to make a write different
+     * @throws IOException If the cache can't be used
+     */
+    private static void operate(DiskLruCache cache, String key, boolean write, int seed)
+            throws IOException {
+        if (write) {
+            DiskLruCache.Editor editor = cache.edit(key);
+            if (editor != null) {
+                OutputStream out = editor.newOutputStream(0);
+                out.write(makeValue(key, seed));
+                out.close();
+                editor.commit();
+            }
+        } else {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            if (snapshot != null) {
+                InputStream in = snapshot.getInputStream(0);
+                byte[] value = new byte[VALUE_SIZE + 1];
+                int read = 0;
+                int count;
+                while ((count = in.read(value, read, value.length - read)) > 0) {
+                    read += count;
+                }
+                snapshot.close();
+                assertTrue(isValueFor(key, Arrays.copyOf(value, read)));
+            }
+        }
+    }
+
+    /**
+     * Fill the cache so reads find something
+     *
+     * @param cache The cache to fill
+     * @throws IOException If the cache can't be written
+     */
+    private static void fill(DiskLruCache cache) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            operate(cache, "key" + i, true, i);
+        }
+    }
+
+    @Test
+    public void concurrentAccess_IsConsistentAndFasterThanSerialized() throws Exception {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, 100 * 1024 * 1024);
+        fill(cache);
+
+        double serialized = runWorkload(cache, new Object());
+        double concurrent = runWorkload(cache, null);
+        Log.i(TAG, String.format(Locale.US,
+                "Serialized: %.0f ops/s, concurrent: %.0f ops/s, %.2fx on %d cores",
+                serialized, concurrent, concurrent / serialized,
+                Runtime.getRuntime().availableProcessors()));
+
+        /* Every entry survives being closed and opened again */
+        long size = cache.size();
+        cache.close();
+        cache = DiskLruCache.open(mDirectory, 1, 1, 100 * 1024 * 1024);
+        assertEquals(size, cache.size());
+        for (int i = 0; i < KEYS; i++) {
+            operate(cache, "key" + i, false, 0);
+        }
+        cache.delete();
+
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            assertTrue(concurrent > serialized);
+        }
+    }
+
+    @Test
+    public void concurrentAccess_StaysUnderMaxSize() throws Exception {
+        /* Room for about a quarter of the keys, so entries are evicted while being read */
+        long maxSize = (KEYS / 4) * VALUE_SIZE;
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, maxSize);
+        runWorkload(cache, null);
+        cache.flush();
+        assertTrue(cache.size() <= maxSize);
+
+        long onDisk = 0;
+        for (File file : mDirectory.listFiles()) {
+            if (!file.getName().startsWith("journal")) {
+                onDisk += file.length();
+            }
+        }
+        assertEquals(cache.size(), onDisk);
+        cache.close();
+    }
+
+    @Test
+    public void open_ReadsExistingJournal() throws IOException {
+        /* A journal and values as written before the cache was concurrent */
+        assertTrue(mDirectory.mkdirs());
+        FileWriter journal = new FileWriter(new File(mDirectory, "journal"));
+        journal.write("libcore.io.DiskLruCache\n1\n1\n1\n\n"
+                + "DIRTY abc\nCLEAN abc 3\nDIRTY def\nCLEAN def 5\nREAD abc\n"
+                + "DIRTY ghi\nREMOVE def\nDIRTY jkl\n");
+        journal.close();
+        FileWriter value = new FileWriter(new File(mDirectory, "abc.0"));
+        value.write("abc");
+        value.close();
+        /* A value which was being written when the app died */
+        value = new FileWriter(new File(mDirectory, "jkl.0.tmp"));
+        value.write("partial");
+        value.close();
+
+        DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, 1024);
+        assertEquals(3, cache.size());
+        DiskLruCache.Snapshot snapshot = cache.get("abc");
+        assertNotNull(snapshot);
+        assertEquals("abc", snapshot.getString(0));
+        assertNull(cache.get("def"));
+        assertNull(cache.get("ghi"));
+        assertNull(cache.get("jkl"));
+
+        DiskLruCache.Editor editor = cache.edit("mno");
+        editor.set(0, "mnop");
+        editor.commit();
+        cache.close();
+
+        /* The journal this cache writes is read back the same way */
+        cache = DiskLruCache.open(mDirectory, 1, 1, 1024);
+        assertEquals(7, cache.size());
+        assertEquals("mnop", cache.get("mno").getString(0));
+        assertEquals("abc", cache.get("abc").getString(0));
+        assertEquals(2, mDirectory.listFiles().length - 1);
+        cache.close();
+    }
+}
@@ -0,0 +1,183 @@
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Make sure offline image packs hold exactly what was put in them, that an interrupted download
+ * resumes without losing or corrupting images, and that thousands of images can be read quickly
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ImagePackTests {
+
+    private static final String TAG = "ImagePackTests";
+    private static final int IMAGES = 2000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), TAG);
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    /**
+     * @param index Which image to make
+     * @return Some bytes which are different for each index, and of different lengths
+     */
+    private static byte[] makeImage(int index) {
+        byte[] bytes = new byte[1000 + (index * 37) % 5000];
+        new Random(index).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void pack_ReturnsWhatWasAdded() throws IOException {
+        File packFile = new File(mDirectory, "XLN.pack");
+        ImagePack.Builder builder = new ImagePack.Builder(packFile);
+        /* Add them out of order, the pack sorts them */
+        for (int i = IMAGES - 1; i >= 0; i--) {
+            builder.add(i + "en", makeImage(i));
+        }
+        ImagePack pack = builder.finish();
+
+        assertEquals(IMAGES, pack.size());
+        assertFalse(new File(packFile.getPath() + ".data").exists());
+        assertFalse(new File(packFile.getPath() + ".index").exists());
+        for (int i = 0; i < IMAGES; i++) {
+            assertTrue(Arrays.equals(makeImage(i), pack.get(i + "en")));
+        }
+        assertNull(pack.get("0de"));
+        assertFalse(pack.contains(IMAGES + "en"));
+
+        /* Opening it again reads the same thing */
+        ImagePack reopened = new ImagePack(packFile);
+        assertTrue(Arrays.equals(makeImage(IMAGES / 2), reopened.get((IMAGES / 2) + "en")));
+    }
+
+    @Test
+    public void builder_ResumesAfterInterruption() throws IOException {
+        File packFile = new File(mDirectory, "DOM.pack");
+        ImagePack.Builder builder = new ImagePack.Builder(packFile);
+        for (int i = 0; i < 100; i++) {
+            builder.add(i + "en", makeImage(i));
+        }
+        builder.close();
+
+        /* Simulate being killed halfway through writing an image */
+        FileOutputStream data = new FileOutputStream(packFile.getPath() + ".data", true);
+        data.write(makeImage(100), 0, 500);
+        data.close();
+        /* And halfway through recording one */
+        RandomAccessFile index = new RandomAccessFile(packFile.getPath() + ".index", "rw");
+        index.seek(index.length());
+        index.writeShort(4);
+        index.writeByte('1');
+        index.close();
+
+        builder = new ImagePack.Builder(packFile);
+        assertEquals(100, builder.size());
+        assertTrue(builder.contains("99en"));
+        assertFalse(builder.contains("100en"));
+        for (int i = 100; i < 200; i++) {
+            builder.add(i + "en", makeImage(i));
+        }
+        ImagePack pack = builder.finish();
+
+        assertEquals(200, pack.size());
+        for (int i = 0; i < 200; i++) {
+            assertTrue(Arrays.equals(makeImage(i), pack.get(i + "en")));
+        }
+    }
+
+    @Test
+    public void builder_StartsOverIfDataIsMissing() throws IOException {
+        File packFile = new File(mDirectory, "RIX.pack");
+        ImagePack.Builder builder = new ImagePack.Builder(packFile);
+        for (int i = 0; i < 10; i++) {
+            builder.add(i + "en", makeImage(i));
+        }
+        builder.close();
+        assertTrue(new File(packFile.getPath() + ".data").delete());
+
+        builder = new ImagePack.Builder(packFile);
+        assertEquals(0, builder.size());
+        builder.add("0en", makeImage(0));
+        ImagePack pack = builder.finish();
+        assertEquals(1, pack.size());
+        assertTrue(Arrays.equals(makeImage(0), pack.get("0en")));
+    }
+
+    @Test
+    public void store_ServesFromEveryPack() throws IOException {
+        ImagePackStore store = new ImagePackStore(mDirectory);
+
+        for (String setCode : new String[]{"AAA", "BBB"}) {
+            ImagePack.Builder builder = new ImagePack.Builder(store.getPackFile(setCode));
+            for (int i = 0; i < IMAGES / 2; i++) {
+                builder.add(setCode + i, makeImage(i));
+            }
+            store.add(setCode, builder.finish());
+        }
+
+        /* Unfinished packs are found, and aren't served from */
+        ImagePack.Builder unfinished = new ImagePack.Builder(store.getPackFile("CCC"));
+        unfinished.add("CCC0", makeImage(0));
+        unfinished.close();
+        assertEquals(Arrays.asList("CCC"), store.getUnfinishedSetCodes());
+        assertFalse(store.contains("CCC0"));
+
+        /* A fresh store opens the packs from disk, once */
+        store = new ImagePackStore(mDirectory);
+        long start = System.nanoTime();
+        for (int i = 0; i < IMAGES / 2; i++) {
+            assertNotNull(store.get("AAA" + i));
+            assertNotNull(store.get("BBB" + i));
+        }
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format("Read %d images in %.1fms", IMAGES, elapsed / 1000000.0));
+
+        assertEquals(2, store.getSetCodes().size());
+        store.delete("AAA");
+        store.delete("CCC");
+        assertNull(store.get("AAA0"));
+        assertNotNull(store.get("BBB0"));
+        assertTrue(store.getUnfinishedSetCodes().isEmpty());
+        assertFalse(store.getPackFile("AAA").exists());
+    }
+}
@@ -0,0 +1,178 @@
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
+import com.gelakinetic.GathererScraper.PrefixedFieldNamingStrategy;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.CardDbBulkLoader;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Compare the heap retained while spooling a large patch and streaming it into a database against
+ * parsing all of it at once
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class CardAndSetParserTests {
+
+    private static final String TAG = "CardAndSetParserTests";
+
+    /* About as many cards as the largest patches GathererScraper publishes */
+    private static final int CARDS_IN_PATCH = 2500;
+
+    private static final String[] LANGUAGE_CODES = {"zh_HANT", "zh_HANS", "fr", "de", "it", "ja",
+            "pt_BR", "ru", "es", "ko"};
+
+    private final Gson mGson = new GsonBuilder()
+            .setFieldNamingStrategy(new PrefixedFieldNamingStrategy("m"))
+            .create();
+
+    /**
+     * A whole patch in memory, the way the parser used to read it before it streamed cards
+     */
+    private static class WholePatch {
+        Expansion mExpansion;
+        ArrayList<Card> mCards;
+    }
+
+    /**
+     * @return The JSON for a large patch, with realistic looking cards
+     * @throws IOException If the JSON can't be encoded
+     */
+    private byte[] makeLargePatch() throws IOException {
+        WholePatch patch = new WholePatch();
+        patch.mExpansion = new Expansion();
+        patch.mExpansion.mCode_gatherer = "BIG";
+        patch.mExpansion.mName_gatherer = "Big Test Set";
+        patch.mCards = new ArrayList<>();
+        for (int i = 0; i < CARDS_IN_PATCH; i++) {
+            Card card = new Card();
+            card.mName = "Large Test Card " + i;
+            card.mExpansion = "BIG";
+            card.mNumber = Integer.toString(i);
+            card.mType = "Legendary Creature - Human Wizard";
+            card.mManaCost = "{2}{U}{U}";
+            card.mCmc = 4;
+            card.mText = "Flying<br>When Large Test Card " + i + " enters the battlefield, draw " +
+                    "two cards, then discard a card.<br>{T}: Tap target creature an opponent controls.";
+            card.mFlavor = "\"The most dangerous test is the one you don't write.\"";
+            card.mArtist = "Test Artist " + (i % 50);
+            card.mRarity = 'R';
+            card.mColor = "U";
+            card.mColorIdentity = "U";
+            card.mMultiverseId = 400000 + i;
+            for (int j = 0; j < LANGUAGE_CODES.length; j++) {
+                Card.ForeignPrinting printing = new Card.ForeignPrinting();
+                printing.mLanguageCode = LANGUAGE_CODES[j];
+                printing.mName = "Foreign Test Card " + i + " " + LANGUAGE_CODES[j];
+                printing.mMultiverseId = 500000 + i * LANGUAGE_CODES.length + j;
+                card.mForeignPrintings.add(printing);
+            }
+            patch.mCards.add(card);
+        }
+        return mGson.toJson(patch).getBytes("UTF-8");
+    }
+
+    /**
+     * @return The number of bytes used on the heap, after a garbage collection
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void streamingRetainsLessHeap() throws IOException, InterruptedException, FamiliarDbException {
+        byte[] json = makeLargePatch();
+
+        /* Parse the whole patch at once, like the parser used to */
+        long baseline = usedHeap();
+        WholePatch patch = mGson.fromJson(new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(json), "UTF-8")), WholePatch.class);
+        long wholePatchHeap = usedHeap() - baseline;
+        assertEquals(CARDS_IN_PATCH, patch.mCards.size());
+        //noinspection UnusedAssignment
+        patch = null;
+
+        /* Spool it, like a download thread does */
+        SQLiteDatabase database = SQLiteDatabase.create(null);
+        CardDbAdapter.dropCreateDB(database);
+        Manifest.ManifestEntry entry = new Manifest().new ManifestEntry();
+        entry.mCode = "BIG";
+        PatchDownloader downloader = new PatchDownloader(InstrumentationRegistry.getTargetContext(), null);
+        final PatchDownloader.PatchStream stream = downloader.new PatchStream(entry);
+        baseline = usedHeap();
+        stream.spool(new JsonReader(new InputStreamReader(new ByteArrayInputStream(json), "UTF-8")));
+        long peakStreamingHeap = usedHeap() - baseline;
+        assertEquals(CARDS_IN_PATCH, stream.getCardCount());
+
+        /* Then read it back on another thread and insert it, like DbUpdaterService does,
+         * sampling the heap as each batch arrives
+         */
+        Thread replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stream.replay();
+                } catch (InterruptedException e) {
+                    /* The test will fail when the patch isn't delivered */
+                }
+            }
+        });
+        replayer.start();
+        CardDbBulkLoader loader = new CardDbBulkLoader(database, null);
+        try {
+            loader.beginPatch(stream.getCardCount());
+            PatchDownloader.PatchChunk chunk;
+            do {
+                chunk = stream.take();
+                if (chunk.mType == PatchDownloader.PatchChunk.EXPANSION) {
+                    assertEquals("BIG", chunk.mExpansion.mCode_gatherer);
+                    loader.addExpansion(chunk.mExpansion);
+                } else if (chunk.mType == PatchDownloader.PatchChunk.CARDS) {
+                    for (Card card : chunk.mCards) {
+                        loader.addCard(card);
+                    }
+                    peakStreamingHeap = Math.max(peakStreamingHeap, usedHeap() - baseline);
+                }
+            } while (chunk.mType == PatchDownloader.PatchChunk.EXPANSION ||
+                    chunk.mType == PatchDownloader.PatchChunk.CARDS);
+            assertEquals(PatchDownloader.PatchChunk.DONE, chunk.mType);
+            loader.commitPatch();
+            assertEquals(CARDS_IN_PATCH, loader.getCardsAdded());
+        } finally {
+            loader.close();
+            replayer.join();
+            database.close();
+            downloader.shutdown();
+        }
+
+        Log.i(TAG, CARDS_IN_PATCH + " cards, " + json.length + " bytes of JSON: whole patch retained " +
+                (wholePatchHeap / 1024) + "KB, spooling and inserting peaked at " +
+                (peakStreamingHeap / 1024) + "KB");
+        assertTrue(peakStreamingHeap < wholePatchHeap);
+    }
+}
@@ -0,0 +1,286 @@
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Serve gzipped patches from a local HTTP stand-in with an artificial delay, and make sure the
+ * PatchDownloader overlaps downloading, parsing, and the consumer, and hands patches over in the
+ * order they finish
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PatchDownloaderTests {
+
+    private static final String TAG = "PatchDownloaderTests";
+    private static final int NUM_PATCHES = 6;
+    private static final int CARDS_PER_PATCH = 300;
+    private static final long SERVER_DELAY_MS = 500;
+    private static final long INSERT_DELAY_MS = 500;
+    /* Patches with this prefix are served much more slowly than the others */
+    private static final String SLOW_PREFIX = "S";
+    private static final long SLOW_SERVER_DELAY_MS = 4000;
+
+    private final HashMap<String, byte[]> mPatchFiles = new HashMap<>();
+    private ServerSocket mServerSocket;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < NUM_PATCHES; i++) {
+            String code = "T" + i;
+            mPatchFiles.put("/" + code + ".json.gz", makePatchFile(code));
+        }
+        mPatchFiles.put("/" + SLOW_PREFIX + "0.json.gz", makePatchFile(SLOW_PREFIX + "0"));
+
+        mServerSocket = new ServerSocket(0);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    } catch (IOException e) {
+                        /* The socket was closed */
+                    }
+                }
+            }
+        }).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServerSocket.close();
+    }
+
+    /**
+     * Build a gzipped patch file, just like the ones GathererScraper publishes.
+     *
+     * @param code The set code for the patch
+     * @return The gzipped JSON bytes
+     * @throws IOException If the bytes can't be written
+     */
+    private static byte[] makePatchFile(String code) throws IOException {
+        Gson gson = CardAndSetParser.getGson();
+        Expansion expansion = new Expansion();
+        expansion.mCode_gatherer = code;
+        expansion.mName_gatherer = "Test Set " + code;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(bytes), "UTF-8"));
+        writer.beginObject();
+        writer.name(CardAndSetParser.PATCH_KEY_EXPANSION);
+        gson.toJson(expansion, Expansion.class, writer);
+        writer.name(CardAndSetParser.PATCH_KEY_CARDS);
+        writer.beginArray();
+        for (int i = 0; i < CARDS_PER_PATCH; i++) {
+            Card card = new Card();
+            card.mName = "Test Card " + i;
+            card.mExpansion = code;
+            card.mNumber = Integer.toString(i);
+            card.mType = "Creature - Test";
+            card.mText = "When Test Card " + i + " enters the battlefield, draw a card.";
+            card.mRarity = 'C';
+            gson.toJson(card, Card.class, writer);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Answer a single HTTP GET after SERVER_DELAY_MS, or SLOW_SERVER_DELAY_MS for slow patches,
+     * with the patch file or a 404.
+     *
+     * @param socket The connection to answer
+     */
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String path = reader.readLine().split(" ")[1];
+            /* Skip the headers */
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                /* Nothing to do */
+            }
+
+            SystemClock.sleep(path.startsWith("/" + SLOW_PREFIX) ?
+                    SLOW_SERVER_DELAY_MS : SERVER_DELAY_MS);
+
+            byte[] body = mPatchFiles.get(path);
+            OutputStream out = socket.getOutputStream();
+            if (body == null) {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                        .getBytes("UTF-8"));
+            } else {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length +
+                        "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                out.write(body);
+            }
+            out.flush();
+            socket.close();
+        } catch (IOException e) {
+            /* The test will fail when the patch isn't delivered */
+        }
+    }
+
+    /**
+     * @param codes The set codes to make manifest entries for
+     * @return Manifest entries pointing at the local server
+     */
+    private List<Manifest.ManifestEntry> makeEntries(String... codes) {
+        Manifest manifest = new Manifest();
+        ArrayList<Manifest.ManifestEntry> entries = new ArrayList<>();
+        for (String code : codes) {
+            Manifest.ManifestEntry entry = manifest.new ManifestEntry();
+            entry.mCode = code;
+            entry.mName = code;
+            entry.mURL = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + code + ".json.gz";
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Consume every chunk of a patch, like DbUpdaterService does.
+     *
+     * @param patch The patch to consume
+     * @return The number of cards in the patch, or -1 if it failed
+     * @throws InterruptedException If the thread is interrupted while waiting for a chunk
+     */
+    private static int consume(PatchDownloader.PatchStream patch) throws InterruptedException {
+        int cards = 0;
+        while (true) {
+            PatchDownloader.PatchChunk chunk = patch.take();
+            switch (chunk.mType) {
+                case PatchDownloader.PatchChunk.EXPANSION: {
+                    assertEquals(patch.mEntry.mCode, chunk.mExpansion.mCode_gatherer);
+                    break;
+                }
+                case PatchDownloader.PatchChunk.CARDS: {
+                    assertTrue(chunk.mCards.size() <= CardAndSetParser.CARD_BATCH_SIZE);
+                    cards += chunk.mCards.size();
+                    break;
+                }
+                case PatchDownloader.PatchChunk.DONE: {
+                    assertEquals(patch.getCardCount(), cards);
+                    return cards;
+                }
+                default: {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void downloadsOverlapInserts() throws InterruptedException {
+        String codes[] = new String[NUM_PATCHES];
+        for (int i = 0; i < NUM_PATCHES; i++) {
+            codes[i] = "T" + i;
+        }
+
+        PatchDownloader downloader = new PatchDownloader(
+                InstrumentationRegistry.getTargetContext(), null);
+        long start = SystemClock.elapsedRealtime();
+        downloader.start(makeEntries(codes));
+        HashSet<String> received = new HashSet<>();
+        PatchDownloader.PatchStream patch;
+        while ((patch = downloader.take()) != null) {
+            assertEquals(CARDS_PER_PATCH, consume(patch));
+            received.add(patch.mEntry.mCode);
+            /* Pretend to insert the patch */
+            SystemClock.sleep(INSERT_DELAY_MS);
+        }
+        downloader.shutdown();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        long sequential = NUM_PATCHES * (SERVER_DELAY_MS + INSERT_DELAY_MS);
+        Log.i(TAG, NUM_PATCHES + " patches in " + elapsed + "ms, sequential would be at least " +
+                sequential + "ms");
+        assertEquals(NUM_PATCHES, received.size());
+        /* Most of the downloads should be hidden behind inserts */
+        assertTrue(elapsed < sequential - (NUM_PATCHES / 2) * SERVER_DELAY_MS);
+    }
+
+    @Test
+    public void failedPatchDoesNotBlockOthers() throws InterruptedException {
+        PatchDownloader downloader = new PatchDownloader(
+                InstrumentationRegistry.getTargetContext(), null, 3, 2, 100);
+        downloader.start(makeEntries("MISSING", "T0", "T1", "T2"));
+        ArrayList<String> succeeded = new ArrayList<>();
+        ArrayList<String> failed = new ArrayList<>();
+        PatchDownloader.PatchStream patch;
+        while ((patch = downloader.take()) != null) {
+            if (consume(patch) == CARDS_PER_PATCH) {
+                succeeded.add(patch.mEntry.mCode);
+            } else {
+                failed.add(patch.mEntry.mCode);
+            }
+        }
+        downloader.shutdown();
+
+        assertEquals(3, succeeded.size());
+        assertEquals(1, failed.size());
+        assertEquals("MISSING", failed.get(0));
+    }
+
+    @Test
+    public void slowPatchDoesNotBlockOthers() throws InterruptedException {
+        PatchDownloader downloader = new PatchDownloader(
+                InstrumentationRegistry.getTargetContext(), null);
+        long start = SystemClock.elapsedRealtime();
+        downloader.start(makeEntries(SLOW_PREFIX + "0", "T0", "T1", "T2"));
+        ArrayList<String> order = new ArrayList<>();
+        PatchDownloader.PatchStream patch;
+        while ((patch = downloader.take()) != null) {
+            assertEquals(CARDS_PER_PATCH, consume(patch));
+            order.add(patch.mEntry.mCode);
+            if (!patch.mEntry.mCode.startsWith(SLOW_PREFIX)) {
+                /* The fast patches are ready long before the slow one finishes */
+                assertTrue(SystemClock.elapsedRealtime() - start < SLOW_SERVER_DELAY_MS);
+            }
+        }
+        downloader.shutdown();
+
+        assertEquals(4, order.size());
+        assertEquals(SLOW_PREFIX + "0", order.get(3));
+    }
+}
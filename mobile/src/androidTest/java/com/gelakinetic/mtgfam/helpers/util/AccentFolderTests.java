@@ -0,0 +1,179 @@
+package com.gelakinetic.mtgfam.helpers.util;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Prove the lookup table folds every character exactly like the old list of replacements did, and
+ * measure how much faster it is over every name in the bundled database
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AccentFolderTests {
+
+    private static final String TAG = "AccentFolderTests";
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    @Rule
+    public ActivityTestRule<FamiliarActivity> mFamiliarActivityRule =
+            new ActivityTestRule<>(FamiliarActivity.class);
+
+    /* What CardDbAdapter.removeAccentMarks() searched through for every character before */
+    private static final char OLD_REPLACEMENTS[][] = {
+            {0xC0, 'A'}, {0xC1, 'A'}, {0xC2, 'A'}, {0xC3, 'A'}, {0xC4, 'A'}, {0xC5, 'A'},
+            {0xC7, 'C'}, {0xC8, 'E'}, {0xC9, 'E'}, {0xCA, 'E'}, {0xCB, 'E'}, {0xCC, 'I'},
+            {0xCD, 'I'}, {0xCE, 'I'}, {0xCF, 'I'}, {0xD0, 'D'}, {0xD1, 'N'}, {0xD2, 'O'},
+            {0xD3, 'O'}, {0xD4, 'O'}, {0xD5, 'O'}, {0xD6, 'O'}, {0xD7, 'x'}, {0xD8, 'O'},
+            {0xD9, 'U'}, {0xDA, 'U'}, {0xDB, 'U'}, {0xDC, 'U'}, {0xDD, 'Y'}, {0xE0, 'a'},
+            {0xE1, 'a'}, {0xE2, 'a'}, {0xE3, 'a'}, {0xE4, 'a'}, {0xE5, 'a'}, {0xE7, 'c'},
+            {0xE8, 'e'}, {0xE9, 'e'}, {0xEA, 'e'}, {0xEB, 'e'}, {0xEC, 'i'}, {0xED, 'i'},
+            {0xEE, 'i'}, {0xEF, 'i'}, {0xF1, 'n'}, {0xF2, 'o'}, {0xF3, 'o'}, {0xF4, 'o'},
+            {0xF5, 'o'}, {0xF6, 'o'}, {0xF8, 'o'}, {0xF9, 'u'}, {0xFA, 'u'}, {0xFB, 'u'},
+            {0xFC, 'u'}, {0xFD, 'y'}, {0xFF, 'y'}
+    };
+
+    /**
+     * The old implementation, kept to compare against
+     *
+     * @param str The String to remove accent marks from
+     * @return The accent-less String
+     */
+    private static String oldRemoveAccentMarks(String str) {
+        StringBuilder out = new StringBuilder(str.length());
+        for (char letter : str.toCharArray()) {
+            boolean matchFailed = true;
+            for (char[] replacement : OLD_REPLACEMENTS) {
+                if (letter == replacement[0]) {
+                    out.append(replacement[1]);
+                    matchFailed = false;
+                    break;
+                }
+            }
+            if (matchFailed) {
+                out.append(letter);
+            }
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void everyCharacter_FoldsLikeBefore() {
+        for (int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+            String str = String.valueOf((char) c);
+            String folded = AccentFolder.removeAccentMarks(str);
+            if (c < 0x100 || c >= 0x180) {
+                assertEquals(Integer.toHexString(c), oldRemoveAccentMarks(str), folded);
+            } else {
+                /* Latin Extended-A wasn't folded before. Letters which decompose fold to their
+                 * base letter, the rest are left alone or fold to the letter they look like */
+                String decomposed = Normalizer.normalize(str, Normalizer.Form.NFD);
+                if (decomposed.length() > 1) {
+                    assertEquals(Integer.toHexString(c), decomposed.substring(0, 1), folded);
+                } else {
+                    assertTrue(Integer.toHexString(c), folded.equals(str) ||
+                            (folded.charAt(0) >= 'A' && folded.charAt(0) <= 'z'));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void strings_FoldLikeBefore() {
+        String[] strings = {"", "Lightning Bolt", "Æther Vial", "Lim-Dûl's Vault",
+                "Jötun Grunt", "Ifh-Bíff Efreet", "Dandân", "Séance", "Àÿ×",
+                "Marit Lage's Slumber", "Ærathi Berserker", "稲妻", "Молния"};
+        for (String str : strings) {
+            assertEquals(str, oldRemoveAccentMarks(str), AccentFolder.removeAccentMarks(str));
+        }
+
+        /* Longer than the initial buffer */
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longString.append("Dandân ");
+        }
+        assertEquals(oldRemoveAccentMarks(longString.toString()),
+                AccentFolder.removeAccentMarks(longString.toString()));
+
+        /* Nothing to fold isn't copied */
+        String ascii = "Lightning Bolt";
+        assertSame(ascii, AccentFolder.removeAccentMarks(ascii));
+    }
+
+    @Test
+    public void benchmark_CardNameCorpus() throws FamiliarDbException {
+        ArrayList<String> names = new ArrayList<>();
+        SQLiteDatabase database = DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(),
+                false).openDatabase(false);
+        try {
+            Cursor cursor = database.rawQuery("SELECT " + CardDbAdapter.KEY_NAME + ", " +
+                    CardDbAdapter.KEY_NAME_FRENCH + ", " + CardDbAdapter.KEY_NAME_GERMAN + ", " +
+                    CardDbAdapter.KEY_NAME_SPANISH + " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS,
+                    null);
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (!cursor.isNull(i)) {
+                        names.add(cursor.getString(i));
+                    }
+                }
+            }
+            cursor.close();
+        } finally {
+            DatabaseManager.getInstance(mFamiliarActivityRule.getActivity(), false)
+                    .closeDatabase(false);
+        }
+        assertTrue(names.size() > 0);
+
+        for (String name : names) {
+            if (!name.matches(".*[\\u0100-\\u017F].*")) {
+                assertEquals(name, oldRemoveAccentMarks(name), AccentFolder.removeAccentMarks(name));
+            }
+        }
+
+        long oldNanos = 0;
+        long newNanos = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (String name : names) {
+                oldRemoveAccentMarks(name);
+            }
+            long oldElapsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String name : names) {
+                AccentFolder.removeAccentMarks(name);
+            }
+            long newElapsed = System.nanoTime() - start;
+
+            if (i >= WARMUP_ITERATIONS) {
+                oldNanos += oldElapsed;
+                newNanos += newElapsed;
+            }
+        }
+        Log.i(TAG, String.format(Locale.US, "%d names. Replacements: %.2fms, table: %.2fms, %.1fx",
+                names.size(), oldNanos / 1000000.0 / MEASURED_ITERATIONS,
+                newNanos / 1000000.0 / MEASURED_ITERATIONS, oldNanos / (double) newNanos));
+        assertTrue(newNanos < oldNanos);
+    }
+}
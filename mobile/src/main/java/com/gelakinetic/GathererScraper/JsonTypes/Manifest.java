@@ -33,6 +33,25 @@ public class Manifest {
         public String mURL;
         public String mCode;
         public String mDigest;
+        // Delta patches from older digests of this set to mDigest, may be null
+        public ArrayList<DeltaEntry> mDeltas;
+
+        /**
+         * Find a delta patch which brings this set up to date from the given digest.
+         *
+         * @param baseDigest The digest of the set currently in the database
+         * @return The delta patch's entry, or null if there isn't one
+         */
+        public DeltaEntry getDeltaFrom(String baseDigest) {
+            if (mDeltas != null && baseDigest != null) {
+                for (DeltaEntry delta : mDeltas) {
+                    if (baseDigest.equals(delta.mBaseDigest)) {
+                        return delta;
+                    }
+                }
+            }
+            return null;
+        }
 
         @Override
         public int compareTo(@NonNull ManifestEntry o) {
@@ -40,4 +59,10 @@ public class Manifest {
         }
     }
 
+    public class DeltaEntry {
+        // The digest of the set this delta applies to
+        public String mBaseDigest;
+        public String mURL;
+    }
+
 }
@@ -22,15 +22,25 @@ package com.gelakinetic.GathererScraper.JsonTypes;
 import java.util.ArrayList;
 
 /**
- * This class contains all information of a patch.
- * It is mainly used to export to/import from a json file.:
+ * This class contains the differences between two versions of a patch. Cards are keyed by their
+ * expansion and collector's number.
+ * It is mainly used to export to/import from a json file.
  */
-public class Patch {
+public class PatchDelta {
 
-    // The patch's expansion
+    // The patch's expansion after the delta is applied, including the new digest
     public Expansion mExpansion;
 
-    // The patch's cards
-    public ArrayList<Card> mCards;
+    // The digest of the expansion this delta applies to
+    public String mBaseDigest;
+
+    // Cards which are new to the expansion
+    public ArrayList<Card> mAdded;
+
+    // The new versions of cards which changed
+    public ArrayList<Card> mChanged;
+
+    // The numbers of cards which were removed from the expansion
+    public ArrayList<String> mRemoved;
 
 }
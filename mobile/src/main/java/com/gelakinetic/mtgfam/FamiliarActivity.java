@@ -63,6 +63,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -90,15 +91,21 @@ import com.gelakinetic.mtgfam.fragments.dialogs.FamiliarDialogFragment;
 import com.gelakinetic.mtgfam.helpers.IndeterminateRefreshLayout;
 import com.gelakinetic.mtgfam.helpers.MTGFamiliarAppWidgetProvider;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.PriceFetchBatcher;
 import com.gelakinetic.mtgfam.helpers.PriceFetchService;
 import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.StartupInitializer;
+import com.gelakinetic.mtgfam.helpers.StartupTrace;
 import com.gelakinetic.mtgfam.helpers.ToastWrapper;
 import com.gelakinetic.mtgfam.helpers.ZipUtils;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.CardNameIndex;
 import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 import com.gelakinetic.mtgfam.helpers.lruCache.ImageCache;
+import com.gelakinetic.mtgfam.helpers.lruCache.ImagePackStore;
 import com.gelakinetic.mtgfam.helpers.updaters.DbUpdaterService;
+import com.gelakinetic.mtgfam.helpers.updaters.ImagePackService;
 import com.octo.android.robospice.SpiceManager;
 
 import org.jetbrains.annotations.NotNull;
@@ -157,6 +164,8 @@ public class FamiliarActivity extends AppCompatActivity {
     private static final String IMAGE_CACHE_DIR = "familiar_image_cache";
     /* Spice setup */
     public final SpiceManager mSpiceManager = new SpiceManager(PriceFetchService.class);
+    /* Batches and coalesces price requests from every fragment */
+    public PriceFetchBatcher mPriceFetchBatcher;
     /* What the drawer menu will be */
     private final DrawerEntry[] mPageEntries = {
             new DrawerEntry(R.string.main_card_search, R.attr.ic_drawer_search, false),
@@ -218,6 +227,9 @@ public class FamiliarActivity extends AppCompatActivity {
                 cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
                 cacheParams.diskCacheSize = 1024 * 1024 * PreferenceAdapter.getImageCacheSize(FamiliarActivity.this);
                 addImageCache(getSupportFragmentManager(), cacheParams);
+            } else if (s.equals(getString(R.string.key_imagePackSets))) {
+                /* Download packs for newly chosen sets, and delete the rest */
+                startService(new Intent(FamiliarActivity.this, ImagePackService.class));
             }
         }
     };
@@ -480,7 +492,15 @@ public class FamiliarActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        /* Start installing or verifying the database right away. Nothing here needs it, and
+           fragments which do will wait for it */
+        final StartupInitializer startup = StartupInitializer.getInstance();
+        final StartupTrace trace = startup.getTrace();
+        startup.startDatabase(this);
+
         PrefsFragment.checkOverrideSystemLanguage(this);
+        mPriceFetchBatcher = new PriceFetchBatcher(mSpiceManager, this);
 
         /* Figure out what theme the app is currently in, and change it if necessary */
         int resourceId = getResourceIdFromAttr(R.attr.color_drawer_background);
@@ -504,9 +524,30 @@ public class FamiliarActivity extends AppCompatActivity {
             getWindow().setStatusBarColor(ContextCompat.getColor(this, getResourceIdFromAttr(R.attr.colorPrimaryDark_attr)));
         }
 
+        long stageStart = System.nanoTime();
         setContentView(R.layout.activity_main);
+        trace.record(StartupTrace.STAGE_CONTENT_VIEW, stageStart);
 
-        DatabaseManager.initializeInstance(getApplicationContext());
+        /* Record when the first frame is drawn, which is after the first pre-draw pass */
+        final View decorView = getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                decorView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (trace.getStage(StartupTrace.STAGE_FIRST_FRAME) == null) {
+                            trace.mark(StartupTrace.STAGE_FIRST_FRAME);
+                            if (BuildConfig.DEBUG) {
+                                Log.i(StartupTrace.class.getSimpleName(), trace.toString());
+                            }
+                        }
+                    }
+                });
+                return true;
+            }
+        });
 
         mRefreshLayout = findViewById(R.id.fragment_container);
         mRefreshLayout.setColors(
@@ -515,6 +556,7 @@ public class FamiliarActivity extends AppCompatActivity {
                 ContextCompat.getColor(this, getResourceIdFromAttr(R.attr.color_rare)),
                 ContextCompat.getColor(this, getResourceIdFromAttr(R.attr.color_mythic)));
 
+        stageStart = System.nanoTime();
         /* Set default preferences manually so that the listener doesn't do weird things on init */
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
@@ -532,7 +574,9 @@ public class FamiliarActivity extends AppCompatActivity {
             RoundTimerFragment.setOrCancelAlarms(this, mRoundEndTime, true);
         }
         mUpdatingRoundTimer = false;
+        trace.record(StartupTrace.STAGE_PREFERENCES, stageStart);
 
+        stageStart = System.nanoTime();
         /* Get the drawer layout and list */
         mDrawerLayout = findViewById(R.id.drawer_layout);
         mDrawerList = findViewById(R.id.left_drawer);
@@ -716,7 +760,9 @@ public class FamiliarActivity extends AppCompatActivity {
         getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         getSupportActionBar().setHomeButtonEnabled(true);
         getSupportActionBar().setTitle("");
+        trace.record(StartupTrace.STAGE_DRAWER, stageStart);
 
+        stageStart = System.nanoTime();
         boolean isDeepLink = false;
 
         /* The activity can be launched a few different ways. Check the intent and show the
@@ -777,24 +823,62 @@ public class FamiliarActivity extends AppCompatActivity {
                 /* Eat it, don't show change log */
             }
         }
+        trace.record(StartupTrace.STAGE_INTENT, stageStart);
 
-        /* Run the updater service if there is a network connection */
-        if (getNetworkState(FamiliarActivity.this, false) != -1 && PreferenceAdapter.getAutoUpdate(this)) {
-            /* Only update the banning list if it hasn't been updated recently */
-            long curTime = System.currentTimeMillis();
-            int updateFrequency = Integer.parseInt(PreferenceAdapter.getUpdateFrequency(this));
-            int lastLegalityUpdate = PreferenceAdapter.getLastLegalityUpdate(this);
-            /* days to ms */
-            if (((curTime / 1000) - lastLegalityUpdate) > (updateFrequency * 24 * 60 * 60)) {
-                startService(new Intent(this, DbUpdaterService.class));
-            }
-        }
+        /* Background stages run one at a time, after the database stage. Only the image cache
+           belongs to this Activity, the rest only run once per process */
+        final Context appContext = getApplicationContext();
 
-        /* Set up the image cache */
+        /* Set up the image cache. The memory cache has to be made here, since it's kept in a
+           retained fragment, but the disk cache is opened in the background. A new Activity may
+           get a new cache, so this runs every time, but it does nothing if the cache is open */
         ImageCache.ImageCacheParams cacheParams = new ImageCache.ImageCacheParams(this, IMAGE_CACHE_DIR);
         cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
         cacheParams.diskCacheSize = 1024 * 1024 * PreferenceAdapter.getImageCacheSize(this);
-        addImageCache(getSupportFragmentManager(), cacheParams);
+        mImageCache = ImageCache.getInstance(getSupportFragmentManager(), cacheParams);
+        final ImageCache imageCache = mImageCache;
+        startup.submit(StartupTrace.STAGE_IMAGE_CACHE, new Runnable() {
+            @Override
+            public void run() {
+                imageCache.initDiskCache();
+            }
+        });
+
+        /* Load name suggestions into memory, building them if the database changed */
+        startup.submitOnce(StartupTrace.STAGE_NAME_INDEX, new Runnable() {
+            @Override
+            public void run() {
+                CardNameIndex.load(appContext);
+            }
+        });
+
+        /* Run the updater service if there is a network connection */
+        startup.submitOnce(StartupTrace.STAGE_UPDATE_CHECK, new Runnable() {
+            @Override
+            public void run() {
+                if (getNetworkState(appContext, false) != -1 && PreferenceAdapter.getAutoUpdate(appContext)) {
+                    /* Only update the banning list if it hasn't been updated recently */
+                    long curTime = System.currentTimeMillis();
+                    int updateFrequency = Integer.parseInt(PreferenceAdapter.getUpdateFrequency(appContext));
+                    int lastLegalityUpdate = PreferenceAdapter.getLastLegalityUpdate(appContext);
+                    /* days to ms */
+                    if (((curTime / 1000) - lastLegalityUpdate) > (updateFrequency * 24 * 60 * 60)) {
+                        appContext.startService(new Intent(appContext, DbUpdaterService.class));
+                    }
+                }
+            }
+        });
+
+        /* Resume any offline image packs which didn't finish downloading */
+        startup.submitOnce(StartupTrace.STAGE_IMAGE_PACKS, new Runnable() {
+            @Override
+            public void run() {
+                if (getNetworkState(appContext, false) != -1 &&
+                        !ImagePackStore.getInstance(appContext).getUnfinishedSetCodes().isEmpty()) {
+                    appContext.startService(new Intent(appContext, ImagePackService.class));
+                }
+            }
+        });
     }
 
     private boolean processIntent(Intent intent) {
@@ -806,6 +890,7 @@ public class FamiliarActivity extends AppCompatActivity {
             Bundle args = new Bundle();
             SearchCriteria sc = new SearchCriteria();
             sc.name = query;
+            sc.localizedNames = true;
             args.putSerializable(SearchViewFragment.CRITERIA, sc);
             selectItem(R.string.main_card_search, args, false, true); /* Don't clear backstack, do force the intent */
 
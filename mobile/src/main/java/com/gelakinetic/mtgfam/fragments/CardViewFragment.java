@@ -30,7 +30,6 @@ import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
@@ -71,18 +70,21 @@ import com.gelakinetic.mtgfam.FamiliarActivity;
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.fragments.dialogs.CardViewDialogFragment;
 import com.gelakinetic.mtgfam.fragments.dialogs.FamiliarDialogFragment;
+import com.gelakinetic.mtgfam.helpers.CardImageInfo;
+import com.gelakinetic.mtgfam.helpers.CardImagePrefetcher;
 import com.gelakinetic.mtgfam.helpers.ColorIndicatorView;
 import com.gelakinetic.mtgfam.helpers.ImageGetterHelper;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
-import com.gelakinetic.mtgfam.helpers.PriceFetchRequest;
 import com.gelakinetic.mtgfam.helpers.PriceInfo;
 import com.gelakinetic.mtgfam.helpers.SearchCriteria;
 import com.gelakinetic.mtgfam.helpers.ToastWrapper;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
 import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.lruCache.BitmapDecoder;
+import com.gelakinetic.mtgfam.helpers.lruCache.BitmapPool;
+import com.gelakinetic.mtgfam.helpers.lruCache.ImageCache;
 import com.gelakinetic.mtgfam.helpers.lruCache.RecyclingBitmapDrawable;
-import com.octo.android.robospice.persistence.DurationInMillis;
 import com.octo.android.robospice.persistence.exception.SpiceException;
 import com.octo.android.robospice.request.listener.RequestListener;
 
@@ -100,10 +102,8 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
-import java.util.Locale;
-
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 /**
  * This class handles displaying card info.
@@ -149,6 +149,7 @@ public class CardViewFragment extends FamiliarFragment {
     public PriceInfo mPriceInfo;
 
     /* Card info, used to build the URL to fetch the picture */
+    private long mCardId;
     private String mCardNumber;
     public String mSetCode;
     public String mCardName;
@@ -295,34 +296,32 @@ public class CardViewFragment extends FamiliarFragment {
     }
 
     /**
-     * Release all image resources and invoke the garbage collector.
+     * Release all image resources. Bitmaps go back to the BitmapPool, so the next card's image can
+     * be decoded into them instead of allocating new ones.
      */
-    @SuppressFBWarnings(value = "DM_GC", justification = "Memory Leak without this")
     private void releaseImageResources(boolean isSplit) {
 
         if (mCardImageView != null) {
 
             /* Release the drawable from the ImageView */
             Drawable drawable = mCardImageView.getDrawable();
-            if (drawable != null) {
-                drawable.setCallback(null);
-                Bitmap drawableBitmap = ((BitmapDrawable) drawable).getBitmap();
-                if (drawableBitmap != null) {
-                    drawableBitmap.recycle();
-                }
-            }
 
             /* Release the ImageView */
             mCardImageView.setImageDrawable(null);
             mCardImageView.setImageBitmap(null);
 
+            if (drawable != null) {
+                drawable.setCallback(null);
+                BitmapPool.getInstance().put(((BitmapDrawable) drawable).getBitmap());
+            }
+
             if (!isSplit) {
                 mCardImageView = null;
             }
         }
         if (mCardBitmap != null) {
             /* Release the drawable */
-            mCardBitmap.getBitmap().recycle();
+            BitmapPool.getInstance().put(mCardBitmap.getBitmap());
             mCardBitmap = null;
         }
 
@@ -343,9 +342,6 @@ public class CardViewFragment extends FamiliarFragment {
             mCardImageView = null;
             mColorIndicatorLayout = null;
         }
-
-        /* Invoke the garbage collector */
-        java.lang.System.gc();
     }
 
     /**
@@ -523,6 +519,7 @@ public class CardViewFragment extends FamiliarFragment {
                 }
             }
 
+            mCardId = id;
             mMultiverseId = cCardById.getInt(cCardById.getColumnIndex(CardDbAdapter.KEY_MULTIVERSEID));
 
             /* Do we load the image immediately to the main page, or do it in a dialog later? */
@@ -790,10 +787,8 @@ public class CardViewFragment extends FamiliarFragment {
             case R.id.price: {
                 mActivity.setLoading();
 
-                PriceFetchRequest priceRequest;
-                priceRequest = new PriceFetchRequest(mCardName, mSetCode, mCardNumber, mMultiverseId, getActivity());
-                mActivity.mSpiceManager.execute(priceRequest,
-                        mCardName + "-" + mSetCode, DurationInMillis.ONE_DAY, new RequestListener<PriceInfo>() {
+                mActivity.mPriceFetchBatcher.fetchPrice(mCardName, mSetCode, mCardNumber,
+                        new RequestListener<PriceInfo>() {
 
                             @Override
                             public void onRequestFailure(SpiceException spiceException) {
@@ -1031,11 +1026,15 @@ public class CardViewFragment extends FamiliarFragment {
                 mFormats = new String[cFormats.getCount()];
                 mLegalities = new String[cFormats.getCount()];
 
+                /* Look up this card's legality in every format at once */
+                HashMap<String, Integer> legalities = CardDbAdapter.getLegalities(
+                        Collections.singletonList(mCardName), database).get(mCardName);
+
                 cFormats.moveToFirst();
                 for (int i = 0; i < cFormats.getCount(); i++) {
                     mFormats[i] =
                             cFormats.getString(cFormats.getColumnIndex(CardDbAdapter.KEY_NAME));
-                    switch (CardDbAdapter.checkLegality(mCardName, mFormats[i], database)) {
+                    switch (legalities.get(mFormats[i])) {
                         case CardDbAdapter.LEGAL:
                             mLegalities[i] = getString(R.string.card_view_legal);
                             break;
@@ -1117,21 +1116,15 @@ public class CardViewFragment extends FamiliarFragment {
         };
 
         /**
-         * If the preferred langauge is English, get the card image from Scryfall.
-         * If that fails, check www.MagicCards.info for the card image in the user's preferred
-         * language.
-         * If that fails, try Scryfall again in English.
-         * If that fails, check www.MagicCards.info for the card image in English.
-         * If that fails, check www.gatherer.wizards.com for the card image.
-         * If that fails, give up.
-         * There is a non-standard URL building for planes and schemes for www.MagicCards.info.
-         * It also re-sizes the image.
+         * Get the card image from a prefetched bitmap, an offline image pack, the disk cache, or
+         * the internet, in that order. ImageCache.getBitmapFromDiskCache() checks the packs before
+         * the disk cache. CardImageInfo.getImageUrls() has the places on the internet which are
+         * tried. The image is decoded straight to the size it's shown at.
          *
          * @param params unused
          * @return unused
          */
         @SuppressWarnings("SpellCheckingInspection")
-        @SuppressFBWarnings(value = "DM_GC", justification = "Memory leak without the GC")
         @Override
         protected Void doInBackground(Integer... params) {
 
@@ -1148,96 +1141,11 @@ public class CardViewFragment extends FamiliarFragment {
 
             mImageKey = Integer.toString(mMultiverseId) + cardLanguage;
 
-            /* Check disk cache in background thread */
-            Bitmap bitmap;
-            try {
-                bitmap = getFamiliarActivity().mImageCache.getBitmapFromDiskCache(mImageKey);
-            } catch (NullPointerException e) {
-                bitmap = null;
-            }
-
-            if (bitmap == null) { /* Not found in disk cache */
-
-                /* Some trickery to figure out if we have a token */
-                boolean isToken = false;
-                if (mCardType.contains("Token") || /* try to take the easy way out */
-                        (mCardCMC == 0 && /* Tokens have a CMC of 0 */
-                    /* The only tokens in Gatherer are from Duel Decks */
-                                mSetName.contains("Duel Decks") &&
-                     /* The only tokens in Gatherer are creatures */
-                                mCardType.contains("Creature"))) {
-                    isToken = true;
-                }
-
-                boolean bRetry = true;
-
-                boolean triedMtgi = false;
-                boolean triedGatherer = false;
-                boolean triedScryfall = false;
-
-                while (bRetry) {
-
-                    bRetry = false;
-                    mError = null;
-
-                    try {
-                        URL u;
-                        if (!cardLanguage.equalsIgnoreCase("en") && !isToken) {
-                            /* Non-English have to come from magiccards.info. Try there first */
-                            u = new URL(getMtgiPicUrl(mCardName, mMagicCardsInfoSetCode, mCardNumber, cardLanguage));
-                            /* If this fails, try next time with the English version */
-                            cardLanguage = "en";
-                        } else if (!triedScryfall && !isToken) {
-                            /* Try downloading the image from Scryfall next */
-                            u = new URL(getScryfallImageUri(mMultiverseId));
-                            /* If this fails, try next time with the Magiccards.info version */
-                            triedScryfall = true;
-                        } else if (!triedMtgi && !isToken) {
-                            /* Try downloading the image from magiccards.info next */
-                            u = new URL(getMtgiPicUrl(mCardName, mMagicCardsInfoSetCode, mCardNumber, cardLanguage));
-                            /* If this fails, try next time with the gatherer version */
-                            triedMtgi = true;
-                        } else {
-                            /* Try downloading the image from gatherer */
-                            u = new URL("http://gatherer.wizards.com/Handlers/Image.ashx?multiverseid=" + mMultiverseId + "&type=card");
-                            /* If this fails, give up */
-                            triedGatherer = true;
-                        }
-
-                        /* Download the bitmap */
-                        bitmap = BitmapFactory.decodeStream(FamiliarActivity.getHttpInputStream(u, null, getContext()));
-                    } catch (Exception e) {
-                        /* Something went wrong */
-                        try {
-                            mError = getString(R.string.card_view_image_not_found);
-                        } catch (RuntimeException re) {
-                            /* in case the fragment isn't attached to an activity */
-                            mError = e.toString();
-                        }
-
-                        /* Gatherer is always tried last. If that fails, give up */
-                        if (!triedGatherer) {
-                            bRetry = true;
-                        }
-                    }
-                }
-            }
-
-            /* Image download failed, just return null */
-            if (bitmap == null) {
-                return null;
-            }
-
-            // Then try caching the image
-            try {
-                getFamiliarActivity().mImageCache.addBitmapToCache(mImageKey, new BitmapDrawable(mActivity.getResources(), bitmap));
-            } catch (Exception e) {
-                // Cache failed
-            }
-
+            /* Figure out how large the image will be displayed before decoding it, so that it can
+             * be decoded straight to that size */
             try {
                 // Don't attempt scaling if there's no host fragment
-                if(null == getHost()) {
+                if (null == getHost()) {
                     return null;
                 }
                 /* 16dp */
@@ -1258,100 +1166,84 @@ public class CardViewFragment extends FamiliarFragment {
                     mWidth = p.x - mBorder;
                 } else if (mLoadTo == SHARE) {
                     /* Don't scale shared images */
-                    mWidth = bitmap.getWidth();
-                    mHeight = bitmap.getHeight();
+                    mWidth = Integer.MAX_VALUE;
+                    mHeight = Integer.MAX_VALUE;
                 }
+            } catch (InterruptedException e) {
+                /* Couldn't get the size */
+                return null;
+            }
 
-                float screenAspectRatio = (float) mHeight / (float) (mWidth);
-                float cardAspectRatio = (float) bitmap.getHeight() / (float) bitmap.getWidth();
+            CardImagePrefetcher prefetcher = CardImagePrefetcher.getInstance();
+            if (mLoadTo == MAIN_PAGE) {
+                prefetcher.setTargetSize(mWidth, mHeight);
+            }
 
-                float scale;
-                if (screenAspectRatio > cardAspectRatio) {
-                    scale = (mWidth) / (float) bitmap.getWidth();
-                } else {
-                    scale = (mHeight) / (float) bitmap.getHeight();
+            /* Don't let prefetches compete with the image being looked at */
+            prefetcher.beginForegroundLoad();
+            try {
+                ImageCache imageCache;
+                try {
+                    imageCache = getFamiliarActivity().mImageCache;
+                } catch (NullPointerException e) {
+                    imageCache = null;
                 }
 
-                int newWidth = Math.round(bitmap.getWidth() * scale);
-                int newHeight = Math.round(bitmap.getHeight() * scale);
-
-                Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true);
-                mCardBitmap = new RecyclingBitmapDrawable(mActivity.getResources(), scaledBitmap);
-            } catch (InterruptedException e) {
-                /* Some error resizing. Out of memory? */
-            }
-
-            /* Recycle the non-scaled bitmap to avoid memory leaks */
-            bitmap.recycle();
-            java.lang.System.gc();
-            return null;
-        }
+                /* If this image is being prefetched, it'll be in the cache soon */
+                prefetcher.awaitPrefetch(mImageKey);
+
+                /* Check memory cache, image packs and disk cache in background thread */
+                Bitmap bitmap = null;
+                int source = CardImagePrefetcher.SOURCE_NETWORK;
+                if (imageCache != null) {
+                    BitmapDrawable prefetched = imageCache.takeBitmapFromMemCache(
+                            CardImagePrefetcher.getMemoryKey(mImageKey, mWidth, mHeight));
+                    if (prefetched != null) {
+                        bitmap = prefetched.getBitmap();
+                        source = CardImagePrefetcher.SOURCE_MEMORY;
+                    } else {
+                        bitmap = imageCache.getBitmapFromDiskCache(mImageKey, mWidth, mHeight);
+                        if (bitmap != null) {
+                            source = CardImagePrefetcher.SOURCE_DISK;
+                        }
+                    }
+                }
 
-        /**
-         * Jumps through hoops and returns a correctly formatted URL for magiccards.info's image.
-         *
-         * @param cardName              The name of the card
-         * @param magicCardsInfoSetCode The set of the card
-         * @param cardNumber            The number of the card
-         * @param cardLanguage          The language of the card
-         * @return a URL to the card's image
-         */
-        private String getMtgiPicUrl(
-                String cardName,
-                String magicCardsInfoSetCode,
-                String cardNumber,
-                String cardLanguage) {
-
-            final String mtgiExtras = "http://magiccards.info/extras/";
-            String picURL;
-            if (mCardType.toLowerCase().contains(getString(R.string.search_Ongoing).toLowerCase()) ||
-                    /* extra space to not confuse with planeswalker */
-                    mCardType.toLowerCase().contains(getString(R.string.search_Plane).toLowerCase() + " ") ||
-                    mCardType.toLowerCase().contains(getString(R.string.search_Phenomenon).toLowerCase()) ||
-                    mCardType.toLowerCase().contains(getString(R.string.search_Scheme).toLowerCase())) {
-                switch (mSetCode) {
-                    case "PC2":
-                        picURL = mtgiExtras + "plane/planechase-2012-edition/" + cardName + ".jpg";
-                        picURL = picURL.replace(" ", "-")
-                                .replace("?", "").replace(",", "").replace("'", "").replace("!", "");
-                        break;
-                    case "PCH":
-                        if (cardName.equalsIgnoreCase("tazeem")) {
-                            cardName = "tazeem-release-promo";
-                        } else if (cardName.equalsIgnoreCase("celestine reef")) {
-                            cardName = "celestine-reef-pre-release-promo";
-                        } else if (cardName.equalsIgnoreCase("horizon boughs")) {
-                            cardName = "horizon-boughs-gateway-promo";
+                if (bitmap == null) { /* Not found in either cache */
+                    mError = null;
+                    try {
+                        /* Download the image, and decode it straight to the size it's shown at */
+                        CardImageInfo info = new CardImageInfo(mMultiverseId, mCardName, mSetCode,
+                                mMagicCardsInfoSetCode, mCardNumber, mCardType, mCardCMC, mSetName);
+                        byte[] imageBytes = info.downloadImage(mActivity, cardLanguage);
+                        bitmap = BitmapDecoder.getInstance().decodeToFit(imageBytes, mWidth, mHeight);
+
+                        /* Cache the image as it was downloaded, rather than the scaled bitmap */
+                        if (bitmap != null && imageCache != null) {
+                            imageCache.addImageBytesToDiskCache(mImageKey, imageBytes);
                         }
-                        picURL = mtgiExtras + "plane/planechase/" + cardName + ".jpg";
-                        picURL = picURL.replace(" ", "-")
-                                .replace("?", "").replace(",", "").replace("'", "").replace("!", "");
-                        break;
-                    case "ARC":
-                        picURL = mtgiExtras + "scheme/archenemy/" + cardName + ".jpg";
-                        picURL = picURL.replace(" ", "-")
-                                .replace("?", "").replace(",", "").replace("'", "").replace("!", "");
-                        break;
-                    default:
-                        picURL = "http://magiccards.info/scans/" + cardLanguage + "/" + magicCardsInfoSetCode + "/" +
-                                cardNumber + ".jpg";
-                        break;
+                    } catch (Exception e) {
+                        /* Something went wrong */
+                        try {
+                            mError = getString(R.string.card_view_image_not_found);
+                        } catch (RuntimeException re) {
+                            /* in case the fragment isn't attached to an activity */
+                            mError = e.toString();
+                        }
+                    }
                 }
-            } else {
-                picURL = "http://magiccards.info/scans/" + cardLanguage + "/" + magicCardsInfoSetCode + "/" +
-                        cardNumber + ".jpg";
-            }
-            return picURL.toLowerCase(Locale.ENGLISH);
-        }
 
-        /**
-         * Easily gets the uri for the image for a card by multiverseid.
-         *
-         * @param multiverseId the multiverse id of the card
-         * @return uri of the card image
-         */
-        private String getScryfallImageUri(int multiverseId) {
-            return "https://api.scryfall.com/cards/multiverse/" + multiverseId + "?format=image&version=normal";
+                /* Image download failed, just return null */
+                if (bitmap == null) {
+                    return null;
+                }
+
+                prefetcher.recordLookup(mImageKey, source);
+                mCardBitmap = new RecyclingBitmapDrawable(mActivity.getResources(), bitmap);
+                return null;
+            } finally {
+                prefetcher.endForegroundLoad();
+            }
         }
 
         /**
@@ -1374,6 +1266,7 @@ public class CardViewFragment extends FamiliarFragment {
                     removeDialog(getFragmentManager());
                     if (mCardImageView != null) {
                         mCardImageView.setImageDrawable(mCardBitmap);
+                        CardImagePrefetcher.getInstance().onImageShown(mCardId);
                     }
                     /* remove the image load button if it is the main page */
                     mActivity.invalidateOptionsMenu();
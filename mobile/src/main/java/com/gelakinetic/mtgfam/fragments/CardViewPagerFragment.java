@@ -31,6 +31,10 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import com.gelakinetic.mtgfam.R;
+import com.gelakinetic.mtgfam.helpers.CardImagePrefetcher;
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+
+import java.util.Arrays;
 
 /**
  * This class will nest the CardViewFragments found by a search in a ViewPager
@@ -100,17 +104,62 @@ public class CardViewPagerFragment extends FamiliarFragment {
         }
 
         Bundle args = getArguments();
-        long cardIds[] = args.getLongArray(CARD_ID_ARRAY);
-        int currentPosition = args.getInt(STARTING_CARD_POSITION);
+        final long cardIds[] = args.getLongArray(CARD_ID_ARRAY);
+        final int currentPosition = args.getInt(STARTING_CARD_POSITION);
 
         CardViewPagerAdapter pagerAdapter = new CardViewPagerAdapter(getChildFragmentManager(), cardIds);
         mViewPager.setAdapter(pagerAdapter);
         mViewPager.setCurrentItem(currentPosition);
         mViewPager.setPageTransformer(true, new DepthPageTransformer());
 
+        /* If images are shown first, fetch them ahead of the user's swiping */
+        if (cardIds != null && PreferenceAdapter.getPicFirst(getContext())) {
+            mViewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+                int mLastPosition = currentPosition;
+
+                @Override
+                public void onPageSelected(int position) {
+                    prefetchImages(cardIds, position, position >= mLastPosition ? 1 : -1);
+                    mLastPosition = position;
+                }
+            });
+            prefetchImages(cardIds, currentPosition, 1);
+        }
+
         return v;
     }
 
+    /**
+     * When the view is destroyed, stop prefetching images for it
+     */
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        CardImagePrefetcher.getInstance().cancel();
+    }
+
+    /**
+     * Prefetch the images for the next few cards in the direction the user is swiping. The pages
+     * right next to this one are already loaded by the ViewPager, so start just past them
+     *
+     * @param cardIds   The IDs of all the cards in the pager
+     * @param position  The position of the page being looked at
+     * @param direction 1 if the user is swiping forward, -1 if backward
+     */
+    private void prefetchImages(long[] cardIds, int position, int direction) {
+        CardImagePrefetcher prefetcher = CardImagePrefetcher.getInstance();
+        prefetcher.onPageSelected(cardIds[position]);
+
+        int first = position + direction * (mViewPager.getOffscreenPageLimit() + 1);
+        long window[] = new long[CardImagePrefetcher.PAGER_PREFETCH_COUNT];
+        int count = 0;
+        for (int i = first; i >= 0 && i < cardIds.length && count < window.length; i += direction) {
+            window[count++] = cardIds[i];
+        }
+        prefetcher.prefetch(getFamiliarActivity(), Arrays.copyOf(window, count),
+                CardImagePrefetcher.PAGER_DECODE_COUNT);
+    }
+
     /**
      * Callback for when a permission is requested
      *
@@ -136,8 +136,8 @@ public abstract class FamiliarFragment extends Fragment {
         super.onPause();
         removeDialog(getFragmentManager());
         try {
-            if (getFamiliarActivity().mSpiceManager.getPendingRequestCount() > 0) {
-                getFamiliarActivity().mSpiceManager.cancelAllRequests();
+            if (getFamiliarActivity().mPriceFetchBatcher.getPendingRequestCount() > 0) {
+                getFamiliarActivity().mPriceFetchBatcher.cancelAll();
             }
         } catch (RejectedExecutionException e) {
             /* eat it */
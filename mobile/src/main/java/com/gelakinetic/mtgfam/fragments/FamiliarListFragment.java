@@ -46,11 +46,9 @@ import com.gelakinetic.mtgfam.helpers.CardDataTouchHelper;
 import com.gelakinetic.mtgfam.helpers.DecklistHelpers;
 import com.gelakinetic.mtgfam.helpers.MtgCard;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
-import com.gelakinetic.mtgfam.helpers.PriceFetchRequest;
 import com.gelakinetic.mtgfam.helpers.PriceInfo;
 import com.gelakinetic.mtgfam.helpers.WishlistHelpers;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
-import com.octo.android.robospice.persistence.DurationInMillis;
 import com.octo.android.robospice.persistence.exception.SpiceException;
 import com.octo.android.robospice.request.listener.RequestListener;
 
@@ -103,12 +101,13 @@ public abstract class FamiliarListFragment extends FamiliarFragment {
 
         // Set up the name field
         mNameField = fragmentView.findViewById(R.id.name_search);
-        /* Set up the autocomplete adapter, and default number */
+        /* Set up the autocomplete adapter, and default number. Cards are added to lists by their
+         * English names, so printed names aren't suggested */
         mNameField.setAdapter(
                 new AutocompleteCursorAdapter(this,
                         new String[]{CardDbAdapter.KEY_NAME},
                         new int[]{R.id.text1}, mNameField,
-                        false)
+                        false, false)
         );
         if (null != addCardListener) {
             mNameField.setOnEditorActionListener(addCardListener);
@@ -500,11 +499,10 @@ public abstract class FamiliarListFragment extends FamiliarFragment {
                 }
             }
         } else {
-            PriceFetchRequest priceRequest = new PriceFetchRequest(data.mName, data.setCode, data.mNumber, -1, getActivity());
             mPriceFetchRequests++;
             getFamiliarActivity().setLoading();
-            getFamiliarActivity().mSpiceManager.execute(priceRequest, data.mName + "-" +
-                    data.setCode, DurationInMillis.ONE_DAY, new RequestListener<PriceInfo>() {
+            getFamiliarActivity().mPriceFetchBatcher.fetchPrice(data.mName, data.setCode, data.mNumber,
+                    new RequestListener<PriceInfo>() {
 
                 /**
                  * Loading the price for this card failed and threw a spiceException
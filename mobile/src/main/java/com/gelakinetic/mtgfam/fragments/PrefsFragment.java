@@ -21,16 +21,26 @@ package com.gelakinetic.mtgfam.fragments;
 
 import android.content.Context;
 import android.content.res.Configuration;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.MultiSelectListPreference;
 
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 import com.github.machinarius.preferencefragment.PreferenceFragment;
 
 import java.util.Locale;
 
 public class PrefsFragment extends PreferenceFragment {
 
+    /* Loads the sets for the image pack picker off the UI thread */
+    private LoadSetsTask mLoadSetsTask;
+
     public static void checkOverrideSystemLanguage(Context context) {
 
         // Check if the system's language setting needs to be overridden
@@ -56,5 +66,85 @@ public class PrefsFragment extends PreferenceFragment {
 
         /* Load the preferences from an XML resource */
         addPreferencesFromResource(R.xml.preferences);
+
+        /* The sets to download image packs for come from the database. It can't be picked from
+         * until they're loaded */
+        MultiSelectListPreference imagePackSets = (MultiSelectListPreference)
+                findPreference(getString(R.string.key_imagePackSets));
+        if (imagePackSets != null) {
+            imagePackSets.setEnabled(false);
+            mLoadSetsTask = new LoadSetsTask(getActivity().getApplicationContext());
+            mLoadSetsTask.execute();
+        }
+    }
+
+    /**
+     * Stop loading sets if the fragment goes away first
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mLoadSetsTask != null) {
+            mLoadSetsTask.cancel(false);
+        }
+    }
+
+    /**
+     * Loads the name and code of every set in the background, then fills in the image pack picker
+     */
+    private class LoadSetsTask extends AsyncTask<Void, Void, String[][]> {
+
+        private final Context mContext;
+
+        /**
+         * @param context The application context, which outlives the fragment
+         */
+        LoadSetsTask(Context context) {
+            mContext = context;
+        }
+
+        /**
+         * @param params unused
+         * @return The set names and set codes, in the same order
+         */
+        @Override
+        protected String[][] doInBackground(Void... params) {
+            String[] setNames = new String[0];
+            String[] setCodes = new String[0];
+            try {
+                SQLiteDatabase database = DatabaseManager.getInstance(mContext, false).openDatabase(false);
+                Cursor setCursor = CardDbAdapter.fetchAllSets(database);
+                setCursor.moveToFirst();
+                setNames = new String[setCursor.getCount()];
+                setCodes = new String[setCursor.getCount()];
+                for (int i = 0; i < setCursor.getCount(); i++) {
+                    setCodes[i] = setCursor.getString(setCursor.getColumnIndex(CardDbAdapter.KEY_CODE));
+                    setNames[i] = setCursor.getString(setCursor.getColumnIndex(CardDbAdapter.KEY_NAME));
+                    setCursor.moveToNext();
+                }
+                setCursor.close();
+            } catch (FamiliarDbException e) {
+                /* No sets to choose from, then */
+            }
+            DatabaseManager.getInstance(mContext, false).closeDatabase(false);
+            return new String[][]{setNames, setCodes};
+        }
+
+        /**
+         * @param sets The set names and set codes to pick from
+         */
+        @Override
+        protected void onPostExecute(String[][] sets) {
+            if (!isAdded()) {
+                return;
+            }
+            MultiSelectListPreference imagePackSets = (MultiSelectListPreference)
+                    findPreference(getString(R.string.key_imagePackSets));
+            if (imagePackSets != null) {
+                imagePackSets.setEntries(sets[0]);
+                imagePackSets.setEntryValues(sets[1]);
+                imagePackSets.setEnabled(true);
+            }
+        }
     }
-}
\ No newline at end of file
+}
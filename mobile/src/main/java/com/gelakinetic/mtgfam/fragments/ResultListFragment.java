@@ -19,8 +19,10 @@
 
 package com.gelakinetic.mtgfam.fragments;
 
+import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -40,6 +42,7 @@ import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.fragments.dialogs.FamiliarDialogFragment;
 import com.gelakinetic.mtgfam.fragments.dialogs.ResultListDialogFragment;
 import com.gelakinetic.mtgfam.fragments.dialogs.SortOrderDialogFragment;
+import com.gelakinetic.mtgfam.helpers.CardImagePrefetcher;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 import com.gelakinetic.mtgfam.helpers.ResultListAdapter;
 import com.gelakinetic.mtgfam.helpers.SearchCriteria;
@@ -47,6 +50,7 @@ import com.gelakinetic.mtgfam.helpers.ToastWrapper;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
 import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.database.SearchPager;
 
 import java.util.ArrayList;
 import java.util.Random;
@@ -69,6 +73,13 @@ public class ResultListFragment extends FamiliarFragment {
     private int mCursorPositionOffset;
     /* The cursor with the data and the list view to display it */
     private Cursor mCursor;
+    /* Pages through the results of a search, null when the list is of specific cards */
+    private SearchPager mSearchPager;
+    /* Loads more pages in the background, null when no pages are being loaded */
+    private LoadPagesTask mLoadPagesTask;
+    /* Fetches every ID of the search in the background, null when none are being fetched */
+    private FetchIdsTask mFetchIdsTask;
+    private ResultListAdapter mAdapter;
     private ListView mListView;
     private SQLiteDatabase mDatabase;
 
@@ -133,8 +144,45 @@ public class ResultListFragment extends FamiliarFragment {
     @Override
     public void onResume() {
         super.onResume();
+
         fillData();
-        mListView.setSelectionFromTop(mCursorPosition, mCursorPositionOffset);
+        if (mSearchPager != null && mLoadPagesTask == null && mSearchPager.hasMore() &&
+                mSearchPager.getLoadedCount() <= mCursorPosition) {
+            /* Load the rows the list was scrolled to, then restore the position */
+            loadPages(mCursorPosition, true);
+        } else {
+            mListView.setSelectionFromTop(mCursorPosition, mCursorPositionOffset);
+        }
+
+        /* Once the list is laid out, prefetch the images of the cards which can be seen */
+        mListView.post(new Runnable() {
+            @Override
+            public void run() {
+                prefetchVisibleImages();
+            }
+        });
+    }
+
+    /**
+     * If images are shown first, prefetch the images for the first few cards which can be seen, so
+     * they're ready if one is tapped
+     */
+    private void prefetchVisibleImages() {
+        if (mListView == null || mCursor == null || !isAdded() ||
+                !PreferenceAdapter.getPicFirst(getContext())) {
+            return;
+        }
+        int first = mListView.getFirstVisiblePosition();
+        int last = Math.min(mListView.getLastVisiblePosition(),
+                first + CardImagePrefetcher.LIST_PREFETCH_COUNT - 1);
+        if (last < first) {
+            return;
+        }
+        long cardIds[] = new long[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            cardIds[i - first] = mListView.getItemIdAtPosition(i);
+        }
+        CardImagePrefetcher.getInstance().prefetch(getFamiliarActivity(), cardIds, 0);
     }
 
     /**
@@ -170,12 +218,16 @@ public class ResultListFragment extends FamiliarFragment {
             return myFragmentView;
         }
 
-        /* Sub-optimal, but KitKat is silly */
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            mListView.setOnScrollListener(new ListView.OnScrollListener() {
+        mListView.setOnScrollListener(new ListView.OnScrollListener() {
 
-                @Override
-                public void onScrollStateChanged(AbsListView absListView, int scrollState) {
+            @Override
+            public void onScrollStateChanged(AbsListView absListView, int scrollState) {
+                if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+                    prefetchVisibleImages();
+                }
+
+                /* Sub-optimal, but KitKat is silly */
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                     switch (scrollState) {
                         case AbsListView.OnScrollListener.SCROLL_STATE_IDLE:
                             absListView.setFastScrollAlwaysVisible(false);
@@ -187,13 +239,18 @@ public class ResultListFragment extends FamiliarFragment {
                             break;
                     }
                 }
+            }
 
-                @Override
-                public void onScroll(AbsListView absListView, int i, int i2, int i3) {
-
+            @Override
+            public void onScroll(AbsListView absListView, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                /* Load the next page of results before it's scrolled to */
+                if (mSearchPager != null && mAdapter != null && mLoadPagesTask == null &&
+                        mSearchPager.shouldLoadMore(firstVisibleItem + visibleItemCount)) {
+                    loadPages(firstVisibleItem + visibleItemCount, false);
                 }
-            });
-        }
+            }
+        });
 
         Bundle res = getFamiliarActivity().getFragmentResults();
         if (res != null) {
@@ -224,8 +281,8 @@ public class ResultListFragment extends FamiliarFragment {
                 }
             } else {
                 if (savedInstanceState == null) {
-                    ToastWrapper.makeAndShowText(this.getActivity(), String.format(getResources().getQuantityString(R.plurals.search_toast_results, mCursor.getCount()),
-                            mCursor.getCount()), ToastWrapper.LENGTH_LONG);
+                    showResultCountToast(mCursor.getCount(),
+                            mSearchPager != null && mSearchPager.hasMore());
                 }
             }
         }
@@ -256,7 +313,235 @@ public class ResultListFragment extends FamiliarFragment {
         return myFragmentView;
     }
 
+    /**
+     * Show the number of results in a toast. A search with more pages isn't counted, since counting
+     * it means running the whole search, so the toast only says how many results were loaded.
+     *
+     * @param count   The number of results, shown in a toast
+     * @param hasMore true if there may be more results than count
+     */
+    private void showResultCountToast(int count, boolean hasMore) {
+        int plural = hasMore ? R.plurals.search_toast_results_at_least : R.plurals.search_toast_results;
+        ToastWrapper.makeAndShowText(this.getActivity(), String.format(getResources().getQuantityString(plural, count),
+                count), ToastWrapper.LENGTH_LONG);
+    }
+
+    /**
+     * Start loading pages of mSearchPager in the background. Only one task loads pages at a time,
+     * since the pager isn't thread safe.
+     *
+     * @param position        Pages are loaded until this position is loaded, or the search is done
+     * @param restorePosition true to restore the list position once the pages are loaded
+     */
+    private void loadPages(int position, boolean restorePosition) {
+        mLoadPagesTask = new LoadPagesTask(getActivity().getApplicationContext(), mSearchPager,
+                position, restorePosition);
+        mLoadPagesTask.execute();
+    }
+
+    /**
+     * Stop loading pages, if they're being loaded
+     *
+     * @return true if pages were being loaded. The task then closes the search's pages once it
+     * stops, rather than them being closed while they're being used
+     */
+    private boolean cancelLoadPages() {
+        if (mLoadPagesTask != null) {
+            mLoadPagesTask.cancel(false);
+            mLoadPagesTask = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stop fetching IDs, if they're being fetched, so the cards aren't shown after the fragment
+     * has moved on
+     */
+    private void cancelFetchIds() {
+        if (mFetchIdsTask != null) {
+            mFetchIdsTask.cancel(false);
+            mFetchIdsTask = null;
+        }
+    }
+
+    /**
+     * Queries pages of a search off the UI thread, then adds them to the search and swaps the
+     * cursor with every loaded page into the adapter. The merged cursor is only built on the UI
+     * thread, since building and moving it moves the pages the adapter's cursor reads from. The
+     * task holds its own reference to the database, so it stays open even if this fragment's view
+     * is destroyed first.
+     */
+    private class LoadPagesTask extends AsyncTask<Void, Void, ArrayList<Cursor>> {
+
+        private final Context mContext;
+        private final SearchPager mPager;
+        private final int mPosition;
+        private final boolean mRestorePosition;
+        private final int mLoadedCount;
+        private boolean mFailed = false;
+
+        /**
+         * @param context         The application context, which outlives the fragment
+         * @param pager           The search to load pages of
+         * @param position        Pages are loaded until this position is loaded
+         * @param restorePosition true to restore the list position once the pages are loaded
+         */
+        LoadPagesTask(Context context, SearchPager pager, int position, boolean restorePosition) {
+            mContext = context;
+            mPager = pager;
+            mPosition = position;
+            mRestorePosition = restorePosition;
+            mLoadedCount = pager.getLoadedCount();
+        }
+
+        /**
+         * @param params unused
+         * @return The queried pages, in order, or null if they couldn't be queried
+         */
+        @Override
+        protected ArrayList<Cursor> doInBackground(Void... params) {
+            ArrayList<Cursor> pages = new ArrayList<>();
+            int loadedCount = mLoadedCount;
+            try {
+                DatabaseManager.getInstance(mContext, false).openDatabase(false);
+                Cursor page;
+                do {
+                    page = mPager.queryNextPage();
+                    if (page != null) {
+                        pages.add(page);
+                        loadedCount += page.getCount();
+                    }
+                } while (page != null && !isCancelled() && loadedCount <= mPosition);
+                return pages;
+            } catch (FamiliarDbException e) {
+                mFailed = true;
+                for (Cursor queried : pages) {
+                    queried.close();
+                }
+                return null;
+            } finally {
+                DatabaseManager.getInstance(mContext, false).closeDatabase(false);
+            }
+        }
+
+        /**
+         * Add the queried pages and show them. The new cursor includes the old one's pages, so
+         * don't close it
+         *
+         * @param pages The queried pages
+         */
+        @Override
+        protected void onPostExecute(ArrayList<Cursor> pages) {
+            if (mLoadPagesTask == this) {
+                mLoadPagesTask = null;
+            }
+            if (!isAdded() || mPager != mSearchPager) {
+                closePages(pages);
+                return;
+            }
+            if (mFailed) {
+                handleFamiliarDbException(true);
+                return;
+            }
+            for (Cursor page : pages) {
+                mPager.addPage(page);
+            }
+            if (mPager.getCursor() != null && mPager.getCursor() != mCursor) {
+                mCursor = mPager.getCursor();
+                if (mAdapter != null) {
+                    mAdapter.swapCursor(mCursor);
+                }
+            }
+            if (mRestorePosition) {
+                mListView.setSelectionFromTop(mCursorPosition, mCursorPositionOffset);
+            }
+        }
+
+        /**
+         * The fragment has moved on, so close every page of the search
+         *
+         * @param pages The pages queried before the task stopped, if any
+         */
+        @Override
+        protected void onCancelled(ArrayList<Cursor> pages) {
+            closePages(pages);
+            mPager.close();
+        }
+
+        /**
+         * @param pages Pages which were queried but won't be added, may be null
+         */
+        private void closePages(ArrayList<Cursor> pages) {
+            if (pages != null) {
+                for (Cursor page : pages) {
+                    page.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the ID of every result of a search off the UI thread, then shows the cards. Every
+     * ID is needed so the card pager can page past the loaded rows, and getting them means
+     * running the whole search.
+     */
+    private class FetchIdsTask extends AsyncTask<Void, Void, long[]> {
+
+        private final Context mContext;
+        private final SearchPager mPager;
+        private final long mId;
+
+        /**
+         * @param context The application context, which outlives the fragment
+         * @param pager   The search to get the IDs of
+         * @param id      The id of the card to display, or -1 for a random card
+         */
+        FetchIdsTask(Context context, SearchPager pager, long id) {
+            mContext = context;
+            mPager = pager;
+            mId = id;
+        }
+
+        /**
+         * @param params unused
+         * @return The ID of every result, or null if they couldn't be fetched
+         */
+        @Override
+        protected long[] doInBackground(Void... params) {
+            try {
+                DatabaseManager.getInstance(mContext, false).openDatabase(false);
+                return mPager.fetchAllIds();
+            } catch (FamiliarDbException e) {
+                return null;
+            } finally {
+                DatabaseManager.getInstance(mContext, false).closeDatabase(false);
+            }
+        }
+
+        /**
+         * Show the cards, unless the fragment has moved on
+         *
+         * @param cardIds The ID of every result
+         */
+        @Override
+        protected void onPostExecute(long[] cardIds) {
+            if (mFetchIdsTask == this) {
+                mFetchIdsTask = null;
+            }
+            if (!isAdded() || mPager != mSearchPager) {
+                return;
+            }
+            if (cardIds == null) {
+                handleFamiliarDbException(true);
+                return;
+            }
+            showCards(cardIds, mId);
+        }
+    }
+
     private void doSearch(Bundle args, SQLiteDatabase database) throws FamiliarDbException {
+        mSearchPager = null;
         long id;
         /* This is just the multiverse ID, from a TutorCards search */
         if ((id = args.getLong(CARD_ID)) != 0L) {
@@ -301,8 +586,16 @@ public class ResultListFragment extends FamiliarFragment {
             boolean consolidate = (criteria.setLogic == CardDbAdapter.MOST_RECENT_PRINTING ||
                     criteria.setLogic == CardDbAdapter.FIRST_PRINTING);
 
-            mCursor = CardDbAdapter.Search(criteria, true, returnTypes, consolidate,
+            /* Only load the first page, so the first results show up quickly even if there are
+             * thousands of them. More are loaded as the list is scrolled */
+            mSearchPager = SearchPager.search(criteria, returnTypes, consolidate,
                     PreferenceAdapter.getSearchSortOrder(getContext()), database);
+            if (mSearchPager != null) {
+                mSearchPager.loadNextPage();
+                mCursor = mSearchPager.getCursor();
+            } else {
+                mCursor = null;
+            }
         }
     }
 
@@ -312,7 +605,8 @@ public class ResultListFragment extends FamiliarFragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (mCursor != null) {
+        cancelFetchIds();
+        if (!cancelLoadPages() && mCursor != null) {
             mCursor.close();
         }
         DatabaseManager.getInstance(getActivity(), false).closeDatabase(false);
@@ -363,57 +657,82 @@ public class ResultListFragment extends FamiliarFragment {
                 to[i] = toList.get(i);
             }
 
-            ResultListAdapter rla = new ResultListAdapter(getActivity(), mCursor, from, to);
-            mListView.setAdapter(rla);
+            mAdapter = new ResultListAdapter(getActivity(), mCursor, from, to);
+            mListView.setAdapter(mAdapter);
         }
     }
 
     /**
-     * Convenience method to start a card view fragment.
+     * Convenience method to start a card view fragment. If the search has rows which aren't
+     * loaded, their IDs are fetched in the background first.
      *
      * @param id The id of the card to display, or -1 for a random card
      */
     private void startCardViewFrag(long id) throws FamiliarDbException {
-        try {
-            Bundle args = new Bundle();
-            int cardPosition = 0;
+        if (mSearchPager != null && mSearchPager.hasMore()) {
+            /* Ignore taps while the IDs are already being fetched */
+            if (mFetchIdsTask == null) {
+                mFetchIdsTask = new FetchIdsTask(getActivity().getApplicationContext(),
+                        mSearchPager, id);
+                mFetchIdsTask.execute();
+            }
+            return;
+        }
 
-            /* Build the array of ids sequentially, make note of the chosen card's position */
+        try {
+            /* Build the array of ids sequentially. Every row is loaded */
             long cardIds[] = new long[mCursor.getCount()];
             mCursor.moveToFirst();
             for (int i = 0; i < mCursor.getCount(); i++, mCursor.moveToNext()) {
                 cardIds[i] = mCursor.getLong(mCursor.getColumnIndex(CardDbAdapter.KEY_ID));
-                if (cardIds[i] == id) {
-                    cardPosition = i;
-                }
             }
+            showCards(cardIds, id);
+        } catch (IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
 
-            if (id == -1) {
-                Random rand = new Random(System.currentTimeMillis());
-
-                /* Shuffle the array of ids */
-                /* implements http://en.wikipedia.org/wiki/Fisher-Yates_shuffle */
-                long temp;
-                int k, j;
-                for (k = cardIds.length - 1; k > 0; k--) {
-                    j = rand.nextInt(k + 1);/* j = random integer with 0 <= j <= i */
-                    temp = cardIds[j];
-                    cardIds[j] = cardIds[k];
-                    cardIds[k] = temp;
-                }
+    /**
+     * Start a card view fragment with the given cards
+     *
+     * @param cardIds The ID of every card in the list, in order
+     * @param id      The id of the card to display, or -1 for a random card
+     */
+    private void showCards(long cardIds[], long id) {
+        Bundle args = new Bundle();
+
+        /* Make note of the chosen card's position */
+        int cardPosition = 0;
+        for (int i = 0; i < cardIds.length; i++) {
+            if (cardIds[i] == id) {
+                cardPosition = i;
+                break;
+            }
+        }
 
-                /* Start at the beginning of the random sequence */
-                cardPosition = 0;
+        if (id == -1) {
+            Random rand = new Random(System.currentTimeMillis());
+
+            /* Shuffle the array of ids */
+            /* implements http://en.wikipedia.org/wiki/Fisher-Yates_shuffle */
+            long temp;
+            int k, j;
+            for (k = cardIds.length - 1; k > 0; k--) {
+                j = rand.nextInt(k + 1);/* j = random integer with 0 <= j <= i */
+                temp = cardIds[j];
+                cardIds[j] = cardIds[k];
+                cardIds[k] = temp;
             }
 
-            /* Load the array of ids and position into the bundle, start the fragment */
-            args.putInt(CardViewPagerFragment.STARTING_CARD_POSITION, cardPosition);
-            args.putLongArray(CardViewPagerFragment.CARD_ID_ARRAY, cardIds);
-            CardViewPagerFragment cardViewPagerFragment = new CardViewPagerFragment();
-            startNewFragment(cardViewPagerFragment, args);
-        } catch (IllegalStateException e) {
-            throw new FamiliarDbException(e);
+            /* Start at the beginning of the random sequence */
+            cardPosition = 0;
         }
+
+        /* Load the array of ids and position into the bundle, start the fragment */
+        args.putInt(CardViewPagerFragment.STARTING_CARD_POSITION, cardPosition);
+        args.putLongArray(CardViewPagerFragment.CARD_ID_ARRAY, cardIds);
+        CardViewPagerFragment cardViewPagerFragment = new CardViewPagerFragment();
+        startNewFragment(cardViewPagerFragment, args);
     }
 
     /**
@@ -497,7 +816,10 @@ public class ResultListFragment extends FamiliarFragment {
 
         try {
             /* Close the old cursor */
-            mCursor.close();
+            cancelFetchIds();
+            if (!cancelLoadPages()) {
+                mCursor.close();
+            }
             /* Do the search again with the new "order by" options */
             doSearch(getArguments(), mDatabase);
             /* Display the newly sorted data */
@@ -300,12 +300,13 @@ public class SearchViewFragment extends FamiliarFragment {
         mCollectorsNumberField.setOnEditorActionListener(doSearchListener);
 
         /* set the autocomplete for card names */
-        mNameField.setAdapter(new AutocompleteCursorAdapter(this, new String[]{CardDbAdapter.KEY_NAME}, new int[]{R.id.text1}, mNameField, true));
+        mNameField.setAdapter(new AutocompleteCursorAdapter(this, new String[]{CardDbAdapter.KEY_NAME}, new int[]{R.id.text1}, mNameField, true, true));
         mNameField.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
                 SearchCriteria searchCriteria = new SearchCriteria();
                 searchCriteria.name = ((TextView) view.findViewById(R.id.text1)).getText().toString();
+                searchCriteria.localizedNames = true;
                 Bundle args = new Bundle();
                 args.putSerializable(CRITERIA, searchCriteria);
                 ResultListFragment rlFrag = new ResultListFragment();
@@ -528,6 +529,8 @@ public class SearchViewFragment extends FamiliarFragment {
 
         /* Read EditTexts */
         searchCriteria.name = mNameField.getText().toString().trim();
+        /* Suggestions include printed names in every language, so searches match them too */
+        searchCriteria.localizedNames = true;
         searchCriteria.text = mTextField.getText().toString().trim();
         String supertype = "";
         for (String type : mSupertypeField.getObjects()) {
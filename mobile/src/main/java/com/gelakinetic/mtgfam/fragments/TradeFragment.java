@@ -40,6 +40,7 @@ import com.gelakinetic.mtgfam.fragments.dialogs.TradeDialogFragment;
 import com.gelakinetic.mtgfam.helpers.CardDataAdapter;
 import com.gelakinetic.mtgfam.helpers.CardDataViewHolder;
 import com.gelakinetic.mtgfam.helpers.CardHelpers;
+import com.gelakinetic.mtgfam.helpers.CardListFile;
 import com.gelakinetic.mtgfam.helpers.MtgCard;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 import com.gelakinetic.mtgfam.helpers.PriceInfo;
@@ -49,10 +50,11 @@ import com.octo.android.robospice.persistence.exception.SpiceException;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -244,23 +246,35 @@ public class TradeFragment extends FamiliarListFragment {
      * @param tradeName The name of the trade, to be used as a file name
      */
     public void saveTrade(String tradeName) {
-        FileOutputStream fos;
-
         /* Revert to added-order before saving */
         sortTrades(SortOrderDialogFragment.KEY_ORDER + " " + SortOrderDialogFragment.SQL_ASC);
 
+        writeTrade(tradeName);
+
+        /* And resort to the expected order after saving */
+        sortTrades(PreferenceAdapter.getTradeSortOrder(getContext()));
+    }
+
+    /**
+     * Write both sides of the trade, in their current order, to the given filename.
+     *
+     * @param tradeName The name of the trade, to be used as a file name
+     */
+    private void writeTrade(String tradeName) {
         try {
             /* MODE_PRIVATE will create the file (or replace a file of the same name) */
-            fos = this.getActivity().openFileOutput(tradeName, Context.MODE_PRIVATE);
-
-            for (MtgCard cd : mListLeft) {
-                fos.write(cd.toTradeString(LEFT).getBytes());
-            }
-            for (MtgCard cd : mListRight) {
-                fos.write(cd.toTradeString(RIGHT).getBytes());
+            CardListFile.Writer writer = new CardListFile.Writer(
+                    this.getActivity().openFileOutput(tradeName, Context.MODE_PRIVATE));
+            try {
+                for (MtgCard cd : mListLeft) {
+                    writer.writeTradeCard(cd, LEFT);
+                }
+                for (MtgCard cd : mListRight) {
+                    writer.writeTradeCard(cd, RIGHT);
+                }
+            } finally {
+                writer.close();
             }
-
-            fos.close();
         } catch (IOException e) {
             ToastWrapper.makeAndShowText(this.getActivity(), R.string.trader_toast_save_error,
                     ToastWrapper.LENGTH_LONG);
@@ -268,60 +282,87 @@ public class TradeFragment extends FamiliarListFragment {
             ToastWrapper.makeAndShowText(this.getActivity(), R.string.trader_toast_invalid_chars,
                     ToastWrapper.LENGTH_LONG);
         }
-
-        /* And resort to the expected order after saving */
-        sortTrades(PreferenceAdapter.getTradeSortOrder(getContext()));
     }
 
     /**
-     * Load a a trade from the given filename.
+     * Load a a trade from the given filename. A text trade from an older version is rewritten in
+     * the binary format once it's loaded.
      *
      * @param tradeName The name of the trade to load
      */
     public void loadTrade(String tradeName) {
-        BufferedReader br = null;
+        InputStream in = null;
         try {
             /* Clear the current lists */
             mListLeft.clear();
             mListRight.clear();
 
-            /* Read each card, line by line, load prices along the way */
-            br = new BufferedReader(
-                    new InputStreamReader(this.getActivity().openFileInput(tradeName))
-            );
-            String line;
-            while ((line = br.readLine()) != null) {
-                try {
-                    MtgCard card = MtgCard.fromTradeString(line, getActivity());
-                    card.setIndex(mOrderAddedIdx++);
+            in = new BufferedInputStream(this.getActivity().openFileInput(tradeName));
+            boolean isLegacy = !CardListFile.isBinary(in);
+            ArrayList<MtgCard> cards = new ArrayList<>();
+            if (isLegacy) {
+                readLegacyTrade(in, cards);
+            } else {
+                CardListFile.Reader reader = new CardListFile.Reader(in);
+                MtgCard card;
+                while ((card = reader.read()) != null) {
+                    cards.add(card);
+                }
+                MtgCard.fillSetNames(cards, getActivity());
+            }
 
-                    if (card.setName == null) {
-                        handleFamiliarDbException(false);
-                        return;
+            /* Load prices along the way */
+            for (MtgCard card : cards) {
+                card.setIndex(mOrderAddedIdx++);
+
+                if (card.setName == null) {
+                    handleFamiliarDbException(false);
+                    return;
+                }
+                if (card.mSide == LEFT) {
+                    mListLeft.add(card);
+                    if (!card.customPrice) {
+                        loadPrice(card);
                     }
-                    if (card.mSide == LEFT) {
-                        mListLeft.add(card);
-                        if (!card.customPrice) {
-                            loadPrice(card);
-                        }
-                    } else if (card.mSide == RIGHT) {
-                        mListRight.add(card);
-                        if (!card.customPrice) {
-                            loadPrice(card);
-                        }
+                } else if (card.mSide == RIGHT) {
+                    mListRight.add(card);
+                    if (!card.customPrice) {
+                        loadPrice(card);
                     }
-                } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                    // This card line is junk, ignore it
                 }
             }
+
+            if (isLegacy) {
+                writeTrade(tradeName);
+            }
         } catch (FileNotFoundException e) {
             /* Do nothing, the autosave doesn't exist */
         } catch (IOException e) {
             ToastWrapper.makeAndShowText(this.getActivity(), e.getLocalizedMessage(),
                     ToastWrapper.LENGTH_LONG);
         } finally {
-            if (br != null) {
-                IOUtils.closeQuietly(br);
+            if (in != null) {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Read a trade which an older version wrote as text, one MtgCard.toTradeString() line per
+     * card. Lines which can't be parsed are skipped.
+     *
+     * @param in    The stream to read the trade from
+     * @param cards The list to add the cards to
+     * @throws IOException If the trade can't be read
+     */
+    private void readLegacyTrade(InputStream in, ArrayList<MtgCard> cards) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = br.readLine()) != null) {
+            try {
+                cards.add(MtgCard.fromTradeString(line, getActivity()));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // This card line is junk, ignore it
             }
         }
     }
@@ -60,6 +60,8 @@ import com.octo.android.robospice.persistence.exception.SpiceException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
 
 /**
@@ -149,11 +151,10 @@ public class WishlistFragment extends FamiliarListFragment {
         if (card == null) {
             return;
         }
-        CompressedWishlistInfo wrapped = new CompressedWishlistInfo(card, 0);
 
         /* Add it to the wishlist, either as a new CompressedWishlistInfo, or to an existing one */
-        if (mCompressedWishlist.contains(wrapped)) {
-            CompressedWishlistInfo cwi = mCompressedWishlist.get(mCompressedWishlist.indexOf(wrapped));
+        CompressedWishlistInfo cwi = getCompressedWishlistIndex().get(card.mName);
+        if (cwi != null) {
             boolean added = false;
             for (IndividualSetInfo isi : cwi.mInfo) {
                 if (isi.mSetCode.equals(card.setCode) && isi.mIsFoil.equals(card.foil)) {
@@ -248,15 +249,17 @@ public class WishlistFragment extends FamiliarListFragment {
             }
 
             /* Compress the whole wishlist, or just the card that changed */
+            HashMap<String, CompressedWishlistInfo> compressedIndex = getCompressedWishlistIndex();
             for (MtgCard card : wishlist) {
                 if (changedCardName == null || changedCardName.equals(card.mName)) {
-                    /* This works because both MtgCard's and CompressedWishlistInfo's .equals() can compare each
-                     * other */
-                    CompressedWishlistInfo wrapped = new CompressedWishlistInfo(card, 0);
-                    if (mCompressedWishlist.contains(wrapped)) {
-                        mCompressedWishlist.get(mCompressedWishlist.indexOf(wrapped)).add(card);
+                    /* CompressedWishlistInfo's .equals() compares names, so index them by name */
+                    CompressedWishlistInfo cwi = compressedIndex.get(card.mName);
+                    if (cwi != null) {
+                        cwi.add(card);
                     } else {
-                        mCompressedWishlist.add(new CompressedWishlistInfo(card, mOrderAddedIdx++));
+                        cwi = new CompressedWishlistInfo(card, mOrderAddedIdx++);
+                        mCompressedWishlist.add(cwi);
+                        compressedIndex.put(card.mName, cwi);
                     }
                     /* Look up the new price */
                     if (mShowIndividualPrices || shouldShowPrice()) {
@@ -267,10 +270,10 @@ public class WishlistFragment extends FamiliarListFragment {
 
             /* Check for wholly removed cards if one card was modified */
             if (changedCardName != null) {
-                for (int i = 0; i < mCompressedWishlist.size(); i++) {
-                    if (mCompressedWishlist.get(i).mInfo.size() == 0) {
-                        mCompressedWishlist.remove(i);
-                        i--;
+                Iterator<CompressedWishlistInfo> iterator = mCompressedWishlist.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().mInfo.size() == 0) {
+                        iterator.remove();
                     }
                 }
             }
@@ -290,6 +293,17 @@ public class WishlistFragment extends FamiliarListFragment {
         DatabaseManager.getInstance(getActivity(), false).closeDatabase(false);
     }
 
+    /**
+     * @return A map from each card's name to its entry in mCompressedWishlist
+     */
+    private HashMap<String, CompressedWishlistInfo> getCompressedWishlistIndex() {
+        HashMap<String, CompressedWishlistInfo> index = new HashMap<>(mCompressedWishlist.size() * 2);
+        for (CompressedWishlistInfo cwi : mCompressedWishlist) {
+            index.put(cwi.mName, cwi);
+        }
+        return index;
+    }
+
     /**
      * This notifies the fragment when a change has been made from a card's dialog
      */
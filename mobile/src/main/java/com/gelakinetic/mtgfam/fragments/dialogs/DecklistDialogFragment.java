@@ -49,6 +49,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -290,6 +291,18 @@ public class DecklistDialogFragment extends FamiliarDialogFragment {
                             DatabaseManager.getInstance(getContext(), false).openDatabase(false);
                     Cursor cFormats = CardDbAdapter.fetchAllFormats(database);
                     cFormats.moveToFirst();
+
+                    /* Look up every card's legality in every format at once */
+                    HashSet<String> cardNames = new HashSet<>();
+                    for (CompressedDecklistInfo info :
+                            getParentDecklistFragment().mCompressedDecklist) {
+                        if (!info.mName.isEmpty()) { /* Skip the headers */
+                            cardNames.add(info.mName);
+                        }
+                    }
+                    HashMap<String, HashMap<String, Integer>> legalities =
+                            CardDbAdapter.getLegalities(cardNames, database);
+
                     List<HashMap<String, String>> fillMaps = new ArrayList<>();
                     for (int i = 0; i < cFormats.getCount(); i++) {
                         boolean deckIsLegal = true;
@@ -299,7 +312,7 @@ public class DecklistDialogFragment extends FamiliarDialogFragment {
                         for (CompressedDecklistInfo info :
                                 getParentDecklistFragment().mCompressedDecklist) {
                             if (!info.mName.isEmpty()) { /* Skip the headers */
-                                switch (CardDbAdapter.checkLegality(info.mName, format, database)) {
+                                switch (legalities.get(info.mName).get(format)) {
                                     case CardDbAdapter.LEGAL: {
                                         if (format.equalsIgnoreCase("Commander")
                                                 && info.getTotalNumber() > 1) {
@@ -56,21 +56,28 @@ public class AutocompleteCursorAdapter extends SimpleCursorAdapter implements Lo
     private final String[] mAutocompleteFilter = new String[1];
 
     private final FamiliarFragment mFragment;
+    private final Uri mSearchUri;
 
     /**
      * Standard constructor.
      *
-     * @param context  The context where the ListView associated with this SimpleListItemFactory is running
-     * @param from     A list of column names representing the data to bind to the UI. Can be null if the cursor is not
-     *                 available yet.
-     * @param to       The views that should display column in the "from" parameter. These should all be TextViews. The
-     *                 first N views in this list are given the values of the first N columns in the from parameter.
-     *                 Can be null if the cursor is not available yet.
-     * @param textView The text view which we are watching for changes
+     * @param context        The context where the ListView associated with this SimpleListItemFactory is running
+     * @param from           A list of column names representing the data to bind to the UI. Can be null if the cursor
+     *                       is not available yet.
+     * @param to             The views that should display column in the "from" parameter. These should all be
+     *                       TextViews. The first N views in this list are given the values of the first N columns in
+     *                       the from parameter. Can be null if the cursor is not available yet.
+     * @param textView       The text view which we are watching for changes
+     * @param showArrowhead  true to show an arrowhead next to each suggestion
+     * @param localizedNames true to suggest names in every language, false for only English names, for fields where
+     *                       the name is looked up in English
      */
-    public AutocompleteCursorAdapter(FamiliarFragment context, String[] from, int[] to, AutoCompleteTextView textView, boolean showArrowhead) {
+    public AutocompleteCursorAdapter(FamiliarFragment context, String[] from, int[] to, AutoCompleteTextView textView,
+                                     boolean showArrowhead, boolean localizedNames) {
         super(context.getActivity(), showArrowhead ? R.layout.list_item_1_arrowhead : R.layout.list_item_1, null, from, to, 0);
         mFragment = context;
+        mSearchUri = SEARCH_URI.buildUpon().appendQueryParameter(
+                CardSearchProvider.PARAM_LOCALIZED_NAMES, Boolean.toString(localizedNames)).build();
         mFragment.getLoaderManager().initLoader(0, null, this);
         textView.addTextChangedListener(new TextWatcher() {
             @Override
@@ -108,7 +115,7 @@ public class AutocompleteCursorAdapter extends SimpleCursorAdapter implements Lo
         /* Now create and return a CursorLoader that will take care of creating a Cursor for the data being displayed.
          */
         String select = "(" + CardDbAdapter.KEY_NAME + ")";
-        return new CursorLoader(mFragment.getActivity(), SEARCH_URI, CARD_NAME_PROJECTION, select, mAutocompleteFilter,
+        return new CursorLoader(mFragment.getActivity(), mSearchUri, CARD_NAME_PROJECTION, select, mAutocompleteFilter,
                 CardDbAdapter.KEY_NAME + " COLLATE LOCALIZED ASC");
     }
 
@@ -243,15 +243,13 @@ public class CardHelpers {
                             @NonNull MaterialDialog dialog,
                             @NonNull DialogAction which) {
 
-                        ArrayList<Pair<MtgCard, Boolean>> list;
+                        final boolean isWishlist = isWishlistDialog || isCardViewDialog || isResultListDialog;
+                        ArrayList<Pair<MtgCard, Boolean>> list = null;
+                        ArrayList<MtgCard> wishlistCards = null;
 
-                        if (isWishlistDialog || isCardViewDialog || isResultListDialog) {
-                            /* Read the wishlist */
-                            list = new ArrayList<>();
-                            ArrayList<MtgCard> wishlist = WishlistHelpers.ReadWishlist(ctx);
-                            for (MtgCard card : wishlist) {
-                                list.add(new Pair<>(card, false));
-                            }
+                        if (isWishlist) {
+                            /* The wishlist only needs to know which cards changed */
+                            wishlistCards = new ArrayList<>();
                         } else {
                             list = DecklistHelpers.ReadDecklist(
                                     ctx,
@@ -280,6 +278,11 @@ public class CardHelpers {
                             card.mRarity = potentialRarities.get(i);
                             card.mNumber = potentialNumbers.get(i);
 
+                            if (isWishlist) {
+                                wishlistCards.add(card);
+                                continue;
+                            }
+
                             /* Look through the wishlist for each card, set the numberOf or remove
                              * it if it exists, or add the card if it doesn't */
                             boolean added = false;
@@ -303,14 +306,9 @@ public class CardHelpers {
 
                         }
 
-                        if (isWishlistDialog || isCardViewDialog || isResultListDialog) {
-                            ArrayList<MtgCard> wishlist = new ArrayList<>();
-                            /* Turn it back in to a plain ArrayList */
-                            for (Pair<MtgCard, Boolean> card : list) {
-                                wishlist.add(card.first);
-                            }
-                            /* Write the wishlist */
-                            WishlistHelpers.WriteWishlist(fragment.getActivity(), wishlist);
+                        if (isWishlist) {
+                            /* Set the numberOf for each card, removing it if it's zero */
+                            WishlistHelpers.SetWishlistCards(fragment.getActivity(), wishlistCards);
                             /* notify the fragment of a change in the wishlist */
                             fragment.onWishlistChanged(mCardName); //
                         } else {
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.BitmapFactory;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.R;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * This class holds everything needed to find a card's image online, and downloads it. It's shared
+ * by the card view, which downloads the image being looked at, and the CardImagePrefetcher, which
+ * downloads the images which will be looked at next.
+ */
+public class CardImageInfo {
+
+    public final int mMultiverseId;
+    private final String mName;
+    private final String mSetCode;
+    private final String mMagicCardsInfoSetCode;
+    private final String mNumber;
+    private final String mType;
+    private final int mCmc;
+    private final String mSetName;
+
+    /**
+     * @param multiverseId          The card's multiverse ID
+     * @param name                  The card's name
+     * @param setCode               The card's set code
+     * @param magicCardsInfoSetCode The card's set code on magiccards.info
+     * @param number                The card's collector's number
+     * @param type                  The card's full type line
+     * @param cmc                   The card's converted mana cost
+     * @param setName               The card's set's name
+     */
+    public CardImageInfo(int multiverseId, String name, String setCode,
+                         String magicCardsInfoSetCode, String number, String type, int cmc,
+                         String setName) {
+        mMultiverseId = multiverseId;
+        mName = name;
+        mSetCode = setCode;
+        mMagicCardsInfoSetCode = magicCardsInfoSetCode;
+        mNumber = number;
+        mType = type;
+        mCmc = cmc;
+        mSetName = setName;
+    }
+
+    /**
+     * Look up the image information for a card
+     *
+     * @param id       The card's ID
+     * @param database The database to look it up in
+     * @return The card's image information, or null if there's no card with that ID
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    public static CardImageInfo fetch(long id, SQLiteDatabase database) throws FamiliarDbException {
+        Cursor cursor = CardDbAdapter.fetchCards(new long[]{id}, null, database);
+        try {
+            if (cursor == null || cursor.getCount() == 0) {
+                return null;
+            }
+            String setCode = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_SET));
+            return fromCursor(cursor, CardDbAdapter.getCodeMtgi(setCode, database),
+                    CardDbAdapter.getSetNameFromCode(setCode, database));
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Look up the image information for every card in a set
+     *
+     * @param setCode  The set's code
+     * @param database The database to look it up in
+     * @return The image information for each card in the set, which is empty if there's no set
+     * with that code
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    public static ArrayList<CardImageInfo> fetchSet(String setCode, SQLiteDatabase database)
+            throws FamiliarDbException {
+        ArrayList<CardImageInfo> infos = new ArrayList<>();
+        Cursor cursor = CardDbAdapter.fetchCardsInSet(setCode, database);
+        try {
+            if (cursor == null || cursor.getCount() == 0) {
+                return infos;
+            }
+            /* These are the same for every card, so only look them up once */
+            String magicCardsInfoSetCode = CardDbAdapter.getCodeMtgi(setCode, database);
+            String setName = CardDbAdapter.getSetNameFromCode(setCode, database);
+            while (!cursor.isAfterLast()) {
+                infos.add(fromCursor(cursor, magicCardsInfoSetCode, setName));
+                cursor.moveToNext();
+            }
+            return infos;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @param cursor                A cursor pointing at a card, with all of the card's data
+     * @param magicCardsInfoSetCode The card's set code on magiccards.info
+     * @param setName               The card's set's name
+     * @return The card's image information
+     */
+    private static CardImageInfo fromCursor(Cursor cursor, String magicCardsInfoSetCode,
+                                            String setName) {
+        return new CardImageInfo(
+                cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_MULTIVERSEID)),
+                cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NAME)),
+                cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_SET)),
+                magicCardsInfoSetCode,
+                cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NUMBER)),
+                CardDbAdapter.getTypeLine(cursor),
+                cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_CMC)),
+                setName);
+    }
+
+    /**
+     * @param language The language the image is in
+     * @return The key this card's image is cached with
+     */
+    public String getImageKey(String language) {
+        return Integer.toString(mMultiverseId) + language;
+    }
+
+    /**
+     * Some trickery to figure out if we have a token
+     *
+     * @return true if this card is a token, false otherwise
+     */
+    private boolean isToken() {
+        return mType.contains("Token") || /* try to take the easy way out */
+                (mCmc == 0 && /* Tokens have a CMC of 0 */
+                    /* The only tokens in Gatherer are from Duel Decks */
+                        mSetName.contains("Duel Decks") &&
+                     /* The only tokens in Gatherer are creatures */
+                        mType.contains("Creature"));
+    }
+
+    /**
+     * Get every URL this card's image might be at, in the order they should be tried.
+     * Non-English images only come from www.MagicCards.info, so that's tried first.
+     * Then Scryfall is tried in English.
+     * Then www.MagicCards.info is tried in English.
+     * Then www.gatherer.wizards.com is tried. It's the only place to find tokens.
+     *
+     * @param context  A context to get type names with
+     * @param language The language to look for the image in
+     * @return The URLs to try
+     * @throws IOException If a URL is malformed
+     */
+    @SuppressWarnings("SpellCheckingInspection")
+    public ArrayList<URL> getImageUrls(Context context, String language) throws IOException {
+        ArrayList<URL> urls = new ArrayList<>(4);
+        if (!isToken()) {
+            if (!language.equalsIgnoreCase("en")) {
+                urls.add(new URL(getMtgiPicUrl(context, language)));
+            }
+            urls.add(new URL(getScryfallImageUri()));
+            urls.add(new URL(getMtgiPicUrl(context, "en")));
+        }
+        urls.add(new URL("http://gatherer.wizards.com/Handlers/Image.ashx?multiverseid=" + mMultiverseId + "&type=card"));
+        return urls;
+    }
+
+    /**
+     * Download this card's image from whichever of getImageUrls() answers first with something
+     * which can be decoded. A non-English image is always tried first, since nothing else has it.
+     * The rest are interchangeable, so the ImageSourceSelector picks between them.
+     *
+     * @param context  A context to make HTTP requests with
+     * @param language The language to look for the image in
+     * @return The encoded image, as it was downloaded
+     * @throws IOException If the image couldn't be downloaded from anywhere
+     */
+    public byte[] downloadImage(final Context context, String language) throws IOException {
+        int pinned = (!isToken() && !language.equalsIgnoreCase("en")) ? 1 : 0;
+        return ImageSourceSelector.getInstance().download(getImageUrls(context, language), pinned,
+                new ImageSourceSelector.Downloader() {
+                    @Override
+                    public byte[] download(URL url) throws IOException {
+                        byte[] bytes = CardImageInfo.download(url, context);
+                        if (bytes == null || !isImage(bytes)) {
+                            throw new IOException("Not an image: " + url);
+                        }
+                        return bytes;
+                    }
+                });
+    }
+
+    /**
+     * @param url     The URL to download
+     * @param context A context to make HTTP requests with
+     * @return Everything at the URL, or null if nothing could be opened
+     * @throws IOException If the download fails
+     */
+    static byte[] download(URL url, Context context) throws IOException {
+        InputStream stream = FamiliarActivity.getHttpInputStream(url, null, context);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * @param bytes Something which was downloaded
+     * @return true if it's an image BitmapFactory can decode, false if it's something else, like
+     * an error page
+     */
+    static boolean isImage(byte[] bytes) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        return options.outWidth > 0 && options.outHeight > 0;
+    }
+
+    /**
+     * Jumps through hoops and returns a correctly formatted URL for magiccards.info's image.
+     * There is a non-standard URL building for planes and schemes.
+     *
+     * @param context      A context to get type names with
+     * @param cardLanguage The language of the card
+     * @return a URL to the card's image
+     */
+    private String getMtgiPicUrl(Context context, String cardLanguage) {
+
+        final String mtgiExtras = "http://magiccards.info/extras/";
+        String cardName = mName;
+        String picURL;
+        String type = mType.toLowerCase();
+        if (type.contains(context.getString(R.string.search_Ongoing).toLowerCase()) ||
+                /* extra space to not confuse with planeswalker */
+                type.contains(context.getString(R.string.search_Plane).toLowerCase() + " ") ||
+                type.contains(context.getString(R.string.search_Phenomenon).toLowerCase()) ||
+                type.contains(context.getString(R.string.search_Scheme).toLowerCase())) {
+            switch (mSetCode) {
+                case "PC2":
+                    picURL = mtgiExtras + "plane/planechase-2012-edition/" + cardName + ".jpg";
+                    picURL = picURL.replace(" ", "-")
+                            .replace("?", "").replace(",", "").replace("'", "").replace("!", "");
+                    break;
+                case "PCH":
+                    if (cardName.equalsIgnoreCase("tazeem")) {
+                        cardName = "tazeem-release-promo";
+                    } else if (cardName.equalsIgnoreCase("celestine reef")) {
+                        cardName = "celestine-reef-pre-release-promo";
+                    } else if (cardName.equalsIgnoreCase("horizon boughs")) {
+                        cardName = "horizon-boughs-gateway-promo";
+                    }
+                    picURL = mtgiExtras + "plane/planechase/" + cardName + ".jpg";
+                    picURL = picURL.replace(" ", "-")
+                            .replace("?", "").replace(",", "").replace("'", "").replace("!", "");
+                    break;
+                case "ARC":
+                    picURL = mtgiExtras + "scheme/archenemy/" + cardName + ".jpg";
+                    picURL = picURL.replace(" ", "-")
+                            .replace("?", "").replace(",", "").replace("'", "").replace("!", "");
+                    break;
+                default:
+                    picURL = "http://magiccards.info/scans/" + cardLanguage + "/" + mMagicCardsInfoSetCode + "/" +
+                            mNumber + ".jpg";
+                    break;
+            }
+        } else {
+            picURL = "http://magiccards.info/scans/" + cardLanguage + "/" + mMagicCardsInfoSetCode + "/" +
+                    mNumber + ".jpg";
+        }
+        return picURL.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Easily gets the uri for the image for a card by multiverseid.
+     *
+     * @return uri of the card image
+     */
+    private String getScryfallImageUri() {
+        return "https://api.scryfall.com/cards/multiverse/" + mMultiverseId + "?format=image&version=normal";
+    }
+}
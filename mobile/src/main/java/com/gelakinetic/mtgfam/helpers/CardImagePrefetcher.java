@@ -0,0 +1,498 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Process;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.lruCache.BitmapDecoder;
+import com.gelakinetic.mtgfam.helpers.lruCache.ImageCache;
+import com.gelakinetic.mtgfam.helpers.lruCache.RecyclingBitmapDrawable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class downloads card images before they're looked at, so swiping through search results
+ * doesn't wait on the network for every card. Callers give it a window of card IDs, nearest first.
+ * Each image in the window is downloaded into the ImageCache's disk cache, and the nearest ones
+ * are also decoded at the size the card view shows them at, into the memory cache. Anything
+ * which falls out of the window is cancelled.
+ * <p>
+ * Prefetches run one at a time on a lowest priority thread, and don't start while the card view
+ * is loading an image. If the card view wants an image which is being prefetched, it waits for
+ * the prefetch instead of downloading it again.
+ */
+public class CardImagePrefetcher {
+
+    /* How many cards past the pager's loaded pages are prefetched, and how many are decoded */
+    public static final int PAGER_PREFETCH_COUNT = 4;
+    public static final int PAGER_DECODE_COUNT = 1;
+    /* How many visible rows of a result list are prefetched */
+    public static final int LIST_PREFETCH_COUNT = 6;
+
+    /* Where the card view found an image */
+    public static final int SOURCE_MEMORY = 0;
+    public static final int SOURCE_DISK = 1;
+    public static final int SOURCE_NETWORK = 2;
+
+    /* The longest the card view waits for a prefetch of the image it wants */
+    private static final long FOREGROUND_WAIT_SECONDS = 10;
+    /* Bounds on bookkeeping which is only for statistics */
+    private static final int MAX_TRACKED_KEYS = 256;
+
+    private static CardImagePrefetcher sInstance;
+
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+    private final Object mLock = new Object();
+    /* Everything in the current window which hasn't finished, guarded by mLock */
+    private ArrayList<PrefetchTask> mTasks = new ArrayList<>();
+    private int mForegroundLoads;
+    private int mTargetWidth;
+    private int mTargetHeight;
+
+    /* Statistics, guarded by mLock */
+    private final HashSet<String> mPrefetchedKeys = new HashSet<>();
+    private final HashMap<Long, Long> mSelectedAt = new HashMap<>();
+    private final HashSet<Long> mShownIds = new HashSet<>();
+    private int mLookups;
+    private int mMemoryHits;
+    private int mDiskHits;
+    private int mPrefetchHits;
+    private int mPrefetches;
+    private int mCancellations;
+    private int mFirstImages;
+    private long mFirstImageNanos;
+
+    /**
+     * @return The prefetcher for this application
+     */
+    public static synchronized CardImagePrefetcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new CardImagePrefetcher();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Use getInstance() instead, except in tests
+     */
+    CardImagePrefetcher() {
+    }
+
+    /**
+     * A single card's prefetch
+     */
+    private class PrefetchTask implements Runnable {
+        final Context mContext;
+        final ImageCache mImageCache;
+        final long mCardId;
+        final boolean mDecode;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        Future<?> mFuture;
+        /* Set once the prefetch starts */
+        volatile String mImageKey;
+
+        PrefetchTask(Context context, ImageCache imageCache, long cardId, boolean decode) {
+            mContext = context;
+            mImageCache = imageCache;
+            mCardId = cardId;
+            mDecode = decode;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            try {
+                /* Let the card view load whatever it's showing first */
+                synchronized (mLock) {
+                    while (mForegroundLoads > 0) {
+                        mLock.wait();
+                    }
+                }
+                prefetch(this);
+            } catch (InterruptedException e) {
+                /* Cancelled */
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+
+    /**
+     * @param imageKey The key an image is cached with
+     * @param width    The width it was decoded to fit
+     * @param height   The height it was decoded to fit
+     * @return The key the decoded bitmap is kept in the memory cache with
+     */
+    public static String getMemoryKey(String imageKey, int width, int height) {
+        return imageKey + "@" + width + "x" + height;
+    }
+
+    /**
+     * Prefetch a new window of cards. Anything from the old window which isn't in this one is
+     * cancelled.
+     *
+     * @param activity    The activity whose ImageCache the images are cached in
+     * @param cardIds     The IDs of the cards to prefetch, nearest first
+     * @param decodeCount How many of the nearest cards to decode into the memory cache as well
+     */
+    public void prefetch(FamiliarActivity activity, long[] cardIds, int decodeCount) {
+        ImageCache imageCache = activity.mImageCache;
+        if (imageCache == null) {
+            return;
+        }
+        Context context = activity.getApplicationContext();
+
+        synchronized (mLock) {
+            HashSet<Long> window = new HashSet<>(cardIds.length);
+            for (long id : cardIds) {
+                window.add(id);
+            }
+
+            /* Keep what's already running if it's still wanted. Everything else is cancelled, and
+             * requeued if it's still wanted, so the queue is in the new order */
+            HashSet<Long> running = new HashSet<>();
+            ArrayList<PrefetchTask> tasks = new ArrayList<>(cardIds.length);
+            for (PrefetchTask task : mTasks) {
+                if (task.mFuture.isDone()) {
+                    continue;
+                }
+                if (task.mImageKey != null && window.contains(task.mCardId)) {
+                    running.add(task.mCardId);
+                    tasks.add(task);
+                } else {
+                    task.mFuture.cancel(true);
+                    if (!window.contains(task.mCardId)) {
+                        mCancellations++;
+                    }
+                }
+            }
+            for (int i = 0; i < cardIds.length; i++) {
+                if (running.contains(cardIds[i])) {
+                    continue;
+                }
+                PrefetchTask task = new PrefetchTask(context, imageCache, cardIds[i], i < decodeCount);
+                task.mFuture = mExecutor.submit(task);
+                tasks.add(task);
+            }
+            mTasks = tasks;
+        }
+        mExecutor.purge();
+    }
+
+    /**
+     * Cancel everything which is being prefetched
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            for (PrefetchTask task : mTasks) {
+                if (!task.mFuture.isDone()) {
+                    task.mFuture.cancel(true);
+                    mCancellations++;
+                }
+            }
+            mTasks.clear();
+            mSelectedAt.clear();
+        }
+        mExecutor.purge();
+    }
+
+    /**
+     * Prefetch a single card's image. This runs on the prefetch thread
+     *
+     * @param task The card to prefetch
+     */
+    private void prefetch(PrefetchTask task) {
+        CardImageInfo info;
+        try {
+            SQLiteDatabase database =
+                    DatabaseManager.getInstance(task.mContext, false).openDatabase(false);
+            try {
+                info = CardImageInfo.fetch(task.mCardId, database);
+            } finally {
+                DatabaseManager.getInstance(task.mContext, false).closeDatabase(false);
+            }
+        } catch (FamiliarDbException e) {
+            return;
+        }
+        if (info == null) {
+            return;
+        }
+
+        String language = PreferenceAdapter.getCardLanguage(task.mContext);
+        if (language == null) {
+            language = "en";
+        }
+        String imageKey = info.getImageKey(language);
+        task.mImageKey = imageKey;
+
+        int width;
+        int height;
+        synchronized (mLock) {
+            width = mTargetWidth;
+            height = mTargetHeight;
+        }
+        boolean decode = task.mDecode && width > 0 && height > 0;
+        String memoryKey = getMemoryKey(imageKey, width, height);
+
+        /* Already warm? */
+        if (decode) {
+            if (task.mImageCache.getBitmapFromMemCache(memoryKey) != null) {
+                return;
+            }
+            Bitmap bitmap = task.mImageCache.getBitmapFromDiskCache(imageKey, width, height);
+            if (bitmap != null) {
+                task.mImageCache.addBitmapToMemCache(memoryKey,
+                        new RecyclingBitmapDrawable(task.mContext.getResources(), bitmap));
+                onPrefetched(imageKey);
+                return;
+            }
+        } else if (task.mImageCache.isInDiskCache(imageKey)) {
+            return;
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        byte[] imageBytes;
+        try {
+            imageBytes = info.downloadImage(task.mContext, language);
+        } catch (IOException e) {
+            return;
+        }
+        task.mImageCache.addImageBytesToDiskCache(imageKey, imageBytes);
+
+        if (decode && !Thread.currentThread().isInterrupted()) {
+            Bitmap bitmap = BitmapDecoder.getInstance().decodeToFit(imageBytes, width, height);
+            if (bitmap != null) {
+                task.mImageCache.addBitmapToMemCache(memoryKey,
+                        new RecyclingBitmapDrawable(task.mContext.getResources(), bitmap));
+            }
+        }
+        onPrefetched(imageKey);
+    }
+
+    /**
+     * Remember that an image was prefetched, so a later lookup can be counted as a prefetch hit
+     *
+     * @param imageKey The image's key
+     */
+    private void onPrefetched(String imageKey) {
+        synchronized (mLock) {
+            if (mPrefetchedKeys.size() >= MAX_TRACKED_KEYS) {
+                mPrefetchedKeys.clear();
+            }
+            mPrefetchedKeys.add(imageKey);
+            mPrefetches++;
+        }
+    }
+
+    /**
+     * Set the size the card view shows images at, so prefetched images can be decoded to it
+     *
+     * @param width  The width images are fit in
+     * @param height The height images are fit in
+     */
+    public void setTargetSize(int width, int height) {
+        synchronized (mLock) {
+            mTargetWidth = width;
+            mTargetHeight = height;
+        }
+    }
+
+    /**
+     * Tell the prefetcher the card view started loading an image. Prefetches won't start until
+     * it's done. Every call must be followed by endForegroundLoad()
+     */
+    public void beginForegroundLoad() {
+        synchronized (mLock) {
+            mForegroundLoads++;
+        }
+    }
+
+    /**
+     * Tell the prefetcher the card view finished loading an image
+     */
+    public void endForegroundLoad() {
+        synchronized (mLock) {
+            mForegroundLoads--;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * If an image is being prefetched right now, wait for that to finish so the caller finds it in
+     * the cache instead of downloading it again. This must not be called on the main thread
+     *
+     * @param imageKey The image's key
+     */
+    public void awaitPrefetch(String imageKey) {
+        PrefetchTask running = null;
+        synchronized (mLock) {
+            for (PrefetchTask task : mTasks) {
+                if (imageKey.equals(task.mImageKey) && !task.mFuture.isDone()) {
+                    running = task;
+                    break;
+                }
+            }
+        }
+        if (running != null) {
+            try {
+                running.mDone.await(FOREGROUND_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record where the card view found an image, for the hit rate
+     *
+     * @param imageKey The image's key
+     * @param source   SOURCE_MEMORY, SOURCE_DISK, or SOURCE_NETWORK
+     */
+    public void recordLookup(String imageKey, int source) {
+        synchronized (mLock) {
+            mLookups++;
+            if (source == SOURCE_MEMORY) {
+                mMemoryHits++;
+            } else if (source == SOURCE_DISK) {
+                mDiskHits++;
+            }
+            if (source != SOURCE_NETWORK && mPrefetchedKeys.remove(imageKey)) {
+                mPrefetchHits++;
+            }
+        }
+    }
+
+    /**
+     * Start timing how long it takes a card's image to show up, now that its page is selected
+     *
+     * @param cardId The card's ID
+     */
+    public void onPageSelected(long cardId) {
+        synchronized (mLock) {
+            mSelectedAt.clear();
+            if (mShownIds.remove(cardId)) {
+                /* It was already loaded before the page was selected */
+                mFirstImages++;
+            } else {
+                mSelectedAt.put(cardId, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Stop timing how long it takes a card's image to show up
+     *
+     * @param cardId The card's ID
+     */
+    public void onImageShown(long cardId) {
+        synchronized (mLock) {
+            Long selectedAt = mSelectedAt.remove(cardId);
+            if (selectedAt != null) {
+                mFirstImages++;
+                mFirstImageNanos += System.nanoTime() - selectedAt;
+            } else {
+                if (mShownIds.size() >= MAX_TRACKED_KEYS) {
+                    mShownIds.clear();
+                }
+                mShownIds.add(cardId);
+            }
+        }
+    }
+
+    /**
+     * @return The fraction of images the card view found in the memory or disk cache
+     */
+    public float getHitRate() {
+        synchronized (mLock) {
+            return mLookups == 0 ? 0 : (mMemoryHits + mDiskHits) / (float) mLookups;
+        }
+    }
+
+    /**
+     * @return The number of images the card view found in a cache because they were prefetched
+     */
+    public int getPrefetchHits() {
+        synchronized (mLock) {
+            return mPrefetchHits;
+        }
+    }
+
+    /**
+     * @return The number of images prefetched
+     */
+    public int getPrefetches() {
+        synchronized (mLock) {
+            return mPrefetches;
+        }
+    }
+
+    /**
+     * @return The number of prefetches cancelled because they fell out of the window
+     */
+    public int getCancellations() {
+        synchronized (mLock) {
+            return mCancellations;
+        }
+    }
+
+    /**
+     * @return The average time from a page being selected to its image showing, in milliseconds.
+     * Images which were showing before their page was selected count as zero
+     */
+    public double getAverageTimeToFirstImageMillis() {
+        synchronized (mLock) {
+            return mFirstImages == 0 ? 0 : mFirstImageNanos / (mFirstImages * 1000000.0);
+        }
+    }
+
+    /**
+     * @return A summary of how well prefetching is working, for logging
+     */
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return String.format(Locale.US, "CardImagePrefetcher: %d lookups, %d memory hits, " +
+                            "%d disk hits, %d prefetch hits, %d prefetches, %d cancelled, " +
+                            "%.1fms average to first image", mLookups, mMemoryHits, mDiskHits,
+                    mPrefetchHits, mPrefetches, mCancellations, getAverageTimeToFirstImageMillis());
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * This class reads and writes lists of cards, like the wishlist, decklists, and trades, in a compact
+ * binary format. Older versions saved these lists as text, one MtgCard.toWishlistString() or
+ * MtgCard.toTradeString() line per card. Files without this format's header are still text, and
+ * should be read the old way and then written again in this format.
+ * <p>
+ * The file is a header, then one record per card until the end of the file:
+ * <pre>
+ * header:  int MAGIC, byte VERSION
+ * record:  byte flags, string name, string setCode, varint numberOf, string number,
+ *          varint rarity, [varint price if FLAG_CUSTOM_PRICE],
+ *          [varint side, varint cmc, string color if FLAG_TRADE]
+ * </pre>
+ * Each string is a varint reference. 0 is null, 1 is a new string which follows as a varint length
+ * and that many bytes of UTF-8, and anything else is a string which was already in the file, by
+ * the order it first appeared in. Names and set codes repeat a lot, so most strings are one byte.
+ */
+public class CardListFile {
+
+    /* Text files never have a NUL in them, so this can't be confused with an old list */
+    private static final int MAGIC = 0x004D464C;
+    private static final int VERSION = 1;
+
+    private static final int FLAG_FOIL = 1;
+    private static final int FLAG_SIDEBOARD = 1 << 1;
+    private static final int FLAG_CUSTOM_PRICE = 1 << 2;
+    private static final int FLAG_TRADE = 1 << 3;
+
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+    private static final int FIRST_STRING_REFERENCE = 2;
+
+    /* No string in a card list is anywhere near this long, so a longer one means the file is bad */
+    private static final int MAX_STRING_BYTES = 1 << 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Check if a stream holds a binary card list, without consuming anything from it
+     *
+     * @param in A stream which supports mark() and reset(), like a BufferedInputStream
+     * @return true if the stream starts with this format's header, false if it's an old text list
+     * @throws IOException If the stream can't be read
+     */
+    public static boolean isBinary(InputStream in) throws IOException {
+        in.mark(4);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    return false;
+                }
+                magic = (magic << 8) | b;
+            }
+            return magic == MAGIC;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * This class writes cards to a binary card list, one at a time
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream mOut;
+        private final HashMap<String, Integer> mStrings = new HashMap<>();
+
+        /**
+         * Start a card list by writing its header
+         *
+         * @param out The stream to write the list to. It's closed when this Writer is closed
+         * @throws IOException If the header can't be written
+         */
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+        }
+
+        /**
+         * Write a wishlist entry
+         *
+         * @param card The card to write
+         * @throws IOException If the card can't be written
+         */
+        public void writeWishlistCard(MtgCard card) throws IOException {
+            writeCard(card, 0, 0);
+        }
+
+        /**
+         * Write a decklist entry
+         *
+         * @param card        The card to write
+         * @param isSideboard Whether the card is in the sideboard
+         * @throws IOException If the card can't be written
+         */
+        public void writeDeckCard(MtgCard card, boolean isSideboard) throws IOException {
+            writeCard(card, isSideboard ? FLAG_SIDEBOARD : 0, 0);
+        }
+
+        /**
+         * Write a trade entry, which also has its custom price, color, and converted mana cost
+         *
+         * @param card The card to write
+         * @param side Which side of the trade the card is on
+         * @throws IOException If the card can't be written
+         */
+        public void writeTradeCard(MtgCard card, int side) throws IOException {
+            writeCard(card, FLAG_TRADE | (card.customPrice ? FLAG_CUSTOM_PRICE : 0), side);
+        }
+
+        /**
+         * @param card  The card to write
+         * @param flags Which optional fields to write, and FLAG_SIDEBOARD. FLAG_FOIL is added here
+         * @param side  Which side of the trade the card is on, if FLAG_TRADE is set
+         * @throws IOException If the card can't be written
+         */
+        private void writeCard(MtgCard card, int flags, int side) throws IOException {
+            if (card.foil) {
+                flags |= FLAG_FOIL;
+            }
+            mOut.writeByte(flags);
+            writeString(card.mName);
+            writeString(card.setCode);
+            writeVarInt(mOut, card.numberOf);
+            writeString(card.mNumber);
+            writeVarInt(mOut, card.mRarity);
+            if ((flags & FLAG_CUSTOM_PRICE) != 0) {
+                writeVarInt(mOut, card.price);
+            }
+            if ((flags & FLAG_TRADE) != 0) {
+                writeVarInt(mOut, side);
+                writeVarInt(mOut, card.mCmc);
+                writeString(card.mColor);
+            }
+        }
+
+        /**
+         * Write a string, or a reference to it if it was already written
+         *
+         * @param string The string to write, may be null
+         * @throws IOException If the string can't be written
+         */
+        private void writeString(String string) throws IOException {
+            if (string == null) {
+                writeVarInt(mOut, STRING_NULL);
+                return;
+            }
+            Integer index = mStrings.get(string);
+            if (index != null) {
+                writeVarInt(mOut, FIRST_STRING_REFERENCE + index);
+                return;
+            }
+            mStrings.put(string, mStrings.size());
+            byte[] bytes = string.getBytes(UTF_8);
+            writeVarInt(mOut, STRING_NEW);
+            writeVarInt(mOut, bytes.length);
+            mOut.write(bytes);
+        }
+
+        /**
+         * Write anything which is still buffered, and close the stream
+         *
+         * @throws IOException If the stream can't be written or closed
+         */
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * This class reads cards from a binary card list, one at a time
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream mIn;
+        private final ArrayList<String> mStrings = new ArrayList<>();
+        private boolean mIsSideboard;
+
+        /**
+         * Start reading a card list by reading its header
+         *
+         * @param in The stream to read the list from. It's closed when this Reader is closed
+         * @throws IOException If the header can't be read, or it's not a card list this version
+         *                     understands
+         */
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(in);
+            if (mIn.readInt() != MAGIC) {
+                throw new IOException("Not a card list");
+            }
+            int version = mIn.readUnsignedByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported card list version " + version);
+            }
+        }
+
+        /**
+         * Read the next card. Fields which weren't saved keep MtgCard's defaults, and the side of a
+         * trade entry is put in mSide
+         *
+         * @return The next card, or null if there are no more
+         * @throws IOException If the card can't be read, or the file is malformed or truncated
+         */
+        public MtgCard read() throws IOException {
+            int flags = mIn.read();
+            if (flags == -1) {
+                return null;
+            }
+            MtgCard card = new MtgCard();
+            card.foil = (flags & FLAG_FOIL) != 0;
+            mIsSideboard = (flags & FLAG_SIDEBOARD) != 0;
+            card.mName = readString();
+            card.setCode = readString();
+            card.numberOf = readVarInt(mIn);
+            card.mNumber = readString();
+            card.mRarity = (char) readVarInt(mIn);
+            if ((flags & FLAG_CUSTOM_PRICE) != 0) {
+                card.customPrice = true;
+                card.price = readVarInt(mIn);
+            }
+            if ((flags & FLAG_TRADE) != 0) {
+                card.mSide = readVarInt(mIn);
+                card.mCmc = readVarInt(mIn);
+                card.mColor = readString();
+            }
+            return card;
+        }
+
+        /**
+         * @return Whether the last card read was in a decklist's sideboard
+         */
+        public boolean isSideboard() {
+            return mIsSideboard;
+        }
+
+        /**
+         * @return The next string in the file, which may be null
+         * @throws IOException If the string can't be read, or it's malformed
+         */
+        private String readString() throws IOException {
+            int reference = readVarInt(mIn);
+            if (reference == STRING_NULL) {
+                return null;
+            }
+            if (reference == STRING_NEW) {
+                int length = readVarInt(mIn);
+                if (length < 0 || length > MAX_STRING_BYTES) {
+                    throw new IOException("Malformed string length " + length);
+                }
+                byte[] bytes = new byte[length];
+                mIn.readFully(bytes);
+                String string = new String(bytes, UTF_8);
+                mStrings.add(string);
+                return string;
+            }
+            int index = reference - FIRST_STRING_REFERENCE;
+            if (index < 0 || index >= mStrings.size()) {
+                throw new IOException("Malformed string reference " + reference);
+            }
+            return mStrings.get(index);
+        }
+
+        /**
+         * Close the stream
+         *
+         * @throws IOException If the stream can't be closed
+         */
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * Write an int in as few bytes as possible, seven bits at a time, least significant first.
+     * Negative numbers always take five bytes
+     *
+     * @param out   The stream to write to
+     * @param value The int to write
+     * @throws IOException If the stream can't be written
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * @param in The stream to read from
+     * @return An int written by writeVarInt()
+     * @throws IOException If the stream can't be read, or the int is malformed
+     */
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
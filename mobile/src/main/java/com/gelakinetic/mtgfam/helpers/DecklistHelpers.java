@@ -26,9 +26,10 @@ import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.CardHelpers.IndividualSetInfo;
 import com.gelakinetic.mtgfam.helpers.WishlistHelpers.CompressedWishlistInfo;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -52,16 +53,15 @@ public class DecklistHelpers {
             String fileName) {
 
         try {
-            FileOutputStream fos = mCtx.openFileOutput(fileName, Context.MODE_PRIVATE);
-            for (Pair<MtgCard, Boolean> m : lDecklist) {
-                String cardString = m.first.toWishlistString();
-                /* If the card is a sideboard card, add the marking */
-                if (m.second) {
-                    cardString = "SB:" + cardString;
+            CardListFile.Writer writer =
+                    new CardListFile.Writer(mCtx.openFileOutput(fileName, Context.MODE_PRIVATE));
+            try {
+                for (Pair<MtgCard, Boolean> m : lDecklist) {
+                    writer.writeDeckCard(m.first, m.second);
                 }
-                fos.write(cardString.getBytes());
+            } finally {
+                writer.close();
             }
-            fos.close();
         } catch (IOException ioe) {
             ToastWrapper.makeAndShowText(mCtx, ioe.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
         }
@@ -87,23 +87,21 @@ public class DecklistHelpers {
 
             final String newFileName =
                     fileName.replaceAll("(\\s)", "_").replaceAll("[^\\w.-]", "_");
-            FileOutputStream fos = mCtx.openFileOutput(newFileName, Context.MODE_PRIVATE);
-
-            /* For each compressed card, make an MtgCard and write it to the default decklist */
-            for (CompressedDecklistInfo cdi : mCompressedDecklist) {
-                if (cdi.mName != null) {
-                    for (CardHelpers.IndividualSetInfo isi : cdi.mInfo) {
-                        cdi.applyIndividualInfo(isi);
-                        String cardString = cdi.toWishlistString();
-                        /* If the card is a sideboard card, add the sideboard marking */
-                        if (cdi.mIsSideboard) {
-                            cardString = "SB:" + cardString;
+            CardListFile.Writer writer =
+                    new CardListFile.Writer(mCtx.openFileOutput(newFileName, Context.MODE_PRIVATE));
+            try {
+                /* For each compressed card, make an MtgCard and write it to the default decklist */
+                for (CompressedDecklistInfo cdi : mCompressedDecklist) {
+                    if (cdi.mName != null) {
+                        for (CardHelpers.IndividualSetInfo isi : cdi.mInfo) {
+                            cdi.applyIndividualInfo(isi);
+                            writer.writeDeckCard(cdi, cdi.mIsSideboard);
                         }
-                        fos.write(cardString.getBytes());
                     }
                 }
+            } finally {
+                writer.close();
             }
-            fos.close();
         } catch (IOException ioe) {
             ToastWrapper.makeAndShowText(mCtx, ioe.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
         }
@@ -111,7 +109,8 @@ public class DecklistHelpers {
     }
 
     /**
-     * Read the decklist from a file and return it as an ArrayList<Pair<MtgCard, Boolean>>.
+     * Read the decklist from a file and return it as an ArrayList<Pair<MtgCard, Boolean>>. A text
+     * decklist from an older version is rewritten in the binary format once it's read.
      *
      * @param mCtx A context to open the file and pop toasts with
      * @return The decklist in ArrayList<Pair> form
@@ -121,26 +120,28 @@ public class DecklistHelpers {
         ArrayList<Pair<MtgCard, Boolean>> lDecklist = new ArrayList<>();
 
         try {
-            String line;
             // Sanitize the deckname before loading in case it was saved improperly on an earlier version of Familiar
             deckName = deckName.replaceAll("(\\s)", "_").replaceAll("[^\\w.-]", "_");
-            BufferedReader br = new BufferedReader(new InputStreamReader(mCtx.openFileInput(deckName)));
+            InputStream in = new BufferedInputStream(mCtx.openFileInput(deckName));
+            boolean isLegacy = false;
             try {
-                boolean isSideboard;
-                /* Read each line as a card, and add them to the ArrayList */
-                while ((line = br.readLine()) != null) {
-                    isSideboard = false;
-                    String sideboard = line.substring(0, 3);
-                    // If the card has the markings of a sideboard card,
-                    // mark it as such and remove the mark
-                    if (sideboard.equals("SB:")) {
-                        isSideboard = true;
-                        line = line.substring(3);
+                if (CardListFile.isBinary(in)) {
+                    CardListFile.Reader reader = new CardListFile.Reader(in);
+                    String loading = mCtx.getString(R.string.wishlist_loading);
+                    MtgCard card;
+                    while ((card = reader.read()) != null) {
+                        card.message = loading;
+                        lDecklist.add(new Pair<>(card, reader.isSideboard()));
                     }
-                    lDecklist.add(new Pair<>(MtgCard.fromWishlistString(line, mCtx), isSideboard));
+                } else {
+                    isLegacy = true;
+                    readLegacyDecklist(mCtx, in, lDecklist);
                 }
             } finally {
-                br.close();
+                in.close();
+            }
+            if (isLegacy) {
+                WriteDecklist(mCtx, lDecklist, deckName);
             }
         } catch (NumberFormatException nfe) {
             ToastWrapper.makeAndShowText(mCtx, nfe.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
@@ -151,6 +152,38 @@ public class DecklistHelpers {
 
     }
 
+    /**
+     * Read a decklist which an older version wrote as text, one MtgCard.toWishlistString() line
+     * per card, with "SB:" in front of sideboard cards
+     *
+     * @param mCtx      A context to correct set codes and get localized strings with
+     * @param in        The stream to read the decklist from
+     * @param lDecklist The list to add the cards to
+     * @throws IOException           If the decklist can't be read
+     * @throws NumberFormatException If the decklist is malformed
+     */
+    private static void readLegacyDecklist(Context mCtx, InputStream in,
+                                           ArrayList<Pair<MtgCard, Boolean>> lDecklist)
+            throws IOException {
+        String line;
+        BufferedReader br = new BufferedReader(new InputStreamReader(in));
+        boolean isSideboard;
+        /* Read each line as a card, and add them to the ArrayList */
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            isSideboard = false;
+            // If the card has the markings of a sideboard card,
+            // mark it as such and remove the mark
+            if (line.startsWith("SB:")) {
+                isSideboard = true;
+                line = line.substring(3);
+            }
+            lDecklist.add(new Pair<>(MtgCard.fromWishlistString(line, mCtx), isSideboard));
+        }
+    }
+
     public static String getSharableDecklist(
             ArrayList<CompressedDecklistInfo> mCompressedDecklist,
             Context ctx) {
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class decides which of several places to download a card image from, and downloads it.
+ * <p>
+ * It keeps an exponentially weighted moving average of each host's latency and failure rate, and
+ * tries the host which is expected to answer soonest first. If that host hasn't answered by the
+ * time it usually would have, the next host is tried too, and whichever answers first wins. A host
+ * which fails several times in a row is skipped for a cool-down, which doubles each time it fails
+ * again right after coming back. That goes for pinned hosts too, which lose their place while their
+ * circuits are open.
+ */
+public class ImageSourceSelector {
+
+    /* How much each new measurement moves the averages */
+    private static final double EWMA_WEIGHT = 0.3;
+    /* What to assume about a host which hasn't been measured yet */
+    private static final long DEFAULT_LATENCY_MILLIS = 1000;
+    /* A failure usually costs a connect timeout before the next host is tried */
+    private static final long FAILURE_PENALTY_MILLIS = 5000;
+
+    /* Hedge after this many of a host's average latencies, within these bounds */
+    private static final double HEDGE_LATENCY_MULTIPLE = 2;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 250;
+    private static final long MAX_HEDGE_DELAY_MILLIS = 3000;
+
+    /* The circuit opens after this many failures in a row */
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long COOL_DOWN_MILLIS = 60 * 1000;
+    private static final long MAX_COOL_DOWN_MILLIS = 10 * 60 * 1000;
+
+    private static ImageSourceSelector sInstance;
+
+    private final long mMinHedgeDelayMillis;
+    private final long mCoolDownMillis;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final HashMap<String, HostStats> mHosts = new HashMap<>();
+
+    private int mDownloads;
+    private int mHedges;
+
+    /**
+     * Something which downloads a single URL
+     */
+    public interface Downloader {
+        /**
+         * @param url The URL to download
+         * @return What was downloaded
+         * @throws IOException If nothing usable could be downloaded
+         */
+        byte[] download(URL url) throws IOException;
+    }
+
+    /**
+     * What's known about a single host. Guarded by the selector
+     */
+    private static class HostStats {
+        double mLatencyMillis = -1;
+        double mFailureRate = 0;
+        int mConsecutiveFailures = 0;
+        long mCoolDownMillis;
+        long mOpenUntil = 0;
+
+        HostStats(long coolDownMillis) {
+            mCoolDownMillis = coolDownMillis;
+        }
+
+        /**
+         * @return How long a download from this host is expected to take, counting failures
+         */
+        double getExpectedMillis() {
+            double latency = mLatencyMillis < 0 ? DEFAULT_LATENCY_MILLIS : mLatencyMillis;
+            return latency + mFailureRate * FAILURE_PENALTY_MILLIS;
+        }
+    }
+
+    /**
+     * @return The selector for this application
+     */
+    public static synchronized ImageSourceSelector getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageSourceSelector(MIN_HEDGE_DELAY_MILLIS, COOL_DOWN_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param minHedgeDelayMillis The least time to wait for a host before trying the next one
+     * @param coolDownMillis      How long to skip a host the first time its circuit opens
+     */
+    ImageSourceSelector(long minHedgeDelayMillis, long coolDownMillis) {
+        mMinHedgeDelayMillis = minHedgeDelayMillis;
+        mCoolDownMillis = coolDownMillis;
+    }
+
+    /**
+     * @param url A URL
+     * @return The key its host's stats are kept under. The port is included so local servers
+     * count separately
+     */
+    private static String getHost(URL url) {
+        return url.getAuthority();
+    }
+
+    /**
+     * @param host A host's key
+     * @return The host's stats, which are created if they don't exist yet
+     */
+    private HostStats getStats(String host) {
+        HostStats stats = mHosts.get(host);
+        if (stats == null) {
+            stats = new HostStats(mCoolDownMillis);
+            mHosts.put(host, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @param url A URL
+     * @param now The current SystemClock.elapsedRealtime()
+     * @return true if the URL's host is being skipped because it keeps failing, false otherwise
+     */
+    private boolean isOpen(URL url, long now) {
+        return getStats(getHost(url)).mOpenUntil > now;
+    }
+
+    /**
+     * @param urls   The URLs to download from, in their preferred order
+     * @param pinned How many URLs at the start would like to keep their places
+     * @return How many of the pinned URLs keep their places, which is every one whose circuit
+     * isn't open
+     */
+    private synchronized int countPinned(List<URL> urls, int pinned) {
+        long now = SystemClock.elapsedRealtime();
+        int count = 0;
+        for (URL url : urls.subList(0, Math.min(pinned, urls.size()))) {
+            if (!isOpen(url, now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Put URLs in the order they should be tried. The first few keep their places, unless their
+     * circuits are open, and the rest are sorted by how soon their hosts are expected to answer.
+     * Hosts whose circuits are open go last, so they're only tried if nothing else works.
+     *
+     * @param urls   The URLs to order
+     * @param pinned How many URLs at the start must keep their places while their hosts work
+     * @return The URLs in the order to try them
+     */
+    synchronized List<URL> order(List<URL> urls, int pinned) {
+        final long now = SystemClock.elapsedRealtime();
+        int end = Math.min(pinned, urls.size());
+        ArrayList<URL> ordered = new ArrayList<>(urls.size());
+        ArrayList<URL> demoted = new ArrayList<>();
+        for (URL url : urls.subList(0, end)) {
+            if (isOpen(url, now)) {
+                demoted.add(url);
+            } else {
+                ordered.add(url);
+            }
+        }
+        int sortFrom = ordered.size();
+        ordered.addAll(urls.subList(end, urls.size()));
+        ordered.addAll(demoted);
+        /* This sort is stable, so hosts which are equally good keep their original order */
+        Collections.sort(ordered.subList(sortFrom, ordered.size()),
+                new Comparator<URL>() {
+                    @Override
+                    public int compare(URL url1, URL url2) {
+                        boolean open1 = isOpen(url1, now);
+                        boolean open2 = isOpen(url2, now);
+                        if (open1 != open2) {
+                            return open1 ? 1 : -1;
+                        }
+                        return Double.compare(getStats(getHost(url1)).getExpectedMillis(),
+                                getStats(getHost(url2)).getExpectedMillis());
+                    }
+                });
+        return ordered;
+    }
+
+    /**
+     * @param url A URL which was just tried
+     * @return How long to wait for it before trying the next URL too
+     */
+    private synchronized long getHedgeDelayMillis(URL url) {
+        HostStats stats = getStats(getHost(url));
+        double latency = stats.mLatencyMillis < 0 ? DEFAULT_LATENCY_MILLIS : stats.mLatencyMillis;
+        long delay = (long) (latency * HEDGE_LATENCY_MULTIPLE);
+        return Math.max(mMinHedgeDelayMillis, Math.min(MAX_HEDGE_DELAY_MILLIS, delay));
+    }
+
+    /**
+     * Record that a host answered
+     *
+     * @param url           The URL which was downloaded
+     * @param latencyMillis How long it took
+     */
+    private synchronized void recordSuccess(URL url, long latencyMillis) {
+        HostStats stats = getStats(getHost(url));
+        if (stats.mLatencyMillis < 0) {
+            stats.mLatencyMillis = latencyMillis;
+        } else {
+            stats.mLatencyMillis += EWMA_WEIGHT * (latencyMillis - stats.mLatencyMillis);
+        }
+        stats.mFailureRate *= (1 - EWMA_WEIGHT);
+        stats.mConsecutiveFailures = 0;
+        stats.mCoolDownMillis = mCoolDownMillis;
+        stats.mOpenUntil = 0;
+    }
+
+    /**
+     * Record that a host failed, and open its circuit if it keeps failing
+     *
+     * @param url The URL which couldn't be downloaded
+     */
+    private synchronized void recordFailure(URL url) {
+        HostStats stats = getStats(getHost(url));
+        stats.mFailureRate += EWMA_WEIGHT * (1 - stats.mFailureRate);
+        stats.mConsecutiveFailures++;
+        if (stats.mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            stats.mOpenUntil = SystemClock.elapsedRealtime() + stats.mCoolDownMillis;
+            stats.mCoolDownMillis = Math.min(MAX_COOL_DOWN_MILLIS, stats.mCoolDownMillis * 2);
+        }
+    }
+
+    /**
+     * Download from the first of several URLs which works. The pinned URLs are tried one at a time
+     * first, in order, since they have something the rest don't, like a language. A pinned URL
+     * whose circuit is open is raced with the rest instead, and goes last. The rest are raced as
+     * described in the class comment.
+     *
+     * @param urls       The URLs to try, in their preferred order
+     * @param pinned     How many URLs at the start to try in order before racing the rest
+     * @param downloader What downloads a single URL
+     * @return What was downloaded
+     * @throws IOException If nothing could be downloaded from any URL, or this thread was
+     *                     interrupted
+     */
+    public byte[] download(List<URL> urls, int pinned, Downloader downloader) throws IOException {
+        List<URL> ordered;
+        int inOrder;
+        synchronized (this) {
+            mDownloads++;
+            ordered = order(urls, pinned);
+            inOrder = countPinned(urls, pinned);
+        }
+        IOException lastException = new IOException("No URLs to download");
+
+        for (int i = 0; i < inOrder; i++) {
+            try {
+                return attempt(ordered.get(i), downloader).call();
+            } catch (IOException e) {
+                lastException = e;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("Interrupted");
+            }
+        }
+        if (inOrder >= ordered.size()) {
+            throw lastException;
+        }
+        return race(ordered.subList(inOrder, ordered.size()), downloader);
+    }
+
+    /**
+     * Try URLs in order, starting the next one whenever the last one fails or takes longer than
+     * it should, and return whatever answers first
+     *
+     * @param urls       The URLs to try, best first
+     * @param downloader What downloads a single URL
+     * @return What was downloaded
+     * @throws IOException If nothing could be downloaded, or this thread was interrupted
+     */
+    private byte[] race(List<URL> urls, Downloader downloader) throws IOException {
+        ExecutorCompletionService<byte[]> completion = new ExecutorCompletionService<>(mExecutor);
+        ArrayList<Future<byte[]>> attempts = new ArrayList<>(urls.size());
+        IOException lastException = new IOException("No URLs to download");
+        int next = 0;
+        int running = 0;
+        try {
+            attempts.add(completion.submit(attempt(urls.get(next++), downloader)));
+            running++;
+            while (running > 0) {
+                Future<byte[]> finished;
+                if (next < urls.size()) {
+                    finished = completion.poll(getHedgeDelayMillis(urls.get(next - 1)),
+                            TimeUnit.MILLISECONDS);
+                    if (finished == null) {
+                        /* The last one is slow, hedge with the next one */
+                        synchronized (this) {
+                            mHedges++;
+                        }
+                        attempts.add(completion.submit(attempt(urls.get(next++), downloader)));
+                        running++;
+                        continue;
+                    }
+                } else {
+                    finished = completion.take();
+                }
+                running--;
+
+                try {
+                    return finished.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        lastException = (IOException) e.getCause();
+                    } else {
+                        lastException = new IOException(e.getCause());
+                    }
+                }
+
+                /* That one failed, so don't wait to try the next */
+                if (next < urls.size() && running == 0) {
+                    attempts.add(completion.submit(attempt(urls.get(next++), downloader)));
+                    running++;
+                }
+            }
+            throw lastException;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            /* Stop the losers. Whatever they were doing doesn't count against their hosts */
+            for (Future<byte[]> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @param url        The URL to download
+     * @param downloader What downloads it
+     * @return Something which downloads the URL at the calling thread's priority, and records
+     * how its host did
+     */
+    private Callable<byte[]> attempt(final URL url, final Downloader downloader) {
+        final int priority = Process.getThreadPriority(Process.myTid());
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                Process.setThreadPriority(priority);
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    byte[] bytes = downloader.download(url);
+                    recordSuccess(url, SystemClock.elapsedRealtime() - start);
+                    return bytes;
+                } catch (IOException e) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        recordFailure(url);
+                    }
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param url A URL
+     * @return The average time its host takes to answer, in milliseconds, or -1 if it hasn't yet
+     */
+    public synchronized double getLatencyMillis(URL url) {
+        return getStats(getHost(url)).mLatencyMillis;
+    }
+
+    /**
+     * @param url A URL
+     * @return The average rate at which its host fails, from 0 to 1
+     */
+    public synchronized double getFailureRate(URL url) {
+        return getStats(getHost(url)).mFailureRate;
+    }
+
+    /**
+     * @param url A URL
+     * @return true if its host is being skipped because it keeps failing, false otherwise
+     */
+    public synchronized boolean isCircuitOpen(URL url) {
+        return getStats(getHost(url)).mOpenUntil > SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return The number of times a slow host was hedged with another one
+     */
+    public synchronized int getHedges() {
+        return mHedges;
+    }
+
+    /**
+     * @return A summary of every host, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("ImageSourceSelector: ");
+        builder.append(mDownloads).append(" downloads, ").append(mHedges).append(" hedges");
+        long now = SystemClock.elapsedRealtime();
+        for (String host : mHosts.keySet()) {
+            HostStats stats = mHosts.get(host);
+            builder.append(String.format(Locale.US, "; %s %.0fms %.0f%% failed%s", host,
+                    stats.mLatencyMillis, stats.mFailureRate * 100,
+                    stats.mOpenUntil > now ? " (open)" : ""));
+        }
+        return builder.toString();
+    }
+}
@@ -31,13 +31,15 @@ import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 /**
  * Encapsulate all information about a magic card
  */
 public class MtgCard extends Card {
-    private static final String DELIMITER = "%";
+    static final String DELIMITER = "%";
 
     /* Wish and trade list fields */
     public String setName;
@@ -145,6 +147,8 @@ public class MtgCard extends Card {
      */
     public static MtgCard fromTradeString(String line, Context context) {
 
+        MtgCard card = parseTradeString(line);
+
         SQLiteDatabase database = null;
         try {
             database = DatabaseManager.getInstance(context, false).openDatabase(false);
@@ -152,14 +156,6 @@ public class MtgCard extends Card {
             /* Carry on without the database */
         }
 
-        MtgCard card = new MtgCard();
-        String[] parts = line.split(DELIMITER);
-
-        /* Parse these parts out of the string */
-        card.mSide = Integer.parseInt(parts[0]);
-        card.mName = parts[1];
-        card.setCode = parts[2];
-
         /* Correct the mExpansion code for Duel Deck Anthologies */
         if (card.setCode.equals("DD3")) {
             try {
@@ -168,21 +164,8 @@ public class MtgCard extends Card {
                 /* Eat it and use the old mExpansion code. */
             }
         }
-        card.numberOf = Integer.parseInt(parts[3]);
 
-        /* These parts may not exist */
-        card.customPrice = parts.length > 4 && Boolean.parseBoolean(parts[4]);
-        if (parts.length > 5) {
-            card.price = Integer.parseInt(parts[5]);
-        } else {
-            card.price = 0;
-        }
-        card.foil = parts.length > 6 && Boolean.parseBoolean(parts[6]);
-
-        if (parts.length > 7) {
-            card.mCmc = Integer.parseInt(parts[7]);
-            card.mColor = parts[8];
-        } else {
+        if (line.split(DELIMITER).length <= 7) {
             /* Pull from db */
             try {
                 Cursor cardCursor = CardDbAdapter.fetchCardByName(card.mName, Arrays.asList(
@@ -207,6 +190,71 @@ public class MtgCard extends Card {
         return card;
     }
 
+    /**
+     * Look up the set names for trade cards read from a CardListFile, opening the database only
+     * once and each set only once
+     *
+     * @param cards   The cards to fill in. A card's setName is null if the database can't be read
+     * @param context The context for database access
+     */
+    public static void fillSetNames(List<MtgCard> cards, Context context) {
+        SQLiteDatabase database = null;
+        try {
+            database = DatabaseManager.getInstance(context, false).openDatabase(false);
+        } catch (FamiliarDbException e) {
+            /* Carry on without the database */
+        }
+
+        HashMap<String, String> setNames = new HashMap<>();
+        for (MtgCard card : cards) {
+            if (!setNames.containsKey(card.setCode)) {
+                try {
+                    setNames.put(card.setCode, CardDbAdapter.getSetNameFromCode(card.setCode, database));
+                } catch (FamiliarDbException | NullPointerException e) {
+                    setNames.put(card.setCode, null);
+                }
+            }
+            card.setName = setNames.get(card.setCode);
+            card.message = "loading";
+        }
+        DatabaseManager.getInstance(context, false).closeDatabase(false);
+    }
+
+    /**
+     * Parse the fields toTradeString() writes out of a trade list line, without touching the
+     * database. Older lines may not have the custom price, foil, converted mana cost, or color
+     *
+     * @param line A String representation of a MtgCard
+     * @return A MtgCard with only the fields in the line filled in
+     * @throws NumberFormatException     If the line is malformed
+     * @throws IndexOutOfBoundsException If the line is missing required fields
+     */
+    static MtgCard parseTradeString(String line) {
+        MtgCard card = new MtgCard();
+        String[] parts = line.split(DELIMITER);
+
+        /* Parse these parts out of the string */
+        card.mSide = Integer.parseInt(parts[0]);
+        card.mName = parts[1];
+        card.setCode = parts[2];
+        card.numberOf = Integer.parseInt(parts[3]);
+
+        /* These parts may not exist */
+        card.customPrice = parts.length > 4 && Boolean.parseBoolean(parts[4]);
+        if (parts.length > 5) {
+            card.price = Integer.parseInt(parts[5]);
+        } else {
+            card.price = 0;
+        }
+        card.foil = parts.length > 6 && Boolean.parseBoolean(parts[6]);
+
+        if (parts.length > 7) {
+            card.mCmc = Integer.parseInt(parts[7]);
+            card.mColor = parts[8];
+        }
+        return card;
+    }
+
     /**
      * Build a string to share this card within a trade, in plaintext
      *
@@ -263,11 +311,7 @@ public class MtgCard extends Card {
      */
     public static MtgCard fromWishlistString(String line, Context mCtx) {
 
-        MtgCard newCard = new MtgCard();
-        String[] parts = line.split(MtgCard.DELIMITER);
-
-        newCard.mName = parts[0];
-        newCard.setCode = parts[1];
+        MtgCard newCard = parseWishlistString(line);
 
         /* Correct the mExpansion code for Duel Deck Anthologies */
         if (newCard.setCode.equals("DD3")) {
@@ -279,6 +323,27 @@ public class MtgCard extends Card {
             }
             DatabaseManager.getInstance(mCtx, false).closeDatabase(false);
         }
+        newCard.message = mCtx.getString(R.string.wishlist_loading);
+
+        return newCard;
+    }
+
+    /**
+     * Parse the fields toWishlistString() writes out of a wishlist line, without touching the
+     * database
+     *
+     * @param line Information about this card, in the form of what toWishlistString() prints
+     * @return A MtgCard with only the fields in the line filled in
+     * @throws NumberFormatException     If the line is malformed
+     * @throws IndexOutOfBoundsException If the line is missing required fields
+     */
+    static MtgCard parseWishlistString(String line) {
+
+        MtgCard newCard = new MtgCard();
+        String[] parts = line.split(MtgCard.DELIMITER);
+
+        newCard.mName = parts[0];
+        newCard.setCode = parts[1];
         newCard.numberOf = Integer.parseInt(parts[2]);
 
         /* "foil" didn't exist in earlier versions, so it may not be part of the string */
@@ -299,11 +364,37 @@ public class MtgCard extends Card {
             foil = Boolean.parseBoolean(parts[5]);
         }
         newCard.foil = foil;
-        newCard.message = mCtx.getString(R.string.wishlist_loading);
 
         return newCard;
     }
 
+    /**
+     * Correct the set codes of any Duel Deck Anthologies cards, which used to be saved as "DD3".
+     * The database is only opened if there are any
+     *
+     * @param cards The cards to correct
+     * @param mCtx  A context to open the database with
+     */
+    static void correctSetCodes(List<MtgCard> cards, Context mCtx) {
+        SQLiteDatabase database = null;
+        for (MtgCard card : cards) {
+            if ("DD3".equals(card.setCode)) {
+                try {
+                    if (database == null) {
+                        database = DatabaseManager.getInstance(mCtx, false).openDatabase(false);
+                    }
+                    card.setCode = CardDbAdapter.getCorrectSetCode(card.mName, card.setCode, database);
+                } catch (FamiliarDbException e) {
+                    /* Eat it and use the old mExpansion code. */
+                    break;
+                }
+            }
+        }
+        if (database != null) {
+            DatabaseManager.getInstance(mCtx, false).closeDatabase(false);
+        }
+    }
+
     /**
      * Check to see if two MtgCard objects are equivalent, or if this is equivalent to a CompressedWishlistInfo
      * object. The comparison is done on the MtgCard's mName
@@ -752,6 +752,14 @@ edit.putString(context.getString(R.string.key_lastUpdate), lastUpdate);
         edit.apply();
     }
 
+    /* Sets to keep offline image packs for */
+    public static synchronized Set<String> getImagePackSets(@Nullable Context context) {
+        if (null == context) {
+            return new HashSet<>();
+        }
+        return PreferenceManager.getDefaultSharedPreferences(context).getStringSet(context.getString(R.string.key_imagePackSets), new HashSet<String>());
+    }
+
     /* This is slightly different because we want to make sure to commit a theme if one doesn't
      * exist, not just return the default. asd is a nice tag, no?
      */
@@ -837,6 +845,24 @@ edit.putString(context.getString(R.string.key_lastUpdate), lastUpdate);
         edit.apply();
     }
 
+    public static synchronized int getDatabaseIndexVersion(@Nullable Context context) {
+        if (null == context) {
+            return -1;
+        }
+        return PreferenceManager.getDefaultSharedPreferences(context).getInt(context.getString(R.string.key_database_index_version), -1);
+    }
+
+    public static synchronized void setDatabaseIndexVersion(@Nullable Context context, int databaseIndexVersion) {
+        if (null == context) {
+            return;
+        }
+
+        Editor edit = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        edit.putInt(context.getString(R.string.key_database_index_version),
+                databaseIndexVersion);
+        edit.apply();
+    }
+
     public static synchronized String getLanguage(@Nullable Context context) {
         if (null == context) {
             return null;
@@ -0,0 +1,623 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class caches prices in a single append-only file. Every record is a fixed-width block of
+ * the timestamp and four prices, followed by the cache key and the TCGplayer.com URL. A later
+ * record for the same key replaces an earlier one, and a record with a negative timestamp removes
+ * the key.
+ * <p>
+ * The file is read sequentially once, the first time it's used, to build an index of where each
+ * key's latest record is. The most recently used prices are also kept decoded in memory. Records
+ * are appended by a single background writer, and the file is rewritten without stale or very old
+ * records when it has grown to more than twice the size of its live data.
+ */
+public class PriceCache {
+
+    private static final String CACHE_FILE_NAME = "price_cache.bin";
+    /* Where RoboSpice's InFileObjectPersister kept one file per price, before this cache */
+    private static final String LEGACY_CACHE_DIR_NAME = "robospice-cache";
+    private static final int MAGIC = 0x50524943; /* "PRIC" */
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    /* A timestamp followed by the low, average, high, and foil average prices */
+    private static final int PRICE_BYTES = 8 + 4 * 8;
+    /* Anything longer than this isn't a real record, the file is corrupt */
+    private static final int MAX_RECORD_BYTES = 16 * 1024;
+    private static final long TOMBSTONE = -1;
+
+    /* How many decoded prices to keep in memory */
+    private static final int HOT_TIER_SIZE = 1024;
+    /* Records older than this are dropped when the file is compacted */
+    private static final long RETENTION_MS = 7 * 24 * 60 * 60 * 1000L;
+    /* Don't bother compacting files smaller than this */
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private static PriceCache sInstance;
+
+    private final File mFile;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private final HashMap<String, IndexEntry> mIndex = new HashMap<>();
+    private final LruCache<String, PriceInfo> mHotTier = new LruCache<>(HOT_TIER_SIZE);
+    private RandomAccessFile mRandomAccessFile;
+    private boolean mIsLoaded = false;
+    private long mFileBytes = 0;
+    private long mLiveBytes = 0;
+
+    /**
+     * Where a key's latest record is, and when it was saved
+     */
+    private static class IndexEntry {
+        long mOffset = -1;
+        int mLength = 0;
+        long mTimestamp;
+        /* The price which was saved, until the writer has appended it to the file */
+        PriceInfo mUnwritten;
+    }
+
+    /**
+     * A record read out of the file
+     */
+    private static class Record {
+        String mKey;
+        long mTimestamp;
+        PriceInfo mPriceInfo;
+    }
+
+    /**
+     * Returns the price cache for this application, creating it if necessary. There is only one
+     * instance per process so that two writers never append to the same file.
+     *
+     * @param context A context to find the cache directory with
+     * @return The PriceCache
+     */
+    public static synchronized PriceCache getInstance(Context context) {
+        if (sInstance == null) {
+            File cacheDir = context.getApplicationContext().getCacheDir();
+            sInstance = new PriceCache(new File(cacheDir, CACHE_FILE_NAME));
+            sInstance.deleteLegacyCache(new File(cacheDir, LEGACY_CACHE_DIR_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a cache backed by the given file. The file isn't read until the cache is first used.
+     *
+     * @param file The file to store prices in
+     */
+    PriceCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Delete the files the old per-price cache left behind. They're never read again, so they
+     * would otherwise stay on disk forever. This is done on the writer's thread so it doesn't hold
+     * up whoever asked for the cache first.
+     *
+     * @param legacyCacheDir The directory the old cache kept its files in
+     */
+    void deleteLegacyCache(final File legacyCacheDir) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                File files[] = legacyCacheDir.listFiles();
+                if (files == null) {
+                    /* Already gone */
+                    return;
+                }
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                legacyCacheDir.delete();
+            }
+        });
+    }
+
+    /**
+     * Look up a price in the cache
+     *
+     * @param key    The key the price was saved with
+     * @param maxAge How old the price may be, in milliseconds, or 0 if it never expires
+     * @return The price, or null if it isn't in the cache or has expired
+     * @throws IOException If the cache file can't be read
+     */
+    public synchronized PriceInfo get(String key, long maxAge) throws IOException {
+        IndexEntry entry = getEntry(key, maxAge);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mUnwritten != null) {
+            return entry.mUnwritten;
+        }
+        PriceInfo priceInfo = mHotTier.get(key);
+        if (priceInfo == null) {
+            priceInfo = readRecord(entry).mPriceInfo;
+            mHotTier.put(key, priceInfo);
+        }
+        return priceInfo;
+    }
+
+    /**
+     * @param key    The key the price was saved with
+     * @param maxAge How old the price may be, in milliseconds, or 0 if it never expires
+     * @return true if an unexpired price is cached for this key, false otherwise
+     * @throws IOException If the cache file can't be read
+     */
+    public synchronized boolean contains(String key, long maxAge) throws IOException {
+        return getEntry(key, maxAge) != null;
+    }
+
+    /**
+     * @param key The key the price was saved with
+     * @return When the price was saved, in milliseconds since the epoch, or -1 if it isn't cached
+     * @throws IOException If the cache file can't be read
+     */
+    public synchronized long getTimestamp(String key) throws IOException {
+        IndexEntry entry = getEntry(key, 0);
+        if (entry == null) {
+            return -1;
+        }
+        return entry.mTimestamp;
+    }
+
+    /**
+     * @return The keys of every price in the cache
+     * @throws IOException If the cache file can't be read
+     */
+    public synchronized List<String> getKeys() throws IOException {
+        load();
+        return new ArrayList<>(mIndex.keySet());
+    }
+
+    /**
+     * Save a price in the cache. It's visible to get() immediately, and written to the file in
+     * the background.
+     *
+     * @param key       The key to save the price with
+     * @param priceInfo The price to save
+     * @throws IOException If the cache file can't be read
+     */
+    public synchronized void put(final String key, final PriceInfo priceInfo) throws IOException {
+        load();
+        IndexEntry entry = mIndex.get(key);
+        if (entry == null) {
+            entry = new IndexEntry();
+            mIndex.put(key, entry);
+        }
+        entry.mTimestamp = System.currentTimeMillis();
+        entry.mUnwritten = priceInfo;
+        mHotTier.put(key, priceInfo);
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PriceCache.this) {
+                    IndexEntry entry = mIndex.get(key);
+                    /* If this price was replaced or removed before it was written, skip it */
+                    if (entry == null || entry.mUnwritten != priceInfo) {
+                        return;
+                    }
+                    try {
+                        byte[] record = toRecord(key, entry.mTimestamp, priceInfo);
+                        long offset = append(record);
+                        mLiveBytes += record.length - entry.mLength;
+                        entry.mOffset = offset;
+                        entry.mLength = record.length;
+                        entry.mUnwritten = null;
+                        compactIfNecessary();
+                    } catch (IOException e) {
+                        /* Keep it in memory. It'll be fetched again next time the app starts */
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove a price from the cache
+     *
+     * @param key The key the price was saved with
+     * @return true if the price was in the cache, false otherwise
+     * @throws IOException If the cache file can't be read
+     */
+    public synchronized boolean remove(final String key) throws IOException {
+        load();
+        final IndexEntry entry = mIndex.remove(key);
+        mHotTier.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PriceCache.this) {
+                    /* Nothing to remove from the file if it was never written */
+                    if (entry.mOffset < 0) {
+                        return;
+                    }
+                    mLiveBytes -= entry.mLength;
+                    /* If it was saved again, the new record replaces this one anyway */
+                    if (mIndex.containsKey(key)) {
+                        return;
+                    }
+                    try {
+                        append(toRecord(key, TOMBSTONE, new PriceInfo()));
+                    } catch (IOException e) {
+                        /* It'll come back next time the app starts, and expire eventually */
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Remove every price from the cache, and delete the file
+     */
+    public synchronized void clear() {
+        mIndex.clear();
+        mHotTier.evictAll();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PriceCache.this) {
+                    closeFile();
+                    //noinspection ResultOfMethodCallIgnored
+                    mFile.delete();
+                    mFileBytes = 0;
+                    mLiveBytes = 0;
+                }
+            }
+        });
+    }
+
+    /**
+     * Block until everything saved so far has been written to the file. This is only used for
+     * testing.
+     */
+    void flush() {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    /* Just wait for everything ahead of this */
+                }
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            /* eat it */
+        }
+    }
+
+    /**
+     * @return The size of the cache file, in bytes. This is only used for testing.
+     */
+    synchronized long getFileBytes() {
+        return mFileBytes;
+    }
+
+    /**
+     * Find a key's index entry, if it hasn't expired
+     *
+     * @param key    The key the price was saved with
+     * @param maxAge How old the price may be, in milliseconds, or 0 if it never expires
+     * @return The index entry, or null
+     * @throws IOException If the cache file can't be read
+     */
+    private IndexEntry getEntry(String key, long maxAge) throws IOException {
+        load();
+        IndexEntry entry = mIndex.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (maxAge != 0 && System.currentTimeMillis() - entry.mTimestamp > maxAge) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Read the whole file once, in order, to find the latest record for every key. A partially
+     * written or corrupt record is cut off along with everything after it, and a file which isn't
+     * a price cache is thrown away. The cache is only marked as loaded once the index and the
+     * file agree.
+     *
+     * @throws IOException If the file can't be read
+     */
+    private void load() throws IOException {
+        if (mIsLoaded) {
+            return;
+        }
+        if (!mFile.exists()) {
+            mIsLoaded = true;
+            return;
+        }
+
+        boolean loaded = false;
+        try {
+            long offset = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    in.close();
+                    //noinspection ResultOfMethodCallIgnored
+                    mFile.delete();
+                    mIsLoaded = loaded = true;
+                    return;
+                }
+                offset = HEADER_BYTES;
+                byte[] buffer = new byte[256];
+                while (true) {
+                    int length;
+                    Record record;
+                    try {
+                        length = in.readInt();
+                        if (length < PRICE_BYTES || length > MAX_RECORD_BYTES) {
+                            break;
+                        }
+                        if (buffer.length < length) {
+                            buffer = new byte[length];
+                        }
+                        in.readFully(buffer, 0, length);
+                        record = fromRecord(buffer, 0, length);
+                    } catch (IOException e) {
+                        /* The record was only partially written, or it's corrupt */
+                        break;
+                    }
+
+                    IndexEntry old;
+                    if (record.mTimestamp == TOMBSTONE) {
+                        old = mIndex.remove(record.mKey);
+                        mHotTier.remove(record.mKey);
+                    } else {
+                        IndexEntry entry = new IndexEntry();
+                        entry.mOffset = offset;
+                        entry.mLength = 4 + length;
+                        entry.mTimestamp = record.mTimestamp;
+                        old = mIndex.put(record.mKey, entry);
+                        mHotTier.put(record.mKey, record.mPriceInfo);
+                        mLiveBytes += entry.mLength;
+                    }
+                    if (old != null) {
+                        mLiveBytes -= old.mLength;
+                    }
+                    offset += 4 + length;
+                }
+            } catch (EOFException e) {
+                /* The header was only partially written */
+            } finally {
+                in.close();
+            }
+
+            /* Cut off anything after the last good record, so appends start there */
+            if (mFile.length() != offset) {
+                getFile().setLength(offset);
+            }
+            mFileBytes = offset;
+            mIsLoaded = loaded = true;
+        } finally {
+            if (!loaded) {
+                /* Start over next time, rather than keep part of the index */
+                mIndex.clear();
+                mHotTier.evictAll();
+                mLiveBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * Read a single record out of the file
+     *
+     * @param entry Where the record is
+     * @return The record
+     * @throws IOException If the file can't be read
+     */
+    private Record readRecord(IndexEntry entry) throws IOException {
+        byte[] bytes = new byte[entry.mLength];
+        RandomAccessFile file = getFile();
+        file.seek(entry.mOffset);
+        file.readFully(bytes);
+        return fromRecord(bytes, 4, bytes.length - 4);
+    }
+
+    /**
+     * Append a record to the end of the file, writing the header first if the file is new
+     *
+     * @param record The record to append
+     * @return The offset the record was written at
+     * @throws IOException If the file can't be written
+     */
+    private long append(byte[] record) throws IOException {
+        RandomAccessFile file = getFile();
+        if (mFileBytes == 0) {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeInt(FORMAT_VERSION);
+            mFileBytes = HEADER_BYTES;
+        }
+        long offset = mFileBytes;
+        file.seek(offset);
+        file.write(record);
+        mFileBytes += record.length;
+        return offset;
+    }
+
+    /**
+     * If the file is more than half stale records, rewrite it with only the latest record for each
+     * key, and drop anything older than RETENTION_MS. This is only called from the writer.
+     *
+     * @throws IOException If the file can't be rewritten
+     */
+    private void compactIfNecessary() throws IOException {
+        if (mFileBytes < MIN_COMPACTION_BYTES || mFileBytes < 2 * mLiveBytes) {
+            return;
+        }
+
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        File compacted = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(compacted));
+        HashMap<String, IndexEntry> newIndex = new HashMap<>();
+        long offset = HEADER_BYTES;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            for (Map.Entry<String, IndexEntry> entry : mIndex.entrySet()) {
+                IndexEntry oldEntry = entry.getValue();
+                if (oldEntry.mTimestamp < cutoff) {
+                    continue;
+                }
+                IndexEntry newEntry = new IndexEntry();
+                newEntry.mTimestamp = oldEntry.mTimestamp;
+                newEntry.mUnwritten = oldEntry.mUnwritten;
+                if (oldEntry.mOffset >= 0) {
+                    byte[] bytes = new byte[oldEntry.mLength];
+                    RandomAccessFile file = getFile();
+                    file.seek(oldEntry.mOffset);
+                    file.readFully(bytes);
+                    out.write(bytes);
+                    newEntry.mOffset = offset;
+                    newEntry.mLength = bytes.length;
+                    offset += bytes.length;
+                }
+                newIndex.put(entry.getKey(), newEntry);
+            }
+        } finally {
+            out.close();
+        }
+
+        closeFile();
+        if (!compacted.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            compacted.delete();
+            return;
+        }
+        for (String key : mIndex.keySet()) {
+            if (!newIndex.containsKey(key)) {
+                mHotTier.remove(key);
+            }
+        }
+        mIndex.clear();
+        mIndex.putAll(newIndex);
+        mFileBytes = offset;
+        mLiveBytes = offset - HEADER_BYTES;
+    }
+
+    /**
+     * @return The cache file, opened for reading and writing
+     * @throws IOException If the file can't be opened
+     */
+    private RandomAccessFile getFile() throws IOException {
+        if (mRandomAccessFile == null) {
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        }
+        return mRandomAccessFile;
+    }
+
+    /**
+     * Close the cache file, if it's open
+     */
+    private void closeFile() {
+        if (mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                /* eat it */
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    /**
+     * Pack a price into a record. The record starts with its length, then the fixed-width
+     * timestamp and prices, then the key and URL.
+     *
+     * @param key       The key the price is saved with
+     * @param timestamp When the price was saved, or TOMBSTONE if it was removed
+     * @param priceInfo The price
+     * @return The record's bytes
+     * @throws IOException If the key or URL is too long to write
+     */
+    private static byte[] toRecord(String key, long timestamp, PriceInfo priceInfo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(PRICE_BYTES + 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(timestamp);
+        out.writeDouble(priceInfo.mLow);
+        out.writeDouble(priceInfo.mAverage);
+        out.writeDouble(priceInfo.mHigh);
+        out.writeDouble(priceInfo.mFoilAverage);
+        out.writeUTF(key);
+        out.writeUTF(priceInfo.mUrl == null ? "" : priceInfo.mUrl);
+        out.close();
+
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(record.length - 4);
+        return record;
+    }
+
+    /**
+     * Unpack a record, without its leading length
+     *
+     * @param bytes  The bytes containing the record
+     * @param offset Where the record starts, after its length
+     * @param length How many bytes long the record is
+     * @return The record
+     * @throws IOException If the record is malformed
+     */
+    private static Record fromRecord(byte[] bytes, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        Record record = new Record();
+        record.mTimestamp = in.readLong();
+        record.mPriceInfo = new PriceInfo();
+        record.mPriceInfo.mLow = in.readDouble();
+        record.mPriceInfo.mAverage = in.readDouble();
+        record.mPriceInfo.mHigh = in.readDouble();
+        record.mPriceInfo.mFoilAverage = in.readDouble();
+        record.mKey = in.readUTF();
+        record.mPriceInfo.mUrl = in.readUTF();
+        return record;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.octo.android.robospice.SpiceManager;
+import com.octo.android.robospice.exception.RequestCancelledException;
+import com.octo.android.robospice.persistence.DurationInMillis;
+import com.octo.android.robospice.persistence.exception.SpiceException;
+import com.octo.android.robospice.request.listener.RequestListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class batches price requests from every list in an activity. Requests made in the same
+ * pass through the main loop are flushed together. The metadata for all of their cards is looked
+ * up with a single query on a background thread. A card and set which is already pending or being
+ * fetched isn't fetched again, and its listener is called when the first fetch finishes. The
+ * number of fetches running at once is capped by PriceFetchService.
+ * <p>
+ * This must only be used from the main thread, which is also where RoboSpice calls listeners.
+ */
+public class PriceFetchBatcher {
+
+    private final SpiceManager mSpiceManager;
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private String mPriceUrl = PriceFetchRequest.PRICE_URL;
+
+    /* The metadata lookup runs here, so the database isn't queried on the main thread */
+    private final ExecutorService mLookupExecutor = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /* Requests which haven't been flushed yet, keyed by cache key */
+    private final LinkedHashMap<String, PendingPrice> mPending = new LinkedHashMap<>();
+    /* Requests which were flushed and are having their metadata looked up, keyed by cache key */
+    private final HashMap<String, PendingPrice> mLookingUp = new HashMap<>();
+    /* Everyone waiting for a fetch which has been handed to RoboSpice, keyed by cache key */
+    private final HashMap<String, ArrayList<RequestListener<PriceInfo>>> mInFlight = new HashMap<>();
+    private boolean mFlushPosted = false;
+
+    /**
+     * A price which was requested, and everyone waiting for it
+     */
+    private static class PendingPrice {
+        final String mCardName;
+        final String mSetCode;
+        final String mCardNumber;
+        final ArrayList<RequestListener<PriceInfo>> mListeners = new ArrayList<>();
+
+        PendingPrice(String cardName, String setCode, String cardNumber) {
+            mCardName = cardName;
+            mSetCode = setCode;
+            mCardNumber = cardNumber;
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPosted = false;
+            flush();
+        }
+    };
+
+    /**
+     * Default constructor
+     *
+     * @param spiceManager The SpiceManager to execute the requests with
+     * @param context      A context to open the database with
+     */
+    public PriceFetchBatcher(SpiceManager spiceManager, Context context) {
+        mSpiceManager = spiceManager;
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Fetch prices from a different URL. This is only used for testing.
+     *
+     * @param priceUrl The URL to fetch prices from, without any parameters
+     */
+    void setPriceUrl(String priceUrl) {
+        mPriceUrl = priceUrl;
+    }
+
+    /**
+     * @param cardName The name of a card
+     * @param setCode  The set code of the card
+     * @return The key prices for this card are cached with
+     */
+    public static String getCacheKey(String cardName, String setCode) {
+        return cardName + "-" + setCode;
+    }
+
+    /**
+     * Request the price for a card. The listener is called on the main thread when the price is
+     * fetched, either by this request or an identical one.
+     *
+     * @param cardName   The name of the card to look up
+     * @param setCode    The set code (not TCG name) of this card's set
+     * @param cardNumber The collector's number of the card, may be null
+     * @param listener   The listener to call when the price is fetched
+     */
+    public void fetchPrice(String cardName, String setCode, String cardNumber,
+                           RequestListener<PriceInfo> listener) {
+        String key = getCacheKey(cardName, setCode);
+
+        /* If this price is already being fetched, just wait for it */
+        ArrayList<RequestListener<PriceInfo>> inFlight = mInFlight.get(key);
+        if (inFlight != null) {
+            inFlight.add(listener);
+            return;
+        }
+
+        /* If this price's metadata is being looked up, it'll be fetched right after */
+        PendingPrice pending = mLookingUp.get(key);
+        if (pending != null) {
+            pending.mListeners.add(listener);
+            return;
+        }
+
+        pending = mPending.get(key);
+        if (pending == null) {
+            pending = new PendingPrice(cardName, setCode, cardNumber);
+            mPending.put(key, pending);
+        }
+        pending.mListeners.add(listener);
+
+        if (!mFlushPosted) {
+            mFlushPosted = true;
+            mHandler.post(mFlush);
+        }
+    }
+
+    /**
+     * @return The number of distinct prices which are waiting to be fetched or being fetched
+     */
+    public int getPendingRequestCount() {
+        return mPending.size() + mLookingUp.size() + mInFlight.size();
+    }
+
+    /**
+     * Cancel every pending and in flight request. Every listener which was waiting is called with
+     * a RequestCancelledException, so that anyone counting outstanding requests gets back to zero.
+     */
+    public void cancelAll() {
+        mHandler.removeCallbacks(mFlush);
+        mFlushPosted = false;
+
+        ArrayList<RequestListener<PriceInfo>> listeners = new ArrayList<>();
+        for (PendingPrice pending : mPending.values()) {
+            listeners.addAll(pending.mListeners);
+        }
+        for (PendingPrice pending : mLookingUp.values()) {
+            listeners.addAll(pending.mListeners);
+        }
+        for (ArrayList<RequestListener<PriceInfo>> inFlight : mInFlight.values()) {
+            listeners.addAll(inFlight);
+        }
+        mPending.clear();
+        mLookingUp.clear();
+        mInFlight.clear();
+        mSpiceManager.cancelAllRequests();
+
+        /* Clear everything before calling listeners, in case they request prices again */
+        RequestCancelledException cancelled = new RequestCancelledException("Price fetch cancelled");
+        for (RequestListener<PriceInfo> listener : listeners) {
+            listener.onRequestFailure(cancelled);
+        }
+    }
+
+    /**
+     * Look up the metadata for every pending card at once in the background, then hand them all to
+     * RoboSpice back on the main thread.
+     */
+    private void flush() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        final LinkedHashMap<String, PendingPrice> batch = new LinkedHashMap<>(mPending);
+        mPending.clear();
+        mLookingUp.putAll(batch);
+
+        final HashSet<String> names = new HashSet<>();
+        for (PendingPrice pending : batch.values()) {
+            names.add(pending.mCardName);
+        }
+        mLookupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                /* Look up all the metadata in one query. If that fails, each request looks up its
+                 * own */
+                HashMap<String, PriceFetchRequest.CardMetadata> metadata = null;
+                try {
+                    SQLiteDatabase database = DatabaseManager.getInstance(mContext, false).openDatabase(false);
+                    metadata = CardDbAdapter.fetchPriceMetadata(names, database);
+                } catch (FamiliarDbException e) {
+                    /* eat it */
+                } finally {
+                    DatabaseManager.getInstance(mContext, false).closeDatabase(false);
+                }
+
+                final HashMap<String, PriceFetchRequest.CardMetadata> finalMetadata = metadata;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute(batch, finalMetadata);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Hand a batch of requests to RoboSpice. Anything which was cancelled while its metadata was
+     * being looked up is skipped.
+     *
+     * @param batch    The requests which were flushed together, keyed by cache key
+     * @param metadata The metadata for the batch, keyed by name and set, or null if it couldn't be
+     *                 looked up
+     */
+    private void execute(LinkedHashMap<String, PendingPrice> batch,
+                         HashMap<String, PriceFetchRequest.CardMetadata> metadata) {
+        for (Map.Entry<String, PendingPrice> entry : batch.entrySet()) {
+            final String key = entry.getKey();
+            PendingPrice pending = entry.getValue();
+            if (mLookingUp.get(key) != pending) {
+                /* cancelAll() was called, and its listeners were already told */
+                continue;
+            }
+            mLookingUp.remove(key);
+
+            PriceFetchRequest.CardMetadata cardMetadata = null;
+            if (metadata != null) {
+                cardMetadata = metadata.get(
+                        CardDbAdapter.getPriceMetadataKey(pending.mCardName, pending.mSetCode));
+            }
+            PriceFetchRequest request;
+            if (cardMetadata != null) {
+                request = new PriceFetchRequest(pending.mCardName, pending.mSetCode,
+                        pending.mCardNumber, cardMetadata, mContext);
+            } else {
+                request = new PriceFetchRequest(pending.mCardName, pending.mSetCode,
+                        pending.mCardNumber, -1, mContext);
+            }
+            request.setPriceUrl(mPriceUrl);
+
+            mInFlight.put(key, pending.mListeners);
+            mSpiceManager.execute(request, key, DurationInMillis.ONE_DAY, new RequestListener<PriceInfo>() {
+                @Override
+                public void onRequestFailure(SpiceException spiceException) {
+                    ArrayList<RequestListener<PriceInfo>> listeners = mInFlight.remove(key);
+                    if (listeners != null) {
+                        for (RequestListener<PriceInfo> listener : listeners) {
+                            listener.onRequestFailure(spiceException);
+                        }
+                    }
+                }
+
+                @Override
+                public void onRequestSuccess(PriceInfo result) {
+                    ArrayList<RequestListener<PriceInfo>> listeners = mInFlight.remove(key);
+                    if (listeners != null) {
+                        for (RequestListener<PriceInfo> listener : listeners) {
+                            listener.onRequestSuccess(result);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
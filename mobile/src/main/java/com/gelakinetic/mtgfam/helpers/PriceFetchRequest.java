@@ -53,12 +53,27 @@ import javax.xml.parsers.ParserConfigurationException;
 public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
 
     private static final int MAX_NUM_RETRIES = 8;
+    static final String PRICE_URL = "http://partner.tcgplayer.com/x3/phl.asmx/p";
     private final String mCardName;
     private final String mSetCode;
     private final Context mContext;
     private int mMultiverseID;
     private String mCardType;
     private String mCardNumber;
+    private String mTcgName;
+    private String mPriceUrl = PRICE_URL;
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * Everything about a card which is needed to fetch its price, so that it can be looked up
+     * for many cards at once with CardDbAdapter.fetchPriceMetadata()
+     */
+    public static class CardMetadata {
+        public String mNumber;
+        public String mType;
+        public int mMultiverseId;
+        public String mTcgName;
+    }
 
     /**
      * Default constructor
@@ -77,6 +92,58 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
         this.mContext = context;
     }
 
+    /**
+     * Constructor for a card whose metadata was already looked up, so the database is only opened
+     * if this is a multicard
+     *
+     * @param cardName   The name of the card to look up
+     * @param setCode    The set code (not TCG name) of this card's set
+     * @param cardNumber The collector's number of the printing to look up, or null or empty to use
+     *                   the number in the metadata. Cards like basic lands have several numbers in
+     *                   one set, and the metadata only has one of them
+     * @param metadata   The card's number, type, multiverse ID, and TCG set name
+     * @param context    The context to check the network state with
+     */
+    PriceFetchRequest(String cardName, String setCode, String cardNumber, CardMetadata metadata,
+                      Context context) {
+        this(cardName, setCode, (cardNumber == null || cardNumber.equals("")) ? metadata.mNumber : cardNumber,
+                metadata.mMultiverseId, context);
+        this.mCardType = metadata.mType;
+        this.mTcgName = metadata.mTcgName;
+    }
+
+    /**
+     * Fetch prices from a different URL. This is only used for testing.
+     *
+     * @param priceUrl The URL to fetch prices from, without any parameters
+     */
+    void setPriceUrl(String priceUrl) {
+        mPriceUrl = priceUrl;
+    }
+
+    /**
+     * Open the database the first time it's needed.
+     *
+     * @return A readable database
+     * @throws FamiliarDbException If the database can't be opened
+     */
+    private SQLiteDatabase getDatabase() throws FamiliarDbException {
+        if (mDatabase == null) {
+            mDatabase = DatabaseManager.getInstance(mContext, false).openDatabase(false);
+        }
+        return mDatabase;
+    }
+
+    /**
+     * Close the database, if it was opened.
+     */
+    private void closeDatabase() {
+        if (mDatabase != null) {
+            DatabaseManager.getInstance(mContext, false).closeDatabase(false);
+            mDatabase = null;
+        }
+    }
+
     /**
      * This function takes a string of XML information and parses it into a Document object in order to extract prices
      *
@@ -109,17 +176,11 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
         int retry = MAX_NUM_RETRIES; /* try the fetch up to eight times, for different accent mark & split card combos*/
         /* then the same for multicard ordering */
         SpiceException exception = null; /* Save the exception during while loops */
-        SQLiteDatabase database;
-        try {
-            database = DatabaseManager.getInstance(mContext, false).openDatabase(false);
-        } catch (FamiliarDbException e) {
-            throw new SpiceException(e.getLocalizedMessage());
-        }
         while (retry > 0) {
             try {
                 /* If the card number wasn't given, figure it out */
                 if (mCardNumber == null || mCardNumber.equals("") || mCardType == null || mCardType.equals("") || mMultiverseID == -1) {
-                    Cursor c = CardDbAdapter.fetchCardByNameAndSet(mCardName, mSetCode, CardDbAdapter.ALL_CARD_DATA_KEYS, database);
+                    Cursor c = CardDbAdapter.fetchCardByNameAndSet(mCardName, mSetCode, CardDbAdapter.ALL_CARD_DATA_KEYS, getDatabase());
 
                     if (mCardNumber == null || mCardNumber.equals("")) {
                         mCardNumber = c.getString(c.getColumnIndex(CardDbAdapter.KEY_NUMBER));
@@ -130,7 +191,7 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
                     }
 
                     if (mMultiverseID == -1) {
-                        mMultiverseID = CardDbAdapter.getMultiverseIdFromNameAndSet(mCardName, mSetCode, database);
+                        mMultiverseID = CardDbAdapter.getMultiverseIdFromNameAndSet(mCardName, mSetCode, getDatabase());
                         if (mMultiverseID == -1) {
                             c.close();
                             throw new FamiliarDbException(null);
@@ -142,7 +203,10 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
                 CardDbAdapter.MultiCardType multiCardType = CardDbAdapter.isMultiCard(mCardNumber, mSetCode);
 
                 /* Get the TCGplayer.com set name, why can't everything be consistent? */
-                String tcgName = CardDbAdapter.getTcgName(mSetCode, database);
+                if (mTcgName == null) {
+                    mTcgName = CardDbAdapter.getTcgName(mSetCode, getDatabase());
+                }
+                String tcgName = mTcgName;
                 /* Figure out the tcgCardName, which is tricky for split cards */
                 String tcgCardName;
 
@@ -152,19 +216,19 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
                     switch (retry % (MAX_NUM_RETRIES / 2)) {
                         case 0:
                             /* Try just the a side */
-                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(mSetCode, mCardNumber.replace("b", "a"), database);
+                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(mSetCode, mCardNumber.replace("b", "a"), getDatabase());
                             break;
                         case 3:
                             /* Try just the b side */
-                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(mSetCode, mCardNumber.replace("a", "b"), database);
+                            tcgCardName = CardDbAdapter.getNameFromSetAndNumber(mSetCode, mCardNumber.replace("a", "b"), getDatabase());
                             break;
                         case 2:
                             /* Try the combined name in one direction */
-                            tcgCardName = CardDbAdapter.getSplitName(mMultiverseID, true, database);
+                            tcgCardName = CardDbAdapter.getSplitName(mMultiverseID, true, getDatabase());
                             break;
                         case 1:
                             /* Try the combined name in the other direction */
-                            tcgCardName = CardDbAdapter.getSplitName(mMultiverseID, false, database);
+                            tcgCardName = CardDbAdapter.getSplitName(mMultiverseID, false, getDatabase());
                             break;
                         default:
                             /* Something went wrong */
@@ -182,7 +246,7 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
                 }
 
                 /* Build the URL */
-                URL priceUrl = new URL("http://partner.tcgplayer.com/x3/phl.asmx/p?pk=MTGFAMILIA&s=" +
+                URL priceUrl = new URL(mPriceUrl + "?pk=MTGFAMILIA&s=" +
                         URLEncoder.encode(tcgName, "UTF-8") + "&p=" +
                         URLEncoder.encode(tcgCardName, "UTF-8") +
                         URLEncoder.encode((mCardType.startsWith("Basic Land") ? " (" + mCardNumber + ")" : ""), "UTF-8")
@@ -209,7 +273,7 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
                         pi.mAverage = pi.mFoilAverage;
                         pi.mHigh = pi.mFoilAverage;
                     }
-                    DatabaseManager.getInstance(mContext, false).closeDatabase(false); /* database close if everything was ok */
+                    closeDatabase(); /* database close if everything was ok */
                     return pi;
                 } catch (NumberFormatException | DOMException error) {
                     exception = new SpiceException(error.getLocalizedMessage());
@@ -224,7 +288,7 @@ public class PriceFetchRequest extends SpiceRequest<PriceInfo> {
             }
             retry--;
         }
-        DatabaseManager.getInstance(mContext, false).closeDatabase(false); /* database close if something failed */
+        closeDatabase(); /* database close if something failed */
         throw exception;
     }
 
@@ -23,99 +23,111 @@ import android.app.Application;
 
 import com.octo.android.robospice.SpiceService;
 import com.octo.android.robospice.persistence.CacheManager;
-import com.octo.android.robospice.persistence.exception.CacheCreationException;
+import com.octo.android.robospice.persistence.ObjectPersister;
 import com.octo.android.robospice.persistence.exception.CacheLoadingException;
 import com.octo.android.robospice.persistence.exception.CacheSavingException;
-import com.octo.android.robospice.persistence.file.InFileObjectPersister;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the service which will fetch price information asynchronously
  */
 public class PriceFetchService extends SpiceService {
 
+    /* The most prices which will be fetched at the same time. More are queued */
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+
+    /**
+     * By default RoboSpice runs one request at a time, which fetches a long list's prices serially.
+     * Running a few at once is much faster without flooding the price server.
+     *
+     * @return The number of threads to execute requests with
+     */
+    @Override
+    public int getThreadCount() {
+        return MAX_CONCURRENT_FETCHES;
+    }
+
     /**
-     * Creates a CacheManager with a custom Persister which handles PriceInfo objects
+     * Creates a CacheManager with a custom Persister which stores PriceInfo objects in a PriceCache
      *
      * @param application The application which will run the service
-     * @return A CacheManager with a custom InFileObjectPersister to handle PriceInfo objects
-     * @throws CacheCreationException thrown by new InFileObjectPersister()
+     * @return A CacheManager with a custom ObjectPersister to handle PriceInfo objects
      */
     @Override
-    public CacheManager createCacheManager(Application application) throws CacheCreationException {
+    public CacheManager createCacheManager(Application application) {
         CacheManager cacheManager = new CacheManager();
+        final PriceCache priceCache = PriceCache.getInstance(application);
 
-        InFileObjectPersister<PriceInfo> priceInfoPersister = new InFileObjectPersister<PriceInfo>(application,
+        ObjectPersister<PriceInfo> priceInfoPersister = new ObjectPersister<PriceInfo>(application,
                 PriceInfo.class) {
 
             /**
-             * This will check to see if a file for this key exists in the cache, and return that information if it does
+             * This will check to see if this key exists in the cache, and return that information if it does
              *
              * @param cacheKey    The key to lookup in the cache
              * @param maxTimeInCacheBeforeExpiry    How long data lives in the cache before being requested again
-             * @return A PriceInfo object, or null if the object was nto in the cache
+             * @return A PriceInfo object, or null if the object was not in the cache
              * @throws CacheLoadingException Thrown if there is an IOException when reading from the cache
              */
             @Override
             public PriceInfo loadDataFromCache(Object cacheKey, long maxTimeInCacheBeforeExpiry)
                     throws CacheLoadingException {
-                File file = getCacheFile(cacheKey);
-                if (file.exists()) {
-                    long timeInCache = System.currentTimeMillis() - file.lastModified();
-                    if (maxTimeInCacheBeforeExpiry == 0 || timeInCache <= maxTimeInCacheBeforeExpiry) {
-                        try {
-                            return new PriceInfo(fileToBytes(file));
-                        } catch (FileNotFoundException e) {
-                            return null;
-                        } catch (IOException e) {
-                            throw new CacheLoadingException(e);
+                try {
+                    return priceCache.get(cacheKey.toString(), maxTimeInCacheBeforeExpiry);
+                } catch (IOException e) {
+                    throw new CacheLoadingException(e);
+                }
+            }
+
+            /**
+             * @return Every PriceInfo in the cache
+             * @throws CacheLoadingException Thrown if there is an IOException when reading from the cache
+             */
+            @Override
+            public List<PriceInfo> loadAllDataFromCache() throws CacheLoadingException {
+                try {
+                    ArrayList<PriceInfo> allData = new ArrayList<>();
+                    for (String key : priceCache.getKeys()) {
+                        PriceInfo data = priceCache.get(key, 0);
+                        if (data != null) {
+                            allData.add(data);
                         }
                     }
+                    return allData;
+                } catch (IOException e) {
+                    throw new CacheLoadingException(e);
+                }
+            }
+
+            /**
+             * @return Every key in the cache, or an empty list if the cache can't be read
+             */
+            @Override
+            public List<Object> getAllCacheKeys() {
+                try {
+                    return new ArrayList<Object>(priceCache.getKeys());
+                } catch (IOException e) {
+                    return new ArrayList<>();
                 }
-                return null;
             }
 
             /**
-             * Save some fresh data into the cache, and return it too
+             * Save some fresh data into the cache, and return it too. The cache writes it to disk
+             * in the background
+             *
              * @param data    The PriceInfo data to cache
              * @param cacheKey    The key to cache it with
              * @return The same data that was passed in
-             * @throws CacheSavingException If the cache could not be written to
+             * @throws CacheSavingException If the cache could not be read
              */
             @Override
-            public PriceInfo saveDataToCacheAndReturnData(final PriceInfo data, final Object cacheKey)
+            public PriceInfo saveDataToCacheAndReturnData(PriceInfo data, Object cacheKey)
                     throws CacheSavingException {
                 try {
-                    if (isAsyncSaveEnabled()) {
-
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    BufferedOutputStream bos = new BufferedOutputStream(
-                                            new FileOutputStream(getCacheFile(cacheKey)));
-                                    bos.write(data.toBytes());
-                                    bos.flush();
-                                    bos.close();
-                                } catch (IOException e) {
-                                    /* Eat it */
-                                }
-                            }
-                        }.start();
-                    } else {
-                        BufferedOutputStream bos = new BufferedOutputStream(
-                                new FileOutputStream(getCacheFile(cacheKey)));
-                        bos.write(data.toBytes());
-                        bos.flush();
-                        bos.close();
-                    }
+                    priceCache.put(cacheKey.toString(), data);
                 } catch (IOException e) {
                     throw new CacheSavingException(e);
                 }
@@ -123,45 +135,60 @@ public class PriceFetchService extends SpiceService {
             }
 
             /**
-             * Read a PriceInfo object out of a File
-             * @param file The file in the cache
-             * @return The PriceInfo
-             * @throws CacheLoadingException Thrown if there is an IOException
+             * @param cacheKey The key to remove from the cache
+             * @return true if the key was in the cache, false otherwise
              */
             @Override
-            protected PriceInfo readCacheDataFromFile(File file) throws CacheLoadingException {
-                if (file.exists()) {
-                    try {
-                        return new PriceInfo(fileToBytes(file));
-                    } catch (FileNotFoundException e) {
-                        return null;
-                    } catch (IOException e) {
-                        throw new CacheLoadingException(e);
+            public boolean removeDataFromCache(Object cacheKey) {
+                try {
+                    return priceCache.remove(cacheKey.toString());
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            /**
+             * Remove everything from the cache
+             */
+            @Override
+            public void removeAllDataFromCache() {
+                priceCache.clear();
+            }
+
+            /**
+             * @param cacheKey The key to look up
+             * @return When the data for this key was saved
+             * @throws CacheLoadingException If the key isn't in the cache, or the cache can't be read
+             */
+            @Override
+            public long getCreationDateInCache(Object cacheKey) throws CacheLoadingException {
+                try {
+                    long timestamp = priceCache.getTimestamp(cacheKey.toString());
+                    if (timestamp == -1) {
+                        throw new CacheLoadingException("Data could not be found in cache for cacheKey=" + cacheKey);
                     }
+                    return timestamp;
+                } catch (IOException e) {
+                    throw new CacheLoadingException(e);
+                }
+            }
+
+            /**
+             * @param cacheKey    The key to look up
+             * @param maxTimeInCacheBeforeExpiry    How long data lives in the cache before being requested again
+             * @return true if unexpired data is in the cache for this key, false otherwise
+             */
+            @Override
+            public boolean isDataInCache(Object cacheKey, long maxTimeInCacheBeforeExpiry) {
+                try {
+                    return priceCache.contains(cacheKey.toString(), maxTimeInCacheBeforeExpiry);
+                } catch (IOException e) {
+                    return false;
                 }
-                return null;
             }
         };
 
-        priceInfoPersister.setAsyncSaveEnabled(true);
         cacheManager.addPersister(priceInfoPersister);
         return cacheManager;
     }
-
-    /**
-     * Convenience function to read a file's contents into a byte[], and return it
-     *
-     * @param file The file to read
-     * @return The files bytes in byte[] form
-     * @throws IOException Thrown if there is an exception reading the file
-     */
-    private byte[] fileToBytes(File file) throws IOException {
-        byte[] buffer = new byte[(int) file.length()];
-        InputStream ios = new FileInputStream(file);
-        if (ios.read(buffer) == -1) {
-            throw new IOException("EOF reached while trying to read the whole file");
-        }
-        ios.close();
-        return buffer;
-    }
-}
\ No newline at end of file
+}
@@ -31,6 +31,8 @@ import java.util.List;
 public class SearchCriteria implements Serializable {
     private static final long serialVersionUID = 4712329695735151965L;
     public String name = null;
+    /* true to match the name in every language a card is printed in, not just English */
+    public boolean localizedNames = false;
     public String text = null;
     public List<String> superTypes = null;
     public List<String> subTypes = null;
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.content.Context;
+
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class does the slow parts of starting the app on a background thread, one stage after
+ * another, so the first frame doesn't wait for them. The biggest is installing or verifying the
+ * card database, then opening it for writing once, which rebuilds its indices after an install or
+ * upgrade. Both take longer the bigger the database is. Anything which needs the database
+ * blocks in DatabaseManager.getInstance() until it's ready, so only screens which actually use the
+ * database ever wait for it. Every stage, in the background or not, is recorded in a StartupTrace.
+ */
+public class StartupInitializer {
+
+    private static StartupInitializer sInstance;
+
+    private final StartupTrace mTrace = new StartupTrace();
+    private final ExecutorService mExecutor;
+    private volatile Thread mThread;
+    private volatile Future<?> mDatabaseReady;
+    /* The stages which only run once per process, and have been submitted */
+    private final HashSet<String> mSubmittedOnce = new HashSet<>();
+
+    /**
+     * @return The initializer for this application
+     */
+    public static synchronized StartupInitializer getInstance() {
+        if (sInstance == null) {
+            sInstance = new StartupInitializer();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Use getInstance() instead, except in tests
+     */
+    StartupInitializer() {
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                mThread = new Thread(runnable, "StartupInitializer");
+                return mThread;
+            }
+        });
+    }
+
+    /**
+     * @return The trace every stage of this startup is recorded in
+     */
+    public StartupTrace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Start installing or verifying the database in the background, if it hasn't been started yet.
+     * The database is then opened for writing and closed, so DatabaseHelper.onOpen() does any
+     * index, full text, or legality rebuilding here instead of wherever the database is opened
+     * first.
+     *
+     * @param context A context to install the database with
+     */
+    public synchronized void startDatabase(Context context) {
+        if (mDatabaseReady != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        mDatabaseReady = submit(StartupTrace.STAGE_DATABASE, new Runnable() {
+            @Override
+            public void run() {
+                DatabaseManager.initializeInstance(appContext);
+                /* This thread doesn't wait for itself in getInstance(). The database is opened the
+                 * way screens open it, which is writable unless the disk is full */
+                DatabaseManager manager = DatabaseManager.getInstance(appContext, false);
+                try {
+                    manager.openDatabase(false);
+                } catch (FamiliarDbException e) {
+                    /* Whoever opens the database next will fail the same way, and report it */
+                } finally {
+                    manager.closeDatabase(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a stage in the background, after every stage submitted before it, and record how long it
+     * took. Exceptions from the stage are thrown from the returned Future.
+     *
+     * @param name  The stage's name
+     * @param stage The work to do
+     * @return A Future which is done when the stage is
+     */
+    public Future<?> submit(final String name, final Runnable stage) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    stage.run();
+                } finally {
+                    mTrace.record(name, start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a stage in the background, like submit(), unless a stage with the same name was already
+     * submitted this way. Stages which aren't tied to an Activity use this, so they aren't run
+     * again every time the Activity is recreated, i.e. when it's rotated.
+     *
+     * @param name  The stage's name
+     * @param stage The work to do
+     * @return A Future which is done when the stage is, or null if it was already submitted
+     */
+    public synchronized Future<?> submitOnce(String name, Runnable stage) {
+        if (!mSubmittedOnce.add(name)) {
+            return null;
+        }
+        return submit(name, stage);
+    }
+
+    /**
+     * Block until the database is installed, if it's being installed in the background. If it was
+     * never started in the background, this returns immediately and the database is installed by
+     * whichever thread opens it first, like before.
+     */
+    public void awaitDatabase() {
+        Future<?> databaseReady = mDatabaseReady;
+        if (databaseReady == null || databaseReady.isDone()
+                || Thread.currentThread() == mThread) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    databaseReady.get();
+                    break;
+                } catch (InterruptedException e) {
+                    /* Keep waiting, the caller can't use the database without it */
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    /* Opening the database will fail the same way, and report it */
+                    break;
+                }
+            }
+        } finally {
+            mTrace.record(StartupTrace.STAGE_DATABASE_WAIT, start);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the database is ready, or was never started in the background
+     */
+    public boolean isDatabaseReady() {
+        Future<?> databaseReady = mDatabaseReady;
+        return databaseReady == null || databaseReady.isDone();
+    }
+}
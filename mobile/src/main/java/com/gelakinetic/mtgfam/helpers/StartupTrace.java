@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * This class records when each stage of starting the app began and how long it took, and which
+ * thread it ran on, so it's easy to see what the first frame waited for.
+ */
+public class StartupTrace {
+
+    /* Stages which run in the background */
+    public static final String STAGE_DATABASE = "database";
+    public static final String STAGE_NAME_INDEX = "nameIndex";
+    public static final String STAGE_IMAGE_CACHE = "imageCache";
+    public static final String STAGE_IMAGE_PACKS = "imagePacks";
+    public static final String STAGE_UPDATE_CHECK = "updateCheck";
+    /* Stages which run on the main thread */
+    public static final String STAGE_CONTENT_VIEW = "contentView";
+    public static final String STAGE_PREFERENCES = "preferences";
+    public static final String STAGE_DRAWER = "drawer";
+    public static final String STAGE_INTENT = "intent";
+    /* Time a thread spent blocked until the database was ready */
+    public static final String STAGE_DATABASE_WAIT = "databaseWait";
+    /* The first frame was drawn. This is a point in time, so it has no duration */
+    public static final String STAGE_FIRST_FRAME = "firstFrame";
+
+    private final long mStartNanos;
+    private final ArrayList<Stage> mStages = new ArrayList<>();
+
+    /**
+     * A stage which finished
+     */
+    public static class Stage {
+        public final String mName;
+        public final String mThreadName;
+        public final boolean mOnMainThread;
+        /* When the stage started, relative to when the trace started */
+        public final double mStartMillis;
+        public final double mDurationMillis;
+
+        /**
+         * @param name           The stage's name
+         * @param threadName     The thread the stage ran on
+         * @param onMainThread   Whether that was the main thread
+         * @param startMillis    When the stage started, relative to when the trace started
+         * @param durationMillis How long the stage took
+         */
+        Stage(String name, String threadName, boolean onMainThread, double startMillis,
+              double durationMillis) {
+            mName = name;
+            mThreadName = threadName;
+            mOnMainThread = onMainThread;
+            mStartMillis = startMillis;
+            mDurationMillis = durationMillis;
+        }
+
+        /**
+         * @return When the stage finished, relative to when the trace started
+         */
+        public double getEndMillis() {
+            return mStartMillis + mDurationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %.1fms at %.1fms on %s", mName, mDurationMillis,
+                    mStartMillis, mOnMainThread ? "main" : mThreadName);
+        }
+    }
+
+    /**
+     * Start a trace now
+     */
+    public StartupTrace() {
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Record a stage which ran on this thread, from startNanos until now
+     *
+     * @param name       The stage's name
+     * @param startNanos When the stage started, from System.nanoTime()
+     */
+    public void record(String name, long startNanos) {
+        long endNanos = System.nanoTime();
+        Stage stage = new Stage(name, Thread.currentThread().getName(),
+                Looper.myLooper() == Looper.getMainLooper(),
+                (startNanos - mStartNanos) / 1000000.0, (endNanos - startNanos) / 1000000.0);
+        synchronized (mStages) {
+            mStages.add(stage);
+        }
+    }
+
+    /**
+     * Record a point in time, like the first frame being drawn
+     *
+     * @param name The point's name
+     */
+    public void mark(String name) {
+        record(name, System.nanoTime());
+    }
+
+    /**
+     * @param name A stage's name
+     * @return The first time that stage finished, or null if it hasn't
+     */
+    public Stage getStage(String name) {
+        synchronized (mStages) {
+            for (Stage stage : mStages) {
+                if (stage.mName.equals(name)) {
+                    return stage;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Every stage which finished, in the order they finished
+     */
+    public ArrayList<Stage> getStages() {
+        synchronized (mStages) {
+            return new ArrayList<>(mStages);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Startup trace");
+        for (Stage stage : getStages()) {
+            builder.append("\n  ").append(stage);
+        }
+        return builder.toString();
+    }
+}
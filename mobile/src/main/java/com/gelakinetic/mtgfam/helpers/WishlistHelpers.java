@@ -28,10 +28,8 @@ import com.gelakinetic.mtgfam.fragments.dialogs.SortOrderDialogFragment.SortOpti
 import com.gelakinetic.mtgfam.helpers.CardHelpers.IndividualSetInfo;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
 
-import java.io.BufferedReader;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -51,6 +49,26 @@ public class WishlistHelpers {
 
     /* The name of the wishlist file */
     private static final String WISHLIST_NAME = "card.wishlist";
+    /* The name of the file changes to the wishlist are appended to */
+    private static final String WISHLIST_LOG_NAME = "card.wishlist.log";
+
+    private static WishlistStore sWishlistStore;
+
+    /**
+     * Returns the wishlist store for this application, creating it if necessary. There is only one
+     * so that every fragment sees the same wishlist, and it's only read from the file once.
+     *
+     * @param mCtx A context to find the files directory with
+     * @return The WishlistStore
+     */
+    private static synchronized WishlistStore getWishlistStore(Context mCtx) {
+        if (sWishlistStore == null) {
+            File filesDir = mCtx.getApplicationContext().getFilesDir();
+            sWishlistStore = new WishlistStore(new File(filesDir, WISHLIST_NAME),
+                    new File(filesDir, WISHLIST_LOG_NAME));
+        }
+        return sWishlistStore;
+    }
 
     /**
      * Write the wishlist passed as a parameter to the wishlist file
@@ -60,14 +78,8 @@ public class WishlistHelpers {
      */
     public static void WriteWishlist(Context mCtx, ArrayList<MtgCard> lWishlist) {
         try {
-            FileOutputStream fos = mCtx.openFileOutput(WISHLIST_NAME, Context.MODE_PRIVATE);
-
-            for (MtgCard m : lWishlist) {
-                fos.write(m.toWishlistString().getBytes());
-            }
-
-            fos.close();
-        } catch (IOException e) {
+            getWishlistStore(mCtx).replace(lWishlist);
+        } catch (IOException | NumberFormatException e) {
             ToastWrapper.makeAndShowText(mCtx, e.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
         }
     }
@@ -83,19 +95,32 @@ public class WishlistHelpers {
             // Context is null, don't try to write the wishlist
             return;
         }
-        try {
-            FileOutputStream fos = mCtx.openFileOutput(WISHLIST_NAME, Context.MODE_PRIVATE);
-
-            /* For each compressed card, make an MtgCard and write it to the wishlist */
-            for (CompressedWishlistInfo cwi : mCompressedWishlist) {
-                for (IndividualSetInfo isi : cwi.mInfo) {
-                    cwi.applyIndividualInfo(isi);
-                    fos.write(cwi.toWishlistString().getBytes());
-                }
+        /* For each compressed card, make an MtgCard and write it to the wishlist */
+        ArrayList<MtgCard> cards = new ArrayList<>();
+        for (CompressedWishlistInfo cwi : mCompressedWishlist) {
+            for (IndividualSetInfo isi : cwi.mInfo) {
+                cwi.applyIndividualInfo(isi);
+                cards.add(WishlistStore.copy(cwi));
             }
+        }
+        try {
+            getWishlistStore(mCtx).replace(cards);
+        } catch (IOException | NumberFormatException e) {
+            ToastWrapper.makeAndShowText(mCtx, e.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
+        }
+    }
 
-            fos.close();
-        } catch (IOException e) {
+    /**
+     * Set the number of copies of some cards in the wishlist. Cards with no copies are removed, and
+     * cards which aren't in the wishlist are added. Only these cards are written to the file.
+     *
+     * @param mCtx  A context to open the file and pop toasts with
+     * @param cards The cards to set in the wishlist
+     */
+    public static void SetWishlistCards(Context mCtx, ArrayList<MtgCard> cards) {
+        try {
+            getWishlistStore(mCtx).set(cards);
+        } catch (IOException | NumberFormatException e) {
             ToastWrapper.makeAndShowText(mCtx, e.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
         }
     }
@@ -107,17 +132,16 @@ public class WishlistHelpers {
      * @param wishlistInfo the CompressedWishlistInfo to add to the wishlist
      */
     public static void addItemToWishlist(final Context context, final CompressedWishlistInfo wishlistInfo) {
-        final ArrayList<MtgCard> currentWishlist = ReadWishlist(context);
+        ArrayList<MtgCard> cards = new ArrayList<>(wishlistInfo.mInfo.size());
         for (IndividualSetInfo isi : wishlistInfo.mInfo) {
             wishlistInfo.applyIndividualInfo(isi);
-            if (currentWishlist.contains(wishlistInfo)) {
-                final int existingIndex = currentWishlist.indexOf(wishlistInfo);
-                currentWishlist.get(existingIndex).numberOf += wishlistInfo.numberOf;
-            } else {
-                currentWishlist.add(wishlistInfo);
-            }
+            cards.add(WishlistStore.copy(wishlistInfo));
+        }
+        try {
+            getWishlistStore(context).add(cards);
+        } catch (IOException | NumberFormatException e) {
+            ToastWrapper.makeAndShowText(context, e.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
         }
-        WriteWishlist(context, currentWishlist);
     }
 
     /**
@@ -126,13 +150,19 @@ public class WishlistHelpers {
      * @param mCtx A context to open the file wish
      */
     public static void ResetCards(Context mCtx) {
+        getWishlistStore(mCtx).clear();
+    }
 
-        String[] files = mCtx.fileList();
-        for (String fileName : files) {
-            if (fileName.equals(WISHLIST_NAME)) {
-                mCtx.deleteFile(fileName);
-            }
-        }
+    /**
+     * Get the wishlist ready to have a backup imported over its file. Changes which are only in
+     * the log are folded into the file, and the wishlist is read from the file again when it's
+     * next used.
+     *
+     * @param mCtx A context to open the file with
+     * @throws IOException If the wishlist file can't be written
+     */
+    public static void PrepareForImport(Context mCtx) throws IOException {
+        getWishlistStore(mCtx).reset();
     }
 
     /**
@@ -147,17 +177,12 @@ public class WishlistHelpers {
         int orderAddedIdx = 0;
 
         try {
-            String line;
-            BufferedReader br = new BufferedReader(new InputStreamReader(mCtx.openFileInput(WISHLIST_NAME)));
-            try {
-                /* Read each line as a card, and add them to the ArrayList */
-                while ((line = br.readLine()) != null) {
-                    MtgCard card = MtgCard.fromWishlistString(line, mCtx);
-                    card.setIndex(orderAddedIdx++);
-                    lWishlist.add(card);
-                }
-            } finally {
-                br.close();
+            lWishlist.addAll(getWishlistStore(mCtx).read());
+            MtgCard.correctSetCodes(lWishlist, mCtx);
+            String loading = mCtx.getString(R.string.wishlist_loading);
+            for (MtgCard card : lWishlist) {
+                card.setIndex(orderAddedIdx++);
+                card.message = loading;
             }
         } catch (NumberFormatException e) {
             ToastWrapper.makeAndShowText(mCtx, e.getLocalizedMessage(), ToastWrapper.LENGTH_LONG);
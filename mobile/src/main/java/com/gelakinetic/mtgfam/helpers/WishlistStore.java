@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the wishlist in memory, indexed by each entry's name, set, collector's number,
+ * and foil-ness, so cards can be merged into it in constant time.
+ * <p>
+ * The wishlist file is a snapshot of every entry, written by CardListFile. Older versions wrote it
+ * as text, one MtgCard.toWishlistString() line per entry, and it's rewritten the first time it's
+ * read. Changes are appended to a log next to it, one toWishlistString() line per changed entry
+ * with that entry's new count, where a count of zero removes the entry. The log is replayed over
+ * the snapshot when the wishlist is read, and folded back into the snapshot once it's longer than
+ * the wishlist.
+ */
+class WishlistStore {
+
+    /* Don't bother compacting logs shorter than this */
+    private static final int MIN_COMPACTION_LOG_LINES = 64;
+
+    private final File mSnapshotFile;
+    private final File mLogFile;
+
+    /* Each entry, keyed by getKey(). null until loaded */
+    private LinkedHashMap<String, MtgCard> mEntries;
+    private int mLogLines;
+
+    /**
+     * Create a store for the given files. Neither file is read until the store is first used.
+     *
+     * @param snapshotFile The file the whole wishlist is written to
+     * @param logFile      The file changes are appended to
+     */
+    WishlistStore(File snapshotFile, File logFile) {
+        mSnapshotFile = snapshotFile;
+        mLogFile = logFile;
+    }
+
+    /**
+     * @param card A wishlist entry
+     * @return The key which identifies this entry: its name, set, collector's number, and foil-ness
+     */
+    static String getKey(MtgCard card) {
+        return card.mName + MtgCard.DELIMITER +
+                card.setCode + MtgCard.DELIMITER +
+                card.mNumber + MtgCard.DELIMITER +
+                card.foil;
+    }
+
+    /**
+     * Copy only the fields a wishlist entry saves. The store never shares cards with its callers,
+     * since they're often reused and changed while building a list.
+     *
+     * @param card The card to copy
+     * @return A new MtgCard with the same wishlist fields
+     */
+    static MtgCard copy(MtgCard card) {
+        MtgCard copy = new MtgCard();
+        copy.mName = card.mName;
+        copy.setCode = card.setCode;
+        copy.numberOf = card.numberOf;
+        copy.mNumber = card.mNumber;
+        copy.mRarity = card.mRarity;
+        copy.foil = card.foil;
+        return copy;
+    }
+
+    /**
+     * @param a One wishlist entry
+     * @param b Another wishlist entry with the same key
+     * @return true if both entries would be saved the same way, false otherwise
+     */
+    private static boolean isSame(MtgCard a, MtgCard b) {
+        return a.numberOf == b.numberOf && a.mRarity == b.mRarity;
+    }
+
+    /**
+     * Put an entry into a wishlist, adding its copies to an entry which is already there
+     *
+     * @param entries The wishlist
+     * @param card    The entry to put, which is copied if it isn't merged
+     * @return The entry in the wishlist
+     */
+    private static MtgCard merge(LinkedHashMap<String, MtgCard> entries, MtgCard card) {
+        String key = getKey(card);
+        MtgCard existing = entries.get(key);
+        if (existing != null) {
+            existing.numberOf += card.numberOf;
+            return existing;
+        }
+        MtgCard copy = copy(card);
+        entries.put(key, copy);
+        return copy;
+    }
+
+    /**
+     * @return Every entry in the wishlist, in the order they were added
+     * @throws IOException           If the wishlist can't be read
+     * @throws NumberFormatException If the wishlist is malformed
+     */
+    synchronized List<MtgCard> read() throws IOException {
+        load();
+        ArrayList<MtgCard> cards = new ArrayList<>(mEntries.size());
+        for (MtgCard card : mEntries.values()) {
+            cards.add(copy(card));
+        }
+        return cards;
+    }
+
+    /**
+     * Add some entries to the wishlist. If an entry is already in the wishlist, the number of
+     * copies is added to it, otherwise it's added at the end.
+     *
+     * @param cards The entries to add
+     * @throws IOException           If the wishlist can't be read or written
+     * @throws NumberFormatException If the wishlist is malformed
+     */
+    synchronized void add(Collection<? extends MtgCard> cards) throws IOException {
+        load();
+        ArrayList<MtgCard> changed = new ArrayList<>(cards.size());
+        for (MtgCard card : cards) {
+            changed.add(merge(mEntries, card));
+        }
+        append(changed);
+    }
+
+    /**
+     * Set the number of copies of some entries in the wishlist. Entries with no copies are
+     * removed, and entries which aren't already in the wishlist are added at the end.
+     *
+     * @param cards The entries to set
+     * @throws IOException           If the wishlist can't be read or written
+     * @throws NumberFormatException If the wishlist is malformed
+     */
+    synchronized void set(Collection<? extends MtgCard> cards) throws IOException {
+        load();
+        ArrayList<MtgCard> changed = new ArrayList<>(cards.size());
+        for (MtgCard card : cards) {
+            String key = getKey(card);
+            if (card.numberOf <= 0) {
+                if (mEntries.remove(key) == null) {
+                    continue;
+                }
+            } else {
+                MtgCard existing = mEntries.get(key);
+                if (existing != null && isSame(existing, card)) {
+                    continue;
+                }
+                mEntries.put(key, copy(card));
+            }
+            changed.add(card);
+        }
+        append(changed);
+    }
+
+    /**
+     * Replace the whole wishlist. If the new wishlist is the old one in the same order, with some
+     * entries changed or removed and new ones at the end, only the differences are appended to
+     * the log. Otherwise the snapshot is rewritten.
+     *
+     * @param cards The new wishlist, in order
+     * @throws IOException           If the wishlist can't be read or written
+     * @throws NumberFormatException If the wishlist is malformed
+     */
+    synchronized void replace(Collection<? extends MtgCard> cards) throws IOException {
+        load();
+
+        LinkedHashMap<String, MtgCard> entries = new LinkedHashMap<>();
+        for (MtgCard card : cards) {
+            merge(entries, card);
+        }
+
+        /* The old entries which are still in the wishlist must come first, in the same order */
+        Iterator<String> newKeys = entries.keySet().iterator();
+        ArrayList<MtgCard> changed = new ArrayList<>();
+        for (Map.Entry<String, MtgCard> entry : mEntries.entrySet()) {
+            MtgCard newCard = entries.get(entry.getKey());
+            if (newCard == null) {
+                MtgCard removed = copy(entry.getValue());
+                removed.numberOf = 0;
+                changed.add(removed);
+                continue;
+            }
+            if (!newKeys.next().equals(entry.getKey())) {
+                mEntries = entries;
+                compact();
+                return;
+            }
+            if (!isSame(newCard, entry.getValue())) {
+                changed.add(newCard);
+            }
+        }
+        while (newKeys.hasNext()) {
+            changed.add(entries.get(newKeys.next()));
+        }
+
+        mEntries = entries;
+        append(changed);
+    }
+
+    /**
+     * Remove everything from the wishlist, and delete its files
+     */
+    synchronized void clear() {
+        //noinspection ResultOfMethodCallIgnored
+        mSnapshotFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mLogFile.delete();
+        mEntries = new LinkedHashMap<>();
+        mLogLines = 0;
+    }
+
+    /**
+     * Fold the log into the snapshot and forget the wishlist in memory, so that the next use reads
+     * the files again. This is used before a backup is imported over the snapshot, which a log
+     * written against the old snapshot must not be replayed over. If the wishlist can't be read,
+     * it's about to be replaced anyway, and the log is just deleted.
+     *
+     * @throws IOException If the snapshot can't be written or the log can't be deleted
+     */
+    synchronized void reset() throws IOException {
+        try {
+            load();
+            compact();
+        } catch (NumberFormatException e) {
+            deleteLog();
+        } finally {
+            mEntries = null;
+            mLogLines = 0;
+        }
+    }
+
+    /**
+     * Read the snapshot, then replay the log over it. A text snapshot from an older version is
+     * rewritten in the binary format, and any duplicate entries in it are merged.
+     *
+     * @throws IOException           If the wishlist can't be read
+     * @throws NumberFormatException If the wishlist is malformed
+     */
+    private void load() throws IOException {
+        if (mEntries != null) {
+            return;
+        }
+
+        LinkedHashMap<String, MtgCard> entries = new LinkedHashMap<>();
+        boolean isLegacy = false;
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(mSnapshotFile));
+        } catch (FileNotFoundException e) {
+            in = null;
+        }
+        if (in != null) {
+            try {
+                if (CardListFile.isBinary(in)) {
+                    CardListFile.Reader reader = new CardListFile.Reader(in);
+                    MtgCard card;
+                    while ((card = reader.read()) != null) {
+                        merge(entries, card);
+                    }
+                } else {
+                    isLegacy = true;
+                    for (String line : readLines(in)) {
+                        merge(entries, MtgCard.parseWishlistString(line));
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new NumberFormatException(e.getMessage());
+            } finally {
+                in.close();
+            }
+        }
+
+        List<String> log;
+        try {
+            log = readLines(new FileInputStream(mLogFile));
+        } catch (FileNotFoundException e) {
+            log = new ArrayList<>();
+        }
+        try {
+            for (String line : log) {
+                MtgCard card = MtgCard.parseWishlistString(line);
+                if (card.numberOf <= 0) {
+                    entries.remove(getKey(card));
+                } else {
+                    entries.put(getKey(card), card);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new NumberFormatException(e.getMessage());
+        }
+
+        mEntries = entries;
+        mLogLines = log.size();
+
+        if (isLegacy) {
+            compact();
+        }
+    }
+
+    /**
+     * @param in The stream to read, which is closed afterwards
+     * @return Every non-empty line in the stream
+     * @throws IOException If the stream can't be read
+     */
+    private static List<String> readLines(InputStream in) throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Append changed entries to the log, then compact it if it's longer than the wishlist
+     *
+     * @param cards The changed entries
+     * @throws IOException If the log can't be written
+     */
+    private void append(List<MtgCard> cards) throws IOException {
+        if (cards.isEmpty()) {
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mLogFile, true)));
+        try {
+            for (MtgCard card : cards) {
+                writer.write(card.toWishlistString());
+            }
+        } finally {
+            writer.close();
+        }
+        mLogLines += cards.size();
+
+        if (mLogLines > MIN_COMPACTION_LOG_LINES && mLogLines > mEntries.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Write the whole wishlist to the snapshot and delete the log. The snapshot is written to a
+     * temporary file first so that it's never partially written.
+     *
+     * @throws IOException If the snapshot can't be written or the log can't be deleted
+     */
+    private void compact() throws IOException {
+        File temporary = new File(mSnapshotFile.getPath() + ".tmp");
+        CardListFile.Writer writer = new CardListFile.Writer(new FileOutputStream(temporary));
+        try {
+            for (MtgCard card : mEntries.values()) {
+                writer.writeWishlistCard(card);
+            }
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(mSnapshotFile)) {
+            throw new IOException("Couldn't replace " + mSnapshotFile.getName());
+        }
+        deleteLog();
+        mLogLines = 0;
+    }
+
+    /**
+     * Delete the log, or empty it if it can't be deleted. A log left behind would be replayed over
+     * a snapshot which already has its changes, and any entry it sets which was removed since
+     * would come back.
+     *
+     * @throws IOException If the log can't be deleted or emptied
+     */
+    private void deleteLog() throws IOException {
+        if (!mLogFile.exists() || mLogFile.delete()) {
+            return;
+        }
+        /* Opening the log without appending truncates it */
+        new FileOutputStream(mLogFile).close();
+        if (mLogFile.length() != 0) {
+            throw new IOException("Couldn't delete " + mLogFile.getName());
+        }
+    }
+}
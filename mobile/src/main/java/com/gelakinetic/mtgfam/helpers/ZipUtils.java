@@ -129,6 +129,8 @@ public class ZipUtils {
         File sdCard = Environment.getExternalStorageDirectory();
         File zipIn = new File(sdCard, BACKUP_FILE_NAME);
         try {
+            /* The wishlist in memory, and its log, are stale once the backup is imported */
+            WishlistHelpers.PrepareForImport(activity);
             unZipIt(new ZipFile(zipIn), activity);
             ToastWrapper.makeAndShowText(activity, R.string.main_import_success, ToastWrapper.LENGTH_SHORT);
         } catch (IOException e) {
@@ -29,28 +29,34 @@ import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
+import android.util.Log;
 
 import com.gelakinetic.GathererScraper.JsonTypes.Card;
 import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
 import com.gelakinetic.GathererScraper.Language;
+import com.gelakinetic.mtgfam.BuildConfig;
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.CardHelpers.CompressedCardInfo;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.PriceFetchRequest;
 import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+import com.gelakinetic.mtgfam.helpers.util.AccentFolder;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Simple Cards database access helper class. Defines the basic CRUD operations and gives the
@@ -64,6 +70,8 @@ public class CardDbAdapter {
     /* The name of the database */
     public static final String DATABASE_NAME = "data";
 
+    private static final String LOG_TAG = "CardDbAdapter";
+
     /* Database Tables */
     public static final String DATABASE_TABLE_CARDS = "cards";
     public static final String DATABASE_TABLE_SETS = "sets";
@@ -72,6 +80,11 @@ public class CardDbAdapter {
     private static final String DATABASE_TABLE_BANNED_CARDS = "banned_cards";
     private static final String DATABASE_TABLE_RULES = "rules";
     private static final String DATABASE_TABLE_GLOSSARY = "glossary";
+    static final String DATABASE_TABLE_CARDS_FTS = "cards_fts";
+    static final String DATABASE_TABLE_FTS_WORDS = "cards_fts_words";
+    static final String DATABASE_TABLE_NAMES_FTS = "card_names_fts";
+    static final String DATABASE_TABLE_NAMES_FTS_WORDS = "card_names_fts_words";
+    private static final String DATABASE_TABLE_LEGALITY = "legality_matrix";
 
     /* Database Keys */
     public static final String KEY_ID = "_id";
@@ -101,16 +114,16 @@ public class CardDbAdapter {
     public static final String KEY_DEFINITION = "definition";
     public static final String KEY_BANNED_LIST = "banned_list";
     public static final String KEY_LEGAL_SETS = "legal_sets";
-    private static final String KEY_NAME_TCGPLAYER = "name_tcgplayer";
+    static final String KEY_NAME_TCGPLAYER = "name_tcgplayer";
     private static final String KEY_FORMAT = "format";
     public static final String KEY_DIGEST = "digest";
     private static final String KEY_RULINGS = "rulings";
-    private static final String KEY_CODE_MTGI = "code_mtgi";
-    private static final String KEY_DATE = "date";
+    static final String KEY_CODE_MTGI = "code_mtgi";
+    static final String KEY_DATE = "date";
     private static final String KEY_POSITION = "position";
-    private static final String KEY_COLOR_IDENTITY = "color_identity";
-    private static final String KEY_CAN_BE_FOIL = "can_be_foil";
-    private static final String KEY_NAME_NO_ACCENT = "name_no_accent";
+    static final String KEY_COLOR_IDENTITY = "color_identity";
+    static final String KEY_CAN_BE_FOIL = "can_be_foil";
+    static final String KEY_NAME_NO_ACCENT = "name_no_accent";
     public static final String KEY_NAME_CHINESE_TRADITIONAL = "NAME_CHINESE_TRADITIONAL";
     public static final String KEY_MULTIVERSEID_CHINESE_TRADITIONAL = "MULTIVERSEID_CHINESE_TRADITIONAL";
     public static final String KEY_NAME_CHINESE_SIMPLIFIED = "NAME_CHINESE_SIMPLIFIED";
@@ -131,7 +144,12 @@ public class CardDbAdapter {
     public static final String KEY_MULTIVERSEID_SPANISH = "MULTIVERSEID_SPANISH";
     public static final String KEY_NAME_KOREAN = "NAME_KOREAN";
     public static final String KEY_MULTIVERSEID_KOREAN = "MULTIVERSEID_KOREAN";
-    private static final String KEY_WATERMARK = "WATERMARK";
+    static final String KEY_WATERMARK = "WATERMARK";
+    static final String KEY_DOCID = "docid";
+    static final String KEY_WORD = "word";
+    static final String KEY_NAME_FOLDED = "name_folded";
+    static final String KEY_CONTENT_HASH = "content_hash";
+    private static final String KEY_IN_FORMAT = "in_format";
 
     /* All the columns in DATABASE_TABLE_CARDS */
     public static final List<String> ALL_CARD_DATA_KEYS = Collections.unmodifiableList(Arrays.asList(
@@ -190,6 +208,44 @@ public class CardDbAdapter {
             DATABASE_TABLE_SETS + "." + KEY_CAN_BE_FOIL
     ));
 
+    /* All the columns in DATABASE_TABLE_CARDS which are mirrored in DATABASE_TABLE_CARDS_FTS */
+    static final List<String> ALL_FTS_KEYS = Collections.unmodifiableList(Arrays.asList(
+            KEY_NAME_NO_ACCENT,
+            KEY_ABILITY,
+            KEY_FLAVOR,
+            KEY_ARTIST,
+            KEY_NAME_CHINESE_TRADITIONAL,
+            KEY_NAME_CHINESE_SIMPLIFIED,
+            KEY_NAME_FRENCH,
+            KEY_NAME_GERMAN,
+            KEY_NAME_ITALIAN,
+            KEY_NAME_JAPANESE,
+            KEY_NAME_PORTUGUESE_BRAZIL,
+            KEY_NAME_RUSSIAN,
+            KEY_NAME_SPANISH,
+            KEY_NAME_KOREAN
+    ));
+
+    /* Every name a card is printed with, English first. These are folded with foldName() and
+     * mirrored in DATABASE_TABLE_NAMES_FTS */
+    static final List<String> ALL_NAME_KEYS = Collections.unmodifiableList(Arrays.asList(
+            KEY_NAME,
+            KEY_NAME_CHINESE_TRADITIONAL,
+            KEY_NAME_CHINESE_SIMPLIFIED,
+            KEY_NAME_FRENCH,
+            KEY_NAME_GERMAN,
+            KEY_NAME_ITALIAN,
+            KEY_NAME_JAPANESE,
+            KEY_NAME_PORTUGUESE_BRAZIL,
+            KEY_NAME_RUSSIAN,
+            KEY_NAME_SPANISH,
+            KEY_NAME_KOREAN
+    ));
+
+    /* The docid of a row in DATABASE_TABLE_NAMES_FTS is the card's KEY_ID times this, plus the
+     * position of the name's column in ALL_NAME_KEYS */
+    static final int NAMES_FTS_DOCID_STRIDE = 16;
+
     /* SQL Strings used to create the database tables */
     private static final String DATABASE_CREATE_FORMATS =
             "create table " + DATABASE_TABLE_FORMATS + "(" +
@@ -257,7 +313,8 @@ public class CardDbAdapter {
                     KEY_NAME_SPANISH + " text, " +
                     KEY_MULTIVERSEID_SPANISH + " integer, " +
                     KEY_NAME_KOREAN + " text, " +
-                    KEY_MULTIVERSEID_KOREAN + " integer);";
+                    KEY_MULTIVERSEID_KOREAN + " integer, " +
+                    KEY_CONTENT_HASH + " text);";
 
     static final String DATABASE_CREATE_SETS =
             "create table " + DATABASE_TABLE_SETS + "(" +
@@ -279,6 +336,99 @@ public class CardDbAdapter {
                     KEY_RULE_TEXT + " text not null, " +
                     KEY_POSITION + " integer null);";
 
+    /* The full text index. The docid of each row is the KEY_ID of the mirrored card */
+    private static final String DATABASE_CREATE_CARDS_FTS =
+            "create virtual table " + DATABASE_TABLE_CARDS_FTS + " using fts4(" +
+                    TextUtils.join(", ", ALL_FTS_KEYS) + ");";
+
+    /* Every token in DATABASE_TABLE_CARDS_FTS, used to expand infix searches into MATCH terms */
+    private static final String DATABASE_CREATE_FTS_WORDS =
+            "create table " + DATABASE_TABLE_FTS_WORDS + "(" +
+                    KEY_WORD + " text primary key);";
+
+    /* Every name of every card, folded, so names in any language and script can be matched */
+    private static final String DATABASE_CREATE_NAMES_FTS =
+            "create virtual table " + DATABASE_TABLE_NAMES_FTS + " using fts4(" +
+                    KEY_NAME_FOLDED + ");";
+
+    /* Every token in DATABASE_TABLE_NAMES_FTS, used to expand infix searches into MATCH terms */
+    private static final String DATABASE_CREATE_NAMES_FTS_WORDS =
+            "create table " + DATABASE_TABLE_NAMES_FTS_WORDS + "(" +
+                    KEY_WORD + " text primary key);";
+
+    /* Every card's legality in every format, built from the legality tables so lookups don't need
+     * sub-queries. KEY_IN_FORMAT is 1 if Search() keeps the card when filtering by the format */
+    private static final String DATABASE_CREATE_LEGALITY =
+            "create table " + DATABASE_TABLE_LEGALITY + "(" +
+                    KEY_NAME + " text not null, " +
+                    KEY_FORMAT + " text not null, " +
+                    KEY_LEGALITY + " integer not null, " +
+                    KEY_IN_FORMAT + " integer not null);";
+
+    /* Lookups are either by card, or by format for Search() */
+    private static final String[] DATABASE_CREATE_LEGALITY_INDICES = {
+            "create unique index if not exists idx_legality_name_format on " +
+                    DATABASE_TABLE_LEGALITY + "(" + KEY_NAME + ", " + KEY_FORMAT + ");",
+            "create index if not exists idx_legality_format_in_format on " +
+                    DATABASE_TABLE_LEGALITY + "(" + KEY_FORMAT + ", " + KEY_IN_FORMAT + ", " + KEY_NAME + ");"
+    };
+
+    /* SQLite won't bind more than 999 arguments to a single statement */
+    private static final int MAX_BOUND_ARGUMENTS = 500;
+
+    /* If an infix search term matches more words than this, it isn't worth using the FTS table */
+    private static final int MAX_FTS_WORDS_PER_TERM = 64;
+
+    /* The number of compiled statements SQLite keeps per connection. This is the maximum it allows.
+     * Searches bind their arguments, so searches of the same shape reuse a compiled statement */
+    static final int SQL_CACHE_SIZE = 100;
+
+    /* The timing of the most recent search, for profiling */
+    private static volatile SearchTiming sLastSearchTiming = null;
+
+    /* Secondary indices. DATABASE_INDEX_VERSION must be incremented whenever these change,
+     * or when the full text index needs to be rebuilt, or when a column is added to the packaged
+     * database's tables */
+    public static final int DATABASE_INDEX_VERSION = 6;
+
+    private static final String INDEX_CARDS_NAME = "idx_cards_name";
+    private static final String INDEX_CARDS_NAME_NO_ACCENT = "idx_cards_name_no_accent";
+    private static final String INDEX_CARDS_SET_NUMBER = "idx_cards_set_number";
+    private static final String INDEX_CARDS_MULTIVERSEID = "idx_cards_multiverseid";
+    private static final String INDEX_LEGAL_SETS_FORMAT_SET = "idx_legal_sets_format_set";
+    private static final String INDEX_BANNED_CARDS_FORMAT_NAME = "idx_banned_cards_format_name";
+
+    /* SQL Strings used to create the indices on DATABASE_TABLE_CARDS */
+    private static final String[] DATABASE_CREATE_CARD_INDICES = {
+            "create index if not exists " + INDEX_CARDS_NAME + " on " +
+                    DATABASE_TABLE_CARDS + "(" + KEY_NAME + ");",
+            /* Lookups by name compare with COLLATE NOCASE, so the index must use it too */
+            "create index if not exists " + INDEX_CARDS_NAME_NO_ACCENT + " on " +
+                    DATABASE_TABLE_CARDS + "(" + KEY_NAME_NO_ACCENT + " collate nocase);",
+            "create index if not exists " + INDEX_CARDS_SET_NUMBER + " on " +
+                    DATABASE_TABLE_CARDS + "(" + KEY_SET + ", " + KEY_NUMBER + ");",
+            "create index if not exists " + INDEX_CARDS_MULTIVERSEID + " on " +
+                    DATABASE_TABLE_CARDS + "(" + KEY_MULTIVERSEID + ");"
+    };
+
+    /* SQL Strings used to create the indices on the legality tables */
+    private static final String[] DATABASE_CREATE_LEGAL_INDICES = {
+            "create index if not exists " + INDEX_LEGAL_SETS_FORMAT_SET + " on " +
+                    DATABASE_TABLE_LEGAL_SETS + "(" + KEY_FORMAT + ", " + KEY_SET + ");",
+            "create index if not exists " + INDEX_BANNED_CARDS_FORMAT_NAME + " on " +
+                    DATABASE_TABLE_BANNED_CARDS + "(" + KEY_FORMAT + ", " + KEY_NAME + ");"
+    };
+
+    /* All the secondary indices, used when dropping them */
+    private static final String[] ALL_INDICES = {
+            INDEX_CARDS_NAME,
+            INDEX_CARDS_NAME_NO_ACCENT,
+            INDEX_CARDS_SET_NUMBER,
+            INDEX_CARDS_MULTIVERSEID,
+            INDEX_LEGAL_SETS_FORMAT_SET,
+            INDEX_BANNED_CARDS_FORMAT_NAME
+    };
+
     /* Special values for KEY_POWER and KEY_TOUGHNESS */
     public static final int STAR = -1000;
     public static final int ONE_PLUS_STAR = -1001;
@@ -338,6 +488,11 @@ public class CardDbAdapter {
             sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_BANNED_CARDS);
             sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_RULES);
             sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_GLOSSARY);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARDS_FTS);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_FTS_WORDS);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_NAMES_FTS);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_NAMES_FTS_WORDS);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_LEGALITY);
 
             sqLiteDatabase.execSQL(DATABASE_CREATE_CARDS);
             sqLiteDatabase.execSQL(DATABASE_CREATE_SETS);
@@ -346,6 +501,47 @@ public class CardDbAdapter {
             sqLiteDatabase.execSQL(DATABASE_CREATE_BANNED_CARDS);
             sqLiteDatabase.execSQL(DATABASE_CREATE_RULES);
             sqLiteDatabase.execSQL(DATABASE_CREATE_GLOSSARY);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_CARDS_FTS);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_FTS_WORDS);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_NAMES_FTS);
+            sqLiteDatabase.execSQL(DATABASE_CREATE_NAMES_FTS_WORDS);
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+        createIndices(sqLiteDatabase);
+    }
+
+    /**
+     * Create all of the secondary indices, if they don't already exist. This should be called
+     * after bulk loading data, since maintaining indices during many inserts is slow.
+     *
+     * @param sqLiteDatabase The database to create indices in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void createIndices(SQLiteDatabase sqLiteDatabase) throws FamiliarDbException {
+        try {
+            for (String createIndex : DATABASE_CREATE_CARD_INDICES) {
+                sqLiteDatabase.execSQL(createIndex);
+            }
+            for (String createIndex : DATABASE_CREATE_LEGAL_INDICES) {
+                sqLiteDatabase.execSQL(createIndex);
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Drop all of the secondary indices, if they exist.
+     *
+     * @param sqLiteDatabase The database to drop indices from
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void dropIndices(SQLiteDatabase sqLiteDatabase) throws FamiliarDbException {
+        try {
+            for (String index : ALL_INDICES) {
+                sqLiteDatabase.execSQL("DROP INDEX IF EXISTS " + index);
+            }
         } catch (SQLiteException e) {
             throw new FamiliarDbException(e);
         }
@@ -378,24 +574,33 @@ public class CardDbAdapter {
                 }
                 PreferenceAdapter.setDatabaseVersion(context, -1);
             }
-            if (!dbFile.exists()) {
-
-                GZIPInputStream gis = new GZIPInputStream(context.getResources()
-                        .openRawResource(R.raw.datagz));
-                FileOutputStream fos = new FileOutputStream(dbFile);
+            /* A leftover journal would be rolled back into the new database */
+            File journal = new File(folder, DATABASE_NAME + "-journal");
+            if (journal.exists() && !journal.delete()) {
+                return;
+            }
 
-                byte[] buffer = new byte[1024];
-                int length;
-                while ((length = gis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, length);
+            /* Earlier versions left partial installs next to the database */
+            File[] oldPartials = folder.listFiles();
+            if (oldPartials != null) {
+                for (File oldPartial : oldPartials) {
+                    if (oldPartial.getName().startsWith(DATABASE_NAME + ".") &&
+                            oldPartial.getName().endsWith(".part")) {
+                        //noinspection ResultOfMethodCallIgnored
+                        oldPartial.delete();
+                    }
                 }
+            }
 
-                PreferenceAdapter.setDatabaseVersion(context, CardDbAdapter.DATABASE_VERSION);
+            long startTime = SystemClock.elapsedRealtime();
+            DatabaseInstaller.install(context.getResources().openRawResource(R.raw.datagz), dbFile);
 
-                /* Close the streams */
-                fos.flush();
-                fos.close();
-                gis.close();
+            PreferenceAdapter.setDatabaseVersion(context, CardDbAdapter.DATABASE_VERSION);
+            /* The packaged database may not have the current indices, rebuild them on open */
+            PreferenceAdapter.setDatabaseIndexVersion(context, -1);
+            if (BuildConfig.DEBUG) {
+                Log.i(LOG_TAG, "Installed database version " + DATABASE_VERSION + " in " +
+                        (SystemClock.elapsedRealtime() - startTime) + "ms");
             }
         } catch (NotFoundException | IOException e) {
             e.printStackTrace();
@@ -538,6 +743,32 @@ public class CardDbAdapter {
 
     }
 
+    /**
+     * Return a cursor with all of the information for every card in a set.
+     *
+     * @param setCode  The code of the set to fetch cards from
+     * @param database The database to query
+     * @return A cursor with all of the cards' information, ordered by collector's number
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static Cursor fetchCardsInSet(String setCode, SQLiteDatabase database)
+            throws FamiliarDbException {
+        Cursor cursor;
+        try {
+            String[] allCardDataKeys = new String[ALL_CARD_DATA_KEYS.size()];
+            ALL_CARD_DATA_KEYS.toArray(allCardDataKeys);
+            cursor = database.query(DATABASE_TABLE_CARDS, allCardDataKeys, KEY_SET + " = ?",
+                    new String[]{setCode}, null, null, KEY_NUMBER);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+
+        if (cursor != null) {
+            cursor.moveToFirst();
+        }
+        return cursor;
+    }
+
     /**
      * Given a card's name, return a cursor with all of that card's requested information.
      *
@@ -626,9 +857,46 @@ public class CardDbAdapter {
         return cursor;
     }
 
+    /* The columns fillExtraWishlistData() reads, in order, so their indices are known up front */
+    private static final String[] EXTRA_WISHLIST_DATA_KEYS = {
+            DATABASE_TABLE_CARDS + "." + KEY_ID,
+            DATABASE_TABLE_CARDS + "." + KEY_NAME,
+            DATABASE_TABLE_CARDS + "." + KEY_SET,
+            DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT,
+            DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE,
+            DATABASE_TABLE_CARDS + "." + KEY_SUBTYPE,
+            DATABASE_TABLE_CARDS + "." + KEY_RARITY,
+            DATABASE_TABLE_CARDS + "." + KEY_MANACOST,
+            DATABASE_TABLE_CARDS + "." + KEY_POWER,
+            DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS,
+            DATABASE_TABLE_CARDS + "." + KEY_LOYALTY,
+            DATABASE_TABLE_CARDS + "." + KEY_ABILITY,
+            DATABASE_TABLE_CARDS + "." + KEY_FLAVOR,
+            DATABASE_TABLE_CARDS + "." + KEY_NUMBER,
+            DATABASE_TABLE_CARDS + "." + KEY_CMC,
+            DATABASE_TABLE_CARDS + "." + KEY_COLOR};
+    private static final int EXTRA_ID = 0;
+    private static final int EXTRA_NAME = 1;
+    private static final int EXTRA_SET = 2;
+    private static final int EXTRA_NAME_NO_ACCENT = 3;
+    private static final int EXTRA_SUPERTYPE = 4;
+    private static final int EXTRA_SUBTYPE = 5;
+    private static final int EXTRA_RARITY = 6;
+    private static final int EXTRA_MANACOST = 7;
+    private static final int EXTRA_POWER = 8;
+    private static final int EXTRA_TOUGHNESS = 9;
+    private static final int EXTRA_LOYALTY = 10;
+    private static final int EXTRA_ABILITY = 11;
+    private static final int EXTRA_FLAVOR = 12;
+    private static final int EXTRA_NUMBER = 13;
+    private static final int EXTRA_CMC = 14;
+    private static final int EXTRA_COLOR = 15;
+
     /**
      * Given an ArrayList of CompressedWishlistInfo, fill in all the missing information by querying
-     * the database.
+     * the database. Entries with a set code are looked up by name and set, and entries without
+     * one are looked up by name alone. Every entry with the same name as a row gets that row's
+     * data, and if several rows match a name, the one with the highest ID wins.
      *
      * @param mCompressedCard An ArrayList of CompressedWishlistInfo to fill in
      * @param mDb             The database to query
@@ -636,100 +904,117 @@ public class CardDbAdapter {
      */
     public static void fillExtraWishlistData(ArrayList<? extends CompressedCardInfo> mCompressedCard,
                                              SQLiteDatabase mDb) throws FamiliarDbException {
-        String sql = "SELECT ";
 
-        boolean first = true;
-        for (String field : CardDbAdapter.ALL_CARD_DATA_KEYS) {
-            if (first) {
-                first = false;
-            } else {
-                sql += ", ";
+        /* Figure out what to look up, and index every entry by name */
+        HashMap<String, ArrayList<CompressedCardInfo>> entriesByName = new HashMap<>();
+        HashSet<String> namesWithSets = new HashSet<>();
+        HashSet<String> nameSetKeys = new HashSet<>();
+        HashSet<String> namesWithoutSets = new HashSet<>();
+        for (CompressedCardInfo cwi : mCompressedCard) {
+            ArrayList<CompressedCardInfo> entries = entriesByName.get(cwi.mName);
+            if (entries == null) {
+                entries = new ArrayList<>(1);
+                entriesByName.put(cwi.mName, entries);
             }
-            sql += field;
-        }
+            entries.add(cwi);
 
-        sql += " FROM " + DATABASE_TABLE_CARDS +
-                " JOIN " + DATABASE_TABLE_SETS + " ON " +
-                DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET +
-                " WHERE (";
-
-        first = true;
-        boolean doSql = false;
-        for (CompressedCardInfo cwi : mCompressedCard) {
             if (cwi.mType == null || cwi.mType.equals("")) {
-                doSql = true;
-                if (first) {
-                    first = false;
-                } else {
-                    sql += " OR ";
-                }
                 if (cwi.setCode != null && !cwi.setCode.equals("")) {
-                    sql += "(" + DATABASE_TABLE_CARDS + "." + KEY_NAME + " = " +
-                            sanitizeString(cwi.mName, false) +
-                            " AND " + DATABASE_TABLE_CARDS + "." + KEY_SET + " = '" +
-                            cwi.setCode + "')";
+                    String name = getBindableString(cwi.mName, false);
+                    namesWithSets.add(name);
+                    nameSetKeys.add(name + "-" + cwi.setCode);
                 } else {
-                    sql += "(" + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " = " +
-                            sanitizeString(cwi.mName, true) + ")";
+                    namesWithoutSets.add(getBindableString(cwi.mName, true));
                 }
             }
         }
 
-        if (!doSql) {
+        if (namesWithSets.isEmpty() && namesWithoutSets.isEmpty()) {
             return;
         }
 
-        sql += ")"; /*  ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE + " DESC */
-
-        Cursor cursor;
-
-        try {
-            cursor = mDb.rawQuery(sql, null);
-        } catch (SQLiteException | IllegalStateException e) {
-            throw new FamiliarDbException(e);
-        }
+        /* The ID of the row each name's data came from */
+        HashMap<String, Long> filledFrom = new HashMap<>();
+        fillExtraWishlistData(KEY_NAME, new ArrayList<>(namesWithSets), nameSetKeys, entriesByName,
+                filledFrom, mDb);
+        fillExtraWishlistData(KEY_NAME_NO_ACCENT, new ArrayList<>(namesWithoutSets), null,
+                entriesByName, filledFrom, mDb);
+    }
 
-        if (cursor != null) {
-            cursor.moveToFirst();
-        } else {
-            return;
-        }
+    /**
+     * Query the cards whose column is one of the given values, in chunks of bound arguments, and
+     * copy each matching row's data into every entry with the same name.
+     *
+     * @param column        The column to match values in, KEY_NAME or KEY_NAME_NO_ACCENT
+     * @param values        The values to match
+     * @param nameSetKeys   If not null, only rows whose name and set are in this set are used
+     * @param entriesByName Every entry, by name
+     * @param filledFrom    The ID of the row each name's data came from, so the highest wins
+     * @param mDb           The database to query
+     * @throws FamiliarDbException If something goes wrong
+     */
+    private static void fillExtraWishlistData(String column, ArrayList<String> values,
+                                              HashSet<String> nameSetKeys,
+                                              HashMap<String, ArrayList<CompressedCardInfo>> entriesByName,
+                                              HashMap<String, Long> filledFrom, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        String select = "SELECT " + TextUtils.join(", ", EXTRA_WISHLIST_DATA_KEYS) +
+                " FROM " + DATABASE_TABLE_CARDS +
+                " JOIN " + DATABASE_TABLE_SETS + " ON " +
+                DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                " WHERE " + DATABASE_TABLE_CARDS + "." + column + " IN (";
 
-        while (!cursor.isAfterLast()) {
-            /* Do stuff */
-            String name = cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NAME));
-            for (CompressedCardInfo cwi : mCompressedCard) {
-                if (name != null && name.equals(cwi.mName)) {
-                    cwi.mType =
-                            getTypeLine(cursor);
-                    cwi.mRarity =
-                            (char) cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_RARITY));
-                    cwi.mManaCost =
-                            cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_MANACOST));
-                    cwi.mPower =
-                            cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_POWER));
-                    cwi.mToughness =
-                            cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_TOUGHNESS));
-                    cwi.mLoyalty =
-                            cursor.getInt(cursor.getColumnIndex(CardDbAdapter.KEY_LOYALTY));
-                    cwi.mText =
-                            cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_ABILITY));
-                    cwi.mFlavor =
-                            cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_FLAVOR));
-                    cwi.mNumber =
-                            cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_NUMBER));
-                    cwi.mCmc =
-                            cursor.getInt((cursor.getColumnIndex(CardDbAdapter.KEY_CMC)));
-                    cwi.mColor =
-                            cursor.getString(cursor.getColumnIndex(CardDbAdapter.KEY_COLOR));
+        for (int start = 0; start < values.size(); start += MAX_BOUND_ARGUMENTS) {
+            List<String> chunk = values.subList(start, Math.min(values.size(), start + MAX_BOUND_ARGUMENTS));
+            Cursor cursor = null;
+            try {
+                cursor = mDb.rawQuery(select + getPlaceholders(chunk.size()) + ")",
+                        chunk.toArray(new String[chunk.size()]));
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(EXTRA_NAME);
+                    if (name == null) {
+                        continue;
+                    }
+                    if (nameSetKeys != null &&
+                            !nameSetKeys.contains(name + "-" + cursor.getString(EXTRA_SET))) {
+                        continue;
+                    }
+                    ArrayList<CompressedCardInfo> entries = entriesByName.get(name);
+                    if (entries == null) {
+                        continue;
+                    }
+                    long id = cursor.getLong(EXTRA_ID);
+                    Long filledId = filledFrom.get(name);
+                    if (filledId != null && filledId >= id) {
+                        continue;
+                    }
+                    filledFrom.put(name, id);
+
+                    String supertype = cursor.getString(EXTRA_SUPERTYPE);
+                    String subtype = cursor.getString(EXTRA_SUBTYPE);
+                    String type = subtype.length() > 0 ? supertype + " - " + subtype : supertype;
+                    for (CompressedCardInfo cwi : entries) {
+                        cwi.mType = type;
+                        cwi.mRarity = (char) cursor.getInt(EXTRA_RARITY);
+                        cwi.mManaCost = cursor.getString(EXTRA_MANACOST);
+                        cwi.mPower = cursor.getInt(EXTRA_POWER);
+                        cwi.mToughness = cursor.getInt(EXTRA_TOUGHNESS);
+                        cwi.mLoyalty = cursor.getInt(EXTRA_LOYALTY);
+                        cwi.mText = cursor.getString(EXTRA_ABILITY);
+                        cwi.mFlavor = cursor.getString(EXTRA_FLAVOR);
+                        cwi.mNumber = cursor.getString(EXTRA_NUMBER);
+                        cwi.mCmc = cursor.getInt(EXTRA_CMC);
+                        cwi.mColor = cursor.getString(EXTRA_COLOR);
+                    }
+                }
+            } catch (SQLiteException | IllegalStateException e) {
+                throw new FamiliarDbException(e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
                 }
             }
-            /* NEXT! */
-            cursor.moveToNext();
         }
-
-        /* Use the cursor to populate stuff */
-        cursor.close();
     }
 
     /**
@@ -836,15 +1121,124 @@ public class CardDbAdapter {
     public static Cursor Search(SearchCriteria criteria, boolean backface, String[] returnTypes,
                                 boolean consolidate, String orderByStr, SQLiteDatabase mDb)
             throws FamiliarDbException {
+        return Search(criteria, backface, returnTypes, consolidate, orderByStr, true, mDb);
+    }
+
+    /**
+     * This function will query the database with the information in criteria and return a cursor
+     * with the requested data. Name, text, flavor, and artist searches may be narrowed with the
+     * full text index first, which returns exactly the same results as the plain LIKE clauses.
+     *
+     * @param criteria         The criteria used to build the query
+     * @param backface         Whether or not the results should include the 'b' side of multicards
+     * @param returnTypes      The columns which should be returned in the cursor
+     * @param consolidate      true to not include multiple printings of the same card, false
+     *                         otherwise
+     * @param orderByStr       A string used to order the results
+     * @param useFullTextIndex true to use DATABASE_TABLE_CARDS_FTS if it exists, false to only
+     *                         use LIKE clauses
+     * @param mDb              The database to query
+     * @return A cursor with the requested information about the queried cards
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static Cursor Search(SearchCriteria criteria, boolean backface, String[] returnTypes,
+                                boolean consolidate, String orderByStr, boolean useFullTextIndex,
+                                SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        long startTime = System.nanoTime();
+
+        SearchQuery query = buildSearchQuery(criteria, backface, returnTypes, consolidate,
+                useFullTextIndex, mDb);
+        if (query == null) {
+            return null;
+        }
+
         Cursor cursor;
+        String sql = query.getOrderedSql(orderByStr);
+        try {
+            cursor = mDb.rawQuery(sql, query.args);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+        long builtTime = System.nanoTime();
+        if (cursor != null) {
+            /* The query actually runs when the cursor is first moved */
+            cursor.moveToFirst();
+        }
+        sLastSearchTiming = new SearchTiming(sql, builtTime - startTime, System.nanoTime() - builtTime);
+        return cursor;
+    }
+
+    /**
+     * A search built from SearchCriteria, before it's ordered. Search() orders and runs it, and
+     * SearchPager runs it a page at a time.
+     */
+    static class SearchQuery {
+        /* Selects every result, in no particular order */
+        final String sql;
+        final String[] args;
+        /* true if there is one row per card name, false if there is one row per printing */
+        final boolean consolidated;
+
+        SearchQuery(String sql, String[] args, boolean consolidated) {
+            this.sql = sql;
+            this.args = args;
+            this.consolidated = consolidated;
+        }
+
+        /**
+         * @param orderByStr A string used to order the results, or null to order them by name
+         * @return SQL which selects every result in order. Printings of the same card are
+         * ordered newest first.
+         */
+        String getOrderedSql(String orderByStr) {
+            if (null == orderByStr) {
+                orderByStr = KEY_NAME + " COLLATE UNICODE";
+            }
+            if (consolidated) {
+                return sql + " ORDER BY " + orderByStr;
+            } else {
+                return "SELECT * FROM (" + sql + " ORDER BY " + orderByStr
+                        + ", " + DATABASE_TABLE_SETS + "." + KEY_DATE + " DESC)";
+            }
+        }
+    }
 
-        String statement = " WHERE 1=1";
+    /**
+     * Build the query Search() runs, without ordering it.
+     *
+     * @param criteria         The criteria used to build the query
+     * @param backface         Whether or not the results should include the 'b' side of multicards
+     * @param returnTypes      The columns which should be returned
+     * @param consolidate      true to not include multiple printings of the same card, false
+     *                         otherwise
+     * @param useFullTextIndex true to use DATABASE_TABLE_CARDS_FTS if it exists, false to only
+     *                         use LIKE clauses
+     * @param mDb              The database to query
+     * @return The query, or null if the criteria don't narrow the search at all
+     * @throws FamiliarDbException If something goes wrong
+     */
+    static SearchQuery buildSearchQuery(SearchCriteria criteria, boolean backface,
+                                        String[] returnTypes, boolean consolidate,
+                                        boolean useFullTextIndex, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        WhereClauseBuilder where = new WhereClauseBuilder();
+        String join = "";
+
+        useFullTextIndex = useFullTextIndex && hasFullTextIndex(mDb);
 
         if (criteria.name != null) {
             String[] nameParts = criteria.name.split(" ");
             for (String s : nameParts) {
-                statement += " AND (" +
-                        DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + " LIKE " + sanitizeString("%" + s + "%", true) + ")";
+                ArrayList<String> args = new ArrayList<>();
+                TextClause clause;
+                if (criteria.localizedNames) {
+                    clause = getAnyNameClause(s, useFullTextIndex, args, mDb);
+                } else {
+                    clause = getLikeClause(KEY_NAME_NO_ACCENT, "%" + s + "%", false, true,
+                            useFullTextIndex, args, mDb);
+                }
+                where.add(clause.rank, clause.sql, args);
             }
         }
 
@@ -863,52 +1257,60 @@ public class CardDbAdapter {
              * that have 1 or more of the chosen words in their text. The third option (2) searches
              * for the exact phrase as entered by the user. The 'default' option is impossible via
              * the way the code is written, but I believe it's also mandatory to include it in case
-             * someone else is perhaps fussing with the code and breaks it. The if statement at the
-             * end is theoretically unnecessary, because once we've entered the current if
-             * statement, there is no way to NOT change the statement variable. However, you never
-             * really know who's going to break open your code and fuss around with it, so it's
-             * always good to leave some small safety measures.
+             * someone else is perhaps fussing with the code and breaks it.
              */
             switch (criteria.textLogic) {
                 case 0:
                     for (String s : cardTextParts) {
+                        ArrayList<String> args = new ArrayList<>();
+                        TextClause clause;
                         if (s.contains(EXCLUDE_TOKEN))
-                            statement += " AND (" + DATABASE_TABLE_CARDS + "."
-                                    + KEY_ABILITY + " NOT LIKE "
-                                    + sanitizeString("%" + s.substring(EXCLUDE_TOKEN_START) + "%", false) + ")";
+                            clause = getLikeClause(KEY_ABILITY,
+                                    "%" + s.substring(EXCLUDE_TOKEN_START) + "%", true, false,
+                                    useFullTextIndex, args, mDb);
                         else
-                            statement += " AND (" + DATABASE_TABLE_CARDS + "."
-                                    + KEY_ABILITY + " LIKE " + sanitizeString("%" + s + "%", false) + ")";
+                            clause = getLikeClause(KEY_ABILITY, "%" + s + "%", false, false,
+                                    useFullTextIndex, args, mDb);
+                        where.add(clause.rank, clause.sql, args);
                     }
                     break;
-                case 1:
+                case 1: {
+                    ArrayList<String> args = new ArrayList<>();
+                    StringBuilder clause = new StringBuilder("(");
+                    /* Every part has to be checked, so the clause is as expensive as its worst */
+                    int rank = WhereClauseBuilder.RANK_INDEXED;
                     boolean firstRun = true;
                     for (String s : cardTextParts) {
-                        if (firstRun) {
-                            firstRun = false;
-                            if (s.contains(EXCLUDE_TOKEN))
-                                statement += " AND ((" + DATABASE_TABLE_CARDS + "."
-                                        + KEY_ABILITY + " NOT LIKE "
-                                        + sanitizeString("%" + s.substring(EXCLUDE_TOKEN_START) + "%", false) + ")";
-                            else
-                                statement += " AND ((" + DATABASE_TABLE_CARDS + "."
-                                        + KEY_ABILITY + " LIKE " + sanitizeString("%" + s + "%", false) + ")";
+                        TextClause part;
+                        if (s.contains(EXCLUDE_TOKEN)) {
+                            if (!firstRun) {
+                                clause.append(" AND ");
+                            }
+                            part = getLikeClause(KEY_ABILITY,
+                                    "%" + s.substring(EXCLUDE_TOKEN_START) + "%", true, false,
+                                    useFullTextIndex, args, mDb);
                         } else {
-                            if (s.contains(EXCLUDE_TOKEN))
-                                statement += " AND (" + DATABASE_TABLE_CARDS + "."
-                                        + KEY_ABILITY + " NOT LIKE "
-                                        + sanitizeString("%" + s.substring(EXCLUDE_TOKEN_START) + "%", false) + ")";
-                            else
-                                statement += " OR (" + DATABASE_TABLE_CARDS + "."
-                                        + KEY_ABILITY + " LIKE " + sanitizeString("%" + s + "%", false) + ")";
+                            if (!firstRun) {
+                                clause.append(" OR ");
+                            }
+                            part = getLikeClause(KEY_ABILITY, "%" + s + "%", false, false,
+                                    useFullTextIndex, args, mDb);
                         }
+                        clause.append(part.sql);
+                        rank = Math.max(rank, part.rank);
+                        firstRun = false;
                     }
-                    statement += ")";
+                    clause.append(")");
+                    where.add(rank, clause.toString(), args);
                     break;
-                case 2:
-                    statement += " AND (" + DATABASE_TABLE_CARDS + "."
-                            + KEY_ABILITY + " LIKE " + sanitizeString("%" + criteria.text + "%", false) + ")";
+                }
+                case 2: {
+                    ArrayList<String> args = new ArrayList<>();
+                    TextClause clause = getLikeClause(KEY_ABILITY, "%" + criteria.text + "%", false,
+                            false, useFullTextIndex, args, mDb);
+                    where.add(clause.rank, clause.sql, args);
                     break;
+                }
                 default:
                     break;
             }
@@ -926,113 +1328,34 @@ public class CardDbAdapter {
         if (supertypes != null && !supertypes.isEmpty()) {
             /* Concat a leading and a trailing space to the supertype */
             final String supertypeInDb = "' ' || " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " || ' '";
-
-            switch (criteria.typeLogic) {
-                case 0:
-                    for (String s : supertypes) {
-                        if (s.contains(EXCLUDE_TOKEN)) {
-                            statement += " AND (" + supertypeInDb + " NOT LIKE " +
-                                    sanitizeString("% " + s.substring(1) + " %", false) + ")";
-                        } else
-                            statement += " AND (" + supertypeInDb + " LIKE " +
-                                    sanitizeString("% " + s + " %", false) + ")";
-                    }
-                    break;
-                case 1:
-                    boolean firstRun = true;
-                    for (String s : supertypes) {
-                        if (firstRun) {
-                            firstRun = false;
-
-                            if (s.contains(EXCLUDE_TOKEN))
-                                statement += " AND ((" + supertypeInDb + " NOT LIKE "
-                                        + sanitizeString("% " + s.substring(1) + " %", false) + ")";
-                            else
-                                statement += " AND ((" + supertypeInDb + " LIKE " +
-                                        sanitizeString("% " + s + " %", false) + ")";
-                        } else if (s.contains(EXCLUDE_TOKEN))
-                            statement += " AND (" + supertypeInDb + " NOT LIKE " +
-                                    sanitizeString("% " + s.substring(1) + " %", false)
-                                    + ")";
-                        else
-                            statement += " OR (" + supertypeInDb + " LIKE " +
-                                    sanitizeString("% " + s + " %", false) + ")";
-                    }
-                    statement += ")";
-                    break;
-                case 2:
-                    for (String s : supertypes) {
-                        statement += " AND (" + supertypeInDb + " NOT LIKE " +
-                                sanitizeString("% " + s + " %", false) + ")";
-                    }
-                    break;
-                default:
-                    break;
-            }
+            addTypeClauses(where, supertypeInDb, supertypes, criteria.typeLogic);
         }
 
         if (subtypes != null && !subtypes.isEmpty()) {
             /* Concat a leading and a trailing space to the subtype */
             final String subtypeInDb = "' ' || " + DATABASE_TABLE_CARDS + "." + KEY_SUBTYPE + " || ' '";
-
-            switch (criteria.typeLogic) {
-                case 0:
-                    for (String s : subtypes) {
-                        if (s.contains(EXCLUDE_TOKEN)) {
-                            statement += " AND (" + subtypeInDb + " NOT LIKE " +
-                                    sanitizeString("% " + s.substring(1) + " %", false) + ")";
-                        } else {
-                            statement += " AND (" + subtypeInDb + " LIKE " +
-                                    sanitizeString("% " + s + " %", false) + ")";
-                        }
-                    }
-                    break;
-                case 1:
-                    boolean firstRun = true;
-                    for (String s : subtypes) {
-                        if (firstRun) {
-                            firstRun = false;
-                            if (s.contains(EXCLUDE_TOKEN))
-                                statement += " AND ((" + subtypeInDb + " NOT LIKE "
-                                        + sanitizeString("% " + s.substring(1) + " %", false) + ")";
-                            else
-                                statement += " AND ((" + subtypeInDb + " LIKE " +
-                                        sanitizeString("% " + s + " %", false) + ")";
-                        } else if (s.contains(EXCLUDE_TOKEN))
-                            statement += " AND (" + subtypeInDb + " NOT LIKE " +
-                                    sanitizeString("% " + s.substring(1) + " %", false) + ")";
-                        else
-                            statement += " OR (" + subtypeInDb + " LIKE " +
-                                    sanitizeString("% " + s + " %", false) + ")";
-                    }
-                    statement += ")";
-                    break;
-                case 2:
-                    for (String s : subtypes) {
-                        statement += " AND (" + subtypeInDb + " NOT LIKE " +
-                                sanitizeString("% " + s + " %", false) + ")";
-                    }
-                    break;
-                default:
-                    break;
-            }
+            addTypeClauses(where, subtypeInDb, subtypes, criteria.typeLogic);
         }
         /* End Reuben's version
          *************************************************************************************/
 
         if (criteria.flavor != null) {
-            statement += " AND (" + DATABASE_TABLE_CARDS + "." + KEY_FLAVOR
-                    + " LIKE " + sanitizeString("%" + criteria.flavor + "%", false) + ")";
+            ArrayList<String> args = new ArrayList<>();
+            TextClause clause = getLikeClause(KEY_FLAVOR, "%" + criteria.flavor + "%", false, false,
+                    useFullTextIndex, args, mDb);
+            where.add(clause.rank, clause.sql, args);
         }
 
         if (criteria.artist != null) {
-            statement += " AND (" + DATABASE_TABLE_CARDS + "." + KEY_ARTIST
-                    + " LIKE " + sanitizeString("%" + criteria.artist + "%", false) + ")";
+            ArrayList<String> args = new ArrayList<>();
+            TextClause clause = getLikeClause(KEY_ARTIST, "%" + criteria.artist + "%", false, false,
+                    useFullTextIndex, args, mDb);
+            where.add(clause.rank, clause.sql, args);
         }
 
         if (criteria.collectorsNumber != null) {
-            statement += " AND (" + DATABASE_TABLE_CARDS + "." + KEY_NUMBER
-                    + " = " + sanitizeString(criteria.collectorsNumber, false) + ")";
+            where.add(WhereClauseBuilder.RANK_INDEXED, "(" + DATABASE_TABLE_CARDS + "." + KEY_NUMBER + " = ?)",
+                    getBindableString(criteria.collectorsNumber, false));
         }
 
         /*
@@ -1043,6 +1366,7 @@ public class CardDbAdapter {
         if (null != criteria.color &&
                 !(criteria.color.equals("wubrgl") || (criteria.color.equals("WUBRGL") &&
                         criteria.colorLogic == 0))) {
+            StringBuilder clause = new StringBuilder();
             boolean firstPrint = true;
 
             /* Can't contain these colors
@@ -1050,7 +1374,7 @@ public class CardDbAdapter {
              * ...if the chosen color logic was exactly (2) or none (3) of the selected colors.
              */
             if (criteria.colorLogic > 1) {
-                statement += " AND ((";
+                clause.append("((");
                 for (byte b : criteria.color.getBytes()) {
                     char ch = (char) b;
 
@@ -1058,25 +1382,24 @@ public class CardDbAdapter {
                         if (firstPrint)
                             firstPrint = false;
                         else
-                            statement += " AND ";
+                            clause.append(" AND ");
 
                         if (ch == 'l' || ch == 'L')
-                            statement += DATABASE_TABLE_CARDS + "." + KEY_COLOR
-                                    + " NOT GLOB '[CLA]'";
+                            clause.append(DATABASE_TABLE_CARDS).append(".").append(KEY_COLOR)
+                                    .append(" NOT GLOB '[CLA]'");
                         else
-                            statement += DATABASE_TABLE_CARDS + "." + KEY_COLOR
-                                    + " NOT LIKE '%" + Character.toUpperCase(ch)
-                                    + "%'";
+                            clause.append(DATABASE_TABLE_CARDS).append(".").append(KEY_COLOR)
+                                    .append(" NOT LIKE '%").append(Character.toUpperCase(ch))
+                                    .append("%'");
                     }
                 }
-                statement += ") AND (";
+                clause.append(") AND ");
             }
 
             firstPrint = true;
 
             /* Might contain these colors */
-            if (criteria.colorLogic < 2)
-                statement += " AND (";
+            clause.append("(");
 
             for (byte b : criteria.color.getBytes()) {
                 char ch = (char) b;
@@ -1085,23 +1408,24 @@ public class CardDbAdapter {
                         firstPrint = false;
                     else {
                         if (criteria.colorLogic == 1 || criteria.colorLogic == 3)
-                            statement += " AND ";
+                            clause.append(" AND ");
                         else
-                            statement += " OR ";
+                            clause.append(" OR ");
                     }
 
                     if (ch == 'l' || ch == 'L')
-                        statement += DATABASE_TABLE_CARDS + "." + KEY_COLOR
-                                + " GLOB '[CLA]'";
+                        clause.append(DATABASE_TABLE_CARDS).append(".").append(KEY_COLOR)
+                                .append(" GLOB '[CLA]'");
                     else
-                        statement += DATABASE_TABLE_CARDS + "." + KEY_COLOR
-                                + " LIKE '%" + ch + "%'";
+                        clause.append(DATABASE_TABLE_CARDS).append(".").append(KEY_COLOR)
+                                .append(" LIKE '%").append(ch).append("%'");
                 }
             }
             if (criteria.colorLogic > 1)
-                statement += "))";
+                clause.append("))");
             else
-                statement += ")";
+                clause.append(")");
+            where.add(WhereClauseBuilder.RANK_COLUMN, clause.toString());
         }
         /* End of addition
          *************************************************************************************/
@@ -1115,24 +1439,27 @@ public class CardDbAdapter {
                 case 0: {
                     /* search_May_include_any_colors */
                     boolean first = true;
-                    statement += " AND (";
+                    StringBuilder clause = new StringBuilder("(");
                     for (int i = 0; i < criteria.colorIdentity.length(); i++) {
                         if (Character.isLowerCase(criteria.colorIdentity.charAt(i))) {
                             if (!first) {
-                                statement += " AND ";
+                                clause.append(" AND ");
                             }
                             if (criteria.colorIdentity.charAt(i) == 'l') {
                                 /* If colorless isn't selected, don't allow empty identities */
-                                statement += "(" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY +
-                                        " NOT LIKE \"\")";
+                                clause.append("(").append(DATABASE_TABLE_CARDS).append(".")
+                                        .append(KEY_COLOR_IDENTITY).append(" NOT LIKE \"\")");
                             } else {
-                                statement += "(" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY +
-                                        " NOT LIKE \"%" + criteria.colorIdentity.toUpperCase().charAt(i) + "%\")";
+                                clause.append("(").append(DATABASE_TABLE_CARDS).append(".")
+                                        .append(KEY_COLOR_IDENTITY).append(" NOT LIKE \"%")
+                                        .append(criteria.colorIdentity.toUpperCase().charAt(i))
+                                        .append("%\")");
                             }
                             first = false;
                         }
                     }
-                    statement += ")";
+                    clause.append(")");
+                    where.add(WhereClauseBuilder.RANK_COLUMN, clause.toString());
                     break;
                 }
                 case 1: {
@@ -1142,68 +1469,35 @@ public class CardDbAdapter {
                         if (Character.isUpperCase(criteria.colorIdentity.charAt(i))) {
                             if (criteria.colorIdentity.charAt(i) == 'L') {
                                 /* Colorless identity is the empty string */
-                                statement += " AND (" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY + " = \"\")";
+                                where.add(WhereClauseBuilder.RANK_COLUMN, "(" + DATABASE_TABLE_CARDS +
+                                        "." + KEY_COLOR_IDENTITY + " = \"\")");
                             } else {
                                 colorIdentity += criteria.colorIdentity.charAt(i);
                             }
                         }
                     }
-                    statement += " AND (" + DATABASE_TABLE_CARDS + "." + KEY_COLOR_IDENTITY +
-                            " = \"" + colorIdentity + "\")";
+                    where.add(WhereClauseBuilder.RANK_COLUMN, "(" + DATABASE_TABLE_CARDS + "." +
+                            KEY_COLOR_IDENTITY + " = ?)", colorIdentity);
                     break;
                 }
             }
         }
 
         if (criteria.sets != null && criteria.sets.size() > 0) {
-            statement += " AND (";
-
-            boolean first = true;
-
-            for (String set : criteria.sets) {
-                if (first) {
-                    first = false;
-                } else {
-                    statement += " OR ";
-                }
-                statement += DATABASE_TABLE_CARDS + "." + KEY_SET + " = '" + set + "'";
-            }
-
-            statement += ")";
+            where.add(WhereClauseBuilder.RANK_INDEXED, "(" + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                    " IN (" + getPlaceholders(criteria.sets.size()) + "))", criteria.sets);
         }
 
         if (criteria.powChoice != NO_ONE_CARES) {
-            statement += " AND (";
-
-            if (criteria.powChoice > STAR) {
-                statement += DATABASE_TABLE_CARDS + "." + KEY_POWER + " "
-                        + criteria.powLogic + " " + criteria.powChoice;
-                if (criteria.powLogic.equals("<")) {
-                    statement += " AND " + DATABASE_TABLE_CARDS + "."
-                            + KEY_POWER + " > " + STAR;
-                }
-            } else if (criteria.powLogic.equals("=")) {
-                statement += DATABASE_TABLE_CARDS + "." + KEY_POWER + " "
-                        + criteria.powLogic + " " + criteria.powChoice;
-            }
-            statement += ")";
+            where.add(WhereClauseBuilder.RANK_COLUMN, getPowerToughnessClause(KEY_POWER,
+                    criteria.powChoice, criteria.powLogic), getPowerToughnessArgs(criteria.powChoice,
+                    criteria.powLogic));
         }
 
         if (criteria.touChoice != NO_ONE_CARES) {
-            statement += " AND (";
-
-            if (criteria.touChoice > STAR) {
-                statement += DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " "
-                        + criteria.touLogic + " " + criteria.touChoice;
-                if (criteria.touLogic.equals("<")) {
-                    statement += " AND " + DATABASE_TABLE_CARDS + "."
-                            + KEY_TOUGHNESS + " > " + STAR;
-                }
-            } else if (criteria.touLogic.equals("=")) {
-                statement += DATABASE_TABLE_CARDS + "." + KEY_TOUGHNESS + " "
-                        + criteria.touLogic + " " + criteria.touChoice;
-            }
-            statement += ")";
+            where.add(WhereClauseBuilder.RANK_COLUMN, getPowerToughnessClause(KEY_TOUGHNESS,
+                    criteria.touChoice, criteria.touLogic), getPowerToughnessArgs(criteria.touChoice,
+                    criteria.touLogic));
         }
 
         if (null != criteria.manaCostLogic && null != criteria.manaCost) {
@@ -1211,103 +1505,99 @@ public class CardDbAdapter {
             for (String mana : criteria.manaCost) {
                 manaCost.append('{').append(mana).append('}');
             }
-            statement = criteria.manaCostLogic.appendToSql(statement,
-                    DATABASE_TABLE_CARDS + "." + KEY_MANACOST, manaCost.toString());
+            String condition = criteria.manaCostLogic.getSqlCondition(DATABASE_TABLE_CARDS + "." + KEY_MANACOST);
+            if (!condition.isEmpty()) {
+                where.add(WhereClauseBuilder.RANK_SHORT_LIKE, "(" + condition + ")",
+                        criteria.manaCostLogic.getSqlArgument(manaCost.toString()));
+            }
         }
 
         if (criteria.cmc != -1) {
-            statement += " AND (";
-
-            statement += DATABASE_TABLE_CARDS + "." + KEY_CMC + " " + criteria.cmcLogic
-                    + " " + criteria.cmc + ")";
+            where.add(WhereClauseBuilder.RANK_COLUMN, "(" + DATABASE_TABLE_CARDS + "." + KEY_CMC +
+                    " " + criteria.cmcLogic + " ?)", Integer.toString(criteria.cmc));
         }
 
         if (criteria.moJhoStoFilter) {
             /* Filter out tokens. */
-            statement += " AND (" +
+            where.add(WhereClauseBuilder.RANK_SHORT_LIKE, "(" +
                     /* Cards without mana costs. */
                     "NOT " + DATABASE_TABLE_CARDS + "." + KEY_MANACOST + " = '' " +
                     /* Cards like 'Dryad Arbor'. */
-                    "OR " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " LIKE '%Land Creature%')";
+                    "OR " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " LIKE '%Land Creature%')");
             /* Filter out 'UN-'sets*/
-            statement += " AND NOT " + DATABASE_TABLE_CARDS + "." + KEY_SET + " IN (";
-            boolean first = true;
-            for (String illegalSet : ILLEGAL_SETS) {
-                if (first) {
-                    first = false;
-                } else {
-                    statement += ", ";
-                }
-                statement += "'" + illegalSet + "'";
-            }
-            statement += ")";
+            where.add(WhereClauseBuilder.RANK_COLUMN, "(NOT " + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                    " IN (" + getPlaceholders(ILLEGAL_SETS.length) + "))", ILLEGAL_SETS);
         }
 
         if (criteria.rarity != null) {
-            statement += " AND (";
-
-            boolean firstPrint = true;
+            ArrayList<String> rarities = new ArrayList<>();
             for (int i = 0; i < criteria.rarity.length(); i++) {
-                if (firstPrint) {
-                    firstPrint = false;
-                } else {
-                    statement += " OR ";
-                }
-                statement += DATABASE_TABLE_CARDS + "." + KEY_RARITY + " = "
-                        + (int) criteria.rarity.toUpperCase().charAt(i) + "";
+                rarities.add(Integer.toString((int) criteria.rarity.toUpperCase().charAt(i)));
             }
-            statement += ")";
+            where.add(WhereClauseBuilder.RANK_COLUMN, "(" + DATABASE_TABLE_CARDS + "." + KEY_RARITY +
+                    " IN (" + getPlaceholders(rarities.size()) + "))", rarities);
         }
 
         if (criteria.format != null) {
 
             /* Check if the format is eternal or not, by the number of legal sets */
-            String numLegalSetsSql = "SELECT * FROM " + DATABASE_TABLE_LEGAL_SETS + " WHERE " + KEY_FORMAT + " = \"" + criteria.format + "\"";
-            Cursor numLegalSetCursor;
+            long numLegalSets;
             try {
-                numLegalSetCursor = mDb.rawQuery(numLegalSetsSql, null);
+                numLegalSets = DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM " +
+                        DATABASE_TABLE_LEGAL_SETS + " WHERE " + KEY_FORMAT + " = ?",
+                        new String[]{criteria.format});
             } catch (SQLiteException | IllegalStateException e) {
                 throw new FamiliarDbException(e);
             }
 
-            /* If the format is not eternal, filter by set */
-            if (numLegalSetCursor.getCount() > 0) {
-                statement += " AND " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " IN ("
-                        + "  SELECT " + DATABASE_TABLE_CARDS + "_B." + KEY_NAME
-                        + "  FROM " + DATABASE_TABLE_CARDS + " " + DATABASE_TABLE_CARDS + "_B "
-                        + "  WHERE " + DATABASE_TABLE_CARDS + "_B." + KEY_SET + " IN ("
-                        + "    SELECT " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_SET
-                        + "    FROM " + DATABASE_TABLE_LEGAL_SETS
-                        + "    WHERE " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_FORMAT + "='" + criteria.format + "'"
-                        + "  )"
-                        + " )";
-            } else {
-                /* Otherwise filter silver bordered cards, giant cards */
-                for (String illegalSet : ILLEGAL_SETS) {
-                    statement += " AND NOT " + DATABASE_TABLE_CARDS + "." + KEY_SET + " = '" + illegalSet + "'";
-                }
-                statement += " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Plane'" +
+            if (numLegalSets == 0) {
+                /* If the format is eternal, filter silver bordered cards, giant cards */
+                where.add(WhereClauseBuilder.RANK_COLUMN, "(NOT " + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                        " IN (" + getPlaceholders(ILLEGAL_SETS.length) + "))", ILLEGAL_SETS);
+                where.add(WhereClauseBuilder.RANK_SHORT_LIKE, "(" +
+                        DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Plane'" +
                         " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Conspiracy'" +
                         " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE '%Scheme'" +
-                        " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Vanguard'";
+                        " AND " + DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + " NOT LIKE 'Vanguard')");
             }
 
-            numLegalSetCursor.close();
+            if (hasLegalityMatrix(mDb)) {
+                /* The matrix already knows which cards were printed in a legal set and aren't banned */
+                where.add(WhereClauseBuilder.RANK_FORMAT, "(" + DATABASE_TABLE_CARDS + "." + KEY_NAME + " IN ("
+                        + "SELECT " + DATABASE_TABLE_LEGALITY + "." + KEY_NAME
+                        + " FROM " + DATABASE_TABLE_LEGALITY
+                        + " WHERE " + DATABASE_TABLE_LEGALITY + "." + KEY_FORMAT + " = ?"
+                        + " AND " + DATABASE_TABLE_LEGALITY + "." + KEY_IN_FORMAT + " = 1))", criteria.format);
+            } else {
+                /* If the format is not eternal, filter by set */
+                if (numLegalSets > 0) {
+                    where.add(WhereClauseBuilder.RANK_FORMAT, "(" + DATABASE_TABLE_CARDS + "." + KEY_NAME + " IN ("
+                            + "  SELECT " + DATABASE_TABLE_CARDS + "_B." + KEY_NAME
+                            + "  FROM " + DATABASE_TABLE_CARDS + " " + DATABASE_TABLE_CARDS + "_B "
+                            + "  WHERE " + DATABASE_TABLE_CARDS + "_B." + KEY_SET + " IN ("
+                            + "    SELECT " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_SET
+                            + "    FROM " + DATABASE_TABLE_LEGAL_SETS
+                            + "    WHERE " + DATABASE_TABLE_LEGAL_SETS + "." + KEY_FORMAT + " = ?"
+                            + "  )"
+                            + " ))", criteria.format);
+                }
 
-            statement += " AND " + DATABASE_TABLE_CARDS + "." + KEY_NAME + " NOT IN (SELECT "
-                    + DATABASE_TABLE_BANNED_CARDS + "." + KEY_NAME
-                    + " FROM " + DATABASE_TABLE_BANNED_CARDS
-                    + " WHERE  " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_FORMAT + " = '" + criteria.format + "'"
-                    + " AND " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_LEGALITY + " = " + BANNED + ")";
+                where.add(WhereClauseBuilder.RANK_FORMAT, "(" + DATABASE_TABLE_CARDS + "." + KEY_NAME + " NOT IN (SELECT "
+                        + DATABASE_TABLE_BANNED_CARDS + "." + KEY_NAME
+                        + " FROM " + DATABASE_TABLE_BANNED_CARDS
+                        + " WHERE  " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_FORMAT + " = ?"
+                        + " AND " + DATABASE_TABLE_BANNED_CARDS + "." + KEY_LEGALITY + " = " + BANNED + "))",
+                        criteria.format);
+            }
         }
 
         if (!backface) {
-            statement += " AND (" + DATABASE_TABLE_CARDS + "." + KEY_NUMBER
-                    + " NOT LIKE '%b%')";
+            where.add(WhereClauseBuilder.RANK_COLUMN, "(" + DATABASE_TABLE_CARDS + "." + KEY_NUMBER
+                    + " NOT LIKE '%b%')");
         }
 
         if (criteria.setLogic != MOST_RECENT_PRINTING && criteria.setLogic != ALL_PRINTINGS) {
-            statement = " JOIN (SELECT iT" + DATABASE_TABLE_CARDS + "."
+            join = " JOIN (SELECT iT" + DATABASE_TABLE_CARDS + "."
                     + KEY_NAME + ", MIN(" + DATABASE_TABLE_SETS + "."
                     + KEY_DATE + ") AS " + KEY_DATE + " FROM "
                     + DATABASE_TABLE_CARDS + " AS iT" + DATABASE_TABLE_CARDS
@@ -1316,65 +1606,178 @@ public class CardDbAdapter {
                     + DATABASE_TABLE_SETS + "." + KEY_CODE + " GROUP BY iT"
                     + DATABASE_TABLE_CARDS + "." + KEY_NAME
                     + ") AS FirstPrints" + " ON " + DATABASE_TABLE_CARDS + "."
-                    + KEY_NAME + " = FirstPrints." + KEY_NAME + statement;
+                    + KEY_NAME + " = FirstPrints." + KEY_NAME;
             if (criteria.setLogic == FIRST_PRINTING)
-                statement = " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + " = FirstPrints." + KEY_DATE + statement;
+                join = " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
+                        + " = FirstPrints." + KEY_DATE + join;
             else
-                statement = " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + " <> FirstPrints." + KEY_DATE + statement;
+                join = " AND " + DATABASE_TABLE_SETS + "." + KEY_DATE
+                        + " <> FirstPrints." + KEY_DATE + join;
         }
 
-        if (statement.equals(" WHERE 1=1")) {
+        if (where.isEmpty() && join.isEmpty()) {
             /* If the statement is just this, it means we added nothing */
             return null;
         }
 
-        try {
-            String sel = null;
-            for (String s : returnTypes) {
-                if (sel == null) {
-                    sel = DATABASE_TABLE_CARDS + "." + s + " AS " + s;
-                } else {
-                    sel += ", " + DATABASE_TABLE_CARDS + "." + s + " AS " + s;
-                }
-            }
-            sel += ", " + DATABASE_TABLE_SETS + "." + KEY_DATE;
-
-            String sql = "SELECT * FROM (SELECT " + sel + " FROM " + DATABASE_TABLE_CARDS
-                    + " JOIN " + DATABASE_TABLE_SETS + " ON "
-                    + DATABASE_TABLE_CARDS + "." + KEY_SET + " = "
-                    + DATABASE_TABLE_SETS + "." + KEY_CODE + statement;
-
-            if (null == orderByStr) {
-                orderByStr = KEY_NAME + " COLLATE UNICODE";
-            }
-
-            if (consolidate) {
-                sql += " ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + ") GROUP BY " + KEY_NAME + " ORDER BY " + orderByStr;
+        String sel = null;
+        for (String s : returnTypes) {
+            if (sel == null) {
+                sel = DATABASE_TABLE_CARDS + "." + s + " AS " + s;
             } else {
-                sql += " ORDER BY " + orderByStr
-                        + ", " + DATABASE_TABLE_SETS + "." + KEY_DATE
-                        + " DESC)";
+                sel += ", " + DATABASE_TABLE_CARDS + "." + s + " AS " + s;
             }
-            cursor = mDb.rawQuery(sql, null);
-        } catch (SQLiteException | IllegalStateException e) {
-            throw new FamiliarDbException(e);
         }
-        if (cursor != null) {
-            cursor.moveToFirst();
+        sel += ", " + DATABASE_TABLE_SETS + "." + KEY_DATE;
+
+        String sql = "SELECT " + sel + " FROM " + DATABASE_TABLE_CARDS
+                + " JOIN " + DATABASE_TABLE_SETS + " ON "
+                + DATABASE_TABLE_CARDS + "." + KEY_SET + " = "
+                + DATABASE_TABLE_SETS + "." + KEY_CODE + join + where.getSql();
+
+        if (consolidate) {
+            sql = "SELECT * FROM (" + sql + " ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE
+                    + ") GROUP BY " + KEY_NAME;
         }
-        return cursor;
+        return new SearchQuery(sql, where.getArgs(), consolidate);
     }
 
     /**
-     * Given a set and a card number, return the KEY_ID for that card.
+     * Add type line clauses for the given supertypes or subtypes.
      *
-     * @param set    The set code
-     * @param number The number to look up
-     * @param mDb    The database to query
-     * @return The KEY_ID value for the found card, or -1 if the card isn't found
+     * @param where     The WHERE clause to add to
+     * @param typeInDb  The type column in the database, with a space concatenated on each side
+     * @param types     The types to search for. Types with EXCLUDE_TOKEN are excluded
+     * @param typeLogic 0 to match all types, 1 to match any type, 2 to match no types
+     */
+    private static void addTypeClauses(WhereClauseBuilder where, String typeInDb, List<String> types,
+                                       int typeLogic) {
+        switch (typeLogic) {
+            case 0:
+                for (String s : types) {
+                    if (s.contains(EXCLUDE_TOKEN)) {
+                        where.add(WhereClauseBuilder.RANK_SHORT_LIKE, "(" + typeInDb + " NOT LIKE ?)",
+                                getBindableString("% " + s.substring(1) + " %", false));
+                    } else {
+                        where.add(WhereClauseBuilder.RANK_SHORT_LIKE, "(" + typeInDb + " LIKE ?)",
+                                getBindableString("% " + s + " %", false));
+                    }
+                }
+                break;
+            case 1: {
+                StringBuilder clause = new StringBuilder("(");
+                ArrayList<String> args = new ArrayList<>();
+                boolean firstRun = true;
+                for (String s : types) {
+                    if (s.contains(EXCLUDE_TOKEN)) {
+                        if (!firstRun) {
+                            clause.append(" AND ");
+                        }
+                        clause.append("(").append(typeInDb).append(" NOT LIKE ?)");
+                        args.add(getBindableString("% " + s.substring(1) + " %", false));
+                    } else {
+                        if (!firstRun) {
+                            clause.append(" OR ");
+                        }
+                        clause.append("(").append(typeInDb).append(" LIKE ?)");
+                        args.add(getBindableString("% " + s + " %", false));
+                    }
+                    firstRun = false;
+                }
+                clause.append(")");
+                where.add(WhereClauseBuilder.RANK_SHORT_LIKE, clause.toString(), args);
+                break;
+            }
+            case 2:
+                for (String s : types) {
+                    where.add(WhereClauseBuilder.RANK_SHORT_LIKE, "(" + typeInDb + " NOT LIKE ?)",
+                            getBindableString("% " + s + " %", false));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Build a clause comparing power or toughness. Numeric values are bound, stars are not.
+     *
+     * @param column The column, KEY_POWER or KEY_TOUGHNESS
+     * @param choice The value to compare to
+     * @param logic  The comparison operator
+     * @return A parenthesized clause, with a placeholder for the value if it's bound
+     */
+    private static String getPowerToughnessClause(String column, float choice, String logic) {
+        String clause = "(";
+        if (choice > STAR) {
+            clause += DATABASE_TABLE_CARDS + "." + column + " " + logic + " ?";
+            if (logic.equals("<")) {
+                clause += " AND " + DATABASE_TABLE_CARDS + "." + column + " > " + STAR;
+            }
+        } else if (logic.equals("=")) {
+            clause += DATABASE_TABLE_CARDS + "." + column + " " + logic + " " + choice;
+        }
+        return clause + ")";
+    }
+
+    /**
+     * @param choice The power or toughness value to compare to
+     * @param logic  The comparison operator
+     * @return The arguments for getPowerToughnessClause()
+     */
+    private static String[] getPowerToughnessArgs(float choice, String logic) {
+        if (choice > STAR) {
+            return new String[]{Float.toString(choice)};
+        }
+        return new String[]{};
+    }
+
+    /**
+     * @param count The number of placeholders
+     * @return count comma separated ? placeholders, for an IN clause
+     */
+    private static String getPlaceholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(", ");
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
+    /**
+     * The timing of a single call to Search()
+     */
+    public static class SearchTiming {
+        public final String sql;
+        /* How long it took to build the query */
+        public final long buildNanos;
+        /* How long it took to run the query and fill the first window of results */
+        public final long queryNanos;
+
+        SearchTiming(String sql, long buildNanos, long queryNanos) {
+            this.sql = sql;
+            this.buildNanos = buildNanos;
+            this.queryNanos = queryNanos;
+        }
+    }
+
+    /**
+     * @return The timing of the most recent call to Search(), or null if it hasn't been called
+     */
+    public static SearchTiming getLastSearchTiming() {
+        return sLastSearchTiming;
+    }
+
+    /**
+     * Given a set and a card number, return the KEY_ID for that card.
+     *
+     * @param set    The set code
+     * @param number The number to look up
+     * @param mDb    The database to query
+     * @return The KEY_ID value for the found card, or -1 if the card isn't found
      * @throws FamiliarDbException If something goes wrong
      */
     public static int getIdFromSetAndNumber(String set, String number, SQLiteDatabase mDb)
@@ -1467,7 +1870,8 @@ public class CardDbAdapter {
     }
 
     /**
-     * Returns a Cursor over all words that match the given query.
+     * Returns a Cursor over all words that match the given query. If the full text index exists,
+     * names in every language are matched, and each is returned as it's printed.
      *
      * @param query The string to search for
      * @param mDb   The database to query
@@ -1475,6 +1879,24 @@ public class CardDbAdapter {
      * @throws FamiliarDbException If something goes wrong
      */
     public static Cursor getCardsByNamePrefix(String query, SQLiteDatabase mDb) throws FamiliarDbException {
+        return getCardsByNamePrefix(query, true, mDb);
+    }
+
+    /**
+     * Returns a Cursor over all words that match the given query
+     *
+     * @param query          The string to search for
+     * @param localizedNames true to match names in every language if the full text index exists,
+     *                       false to only match English names
+     * @param mDb            The database to query
+     * @return Cursor over all words that match, or null if none found.
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static Cursor getCardsByNamePrefix(String query, boolean localizedNames, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        if (localizedNames && hasFullTextIndex(mDb)) {
+            return getCardsByAnyNamePrefix(query, mDb);
+        }
         try {
             query = sanitizeString(query + "%", true);
 
@@ -1503,6 +1925,147 @@ public class CardDbAdapter {
         }
     }
 
+    /**
+     * Like getCardsByNamePrefix(), but matching names in every language with
+     * DATABASE_TABLE_NAMES_FTS. The first token is matched as an FTS prefix, and the whole folded
+     * query is checked with LIKE.
+     *
+     * @param query The string to search for
+     * @param mDb   The database to query
+     * @return Cursor over all names that match, or null if the query is too short
+     * @throws FamiliarDbException If something goes wrong
+     */
+    private static Cursor getCardsByAnyNamePrefix(String query, SQLiteDatabase mDb) throws FamiliarDbException {
+        String folded = foldName(query.trim());
+        if (folded.length() < 1) {
+            return null;
+        }
+
+        /* Pick the printed name matching the folded one */
+        StringBuilder name = new StringBuilder("CASE " + DATABASE_TABLE_NAMES_FTS + "." + KEY_DOCID +
+                " % " + NAMES_FTS_DOCID_STRIDE);
+        for (int i = 0; i < ALL_NAME_KEYS.size(); i++) {
+            name.append(" WHEN ").append(i).append(" THEN ")
+                    .append(DATABASE_TABLE_CARDS).append('.').append(ALL_NAME_KEYS.get(i));
+        }
+        name.append(" END");
+
+        ArrayList<String> args = new ArrayList<>();
+        String match = "";
+        List<String> tokens = getFullTextTokens(folded);
+        if (!tokens.isEmpty()) {
+            match = DATABASE_TABLE_NAMES_FTS + " MATCH ? AND ";
+            args.add(tokens.get(0) + "*");
+        }
+        args.add(folded + "%");
+
+        try {
+            String sql =
+                    "SELECT * FROM (" +
+                            "SELECT " +
+                            name + " AS " + KEY_NAME + ", " +
+                            DATABASE_TABLE_CARDS + "." + KEY_ID + " AS " + KEY_ID + ", " +
+                            DATABASE_TABLE_CARDS + "." + KEY_ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID +
+                            " FROM " + DATABASE_TABLE_NAMES_FTS +
+                            " JOIN " + DATABASE_TABLE_CARDS +
+                            " ON " + DATABASE_TABLE_CARDS + "." + KEY_ID + " = " + DATABASE_TABLE_NAMES_FTS + "." + KEY_DOCID + " / " + NAMES_FTS_DOCID_STRIDE +
+                            " JOIN " + DATABASE_TABLE_SETS +
+                            " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                            " WHERE " + match +
+                            DATABASE_TABLE_NAMES_FTS + "." + KEY_NAME_FOLDED + " LIKE ?" +
+                            " ORDER BY " +
+                            KEY_NAME + " COLLATE UNICODE, " +
+                            DATABASE_TABLE_SETS + "." + KEY_DATE + " ASC" +
+                            " ) GROUP BY " + KEY_NAME;
+            return mDb.rawQuery(sql, args.toArray(new String[args.size()]));
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Returns something which changes whenever cards are added to or removed from the database,
+     * so CardNameIndex knows when to rebuild.
+     *
+     * @param mDb The database to query
+     * @return The database version, the number of cards, and the largest card ID
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static String getCardNameIndexStamp(SQLiteDatabase mDb) throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("SELECT COUNT(*), MAX(" + KEY_ID + ") FROM " + DATABASE_TABLE_CARDS, null);
+            cursor.moveToFirst();
+            return DATABASE_VERSION + "-" + cursor.getLong(0) + "-" + cursor.getLong(1);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Get every unique card name, in every language, and the ID of the card each name opens. Like
+     * getCardsByNamePrefix(), that's the newest printing.
+     *
+     * @param names     Filled with the names
+     * @param ids       Filled with the card IDs, in the same order as the names
+     * @param localized Filled with true for each name which isn't any card's English name, in the
+     *                  same order as the names
+     * @param mDb       The database to query
+     * @throws FamiliarDbException If something goes wrong
+     */
+    static void fetchUniqueCardNames(ArrayList<String> names, ArrayList<Long> ids,
+                                     ArrayList<Boolean> localized, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        StringBuilder columns = new StringBuilder(DATABASE_TABLE_CARDS + "." + KEY_ID);
+        for (String key : ALL_NAME_KEYS) {
+            columns.append(", ").append(DATABASE_TABLE_CARDS).append('.').append(key);
+        }
+        String sql = "SELECT " + columns +
+                " FROM " + DATABASE_TABLE_CARDS +
+                " JOIN " + DATABASE_TABLE_SETS +
+                " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " + DATABASE_TABLE_CARDS + "." + KEY_SET +
+                " ORDER BY " + DATABASE_TABLE_SETS + "." + KEY_DATE + " ASC";
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery(sql, null);
+            /* Later printings replace earlier ones */
+            HashMap<String, Integer> positions = new HashMap<>();
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                for (int i = 1; i < cursor.getColumnCount(); i++) {
+                    String name = cursor.getString(i);
+                    if (name == null || name.length() == 0) {
+                        continue;
+                    }
+                    /* The first column is the English name */
+                    boolean isLocalized = i > 1;
+                    Integer position = positions.get(name);
+                    if (position == null) {
+                        positions.put(name, names.size());
+                        names.add(name);
+                        ids.add(id);
+                        localized.add(isLocalized);
+                    } else {
+                        ids.set(position, id);
+                        if (!isLocalized) {
+                            localized.set(position, false);
+                        }
+                    }
+                }
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Given a card name and the set it's from, return the card's multiverse ID.
      *
@@ -1588,32 +2151,11 @@ public class CardDbAdapter {
     public static void createCard(Card card, SQLiteDatabase mDb) {
         ContentValues initialValues = new ContentValues();
 
-        String delimiter = " - ";
+        String types[] = splitTypeLine(card.mType);
         initialValues.put(KEY_NAME, card.mName);
         initialValues.put(KEY_SET, card.mExpansion);
-        String types[] = card.mType.split(delimiter);
-        if (types.length > 0) {
-            initialValues.put(KEY_SUPERTYPE, types[0]);
-        } else {
-            initialValues.put(KEY_SUPERTYPE, "");
-        }
-        if (types.length > 1) {
-            /* Concatenate all strings after the first delimiter
-             * in case there's a hyphen in the subtype
-             */
-            String subtype = "";
-            boolean first = true;
-            for (int i = 1; i < types.length; i++) {
-                if (!first) {
-                    subtype += delimiter;
-                }
-                subtype += types[i];
-                first = false;
-            }
-            initialValues.put(KEY_SUBTYPE, subtype);
-        } else {
-            initialValues.put(KEY_SUBTYPE, "");
-        }
+        initialValues.put(KEY_SUPERTYPE, types[0]);
+        initialValues.put(KEY_SUBTYPE, types[1]);
         initialValues.put(KEY_RARITY, (int) card.mRarity);
         initialValues.put(KEY_MANACOST, card.mManaCost);
         initialValues.put(KEY_CMC, card.mCmc);
@@ -1631,61 +2173,76 @@ public class CardDbAdapter {
         initialValues.put(KEY_WATERMARK, card.mWatermark);
 
         for (Card.ForeignPrinting fp : card.mForeignPrintings) {
-            switch (fp.mLanguageCode) {
-                case Language.Chinese_Traditional: {
-                    initialValues.put(KEY_NAME_CHINESE_TRADITIONAL, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_CHINESE_TRADITIONAL, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Chinese_Simplified: {
-                    initialValues.put(KEY_NAME_CHINESE_SIMPLIFIED, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_CHINESE_SIMPLIFIED, fp.mMultiverseId);
-                    break;
-                }
-                case Language.French: {
-                    initialValues.put(KEY_NAME_FRENCH, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_FRENCH, fp.mMultiverseId);
-                    break;
-                }
-                case Language.German: {
-                    initialValues.put(KEY_NAME_GERMAN, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_GERMAN, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Italian: {
-                    initialValues.put(KEY_NAME_ITALIAN, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_ITALIAN, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Japanese: {
-                    initialValues.put(KEY_NAME_JAPANESE, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_JAPANESE, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Portuguese_Brazil: {
-                    initialValues.put(KEY_NAME_PORTUGUESE_BRAZIL, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_PORTUGUESE_BRAZIL, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Russian: {
-                    initialValues.put(KEY_NAME_RUSSIAN, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_RUSSIAN, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Spanish: {
-                    initialValues.put(KEY_NAME_SPANISH, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_SPANISH, fp.mMultiverseId);
-                    break;
-                }
-                case Language.Korean: {
-                    initialValues.put(KEY_NAME_KOREAN, fp.mName);
-                    initialValues.put(KEY_MULTIVERSEID_KOREAN, fp.mMultiverseId);
-                    break;
-                }
+            String foreignKeys[] = getForeignPrintingKeys(fp.mLanguageCode);
+            if (foreignKeys != null) {
+                initialValues.put(foreignKeys[0], fp.mName);
+                initialValues.put(foreignKeys[1], fp.mMultiverseId);
             }
         }
 
-        mDb.insert(DATABASE_TABLE_CARDS, null, initialValues);
+        long rowId = mDb.insert(DATABASE_TABLE_CARDS, null, initialValues);
+        if (rowId != -1) {
+            addToFullTextIndex(rowId, initialValues, mDb);
+        }
+    }
+
+    /**
+     * Split a full type line into a supertype and a subtype. Everything after the first delimiter
+     * is the subtype, in case there's a hyphen in the subtype.
+     *
+     * @param type The full type line, i.e. "Creature - Goblin Shaman"
+     * @return A two element array of {supertype, subtype}. Either may be empty
+     */
+    static String[] splitTypeLine(String type) {
+        String delimiter = " - ";
+        String types[] = type.split(delimiter);
+        String supertype = "";
+        if (types.length > 0) {
+            supertype = types[0];
+        }
+        StringBuilder subtype = new StringBuilder();
+        for (int i = 1; i < types.length; i++) {
+            if (i > 1) {
+                subtype.append(delimiter);
+            }
+            subtype.append(types[i]);
+        }
+        return new String[]{supertype, subtype.toString()};
+    }
+
+    /**
+     * Given a language code, return the columns in DATABASE_TABLE_CARDS which store the name and
+     * multiverse ID of a foreign printing in that language.
+     *
+     * @param languageCode A language code from Language
+     * @return A two element array of {name key, multiverse ID key}, or null if the language isn't
+     * stored
+     */
+    static String[] getForeignPrintingKeys(String languageCode) {
+        switch (languageCode) {
+            case Language.Chinese_Traditional:
+                return new String[]{KEY_NAME_CHINESE_TRADITIONAL, KEY_MULTIVERSEID_CHINESE_TRADITIONAL};
+            case Language.Chinese_Simplified:
+                return new String[]{KEY_NAME_CHINESE_SIMPLIFIED, KEY_MULTIVERSEID_CHINESE_SIMPLIFIED};
+            case Language.French:
+                return new String[]{KEY_NAME_FRENCH, KEY_MULTIVERSEID_FRENCH};
+            case Language.German:
+                return new String[]{KEY_NAME_GERMAN, KEY_MULTIVERSEID_GERMAN};
+            case Language.Italian:
+                return new String[]{KEY_NAME_ITALIAN, KEY_MULTIVERSEID_ITALIAN};
+            case Language.Japanese:
+                return new String[]{KEY_NAME_JAPANESE, KEY_MULTIVERSEID_JAPANESE};
+            case Language.Portuguese_Brazil:
+                return new String[]{KEY_NAME_PORTUGUESE_BRAZIL, KEY_MULTIVERSEID_PORTUGUESE_BRAZIL};
+            case Language.Russian:
+                return new String[]{KEY_NAME_RUSSIAN, KEY_MULTIVERSEID_RUSSIAN};
+            case Language.Spanish:
+                return new String[]{KEY_NAME_SPANISH, KEY_MULTIVERSEID_SPANISH};
+            case Language.Korean:
+                return new String[]{KEY_NAME_KOREAN, KEY_MULTIVERSEID_KOREAN};
+            default:
+                return null;
+        }
     }
 
     /**
@@ -1736,6 +2293,14 @@ public class CardDbAdapter {
             throws FamiliarDbException {
 
         try {
+            if (hasFullTextIndex(database)) {
+                database.delete(DATABASE_TABLE_CARDS_FTS, KEY_DOCID + " IN (SELECT " + KEY_ID +
+                        " FROM " + DATABASE_TABLE_CARDS +
+                        " WHERE " + KEY_SET + " = " + sanitizeString(setCode, false) + ")", null);
+                database.delete(DATABASE_TABLE_NAMES_FTS, KEY_DOCID + " / " + NAMES_FTS_DOCID_STRIDE +
+                        " IN (SELECT " + KEY_ID + " FROM " + DATABASE_TABLE_CARDS +
+                        " WHERE " + KEY_SET + " = " + sanitizeString(setCode, false) + ")", null);
+            }
             database.delete(DATABASE_TABLE_CARDS, KEY_SET + " = " + sanitizeString(setCode, false), null);
             database.delete(DATABASE_TABLE_SETS, KEY_CODE + " = " + sanitizeString(setCode, false), null);
         } catch (SQLiteException | IllegalStateException e) {
@@ -1743,6 +2308,34 @@ public class CardDbAdapter {
         }
     }
 
+    /**
+     * Add the KEY_CONTENT_HASH column to DATABASE_TABLE_CARDS if it doesn't exist yet. The packaged
+     * database predates the column, so cards from it have a null hash until they're updated.
+     *
+     * @param database The database to add the column to
+     * @throws FamiliarDbException If something goes wrong
+     */
+    static void addContentHashColumn(SQLiteDatabase database) throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery("PRAGMA table_info(" + DATABASE_TABLE_CARDS + ")", null);
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (KEY_CONTENT_HASH.equals(cursor.getString(nameIndex))) {
+                    return;
+                }
+            }
+            database.execSQL("ALTER TABLE " + DATABASE_TABLE_CARDS + " ADD COLUMN " +
+                    KEY_CONTENT_HASH + " text");
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * Given a Cursor pointed at a card, return the full type line (sub - super) for that card.
      *
@@ -1762,6 +2355,411 @@ public class CardDbAdapter {
         return typeLine.toString();
     }
 
+    /**********************************************************************************************
+     *                                                                                            *
+     *                             DATABASE_TABLE_CARDS_FTS Functions                             *
+     *                                                                                            *
+     **********************************************************************************************/
+
+    /**
+     * Drop and rebuild DATABASE_TABLE_CARDS_FTS, DATABASE_TABLE_NAMES_FTS, and their word tables
+     * from the contents of DATABASE_TABLE_CARDS.
+     *
+     * @param mDb The database to rebuild the full text index in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void rebuildFullTextIndex(SQLiteDatabase mDb) throws FamiliarDbException {
+        String ftsKeys = TextUtils.join(", ", ALL_FTS_KEYS);
+        Cursor cursor = null;
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_CARDS_FTS);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_FTS_WORDS);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_NAMES_FTS);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_NAMES_FTS_WORDS);
+            mDb.execSQL(DATABASE_CREATE_CARDS_FTS);
+            mDb.execSQL(DATABASE_CREATE_FTS_WORDS);
+            mDb.execSQL(DATABASE_CREATE_NAMES_FTS);
+            mDb.execSQL(DATABASE_CREATE_NAMES_FTS_WORDS);
+
+            /* Mirror the cards */
+            mDb.execSQL("INSERT INTO " + DATABASE_TABLE_CARDS_FTS + " (" + KEY_DOCID + ", " + ftsKeys + ")" +
+                    " SELECT " + KEY_ID + ", " + ftsKeys + " FROM " + DATABASE_TABLE_CARDS);
+
+            /* Then gather every unique token */
+            HashSet<String> words = new HashSet<>();
+            cursor = mDb.rawQuery("SELECT " + ftsKeys + " FROM " + DATABASE_TABLE_CARDS, null);
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (!cursor.isNull(i)) {
+                        words.addAll(getFullTextTokens(cursor.getString(i)));
+                    }
+                }
+            }
+            cursor.close();
+            cursor = null;
+
+            SQLiteStatement insertWord = mDb.compileStatement(
+                    "INSERT OR IGNORE INTO " + DATABASE_TABLE_FTS_WORDS + " (" + KEY_WORD + ") VALUES (?)");
+            for (String word : words) {
+                insertWord.bindString(1, word);
+                insertWord.executeInsert();
+            }
+            insertWord.close();
+
+            /* Names are folded in Java, which SQLite can't do for most scripts */
+            words.clear();
+            SQLiteStatement insertName = mDb.compileStatement(
+                    "INSERT INTO " + DATABASE_TABLE_NAMES_FTS + " (" + KEY_DOCID + ", " + KEY_NAME_FOLDED + ") VALUES (?, ?)");
+            cursor = mDb.rawQuery("SELECT " + KEY_ID + ", " + TextUtils.join(", ", ALL_NAME_KEYS) +
+                    " FROM " + DATABASE_TABLE_CARDS, null);
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < ALL_NAME_KEYS.size(); i++) {
+                    if (!cursor.isNull(i + 1) && cursor.getString(i + 1).length() > 0) {
+                        String folded = foldName(cursor.getString(i + 1));
+                        insertName.bindLong(1, cursor.getLong(0) * NAMES_FTS_DOCID_STRIDE + i);
+                        insertName.bindString(2, folded);
+                        insertName.executeInsert();
+                        words.addAll(getFullTextTokens(folded));
+                    }
+                }
+            }
+            cursor.close();
+            cursor = null;
+            insertName.close();
+
+            insertWord = mDb.compileStatement(
+                    "INSERT OR IGNORE INTO " + DATABASE_TABLE_NAMES_FTS_WORDS + " (" + KEY_WORD + ") VALUES (?)");
+            for (String word : words) {
+                insertWord.bindString(1, word);
+                insertWord.executeInsert();
+            }
+            insertWord.close();
+
+            mDb.setTransactionSuccessful();
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Helper function to check if the full text index exists. It may not if the database was just
+     * copied and hasn't been opened for writing yet.
+     *
+     * @param mDb The database to check
+     * @return true if DATABASE_TABLE_CARDS_FTS, DATABASE_TABLE_NAMES_FTS, and their word tables
+     * exist, false otherwise
+     */
+    static boolean hasFullTextIndex(SQLiteDatabase mDb) {
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("SELECT COUNT(*) FROM sqlite_master" +
+                    " WHERE type = 'table' AND name IN ('" + DATABASE_TABLE_CARDS_FTS + "', '" +
+                    DATABASE_TABLE_FTS_WORDS + "', '" + DATABASE_TABLE_NAMES_FTS + "', '" +
+                    DATABASE_TABLE_NAMES_FTS_WORDS + "')", null);
+            return cursor.moveToFirst() && cursor.getInt(0) == 4;
+        } catch (SQLiteException | IllegalStateException e) {
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Mirror a newly inserted card into DATABASE_TABLE_CARDS_FTS and DATABASE_TABLE_NAMES_FTS, and
+     * add its tokens to their word tables.
+     *
+     * @param rowId       The KEY_ID of the inserted card
+     * @param cardValues  The values which were inserted into DATABASE_TABLE_CARDS
+     * @param mDb         The database to add the card to
+     */
+    private static void addToFullTextIndex(long rowId, ContentValues cardValues, SQLiteDatabase mDb) {
+        ContentValues ftsValues = new ContentValues();
+        ContentValues wordValues = new ContentValues();
+        ftsValues.put(KEY_DOCID, rowId);
+        for (String key : ALL_FTS_KEYS) {
+            String value = cardValues.getAsString(key);
+            ftsValues.put(key, value);
+            if (value != null) {
+                for (String word : getFullTextTokens(value)) {
+                    wordValues.put(KEY_WORD, word);
+                    mDb.insertWithOnConflict(DATABASE_TABLE_FTS_WORDS, null, wordValues,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+        }
+        mDb.insert(DATABASE_TABLE_CARDS_FTS, null, ftsValues);
+
+        for (int i = 0; i < ALL_NAME_KEYS.size(); i++) {
+            String name = cardValues.getAsString(ALL_NAME_KEYS.get(i));
+            if (name != null && name.length() > 0) {
+                String folded = foldName(name);
+                ContentValues nameValues = new ContentValues();
+                nameValues.put(KEY_DOCID, rowId * NAMES_FTS_DOCID_STRIDE + i);
+                nameValues.put(KEY_NAME_FOLDED, folded);
+                mDb.insert(DATABASE_TABLE_NAMES_FTS, null, nameValues);
+                for (String word : getFullTextTokens(folded)) {
+                    wordValues.put(KEY_WORD, word);
+                    mDb.insertWithOnConflict(DATABASE_TABLE_NAMES_FTS_WORDS, null, wordValues,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Split a String into tokens the same way the FTS "simple" tokenizer does. Runs of ASCII
+     * letters and digits, and any non-ASCII characters, are tokens. Everything else separates
+     * tokens. ASCII letters are folded to lower case.
+     *
+     * @param str The String to tokenize
+     * @return A list of tokens, in the order they appear in str
+     */
+    static List<String> getFullTextTokens(String str) {
+        ArrayList<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                token.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                token.append((char) (c - 'A' + 'a'));
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Find every indexed word which contains the given token, i.e. every word which LIKE
+     * '%token%' would match.
+     *
+     * @param token      A single token, from getFullTextTokens()
+     * @param wordsTable DATABASE_TABLE_FTS_WORDS or DATABASE_TABLE_NAMES_FTS_WORDS
+     * @param mDb        The database to query
+     * @return A list of matching words, or null if there are more than MAX_FTS_WORDS_PER_TERM
+     * @throws FamiliarDbException If something goes wrong
+     */
+    private static List<String> getFullTextWords(String token, String wordsTable, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("SELECT " + KEY_WORD + " FROM " + wordsTable +
+                    " WHERE " + KEY_WORD + " LIKE ? LIMIT " + (MAX_FTS_WORDS_PER_TERM + 1),
+                    new String[]{getBindableString("%" + token + "%", false)});
+            if (cursor.getCount() > MAX_FTS_WORDS_PER_TERM) {
+                return null;
+            }
+            ArrayList<String> words = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                words.add(cursor.getString(0));
+            }
+            return words;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Build a sub-query which selects the KEY_ID of every card with any of the given words in the
+     * given column.
+     *
+     * @param column The column in DATABASE_TABLE_CARDS_FTS to match
+     * @param words  The words to match, from getFullTextWords()
+     * @param args   The MATCH expression is added to this list, to be bound to the sub-query
+     * @return A sub-query suitable for IN or NOT IN
+     */
+    private static String getFullTextSubquery(String column, List<String> words, List<String> args) {
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (match.length() > 0) {
+                match.append(" OR ");
+            }
+            match.append(column).append(':').append(word);
+        }
+        args.add(match.toString());
+        return "SELECT " + KEY_DOCID + " FROM " + DATABASE_TABLE_CARDS_FTS +
+                " WHERE " + DATABASE_TABLE_CARDS_FTS + " MATCH ?";
+    }
+
+    /**
+     * A clause from getLikeClause() or getAnyNameClause(), and how cheap it is. Clauses narrowed by
+     * the full text index are cheap, plain infix LIKEs are not. A term can be too broad to narrow
+     * even when the index is used, and then it's a plain LIKE too.
+     */
+    private static class TextClause {
+        /* One of the WhereClauseBuilder.RANK_* constants */
+        final int rank;
+        /* The parenthesized clause */
+        final String sql;
+
+        TextClause(int rank, String sql) {
+            this.rank = rank;
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * Build a parenthesized (NOT) LIKE clause for a column in DATABASE_TABLE_CARDS. If the full
+     * text index is used, the clause is narrowed by MATCH sub-queries first. Every alphanumeric
+     * run in a LIKE pattern must be inside a single token of a matching row, so a row can only
+     * match if it contains one of the indexed words containing each run. The LIKE is still
+     * applied to the narrowed rows, so the results are exactly the same either way.
+     *
+     * @param column            The column in DATABASE_TABLE_CARDS to search
+     * @param pattern           The LIKE pattern, including wildcards
+     * @param isNotLike         true for NOT LIKE, false for LIKE
+     * @param removeAccentMarks true to remove accent marks from the pattern
+     * @param useFullTextIndex  true to narrow the clause with DATABASE_TABLE_CARDS_FTS
+     * @param args              The arguments for the clause's placeholders are added to this list
+     * @param mDb               The database to query for indexed words
+     * @return A clause to add to a WHERE statement, and its rank
+     * @throws FamiliarDbException If something goes wrong
+     */
+    private static TextClause getLikeClause(String column, String pattern, boolean isNotLike,
+                                        boolean removeAccentMarks, boolean useFullTextIndex,
+                                        List<String> args, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        String columnInDb = DATABASE_TABLE_CARDS + "." + column;
+        String likeClause = columnInDb + (isNotLike ? " NOT LIKE ?" : " LIKE ?");
+        String likeArg = getBindableString(pattern, removeAccentMarks);
+        TextClause plainLike = new TextClause(WhereClauseBuilder.RANK_LONG_LIKE, "(" + likeClause + ")");
+
+        if (!useFullTextIndex) {
+            args.add(likeArg);
+            return plainLike;
+        }
+
+        String term = pattern.trim();
+        if (removeAccentMarks) {
+            term = removeAccentMarks(term);
+        }
+        List<String> tokens = getFullTextTokens(term);
+        if (tokens.isEmpty()) {
+            args.add(likeArg);
+            return plainLike;
+        }
+
+        if (isNotLike) {
+            /* Exclusions can only be translated when the pattern is exactly '%token%' */
+            if (tokens.size() != 1 || term.length() != tokens.get(0).length() + 2) {
+                args.add(likeArg);
+                return plainLike;
+            }
+            List<String> words = getFullTextWords(tokens.get(0), DATABASE_TABLE_FTS_WORDS, mDb);
+            if (words == null) {
+                args.add(likeArg);
+                return plainLike;
+            } else if (words.isEmpty()) {
+                /* NOT LIKE is never true for NULL */
+                return new TextClause(WhereClauseBuilder.RANK_COLUMN, "(" + columnInDb + " IS NOT NULL)");
+            }
+            /* The sub-query is only run once, but excluding its rows doesn't narrow the scan, so
+             * this is checked after the indexed predicates */
+            return new TextClause(WhereClauseBuilder.RANK_COLUMN, "(" + columnInDb + " IS NOT NULL AND " +
+                    DATABASE_TABLE_CARDS + "." + KEY_ID + " NOT IN (" +
+                    getFullTextSubquery(column, words, args) + "))");
+        }
+
+        /* Build the clause separately, so nothing is added to args if nothing can match */
+        ArrayList<String> clauseArgs = new ArrayList<>();
+        StringBuilder clause = new StringBuilder("(");
+        boolean narrowed = false;
+        for (String token : tokens) {
+            List<String> words = getFullTextWords(token, DATABASE_TABLE_FTS_WORDS, mDb);
+            if (words == null) {
+                /* Too broad to be worth narrowing */
+                continue;
+            } else if (words.isEmpty()) {
+                /* Nothing contains this token, so nothing can match */
+                return new TextClause(WhereClauseBuilder.RANK_INDEXED, "(0)");
+            }
+            clause.append(DATABASE_TABLE_CARDS).append('.').append(KEY_ID).append(" IN (")
+                    .append(getFullTextSubquery(column, words, clauseArgs)).append(") AND ");
+            narrowed = true;
+        }
+        clause.append(likeClause).append(')');
+        clauseArgs.add(likeArg);
+        args.addAll(clauseArgs);
+        /* If every token was too broad, it's just a LIKE over every row */
+        return new TextClause(narrowed ? WhereClauseBuilder.RANK_INDEXED :
+                WhereClauseBuilder.RANK_LONG_LIKE, clause.toString());
+    }
+
+    /**
+     * Build a parenthesized clause which matches cards with the given infix in any of their names,
+     * in any language. With the full text index, the folded term is compared to the folded names
+     * in DATABASE_TABLE_NAMES_FTS, narrowed by a MATCH on whichever of its tokens has the fewest
+     * indexed words, so all eleven languages cost one sub-query. Without it, each name column is
+     * compared with LIKE, which only ignores case for ASCII.
+     *
+     * @param term             The infix to search for, without wildcards
+     * @param useFullTextIndex true to use DATABASE_TABLE_NAMES_FTS
+     * @param args             The arguments for the clause's placeholders are added to this list
+     * @param mDb              The database to query for indexed words
+     * @return A clause to add to a WHERE statement, and its rank
+     * @throws FamiliarDbException If something goes wrong
+     */
+    private static TextClause getAnyNameClause(String term, boolean useFullTextIndex, List<String> args,
+                                           SQLiteDatabase mDb) throws FamiliarDbException {
+        if (!useFullTextIndex) {
+            StringBuilder clause = new StringBuilder("(");
+            clause.append(DATABASE_TABLE_CARDS).append('.').append(KEY_NAME_NO_ACCENT).append(" LIKE ?");
+            args.add(getBindableString("%" + term + "%", true));
+            for (String key : ALL_NAME_KEYS.subList(1, ALL_NAME_KEYS.size())) {
+                clause.append(" OR ").append(DATABASE_TABLE_CARDS).append('.').append(key).append(" LIKE ?");
+                args.add(getBindableString("%" + term + "%", false));
+            }
+            return new TextClause(WhereClauseBuilder.RANK_LONG_LIKE, clause.append(')').toString());
+        }
+
+        String folded = foldName(term.trim());
+        List<String> narrowest = null;
+        for (String token : getFullTextTokens(folded)) {
+            List<String> words = getFullTextWords(token, DATABASE_TABLE_NAMES_FTS_WORDS, mDb);
+            if (words == null) {
+                /* Too broad to be worth narrowing */
+                continue;
+            } else if (words.isEmpty()) {
+                /* No name contains this token, so nothing can match */
+                return new TextClause(WhereClauseBuilder.RANK_INDEXED, "(0)");
+            }
+            if (narrowest == null || words.size() < narrowest.size()) {
+                narrowest = words;
+            }
+        }
+
+        StringBuilder subquery = new StringBuilder("SELECT ")
+                .append(KEY_DOCID).append(" / ").append(NAMES_FTS_DOCID_STRIDE)
+                .append(" FROM ").append(DATABASE_TABLE_NAMES_FTS).append(" WHERE ");
+        if (narrowest != null) {
+            subquery.append(DATABASE_TABLE_NAMES_FTS).append(" MATCH ? AND ");
+            args.add(TextUtils.join(" OR ", narrowest));
+        }
+        subquery.append(KEY_NAME_FOLDED).append(" LIKE ?");
+        args.add("%" + folded + "%");
+        /* Without a MATCH, the sub-query is a LIKE over every name */
+        return new TextClause(narrowest != null ? WhereClauseBuilder.RANK_INDEXED :
+                WhereClauseBuilder.RANK_LONG_LIKE,
+                "(" + DATABASE_TABLE_CARDS + "." + KEY_ID + " IN (" + subquery + "))");
+    }
+
     /**********************************************************************************************
      *                                                                                            *
      *                           DATABASE_TABLE_BANNED_CARDS Functions                            *
@@ -1806,7 +2804,9 @@ public class CardDbAdapter {
     }
 
     /**
-     * Given a card and a format, check if that card is legal to play in that format.
+     * Given a card and a format, check if that card is legal to play in that format. This is read
+     * from DATABASE_TABLE_LEGALITY if it has been built, otherwise it's computed from the legality
+     * tables.
      *
      * @param mCardName The card to check legality for
      * @param format    The format to check legality in
@@ -1816,40 +2816,46 @@ public class CardDbAdapter {
      */
     public static int checkLegality(String mCardName, String format, SQLiteDatabase mDb)
             throws FamiliarDbException {
-        mCardName = sanitizeString(mCardName, false);
-        format = sanitizeString(format, false);
+        mCardName = getBindableString(mCardName, false);
+        format = getBindableString(format, false);
 
-        try {
-            /* The new way (single query per type, should be much faster) - Alex
-             * TODO clean this up */
-            String sql = "SELECT COALESCE(CASE (SELECT "
-                    + KEY_SET
-                    + " FROM "
-                    + DATABASE_TABLE_CARDS
-                    + " WHERE "
-                    + KEY_NAME
-                    + " = "
-                    + mCardName
-                    + ") ";
-            for (String illegalSet : ILLEGAL_SETS) {
-                sql += "WHEN '" + illegalSet + "' THEN 1 ";
-            }
-            sql += "ELSE NULL END, "
-                    + "CASE (SELECT 1 FROM " + DATABASE_TABLE_CARDS
-                    + " c INNER JOIN " + DATABASE_TABLE_LEGAL_SETS
-                    + " ls ON ls." + KEY_SET + " = c." + KEY_SET + " WHERE ls."
-                    + KEY_FORMAT + " = " + format + " AND c." + KEY_NAME
-                    + " = " + mCardName
-                    + ") WHEN 1 THEN NULL ELSE CASE WHEN " + format
-                    + " = 'Legacy' " + "THEN NULL WHEN " + format
-                    + " = 'Vintage' THEN NULL WHEN " + format
-                    + " = 'Commander' THEN NULL ELSE 1 END END, (SELECT "
-                    + KEY_LEGALITY + " from " + DATABASE_TABLE_BANNED_CARDS
-                    + " WHERE " + KEY_NAME + " = " + mCardName + " AND "
-                    + KEY_FORMAT + " = " + format + "), 0) AS "
-                    + KEY_LEGALITY;
+        if (hasLegalityMatrix(mDb)) {
+            Cursor c = null;
+            try {
+                c = mDb.rawQuery("SELECT " + KEY_LEGALITY + " FROM " + DATABASE_TABLE_LEGALITY +
+                        " WHERE " + KEY_NAME + " = ? AND " + KEY_FORMAT + " = ?",
+                        new String[]{mCardName, format});
+                if (c.moveToFirst()) {
+                    return c.getInt(0);
+                }
+            } catch (SQLiteException | IllegalStateException e) {
+                throw new FamiliarDbException(e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
 
-            Cursor c = mDb.rawQuery(sql, null);
+        /* Cards which aren't in the database don't have a row, so compute it */
+        return computeLegality(mCardName, format, mDb);
+    }
+
+    /**
+     * Given a card and a format, compute if that card is legal to play in that format from the
+     * legality tables. This is what DATABASE_TABLE_LEGALITY is built from.
+     *
+     * @param mCardName The card to check legality for, already trimmed
+     * @param format    The format to check legality in, already trimmed
+     * @param mDb       The database to query
+     * @return LEGAL, BANNED, or RESTRICTED
+     * @throws FamiliarDbException If something goes wrong
+     */
+    static int computeLegality(String mCardName, String format, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        try {
+            String sql = "SELECT " + getLegalityExpression("?1", "?2") + " AS " + KEY_LEGALITY;
+            Cursor c = mDb.rawQuery(sql, new String[]{mCardName, format});
 
             c.moveToFirst();
             int legality = c.getInt(c.getColumnIndex(KEY_LEGALITY));
@@ -1860,6 +2866,242 @@ public class CardDbAdapter {
         }
     }
 
+    /**
+     * Build an expression for a card's legality in a format. Illegal sets are checked first, then
+     * whether the card was printed in any of the format's legal sets, and then the banned and
+     * restricted list.
+     *
+     * @param name   An expression for the card's name, either a placeholder or a column
+     * @param format An expression for the format's name, either a placeholder or a column
+     * @return An expression which evaluates to LEGAL, BANNED, or RESTRICTED
+     */
+    private static String getLegalityExpression(String name, String format) {
+        /* The new way (single query per type, should be much faster) - Alex */
+        String sql = "COALESCE(CASE (SELECT " + KEY_SET + " FROM " + DATABASE_TABLE_CARDS +
+                " WHERE " + KEY_NAME + " = " + name + ") ";
+        for (String illegalSet : ILLEGAL_SETS) {
+            sql += "WHEN '" + illegalSet + "' THEN 1 ";
+        }
+        sql += "ELSE NULL END, "
+                + "CASE (SELECT 1 FROM " + DATABASE_TABLE_CARDS
+                + " c INNER JOIN " + DATABASE_TABLE_LEGAL_SETS
+                + " ls ON ls." + KEY_SET + " = c." + KEY_SET + " WHERE ls."
+                + KEY_FORMAT + " = " + format + " AND c." + KEY_NAME
+                + " = " + name
+                + ") WHEN 1 THEN NULL ELSE CASE WHEN " + format
+                + " = 'Legacy' " + "THEN NULL WHEN " + format
+                + " = 'Vintage' THEN NULL WHEN " + format
+                + " = 'Commander' THEN NULL ELSE 1 END END, (SELECT "
+                + KEY_LEGALITY + " from " + DATABASE_TABLE_BANNED_CARDS
+                + " WHERE " + KEY_NAME + " = " + name + " AND "
+                + KEY_FORMAT + " = " + format + "), 0)";
+        return sql;
+    }
+
+    /**
+     * Given a list of cards, look up their legality in every format. Each card takes a single
+     * row lookup per format, rather than a set of sub-queries.
+     *
+     * @param cardNames The cards to check legality for
+     * @param mDb       The database to query
+     * @return A map from each card name to a map from each format to LEGAL, BANNED, or RESTRICTED
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static HashMap<String, HashMap<String, Integer>> getLegalities(Collection<String> cardNames,
+                                                                          SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        /* Names are trimmed before they're looked up, so remember which names map to which */
+        HashMap<String, ArrayList<String>> namesByKey = new HashMap<>();
+        HashMap<String, HashMap<String, Integer>> legalities = new HashMap<>();
+        for (String cardName : cardNames) {
+            String key = getBindableString(cardName, false);
+            if (!namesByKey.containsKey(key)) {
+                namesByKey.put(key, new ArrayList<String>());
+            }
+            namesByKey.get(key).add(cardName);
+            legalities.put(cardName, new HashMap<String, Integer>());
+        }
+
+        if (hasLegalityMatrix(mDb)) {
+            ArrayList<String> keys = new ArrayList<>(namesByKey.keySet());
+            for (int start = 0; start < keys.size(); start += MAX_BOUND_ARGUMENTS) {
+                List<String> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_BOUND_ARGUMENTS));
+                Cursor c = null;
+                try {
+                    c = mDb.rawQuery("SELECT " + KEY_NAME + ", " + KEY_FORMAT + ", " + KEY_LEGALITY +
+                                    " FROM " + DATABASE_TABLE_LEGALITY +
+                                    " WHERE " + KEY_NAME + " IN (" + getPlaceholders(chunk.size()) + ")",
+                            chunk.toArray(new String[chunk.size()]));
+                    while (c.moveToNext()) {
+                        for (String cardName : namesByKey.get(c.getString(0))) {
+                            legalities.get(cardName).put(c.getString(1), c.getInt(2));
+                        }
+                    }
+                } catch (SQLiteException | IllegalStateException e) {
+                    throw new FamiliarDbException(e);
+                } finally {
+                    if (c != null) {
+                        c.close();
+                    }
+                }
+            }
+        }
+
+        /* Fill in anything which wasn't in the matrix */
+        Cursor formats = fetchAllFormats(mDb);
+        try {
+            while (formats.moveToNext()) {
+                String format = formats.getString(formats.getColumnIndex(KEY_NAME));
+                for (String cardName : legalities.keySet()) {
+                    if (!legalities.get(cardName).containsKey(format)) {
+                        legalities.get(cardName).put(format, computeLegality(
+                                getBindableString(cardName, false), getBindableString(format, false), mDb));
+                    }
+                }
+            }
+        } finally {
+            formats.close();
+        }
+        return legalities;
+    }
+
+    /**********************************************************************************************
+     *                                                                                            *
+     *                              DATABASE_TABLE_LEGALITY Functions                             *
+     *                                                                                            *
+     **********************************************************************************************/
+
+    /**
+     * Drop and rebuild DATABASE_TABLE_LEGALITY from DATABASE_TABLE_CARDS and the legality tables.
+     * This must be called whenever the legality data or the sets change. A savepoint is used
+     * rather than beginTransaction(), since a transactional database from DatabaseManager is
+     * already in a raw "BEGIN EXCLUSIVE" transaction.
+     *
+     * @param mDb The database to rebuild the legality matrix in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void rebuildLegalityMatrix(SQLiteDatabase mDb) throws FamiliarDbException {
+        try {
+            mDb.execSQL("SAVEPOINT " + DATABASE_TABLE_LEGALITY);
+            try {
+                String name = "n." + KEY_NAME;
+                String format = "f." + KEY_NAME;
+                mDb.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE_LEGALITY);
+                mDb.execSQL(DATABASE_CREATE_LEGALITY);
+                mDb.execSQL("INSERT INTO " + DATABASE_TABLE_LEGALITY +
+                        " (" + KEY_NAME + ", " + KEY_FORMAT + ", " + KEY_LEGALITY + ", " + KEY_IN_FORMAT + ")" +
+                        " SELECT " + name + ", " + format + ", " +
+                        getLegalityExpression(name, format) + ", " +
+                        getInFormatExpression(name, format) +
+                        " FROM (SELECT DISTINCT " + KEY_NAME + " FROM " + DATABASE_TABLE_CARDS + ") AS n, " +
+                        DATABASE_TABLE_FORMATS + " AS f");
+                /* Building the index after the rows are inserted is faster than maintaining it */
+                for (String createIndex : DATABASE_CREATE_LEGALITY_INDICES) {
+                    mDb.execSQL(createIndex);
+                }
+                mDb.execSQL("RELEASE " + DATABASE_TABLE_LEGALITY);
+            } catch (SQLiteException | IllegalStateException e) {
+                mDb.execSQL("ROLLBACK TO " + DATABASE_TABLE_LEGALITY);
+                mDb.execSQL("RELEASE " + DATABASE_TABLE_LEGALITY);
+                throw e;
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Rebuild only the given cards' rows of DATABASE_TABLE_LEGALITY, after a delta patch added,
+     * changed, or removed them. Cards which aren't in DATABASE_TABLE_CARDS anymore are just
+     * removed. If the table hasn't been built yet, all of it is built instead.
+     *
+     * @param cardNames The English names of the cards to rebuild
+     * @param mDb       The database to update the legality matrix in
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static void updateLegalityMatrix(Collection<String> cardNames, SQLiteDatabase mDb)
+            throws FamiliarDbException {
+        if (!hasLegalityMatrix(mDb)) {
+            rebuildLegalityMatrix(mDb);
+            return;
+        }
+        if (cardNames.isEmpty()) {
+            return;
+        }
+        try {
+            mDb.execSQL("SAVEPOINT " + DATABASE_TABLE_LEGALITY);
+            try {
+                String name = "n." + KEY_NAME;
+                String format = "f." + KEY_NAME;
+                ArrayList<String> names = new ArrayList<>(cardNames);
+                for (int start = 0; start < names.size(); start += MAX_BOUND_ARGUMENTS) {
+                    List<String> chunk = names.subList(start, Math.min(names.size(), start + MAX_BOUND_ARGUMENTS));
+                    String[] args = chunk.toArray(new String[chunk.size()]);
+                    String placeholders = getPlaceholders(chunk.size());
+                    mDb.execSQL("DELETE FROM " + DATABASE_TABLE_LEGALITY +
+                            " WHERE " + KEY_NAME + " IN (" + placeholders + ")", args);
+                    mDb.execSQL("INSERT INTO " + DATABASE_TABLE_LEGALITY +
+                            " (" + KEY_NAME + ", " + KEY_FORMAT + ", " + KEY_LEGALITY + ", " + KEY_IN_FORMAT + ")" +
+                            " SELECT " + name + ", " + format + ", " +
+                            getLegalityExpression(name, format) + ", " +
+                            getInFormatExpression(name, format) +
+                            " FROM (SELECT DISTINCT " + KEY_NAME + " FROM " + DATABASE_TABLE_CARDS +
+                            " WHERE " + KEY_NAME + " IN (" + placeholders + ")) AS n, " +
+                            DATABASE_TABLE_FORMATS + " AS f", args);
+                }
+                mDb.execSQL("RELEASE " + DATABASE_TABLE_LEGALITY);
+            } catch (SQLiteException | IllegalStateException e) {
+                mDb.execSQL("ROLLBACK TO " + DATABASE_TABLE_LEGALITY);
+                mDb.execSQL("RELEASE " + DATABASE_TABLE_LEGALITY);
+                throw e;
+            }
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Build an expression for whether or not Search() keeps a card when filtering by a format.
+     * If the format has legal sets, the card must have been printed in one of them. The card must
+     * not be banned. Restricted cards are kept.
+     *
+     * @param name   An expression for the card's name
+     * @param format An expression for the format's name
+     * @return An expression which evaluates to 1 if the card is kept, or 0 if it isn't
+     */
+    private static String getInFormatExpression(String name, String format) {
+        return "((NOT EXISTS (SELECT 1 FROM " + DATABASE_TABLE_LEGAL_SETS +
+                " WHERE " + KEY_FORMAT + " = " + format + ")" +
+                " OR EXISTS (SELECT 1 FROM " + DATABASE_TABLE_CARDS + " c INNER JOIN " +
+                DATABASE_TABLE_LEGAL_SETS + " ls ON ls." + KEY_SET + " = c." + KEY_SET +
+                " WHERE ls." + KEY_FORMAT + " = " + format + " AND c." + KEY_NAME + " = " + name + "))" +
+                " AND NOT EXISTS (SELECT 1 FROM " + DATABASE_TABLE_BANNED_CARDS +
+                " WHERE " + KEY_NAME + " = " + name + " AND " + KEY_FORMAT + " = " + format +
+                " AND " + KEY_LEGALITY + " = " + BANNED + "))";
+    }
+
+    /**
+     * Helper function to check if DATABASE_TABLE_LEGALITY exists. It may not if the database was
+     * just copied and hasn't been opened for writing yet.
+     *
+     * @param mDb The database to check
+     * @return true if DATABASE_TABLE_LEGALITY exists, false otherwise
+     */
+    static boolean hasLegalityMatrix(SQLiteDatabase mDb) {
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("SELECT COUNT(*) FROM sqlite_master" +
+                    " WHERE type = 'table' AND name = ?", new String[]{DATABASE_TABLE_LEGALITY});
+            return cursor.moveToFirst() && cursor.getInt(0) == 1;
+        } catch (SQLiteException | IllegalStateException e) {
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**********************************************************************************************
      *                                                                                            *
      *                               DATABASE_TABLE_SETS Functions                                *
@@ -2019,6 +3261,74 @@ public class CardDbAdapter {
         }
     }
 
+    /**
+     * Look up everything needed to fetch prices for a batch of cards in a single query, rather
+     * than a handful of queries per card.
+     *
+     * @param cardNames The names of the cards to look up. Accent marks and case are ignored
+     * @param mDb       The database to query
+     * @return A map from getPriceMetadataKey() to the metadata for that card in that set
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static HashMap<String, PriceFetchRequest.CardMetadata> fetchPriceMetadata(
+            Collection<String> cardNames, SQLiteDatabase mDb) throws FamiliarDbException {
+        HashSet<String> names = new HashSet<>();
+        for (String cardName : cardNames) {
+            names.add(getBindableString(cardName, true));
+        }
+
+        HashMap<String, PriceFetchRequest.CardMetadata> metadata = new HashMap<>();
+        ArrayList<String> nameList = new ArrayList<>(names);
+        for (int start = 0; start < nameList.size(); start += MAX_BOUND_ARGUMENTS) {
+            List<String> chunk = nameList.subList(start, Math.min(nameList.size(), start + MAX_BOUND_ARGUMENTS));
+            Cursor c = null;
+            try {
+                c = mDb.rawQuery("SELECT " +
+                                DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT + ", " +
+                                DATABASE_TABLE_CARDS + "." + KEY_SET + ", " +
+                                DATABASE_TABLE_CARDS + "." + KEY_NUMBER + ", " +
+                                DATABASE_TABLE_CARDS + "." + KEY_SUPERTYPE + ", " +
+                                DATABASE_TABLE_CARDS + "." + KEY_SUBTYPE + ", " +
+                                DATABASE_TABLE_CARDS + "." + KEY_MULTIVERSEID + ", " +
+                                DATABASE_TABLE_SETS + "." + KEY_NAME_TCGPLAYER +
+                                " FROM " + DATABASE_TABLE_CARDS + " JOIN " + DATABASE_TABLE_SETS +
+                                " ON " + DATABASE_TABLE_SETS + "." + KEY_CODE + " = " +
+                                DATABASE_TABLE_CARDS + "." + KEY_SET +
+                                " WHERE " + DATABASE_TABLE_CARDS + "." + KEY_NAME_NO_ACCENT +
+                                " COLLATE NOCASE IN (" + getPlaceholders(chunk.size()) + ")",
+                        chunk.toArray(new String[chunk.size()]));
+                while (c.moveToNext()) {
+                    String key = getPriceMetadataKey(c.getString(0), c.getString(1));
+                    /* Like fetchCardByNameAndSet(), the first printing found wins */
+                    if (!metadata.containsKey(key)) {
+                        PriceFetchRequest.CardMetadata card = new PriceFetchRequest.CardMetadata();
+                        card.mNumber = c.getString(2);
+                        card.mType = getTypeLine(c);
+                        card.mMultiverseId = c.getInt(5);
+                        card.mTcgName = c.isNull(6) ? "" : c.getString(6);
+                        metadata.put(key, card);
+                    }
+                }
+            } catch (SQLiteException | IllegalStateException e) {
+                throw new FamiliarDbException(e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * @param cardName The name of a card
+     * @param setCode  The set code of a printing of that card
+     * @return The key for that printing in the map returned by fetchPriceMetadata()
+     */
+    public static String getPriceMetadataKey(String cardName, String setCode) {
+        return getBindableString(cardName, true).toLowerCase(Locale.ENGLISH) + "-" + setCode;
+    }
+
     /**
      * Helper function to determine what kind of multicard a card is based on set and number.
      * TODO add option for kamigawa flip? Determine type based on text search for supplemental sets?
@@ -2225,6 +3535,9 @@ public class CardDbAdapter {
             mDb.execSQL(DATABASE_CREATE_FORMATS);
             mDb.execSQL(DATABASE_CREATE_LEGAL_SETS);
             mDb.execSQL(DATABASE_CREATE_BANNED_CARDS);
+            for (String createIndex : DATABASE_CREATE_LEGAL_INDICES) {
+                mDb.execSQL(createIndex);
+            }
         } catch (SQLiteException e) {
             throw new FamiliarDbException(e);
         }
@@ -2553,90 +3866,51 @@ public class CardDbAdapter {
         return DatabaseUtils.sqlEscapeString(input.trim());
     }
 
-    private static final char replacements[][] = {
-            {Character.toChars(0xC0)[0], 'A'},
-            {Character.toChars(0xC1)[0], 'A'},
-            {Character.toChars(0xC2)[0], 'A'},
-            {Character.toChars(0xC3)[0], 'A'},
-            {Character.toChars(0xC4)[0], 'A'},
-            {Character.toChars(0xC5)[0], 'A'},
-            //{Character.toChars(0xC6)[0], 'Ae'},
-            {Character.toChars(0xC7)[0], 'C'},
-            {Character.toChars(0xC8)[0], 'E'},
-            {Character.toChars(0xC9)[0], 'E'},
-            {Character.toChars(0xCA)[0], 'E'},
-            {Character.toChars(0xCB)[0], 'E'},
-            {Character.toChars(0xCC)[0], 'I'},
-            {Character.toChars(0xCD)[0], 'I'},
-            {Character.toChars(0xCE)[0], 'I'},
-            {Character.toChars(0xCF)[0], 'I'},
-            {Character.toChars(0xD0)[0], 'D'},
-            {Character.toChars(0xD1)[0], 'N'},
-            {Character.toChars(0xD2)[0], 'O'},
-            {Character.toChars(0xD3)[0], 'O'},
-            {Character.toChars(0xD4)[0], 'O'},
-            {Character.toChars(0xD5)[0], 'O'},
-            {Character.toChars(0xD6)[0], 'O'},
-            {Character.toChars(0xD7)[0], 'x'},
-            {Character.toChars(0xD8)[0], 'O'},
-            {Character.toChars(0xD9)[0], 'U'},
-            {Character.toChars(0xDA)[0], 'U'},
-            {Character.toChars(0xDB)[0], 'U'},
-            {Character.toChars(0xDC)[0], 'U'},
-            {Character.toChars(0xDD)[0], 'Y'},
-            {Character.toChars(0xE0)[0], 'a'},
-            {Character.toChars(0xE1)[0], 'a'},
-            {Character.toChars(0xE2)[0], 'a'},
-            {Character.toChars(0xE3)[0], 'a'},
-            {Character.toChars(0xE4)[0], 'a'},
-            {Character.toChars(0xE5)[0], 'a'},
-            //{Character.toChars(0xE6)[0], 'ae'},
-            {Character.toChars(0xE7)[0], 'c'},
-            {Character.toChars(0xE8)[0], 'e'},
-            {Character.toChars(0xE9)[0], 'e'},
-            {Character.toChars(0xEA)[0], 'e'},
-            {Character.toChars(0xEB)[0], 'e'},
-            {Character.toChars(0xEC)[0], 'i'},
-            {Character.toChars(0xED)[0], 'i'},
-            {Character.toChars(0xEE)[0], 'i'},
-            {Character.toChars(0xEF)[0], 'i'},
-            {Character.toChars(0xF1)[0], 'n'},
-            {Character.toChars(0xF2)[0], 'o'},
-            {Character.toChars(0xF3)[0], 'o'},
-            {Character.toChars(0xF4)[0], 'o'},
-            {Character.toChars(0xF5)[0], 'o'},
-            {Character.toChars(0xF6)[0], 'o'},
-            {Character.toChars(0xF8)[0], 'o'},
-            {Character.toChars(0xF9)[0], 'u'},
-            {Character.toChars(0xFA)[0], 'u'},
-            {Character.toChars(0xFB)[0], 'u'},
-            {Character.toChars(0xFC)[0], 'u'},
-            {Character.toChars(0xFD)[0], 'y'},
-            {Character.toChars(0xFF)[0], 'y'}
-    };
+    /**
+     * Helper function to prepare a string to be bound to a query. It's the same as
+     * sanitizeString(), except that the string is not escaped, since bound arguments never are.
+     *
+     * @param input A string to prepare
+     * @return The trimmed String, with accent marks removed if requested
+     */
+    private static String getBindableString(String input, boolean removeAccentMarks) {
+        if (removeAccentMarks) {
+            return removeAccentMarks(input).trim();
+        }
+        return input.trim();
+    }
+
+    /**
+     * Fold a card name, in any language, so it can be compared to what someone typed. Accent marks
+     * are removed and every script with case is lower cased. Full width forms, which CJK input
+     * methods often produce, become their ASCII equivalents, and the ideographic space and katakana
+     * middle dot become spaces so they separate words. Russian 'ё' is commonly written 'е'.
+     *
+     * @param name The name to fold
+     * @return The folded name
+     */
+    public static String foldName(String name) {
+        char[] folded = removeAccentMarks(name).toLowerCase(Locale.ENGLISH).toCharArray();
+        for (int i = 0; i < folded.length; i++) {
+            char c = folded[i];
+            if (c >= '\uFF01' && c <= '\uFF5E') {
+                folded[i] = (char) (c - '\uFF01' + '!');
+            } else if (c == '\u3000' || c == '\u30FB' || c == '\u00B7') {
+                folded[i] = ' ';
+            } else if (c == '\u0451') {
+                folded[i] = '\u0435';
+            }
+        }
+        return new String(folded);
+    }
 
     /**
-     * Helper function to remove all non-ascii characters with accent marks from a String.
+     * Helper function to remove accent marks from every Latin letter in a String.
      *
      * @param str The String to remove accent marks from
      * @return The accent-less String
      */
     public static String removeAccentMarks(String str) {
-        StringBuilder out = new StringBuilder(str.length());
-        char[] letters = str.toCharArray();
-        for (char letter : letters) {
-            boolean matchFailed = true;
-            for (char[] replacement : replacements) {
-                if (letter == replacement[0]) {
-                    out.append(replacement[1]);
-                    matchFailed = false;
-                    break;
-                }
-            }
-            if (matchFailed) {
-                out.append(letter);
-            }
-        }
-        return out.toString();
+        return AccentFolder.removeAccentMarks(str);
     }
 }
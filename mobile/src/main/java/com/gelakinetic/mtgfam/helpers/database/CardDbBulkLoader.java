@@ -0,0 +1,781 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.PatchDelta;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Inserts patches of sets and cards into the database much faster than CardDbAdapter.createSet()
+ * and CardDbAdapter.createCard(). Each patch is inserted in a single transaction, and every row
+ * is inserted with the same compiled statement rather than building new SQL and ContentValues.
+ * Delta patches are applied the same way, with targeted updates and deletes keyed by each card's
+ * expansion and number.
+ */
+public class CardDbBulkLoader {
+
+    /* A savepoint nests inside the transaction DatabaseManager may have already begun */
+    private static final String SAVEPOINT = "bulk_load";
+
+    /* How many cards to insert between progress reports */
+    private static final int PROGRESS_INTERVAL = 100;
+
+    /* The columns of DATABASE_TABLE_CARDS which are bound for each card, in order */
+    private static final List<String> CARD_INSERT_KEYS = Collections.unmodifiableList(Arrays.asList(
+            CardDbAdapter.KEY_NAME,
+            CardDbAdapter.KEY_SET,
+            CardDbAdapter.KEY_SUPERTYPE,
+            CardDbAdapter.KEY_SUBTYPE,
+            CardDbAdapter.KEY_RARITY,
+            CardDbAdapter.KEY_MANACOST,
+            CardDbAdapter.KEY_CMC,
+            CardDbAdapter.KEY_POWER,
+            CardDbAdapter.KEY_TOUGHNESS,
+            CardDbAdapter.KEY_LOYALTY,
+            CardDbAdapter.KEY_ABILITY,
+            CardDbAdapter.KEY_FLAVOR,
+            CardDbAdapter.KEY_ARTIST,
+            CardDbAdapter.KEY_NUMBER,
+            CardDbAdapter.KEY_COLOR,
+            CardDbAdapter.KEY_MULTIVERSEID,
+            CardDbAdapter.KEY_COLOR_IDENTITY,
+            CardDbAdapter.KEY_NAME_NO_ACCENT,
+            CardDbAdapter.KEY_WATERMARK,
+            CardDbAdapter.KEY_CONTENT_HASH,
+            CardDbAdapter.KEY_NAME_CHINESE_TRADITIONAL,
+            CardDbAdapter.KEY_MULTIVERSEID_CHINESE_TRADITIONAL,
+            CardDbAdapter.KEY_NAME_CHINESE_SIMPLIFIED,
+            CardDbAdapter.KEY_MULTIVERSEID_CHINESE_SIMPLIFIED,
+            CardDbAdapter.KEY_NAME_FRENCH,
+            CardDbAdapter.KEY_MULTIVERSEID_FRENCH,
+            CardDbAdapter.KEY_NAME_GERMAN,
+            CardDbAdapter.KEY_MULTIVERSEID_GERMAN,
+            CardDbAdapter.KEY_NAME_ITALIAN,
+            CardDbAdapter.KEY_MULTIVERSEID_ITALIAN,
+            CardDbAdapter.KEY_NAME_JAPANESE,
+            CardDbAdapter.KEY_MULTIVERSEID_JAPANESE,
+            CardDbAdapter.KEY_NAME_PORTUGUESE_BRAZIL,
+            CardDbAdapter.KEY_MULTIVERSEID_PORTUGUESE_BRAZIL,
+            CardDbAdapter.KEY_NAME_RUSSIAN,
+            CardDbAdapter.KEY_MULTIVERSEID_RUSSIAN,
+            CardDbAdapter.KEY_NAME_SPANISH,
+            CardDbAdapter.KEY_MULTIVERSEID_SPANISH,
+            CardDbAdapter.KEY_NAME_KOREAN,
+            CardDbAdapter.KEY_MULTIVERSEID_KOREAN
+    ));
+
+    /* The columns of DATABASE_TABLE_SETS which are bound for each set, in order */
+    private static final List<String> SET_INSERT_KEYS = Collections.unmodifiableList(Arrays.asList(
+            CardDbAdapter.KEY_CODE,
+            CardDbAdapter.KEY_NAME,
+            CardDbAdapter.KEY_CODE_MTGI,
+            CardDbAdapter.KEY_NAME_TCGPLAYER,
+            CardDbAdapter.KEY_DIGEST,
+            CardDbAdapter.KEY_CAN_BE_FOIL,
+            CardDbAdapter.KEY_DATE
+    ));
+
+    private final SQLiteDatabase mDatabase;
+    private final BulkLoadProgressReporter mProgressReporter;
+    private final boolean mUpdateFullTextIndex;
+
+    private SQLiteStatement mInsertCard;
+    private SQLiteStatement mUpdateCard;
+    private SQLiteStatement mDeleteCard;
+    private SQLiteStatement mInsertSet;
+    private SQLiteStatement mDeleteSet;
+    private SQLiteStatement mInsertFts;
+    private SQLiteStatement mDeleteFts;
+    private SQLiteStatement mInsertWord;
+    private SQLiteStatement mInsertName;
+    private SQLiteStatement mDeleteNames;
+    private SQLiteStatement mInsertNameWord;
+
+    /* The words in all of the cards added in this patch, inserted when the patch is committed */
+    private final HashSet<String> mWords = new HashSet<>();
+    private final HashSet<String> mNameWords = new HashSet<>();
+    private final String[] mFtsValues = new String[CardDbAdapter.ALL_FTS_KEYS.size()];
+
+    /* The values bound for the current card, in the order of CARD_INSERT_KEYS */
+    private final Object[] mCardValues = new Object[CARD_INSERT_KEYS.size()];
+
+    /* The English names of the cards the last delta added, changed, or removed */
+    private final HashSet<String> mTouchedNames = new HashSet<>();
+    /* Whether the last delta added, removed, or renamed any cards */
+    private boolean mNamesChanged = false;
+
+    /* For progress reporting */
+    private boolean mInPatch = false;
+    private int mExpectedCards;
+    private int mCardsAdded;
+    private long mPatchStartTime;
+
+    /**
+     * This interface is implemented by ProgressReporter in DbUpdaterService. It's used to report
+     * progress and throughput to the notification
+     */
+    public interface BulkLoadProgressReporter {
+        /* totalRows is 0 when the size of the patch isn't known ahead of time */
+        void reportBulkLoadProgress(int rowsLoaded, int totalRows, float rowsPerSecond);
+    }
+
+    /**
+     * Create a bulk loader and compile all of its statements.
+     *
+     * @param database         A writable database to insert into
+     * @param progressReporter Something to report progress to, may be null
+     * @throws FamiliarDbException If the statements can't be compiled
+     */
+    public CardDbBulkLoader(SQLiteDatabase database,
+                            @Nullable BulkLoadProgressReporter progressReporter)
+            throws FamiliarDbException {
+        mDatabase = database;
+        mProgressReporter = progressReporter;
+        mUpdateFullTextIndex = CardDbAdapter.hasFullTextIndex(database);
+        /* The content hash is bound for every card, so make sure the column exists even if
+         * DatabaseHelper hasn't migrated this database yet */
+        CardDbAdapter.addContentHashColumn(database);
+        try {
+            mInsertCard = database.compileStatement(getInsertSql(CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CARD_INSERT_KEYS));
+            mUpdateCard = database.compileStatement(getUpdateSql(CardDbAdapter.DATABASE_TABLE_CARDS,
+                    CARD_INSERT_KEYS));
+            mDeleteCard = database.compileStatement("DELETE FROM " +
+                    CardDbAdapter.DATABASE_TABLE_CARDS + " WHERE " + CardDbAdapter.KEY_ID + " = ?");
+            mInsertSet = database.compileStatement(getInsertSql(CardDbAdapter.DATABASE_TABLE_SETS,
+                    SET_INSERT_KEYS));
+            mDeleteSet = database.compileStatement("DELETE FROM " +
+                    CardDbAdapter.DATABASE_TABLE_SETS + " WHERE " + CardDbAdapter.KEY_CODE + " = ?");
+            if (mUpdateFullTextIndex) {
+                ArrayList<String> ftsKeys = new ArrayList<>();
+                ftsKeys.add(CardDbAdapter.KEY_DOCID);
+                ftsKeys.addAll(CardDbAdapter.ALL_FTS_KEYS);
+                mInsertFts = database.compileStatement(
+                        getInsertSql(CardDbAdapter.DATABASE_TABLE_CARDS_FTS, ftsKeys));
+                mDeleteFts = database.compileStatement("DELETE FROM " +
+                        CardDbAdapter.DATABASE_TABLE_CARDS_FTS + " WHERE " +
+                        CardDbAdapter.KEY_DOCID + " = ?");
+                mInsertWord = database.compileStatement("INSERT OR IGNORE INTO " +
+                        CardDbAdapter.DATABASE_TABLE_FTS_WORDS + " (" + CardDbAdapter.KEY_WORD +
+                        ") VALUES (?)");
+                mInsertName = database.compileStatement("INSERT INTO " +
+                        CardDbAdapter.DATABASE_TABLE_NAMES_FTS + " (" + CardDbAdapter.KEY_DOCID +
+                        ", " + CardDbAdapter.KEY_NAME_FOLDED + ") VALUES (?, ?)");
+                mDeleteNames = database.compileStatement("DELETE FROM " +
+                        CardDbAdapter.DATABASE_TABLE_NAMES_FTS + " WHERE " +
+                        CardDbAdapter.KEY_DOCID + " BETWEEN ? AND ?");
+                mInsertNameWord = database.compileStatement("INSERT OR IGNORE INTO " +
+                        CardDbAdapter.DATABASE_TABLE_NAMES_FTS_WORDS + " (" +
+                        CardDbAdapter.KEY_WORD + ") VALUES (?)");
+            }
+        } catch (SQLiteException e) {
+            close();
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Build an INSERT statement with a placeholder for each column.
+     *
+     * @param table   The table to insert into
+     * @param columns The columns to insert
+     * @return The SQL for the INSERT statement
+     */
+    private static String getInsertSql(String table, List<String> columns) {
+        String[] placeholders = new String[columns.size()];
+        Arrays.fill(placeholders, "?");
+        return "INSERT INTO " + table + " (" + TextUtils.join(", ", columns) + ") VALUES (" +
+                TextUtils.join(", ", placeholders) + ")";
+    }
+
+    /**
+     * Build an UPDATE statement for a single row, with a placeholder for each column. The last
+     * placeholder is the row's KEY_ID.
+     *
+     * @param table   The table to update
+     * @param columns The columns to update
+     * @return The SQL for the UPDATE statement
+     */
+    private static String getUpdateSql(String table, List<String> columns) {
+        String[] assignments = new String[columns.size()];
+        for (int i = 0; i < assignments.length; i++) {
+            assignments[i] = columns.get(i) + " = ?";
+        }
+        return "UPDATE " + table + " SET " + TextUtils.join(", ", assignments) + " WHERE " +
+                CardDbAdapter.KEY_ID + " = ?";
+    }
+
+    /**
+     * Start a new patch. Everything added until commitPatch() is called is inserted in a single
+     * transaction. A savepoint is used rather than beginTransaction(), since a transactional
+     * database from DatabaseManager is already in a raw "BEGIN EXCLUSIVE" transaction.
+     *
+     * @param expectedCards The number of cards in the patch, used for progress reporting. May be
+     *                      0 if it isn't known
+     * @throws FamiliarDbException If the transaction can't be started
+     */
+    public void beginPatch(int expectedCards) throws FamiliarDbException {
+        try {
+            mDatabase.execSQL("SAVEPOINT " + SAVEPOINT);
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+        mInPatch = true;
+        mExpectedCards = expectedCards;
+        mCardsAdded = 0;
+        mPatchStartTime = SystemClock.elapsedRealtime();
+        mWords.clear();
+        mNameWords.clear();
+    }
+
+    /**
+     * Insert an expansion, including its TCGPlayer.com name and foil information.
+     *
+     * @param expansion The expansion to insert
+     * @throws FamiliarDbException If the expansion can't be inserted
+     */
+    public void addExpansion(Expansion expansion) throws FamiliarDbException {
+        try {
+            mInsertSet.clearBindings();
+            bindString(mInsertSet, 1, expansion.mCode_gatherer);
+            bindString(mInsertSet, 2, expansion.mName_gatherer);
+            bindString(mInsertSet, 3, expansion.mCode_mtgi);
+            bindString(mInsertSet, 4, expansion.mName_tcgp);
+            bindString(mInsertSet, 5, expansion.mDigest);
+            mInsertSet.bindLong(6, expansion.mCanBeFoil ? 1 : 0);
+            mInsertSet.bindLong(7, expansion.mReleaseTimestamp);
+            mInsertSet.executeInsert();
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+    }
+
+    /**
+     * Insert a card, and mirror it into the full text index.
+     *
+     * @param card The card to insert
+     * @throws FamiliarDbException If the card can't be inserted
+     */
+    public void addCard(Card card) throws FamiliarDbException {
+        try {
+            bindCard(mInsertCard, card);
+            long rowId = mInsertCard.executeInsert();
+            if (rowId != -1) {
+                addToFullTextIndex(rowId);
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+        countCard();
+    }
+
+    /**
+     * Replace a card with a new version, keyed by its expansion and number. If the card's content
+     * hash hasn't changed, nothing is written.
+     *
+     * @param card The new version of the card
+     * @return true if the card was replaced or was already up to date, false if the expansion and
+     * number don't identify exactly one card
+     * @throws FamiliarDbException If the card can't be updated
+     */
+    public boolean changeCard(Card card) throws FamiliarDbException {
+        String[] existing = findCard(card.mExpansion, card.mNumber);
+        if (existing == null) {
+            return false;
+        }
+        long rowId = Long.parseLong(existing[0]);
+        try {
+            bindCard(mUpdateCard, card);
+            if (!mCardValues[CARD_INSERT_KEYS.indexOf(CardDbAdapter.KEY_CONTENT_HASH)].equals(existing[1])) {
+                mUpdateCard.bindLong(CARD_INSERT_KEYS.size() + 1, rowId);
+                mUpdateCard.executeUpdateDelete();
+                removeFromFullTextIndex(rowId);
+                addToFullTextIndex(rowId);
+
+                /* Both the old and the new name may have changed legality */
+                mTouchedNames.add(existing[2]);
+                mTouchedNames.add(card.mName);
+                for (int i = 0; i < CardDbAdapter.ALL_NAME_KEYS.size(); i++) {
+                    /* Missing names may be stored as either null or empty */
+                    Object newName = mCardValues[CARD_INSERT_KEYS.indexOf(CardDbAdapter.ALL_NAME_KEYS.get(i))];
+                    String oldName = existing[2 + i];
+                    if (!(newName == null ? "" : newName.toString()).equals(oldName == null ? "" : oldName)) {
+                        mNamesChanged = true;
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+        countCard();
+        return true;
+    }
+
+    /**
+     * Delete a card, keyed by its expansion and number.
+     *
+     * @param setCode The card's expansion
+     * @param number  The card's collector's number
+     * @return true if the card was deleted, false if the expansion and number don't identify
+     * exactly one card
+     * @throws FamiliarDbException If the card can't be deleted
+     */
+    public boolean removeCard(String setCode, String number) throws FamiliarDbException {
+        String[] existing = findCard(setCode, number);
+        if (existing == null) {
+            return false;
+        }
+        long rowId = Long.parseLong(existing[0]);
+        mTouchedNames.add(existing[2]);
+        mNamesChanged = true;
+        try {
+            removeFromFullTextIndex(rowId);
+            mDeleteCard.bindLong(1, rowId);
+            mDeleteCard.executeUpdateDelete();
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+        countCard();
+        return true;
+    }
+
+    /**
+     * Replace an expansion's row, i.e. to store a new digest.
+     *
+     * @param expansion The new version of the expansion
+     * @throws FamiliarDbException If the expansion can't be replaced
+     */
+    public void replaceExpansion(Expansion expansion) throws FamiliarDbException {
+        try {
+            bindString(mDeleteSet, 1, expansion.mCode_gatherer);
+            mDeleteSet.executeUpdateDelete();
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        }
+        addExpansion(expansion);
+    }
+
+    /**
+     * Apply a delta patch in its own transaction. If any card in it can't be matched to exactly
+     * one card in the database, the whole delta is rolled back and the set should be downloaded
+     * again in full.
+     *
+     * @param delta The delta to apply
+     * @return true if the delta was applied, false if it was rolled back
+     * @throws FamiliarDbException If the database can't be written
+     */
+    public boolean applyDelta(PatchDelta delta) throws FamiliarDbException {
+        String setCode = delta.mExpansion.mCode_gatherer;
+        int size = sizeOf(delta.mAdded) + sizeOf(delta.mChanged) + sizeOf(delta.mRemoved);
+        mTouchedNames.clear();
+        mNamesChanged = false;
+        beginPatch(size);
+        boolean applied = true;
+        if (delta.mRemoved != null) {
+            for (String number : delta.mRemoved) {
+                applied = applied && removeCard(setCode, number);
+            }
+        }
+        if (delta.mChanged != null) {
+            for (Card card : delta.mChanged) {
+                applied = applied && changeCard(card);
+            }
+        }
+        if (applied && delta.mAdded != null) {
+            for (Card card : delta.mAdded) {
+                addCard(card);
+                mTouchedNames.add(card.mName);
+                mNamesChanged = true;
+            }
+        }
+        if (applied) {
+            replaceExpansion(delta.mExpansion);
+            commitPatch();
+        } else {
+            rollbackPatch();
+        }
+        return applied;
+    }
+
+    /**
+     * @return The English names of the cards the last applied delta added, changed, or removed.
+     * Only these cards' legalities may have changed
+     */
+    public HashSet<String> getTouchedNames() {
+        return mTouchedNames;
+    }
+
+    /**
+     * @return true if the last applied delta added, removed, or renamed any cards, in any
+     * language. Otherwise the name index is still current
+     */
+    public boolean haveNamesChanged() {
+        return mNamesChanged;
+    }
+
+    /**
+     * @param list A list, may be null
+     * @return The size of the list, or 0 if it's null
+     */
+    private static int sizeOf(@Nullable List<?> list) {
+        return (list == null) ? 0 : list.size();
+    }
+
+    /**
+     * Find the single card with the given expansion and number.
+     *
+     * @param setCode The card's expansion
+     * @param number  The card's collector's number
+     * @return {KEY_ID, KEY_CONTENT_HASH} followed by the card's CardDbAdapter.ALL_NAME_KEYS, or null
+     * if there isn't exactly one match. The hash may be null for cards from the packaged database
+     * @throws FamiliarDbException If the database can't be queried
+     */
+    @Nullable
+    private String[] findCard(String setCode, String number) throws FamiliarDbException {
+        if (TextUtils.isEmpty(setCode) || TextUtils.isEmpty(number)) {
+            /* Older sets don't have numbers, so they can't be patched by number */
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mDatabase.rawQuery("SELECT " + CardDbAdapter.KEY_ID + ", " +
+                    CardDbAdapter.KEY_CONTENT_HASH + ", " +
+                    TextUtils.join(", ", CardDbAdapter.ALL_NAME_KEYS) +
+                    " FROM " + CardDbAdapter.DATABASE_TABLE_CARDS +
+                    " WHERE " + CardDbAdapter.KEY_SET + " = ? AND " + CardDbAdapter.KEY_NUMBER +
+                    " = ? LIMIT 2", new String[]{setCode, number});
+            if (cursor.getCount() != 1 || !cursor.moveToFirst()) {
+                return null;
+            }
+            String[] card = new String[cursor.getColumnCount()];
+            for (int i = 0; i < card.length; i++) {
+                card[i] = cursor.getString(i);
+            }
+            return card;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Bind all of a card's values, including its content hash, to an insert or update statement.
+     * The values are also kept in mCardValues and mFtsValues.
+     *
+     * @param statement mInsertCard or mUpdateCard
+     * @param card      The card to bind
+     */
+    private void bindCard(SQLiteStatement statement, Card card) {
+        String types[] = CardDbAdapter.splitTypeLine(card.mType);
+        Arrays.fill(mCardValues, null);
+        Arrays.fill(mFtsValues, null);
+
+        setCardValue(CardDbAdapter.KEY_NAME, card.mName);
+        setCardValue(CardDbAdapter.KEY_SET, card.mExpansion);
+        setCardValue(CardDbAdapter.KEY_SUPERTYPE, types[0]);
+        setCardValue(CardDbAdapter.KEY_SUBTYPE, types[1]);
+        setCardValue(CardDbAdapter.KEY_RARITY, (int) card.mRarity);
+        setCardValue(CardDbAdapter.KEY_MANACOST, card.mManaCost);
+        setCardValue(CardDbAdapter.KEY_CMC, card.mCmc);
+        setCardValue(CardDbAdapter.KEY_POWER, card.mPower);
+        setCardValue(CardDbAdapter.KEY_TOUGHNESS, card.mToughness);
+        setCardValue(CardDbAdapter.KEY_LOYALTY, card.mLoyalty);
+        setCardValue(CardDbAdapter.KEY_ABILITY, card.mText);
+        setCardValue(CardDbAdapter.KEY_FLAVOR, card.mFlavor);
+        setCardValue(CardDbAdapter.KEY_ARTIST, card.mArtist);
+        setCardValue(CardDbAdapter.KEY_NUMBER, card.mNumber);
+        setCardValue(CardDbAdapter.KEY_COLOR, card.mColor);
+        setCardValue(CardDbAdapter.KEY_MULTIVERSEID, card.mMultiverseId);
+        setCardValue(CardDbAdapter.KEY_COLOR_IDENTITY, card.mColorIdentity);
+        setCardValue(CardDbAdapter.KEY_NAME_NO_ACCENT, CardDbAdapter.removeAccentMarks(card.mName));
+        setCardValue(CardDbAdapter.KEY_WATERMARK, card.mWatermark);
+        for (Card.ForeignPrinting fp : card.mForeignPrintings) {
+            String foreignKeys[] = CardDbAdapter.getForeignPrintingKeys(fp.mLanguageCode);
+            if (foreignKeys != null) {
+                setCardValue(foreignKeys[0], fp.mName);
+                setCardValue(foreignKeys[1], fp.mMultiverseId);
+            }
+        }
+        /* The hash covers every other column, so it has to be set last */
+        setCardValue(CardDbAdapter.KEY_CONTENT_HASH, getContentHash(mCardValues));
+
+        statement.clearBindings();
+        for (int i = 0; i < mCardValues.length; i++) {
+            /* Statement indices are 1-based */
+            bindValue(statement, i + 1, mCardValues[i]);
+        }
+
+        for (int i = 0; i < mFtsValues.length; i++) {
+            int cardIndex = CARD_INSERT_KEYS.indexOf(CardDbAdapter.ALL_FTS_KEYS.get(i));
+            if (cardIndex >= 0 && mCardValues[cardIndex] != null) {
+                mFtsValues[i] = mCardValues[cardIndex].toString();
+            }
+        }
+    }
+
+    /**
+     * Store a value to bind for a card.
+     *
+     * @param key   A column in CARD_INSERT_KEYS
+     * @param value The value to store, may be null
+     */
+    private void setCardValue(String key, @Nullable Object value) {
+        mCardValues[CARD_INSERT_KEYS.indexOf(key)] = value;
+    }
+
+    /**
+     * Hash all of a card's values, so that unchanged cards can be skipped when applying a delta.
+     *
+     * @param values The card's values, in the order of CARD_INSERT_KEYS
+     * @return A hex MD5 hash of the values
+     */
+    static String getContentHash(Object[] values) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (!CardDbAdapter.KEY_CONTENT_HASH.equals(CARD_INSERT_KEYS.get(i))) {
+                /* Separate values with a character which can't appear in them */
+                content.append(values[i]).append('\u0000');
+            }
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(content.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            /* Every platform has MD5 and UTF-8, but fall back to something */
+            return Integer.toHexString(content.toString().hashCode());
+        }
+    }
+
+    /**
+     * Mirror the card most recently bound with bindCard() into the full text index, and its names
+     * in every language into the name index.
+     *
+     * @param rowId The card's KEY_ID
+     */
+    private void addToFullTextIndex(long rowId) {
+        if (mUpdateFullTextIndex) {
+            mInsertFts.clearBindings();
+            mInsertFts.bindLong(1, rowId);
+            for (int i = 0; i < mFtsValues.length; i++) {
+                bindString(mInsertFts, i + 2, mFtsValues[i]);
+                if (mFtsValues[i] != null) {
+                    mWords.addAll(CardDbAdapter.getFullTextTokens(mFtsValues[i]));
+                }
+            }
+            mInsertFts.executeInsert();
+
+            for (int i = 0; i < CardDbAdapter.ALL_NAME_KEYS.size(); i++) {
+                Object name = mCardValues[CARD_INSERT_KEYS.indexOf(CardDbAdapter.ALL_NAME_KEYS.get(i))];
+                if (name != null && name.toString().length() > 0) {
+                    String folded = CardDbAdapter.foldName(name.toString());
+                    mInsertName.bindLong(1, rowId * CardDbAdapter.NAMES_FTS_DOCID_STRIDE + i);
+                    mInsertName.bindString(2, folded);
+                    mInsertName.executeInsert();
+                    mNameWords.addAll(CardDbAdapter.getFullTextTokens(folded));
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a card from the full text index and the name index. Its words are left in the word
+     * tables, which only costs a little time when searching for them.
+     *
+     * @param rowId The card's KEY_ID
+     */
+    private void removeFromFullTextIndex(long rowId) {
+        if (mUpdateFullTextIndex) {
+            mDeleteFts.bindLong(1, rowId);
+            mDeleteFts.executeUpdateDelete();
+            mDeleteNames.bindLong(1, rowId * CardDbAdapter.NAMES_FTS_DOCID_STRIDE);
+            mDeleteNames.bindLong(2, (rowId + 1) * CardDbAdapter.NAMES_FTS_DOCID_STRIDE - 1);
+            mDeleteNames.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Count a card as added, changed, or removed, and periodically report progress
+     */
+    private void countCard() {
+        mCardsAdded++;
+        if (mProgressReporter != null && mCardsAdded % PROGRESS_INTERVAL == 0) {
+            reportProgress();
+        }
+    }
+
+    /**
+     * Commit everything added since beginPatch() and report the final throughput.
+     *
+     * @throws FamiliarDbException If the full text words can't be inserted
+     */
+    public void commitPatch() throws FamiliarDbException {
+        try {
+            if (mUpdateFullTextIndex) {
+                for (String word : mWords) {
+                    mInsertWord.bindString(1, word);
+                    mInsertWord.executeInsert();
+                }
+                for (String word : mNameWords) {
+                    mInsertNameWord.bindString(1, word);
+                    mInsertNameWord.executeInsert();
+                }
+            }
+            mDatabase.execSQL("RELEASE " + SAVEPOINT);
+            mInPatch = false;
+        } catch (SQLiteException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            mWords.clear();
+            mNameWords.clear();
+        }
+        if (mProgressReporter != null) {
+            reportProgress();
+        }
+    }
+
+    /**
+     * Throw away everything added since beginPatch(). Does nothing if no patch was started.
+     */
+    public void rollbackPatch() {
+        if (mInPatch) {
+            try {
+                mDatabase.execSQL("ROLLBACK TO " + SAVEPOINT);
+                mDatabase.execSQL("RELEASE " + SAVEPOINT);
+            } catch (SQLiteException e) {
+                /* Nothing else to do, the outer transaction will be rolled back or committed */
+            }
+            mInPatch = false;
+            mWords.clear();
+            mNameWords.clear();
+        }
+    }
+
+    /**
+     * Roll back a patch which wasn't committed, and release all the compiled statements. The
+     * loader can't be used after it is closed.
+     */
+    public void close() {
+        rollbackPatch();
+        for (SQLiteStatement statement : new SQLiteStatement[]{mInsertCard, mUpdateCard,
+                mDeleteCard, mInsertSet, mDeleteSet, mInsertFts, mDeleteFts, mInsertWord,
+                mInsertName, mDeleteNames, mInsertNameWord}) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        mInsertCard = null;
+        mUpdateCard = null;
+        mDeleteCard = null;
+        mInsertSet = null;
+        mDeleteSet = null;
+        mInsertFts = null;
+        mDeleteFts = null;
+        mInsertWord = null;
+        mInsertName = null;
+        mDeleteNames = null;
+        mInsertNameWord = null;
+    }
+
+    /**
+     * @return The number of cards added in the current or last patch
+     */
+    public int getCardsAdded() {
+        return mCardsAdded;
+    }
+
+    /**
+     * @return The number of cards added per second in the current or last patch
+     */
+    public float getCardsPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mPatchStartTime;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return 1000 * mCardsAdded / (float) elapsed;
+    }
+
+    /**
+     * Report the number of cards added and the throughput to mProgressReporter
+     */
+    private void reportProgress() {
+        int totalRows = (mExpectedCards > 0) ? Math.max(mExpectedCards, mCardsAdded) : 0;
+        mProgressReporter.reportBulkLoadProgress(mCardsAdded, totalRows, getCardsPerSecond());
+    }
+
+    /**
+     * Bind a String to a statement. SQLiteStatement.bindString() doesn't accept nulls, but
+     * ContentValues did, so bind those as NULL.
+     *
+     * @param statement The statement to bind to
+     * @param index     The 1-based index of the parameter
+     * @param value     The value to bind, may be null
+     */
+    private static void bindString(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Bind a String, Integer, Float, or null to a statement, the same way ContentValues would.
+     *
+     * @param statement The statement to bind to
+     * @param index     The 1-based index of the parameter
+     * @param value     The value to bind, may be null
+     */
+    private static void bindValue(SQLiteStatement statement, int index, @Nullable Object value) {
+        if (value instanceof Integer) {
+            statement.bindLong(index, (Integer) value);
+        } else if (value instanceof Float) {
+            statement.bindDouble(index, (Float) value);
+        } else {
+            bindString(statement, index, (value == null) ? null : value.toString());
+        }
+    }
+}
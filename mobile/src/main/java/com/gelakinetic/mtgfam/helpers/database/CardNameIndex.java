@@ -0,0 +1,660 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.app.SearchManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class holds every unique card name, in every language cards are printed in, in memory so
+ * name suggestions don't touch the database. Names are folded with CardDbAdapter.foldName(),
+ * sorted, and joined into one char array.
+ * Prefix lookups binary search the names, and infix lookups binary search a suffix array over the
+ * joined names. If there aren't enough of those, names within one edit of the query are found by
+ * splitting the query in half, since one edit can't touch both halves. Names which are only printed
+ * names, and not any card's English name, are flagged so that lookups can leave them out.
+ * <p>
+ * The index is immutable. It's built in the background once per version of the database and
+ * written to a file in the cache directory, so later launches only read it. If the file is cleared
+ * or broken, the index is just built again.
+ */
+public class CardNameIndex {
+
+    /* The most suggestions a lookup returns */
+    public static final int MAX_SUGGESTIONS = 50;
+
+    private static final String FILE_NAME = "card_name_index";
+    private static final int MAGIC = 0x434e4931; /* "CNI1" */
+    /* Increment this whenever the file format or the folding changes */
+    private static final int FORMAT_VERSION = 4;
+    /* Joins names in mText. It sorts before every other char, so shorter names sort first */
+    private static final char SEPARATOR = '\0';
+    /* Queries shorter than this don't get fuzzy suggestions, since nearly everything would match */
+    private static final int MIN_FUZZY_LENGTH = 3;
+    /* How often a lookup checks if it was cancelled */
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    private static volatile CardNameIndex sIndex;
+
+    /* Identifies the database contents this was built from */
+    private final String mStamp;
+    /* Display names and the card IDs they open, sorted by folded name */
+    private final String[] mNames;
+    private final long[] mIds;
+    /* true for each name which isn't any card's English name */
+    private final boolean[] mLocalized;
+    /* Folded names, in the same order, each followed by SEPARATOR */
+    private final char[] mText;
+    /* Where each name starts in mText */
+    private final int[] mNameStarts;
+    /* Every position in mText which isn't a SEPARATOR, sorted by the suffix starting there */
+    private final int[] mSuffixes;
+
+    /**
+     * Something which can tell a lookup that its result isn't wanted anymore
+     */
+    public interface Cancellation {
+        /**
+         * @return true if the lookup should stop
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * @param stamp    Identifies the database contents this was built from
+     * @param names    Display names, sorted by folded name
+     * @param ids       The card ID each name opens
+     * @param localized true for each name which isn't any card's English name
+     * @param suffixes  The suffix array, or null to build it
+     */
+    private CardNameIndex(String stamp, String[] names, long[] ids, boolean[] localized,
+                          int[] suffixes) {
+        mStamp = stamp;
+        mNames = names;
+        mIds = ids;
+        mLocalized = localized;
+        mNameStarts = new int[names.length];
+
+        StringBuilder text = new StringBuilder(names.length * 16);
+        for (int i = 0; i < names.length; i++) {
+            mNameStarts[i] = text.length();
+            text.append(fold(names[i])).append(SEPARATOR);
+        }
+        mText = new char[text.length()];
+        text.getChars(0, text.length(), mText, 0);
+
+        if (suffixes == null) {
+            suffixes = new int[mText.length - names.length];
+            int count = 0;
+            for (int i = 0; i < mText.length; i++) {
+                if (mText[i] != SEPARATOR) {
+                    suffixes[count++] = i;
+                }
+            }
+            sortSuffixes(suffixes, new int[suffixes.length], 0, suffixes.length);
+        }
+        mSuffixes = suffixes;
+    }
+
+    /**
+     * Build an index from names and the IDs of the cards they open
+     *
+     * @param stamp     Identifies the database contents this is built from
+     * @param names     Every unique card name, in any order
+     * @param ids       The card ID each name opens
+     * @param localized true for each name which isn't any card's English name
+     * @return The index
+     */
+    static CardNameIndex build(String stamp, ArrayList<String> names, ArrayList<Long> ids,
+                               ArrayList<Boolean> localized) {
+        /* Sort by folded name, and by display name when the folded names are the same */
+        final String[] folded = new String[names.size()];
+        Integer[] order = new Integer[names.size()];
+        for (int i = 0; i < order.length; i++) {
+            folded[i] = fold(names.get(i));
+            order[i] = i;
+        }
+        final ArrayList<String> displayNames = names;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int result = folded[lhs].compareTo(folded[rhs]);
+                return result != 0 ? result : displayNames.get(lhs).compareTo(displayNames.get(rhs));
+            }
+        });
+
+        String[] sortedNames = new String[order.length];
+        long[] sortedIds = new long[order.length];
+        boolean[] sortedLocalized = new boolean[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedNames[i] = names.get(order[i]);
+            sortedIds[i] = ids.get(order[i]);
+            sortedLocalized[i] = localized.get(order[i]);
+        }
+        return new CardNameIndex(stamp, sortedNames, sortedIds, sortedLocalized, null);
+    }
+
+    /**
+     * @param name A card name, or something typed into a name field
+     * @return The name folded with CardDbAdapter.foldName(), the way it's matched
+     */
+    static String fold(String name) {
+        return CardDbAdapter.foldName(name);
+    }
+
+    /**
+     * @return The index, or null if it hasn't been loaded yet
+     */
+    public static CardNameIndex getIndex() {
+        return sIndex;
+    }
+
+    /**
+     * Make sure the index matches the database. If the in-memory index is current this does
+     * almost nothing. Otherwise it's read from the file, or if the file is out of date too, it's
+     * built from the database and written to the file. This shouldn't be called on the main thread.
+     *
+     * @param context A context to open the database and find the file with
+     */
+    public static synchronized void load(Context context) {
+        /* The index used to be kept with the user's data, which gets backed up */
+        //noinspection ResultOfMethodCallIgnored
+        new File(context.getFilesDir(), FILE_NAME).delete();
+        File file = new File(context.getCacheDir(), FILE_NAME);
+        try {
+            SQLiteDatabase database = DatabaseManager.getInstance(context, false).openDatabase(false);
+            String stamp = FORMAT_VERSION + "-" + CardDbAdapter.getCardNameIndexStamp(database);
+            CardNameIndex current = sIndex;
+            if (current != null && current.mStamp.equals(stamp)) {
+                return;
+            }
+
+            try {
+                CardNameIndex stored = read(file);
+                if (stored.mStamp.equals(stamp)) {
+                    sIndex = stored;
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                /* There's no file, or it's broken. Build it */
+            }
+
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<Long> ids = new ArrayList<>();
+            ArrayList<Boolean> localized = new ArrayList<>();
+            CardDbAdapter.fetchUniqueCardNames(names, ids, localized, database);
+            CardNameIndex built = build(stamp, names, ids, localized);
+            sIndex = built;
+            try {
+                built.write(file);
+            } catch (IOException e) {
+                /* It'll be built again next time */
+            }
+        } catch (FamiliarDbException e) {
+            /* Suggestions will come from the database instead */
+        } finally {
+            DatabaseManager.getInstance(context, false).closeDatabase(false);
+        }
+    }
+
+    /**
+     * Write this index to a file, replacing it all at once
+     *
+     * @param file The file to write to
+     * @throws IOException If the file can't be written
+     */
+    void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mStamp);
+            out.writeInt(mNames.length);
+            for (int i = 0; i < mNames.length; i++) {
+                out.writeUTF(mNames[i]);
+                out.writeLong(mIds[i]);
+                out.writeBoolean(mLocalized[i]);
+            }
+            /* The suffix array is the expensive part to build, so it's stored too */
+            out.writeInt(mSuffixes.length);
+            ByteBuffer suffixes = ByteBuffer.allocate(mSuffixes.length * 4);
+            suffixes.asIntBuffer().put(mSuffixes);
+            out.write(suffixes.array());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Couldn't rename " + tmp.getPath());
+        }
+    }
+
+    /**
+     * Read an index written with write()
+     *
+     * @param file The file to read
+     * @return The index
+     * @throws IOException If the file can't be read, isn't an index, or is broken
+     */
+    static CardNameIndex read(File file) throws IOException {
+        long length = file.length();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a name index: " + file.getPath());
+            }
+            String stamp = in.readUTF();
+            /* Check counts against the file's size before allocating anything for them. Each name
+             * takes at least a UTF length, an ID, and a flag */
+            int count = in.readInt();
+            if (count < 0 || count > length / 11) {
+                throw new IOException("Broken name index: " + file.getPath());
+            }
+            String[] names = new String[count];
+            long[] ids = new long[count];
+            boolean[] localized = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                ids[i] = in.readLong();
+                localized[i] = in.readBoolean();
+            }
+            int suffixCount = in.readInt();
+            if (suffixCount < 0 || suffixCount > length / 4) {
+                throw new IOException("Broken name index: " + file.getPath());
+            }
+            byte[] bytes = new byte[suffixCount * 4];
+            in.readFully(bytes);
+            int[] suffixes = new int[suffixCount];
+            ByteBuffer.wrap(bytes).asIntBuffer().get(suffixes);
+
+            CardNameIndex index = new CardNameIndex(stamp, names, ids, localized, suffixes);
+            if (index.mSuffixes.length != index.mText.length - count) {
+                throw new IOException("Broken name index: " + file.getPath());
+            }
+            /* Lookups trust every suffix to start a name's text, so they can't run off the end */
+            for (int suffix : index.mSuffixes) {
+                if (suffix < 0 || suffix >= index.mText.length || index.mText[suffix] == SEPARATOR) {
+                    throw new IOException("Broken name index: " + file.getPath());
+                }
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return How many unique names there are
+     */
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * @param index Which name, from suggest()
+     * @return The name as it's displayed
+     */
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * @param index Which name, from suggest()
+     * @return The ID of the card the name opens
+     */
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    /**
+     * Find names for a query. Names which start with the query come first, then names which
+     * contain it, then names which start with something one edit away from it. Each group is in
+     * alphabetical order. Accents and case are ignored.
+     *
+     * @param query        What was typed
+     * @param limit        The most names to return
+     * @param cancellation Checked while looking, or null if the lookup can't be cancelled
+     * @return The indices of the matching names, or null if the lookup was cancelled
+     */
+    public int[] suggest(String query, int limit, Cancellation cancellation) {
+        return suggest(query, limit, true, cancellation);
+    }
+
+    /**
+     * Find names for a query, like suggest(String, int, Cancellation), optionally leaving out
+     * printed names. Lists need English names, since that's what they look cards up by.
+     *
+     * @param query          What was typed
+     * @param limit          The most names to return
+     * @param localizedNames true to include printed names, false for only English names
+     * @param cancellation   Checked while looking, or null if the lookup can't be cancelled
+     * @return The indices of the matching names, or null if the lookup was cancelled
+     */
+    public int[] suggest(String query, int limit, boolean localizedNames,
+                         Cancellation cancellation) {
+        String folded = fold(query);
+        if (folded.length() == 0 || folded.indexOf(SEPARATOR) >= 0) {
+            return new int[0];
+        }
+
+        int[] results = new int[Math.max(0, Math.min(limit, mNames.length))];
+        limit = results.length;
+        int count = 0;
+        /* Printed names which are left out count as already found, so they're skipped */
+        boolean[] found = localizedNames ? new boolean[mNames.length] : mLocalized.clone();
+
+        /* Names which start with the query */
+        int first = lowerBound(folded, 0, folded.length());
+        for (int i = first; i < mNames.length && count < limit
+                && comparePrefix(mNameStarts[i], folded, 0, folded.length()) == 0; i++) {
+            if (!found[i]) {
+                found[i] = true;
+                results[count++] = i;
+            }
+        }
+
+        /* Names which contain the query */
+        if (count < limit) {
+            ArrayList<Integer> infixes = new ArrayList<>();
+            int start = suffixLowerBound(folded, 0, folded.length());
+            for (int i = start; i < mSuffixes.length
+                    && comparePrefix(mSuffixes[i], folded, 0, folded.length()) == 0; i++) {
+                if (isCancelled(cancellation, i - start)) {
+                    return null;
+                }
+                int name = nameAt(mSuffixes[i]);
+                if (!found[name]) {
+                    found[name] = true;
+                    infixes.add(name);
+                }
+            }
+            count = addSorted(infixes, results, count, limit);
+        }
+
+        /* Names which start with something one edit away from the query */
+        if (count < limit && folded.length() >= MIN_FUZZY_LENGTH) {
+            ArrayList<Integer> fuzzy = new ArrayList<>();
+            int half = (folded.length() + 1) / 2;
+            int checked = 0;
+
+            /* If the edit is in the second half, the name starts with the first half */
+            for (int i = lowerBound(folded, 0, half); i < mNames.length
+                    && comparePrefix(mNameStarts[i], folded, 0, half) == 0; i++) {
+                if (isCancelled(cancellation, checked++)) {
+                    return null;
+                }
+                if (!found[i] && startsWithinOneEdit(mNameStarts[i], folded)) {
+                    found[i] = true;
+                    fuzzy.add(i);
+                }
+            }
+
+            /* Otherwise the second half is in the name, shifted by at most one */
+            int start = suffixLowerBound(folded, half, folded.length());
+            for (int i = start; i < mSuffixes.length
+                    && comparePrefix(mSuffixes[i], folded, half, folded.length()) == 0; i++) {
+                if (isCancelled(cancellation, checked++)) {
+                    return null;
+                }
+                int name = nameAt(mSuffixes[i]);
+                int shift = mSuffixes[i] - mNameStarts[name] - half;
+                if (!found[name] && shift >= -1 && shift <= 1
+                        && startsWithinOneEdit(mNameStarts[name], folded)) {
+                    found[name] = true;
+                    fuzzy.add(name);
+                }
+            }
+            count = addSorted(fuzzy, results, count, limit);
+        }
+
+        return Arrays.copyOf(results, count);
+    }
+
+    /**
+     * Find names for a query, in a cursor shaped like the one CardDbAdapter.getCardsByNamePrefix()
+     * returns
+     *
+     * @param query          What was typed
+     * @param localizedNames true to include printed names, false for only English names
+     * @param cancellation   Checked while looking, or null if the lookup can't be cancelled
+     * @return A cursor with the name, ID, and intent data ID of each suggestion, or null if the
+     * lookup was cancelled
+     */
+    public Cursor suggestCursor(String query, boolean localizedNames, Cancellation cancellation) {
+        int[] suggestions = suggest(query, MAX_SUGGESTIONS, localizedNames, cancellation);
+        if (suggestions == null) {
+            return null;
+        }
+        MatrixCursor cursor = new MatrixCursor(new String[]{CardDbAdapter.KEY_NAME,
+                CardDbAdapter.KEY_ID, SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID},
+                suggestions.length);
+        for (int suggestion : suggestions) {
+            cursor.addRow(new Object[]{mNames[suggestion], mIds[suggestion], mIds[suggestion]});
+        }
+        return cursor;
+    }
+
+    /**
+     * @param cancellation Checked while looking, or null
+     * @param iteration    How many candidates have been checked
+     * @return true if the lookup should stop
+     */
+    private static boolean isCancelled(Cancellation cancellation, int iteration) {
+        return cancellation != null && iteration % CANCEL_CHECK_INTERVAL == 0
+                && cancellation.isCancelled();
+    }
+
+    /**
+     * Add names to the results in alphabetical order, which is the order of their indices
+     *
+     * @param names   The names to add
+     * @param results Where to add them
+     * @param count   How many results there already are
+     * @param limit   The most results there can be
+     * @return How many results there are now
+     */
+    private static int addSorted(ArrayList<Integer> names, int[] results, int count, int limit) {
+        int[] sorted = new int[names.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = names.get(i);
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length && count < limit; i++) {
+            results[count++] = sorted[i];
+        }
+        return count;
+    }
+
+    /**
+     * Compare the text at a position to part of a query, only as far as the query goes
+     *
+     * @param position Where to start in mText
+     * @param query    The folded query
+     * @param start    Where the part of the query starts
+     * @param end      Where the part of the query ends
+     * @return Less than 0 if the text sorts first, 0 if the text starts with that part of the
+     * query, or more than 0 if the text sorts after it
+     */
+    private int comparePrefix(int position, String query, int start, int end) {
+        for (int i = start; i < end; i++, position++) {
+            char c = mText[position];
+            char q = query.charAt(i);
+            if (c != q) {
+                return c < q ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The first name which doesn't sort before that part of the query
+     */
+    private int lowerBound(String query, int start, int end) {
+        int low = 0;
+        int high = mNames.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparePrefix(mNameStarts[mid], query, start, end) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return The first suffix which doesn't sort before that part of the query
+     */
+    private int suffixLowerBound(String query, int start, int end) {
+        int low = 0;
+        int high = mSuffixes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparePrefix(mSuffixes[mid], query, start, end) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param position A position in mText
+     * @return The name that position is in
+     */
+    private int nameAt(int position) {
+        int index = Arrays.binarySearch(mNameStarts, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * @param position Where a name starts in mText
+     * @param query    The folded query
+     * @return true if the name starts with something which is at most one insertion, deletion or
+     * substitution away from the query
+     */
+    private boolean startsWithinOneEdit(int position, String query) {
+        int length = 0;
+        while (mText[position + length] != SEPARATOR) {
+            length++;
+        }
+        int queryLength = query.length();
+
+        /* Skip the common prefix, then the first difference must be the only edit */
+        int same = 0;
+        while (same < queryLength && same < length && mText[position + same] == query.charAt(same)) {
+            same++;
+        }
+        if (same == queryLength) {
+            return true;
+        }
+        /* Substitution, or the name is missing a char */
+        if (matchesFrom(position, length, same + 1, query, same + 1)
+                || matchesFrom(position, length, same, query, same + 1)) {
+            return true;
+        }
+        /* The name has an extra char */
+        return matchesFrom(position, length, same + 1, query, same);
+    }
+
+    /**
+     * @return true if the rest of the query, from queryIndex, is in the name at nameIndex
+     */
+    private boolean matchesFrom(int position, int length, int nameIndex, String query,
+                                int queryIndex) {
+        if (length - nameIndex < query.length() - queryIndex) {
+            return false;
+        }
+        for (int i = queryIndex; i < query.length(); i++, nameIndex++) {
+            if (mText[position + nameIndex] != query.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Less than 0 if the suffix at lhs sorts first, 0 if they're the same, or more than 0
+     * if the suffix at rhs sorts first
+     */
+    private int compareSuffixes(int lhs, int rhs) {
+        while (true) {
+            char l = mText[lhs++];
+            char r = mText[rhs++];
+            if (l != r) {
+                return l < r ? -1 : 1;
+            }
+            if (l == SEPARATOR) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Merge sort suffix positions, since there are too many to box for Arrays.sort()
+     *
+     * @param suffixes The positions to sort
+     * @param scratch  Space to merge in, as long as suffixes
+     * @param start    The first position to sort
+     * @param end      After the last position to sort
+     */
+    private void sortSuffixes(int[] suffixes, int[] scratch, int start, int end) {
+        if (end - start < 2) {
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        sortSuffixes(suffixes, scratch, start, middle);
+        sortSuffixes(suffixes, scratch, middle, end);
+        if (compareSuffixes(suffixes[middle - 1], suffixes[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(suffixes, start, scratch, start, end - start);
+        int left = start;
+        int right = middle;
+        for (int i = start; i < end; i++) {
+            if (right >= end || (left < middle
+                    && compareSuffixes(scratch[left], scratch[right]) <= 0)) {
+                suffixes[i] = scratch[left++];
+            } else {
+                suffixes[i] = scratch[right++];
+            }
+        }
+    }
+}
@@ -31,6 +31,9 @@ import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 
 import com.gelakinetic.mtgfam.BuildConfig;
+import com.gelakinetic.mtgfam.helpers.StartupInitializer;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Provides access to the card database. Used for the search widget
@@ -39,6 +42,10 @@ public class CardSearchProvider extends ContentProvider {
 
     // The Authority
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".helpers.database.CardSearchProvider";
+    /* Set this query parameter to "false" to only suggest English names. Names in every language
+     * are suggested otherwise, since both the quick search and the search form can find cards by
+     * their printed names */
+    public static final String PARAM_LOCALIZED_NAMES = "localizedNames";
 
     // UriMatcher stuff
     private static final int SEARCH_SUGGEST = 0;
@@ -51,7 +58,9 @@ public class CardSearchProvider extends ContentProvider {
         sURIMatcher.addURI(AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", SEARCH_SUGGEST);
     }
 
-    private SQLiteDatabase mDatabase = null;
+    private volatile SQLiteDatabase mDatabase = null;
+    /* Incremented for every suggestion query, so older ones still running can stop */
+    private final AtomicInteger mSuggestionGeneration = new AtomicInteger();
 
     /**
      * In lieu of a constructor
@@ -61,15 +70,38 @@ public class CardSearchProvider extends ContentProvider {
     @Override
     public synchronized boolean onCreate() {
         assert getContext() != null;
-        /* Don't use the DatabaseManager, since the OS may open and close this one with reckless abandon */
-        try {
-            mDatabase = (new DatabaseHelper(getContext()).getReadableDatabase());
-        } catch (SQLException e) {
-            mDatabase = null;
-        }
+        /* This runs on the main thread when the process starts, so the database is opened when
+         * it's first queried instead */
         return true;
     }
 
+    /**
+     * Open the database the first time it's needed. This runs on a binder thread, and waits for
+     * the database to be installed if it's being installed in the background, since opening it
+     * may install it or rebuild its indices.
+     *
+     * @return The database, or null if it can't be opened
+     */
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase database = mDatabase;
+        if (database == null) {
+            synchronized (this) {
+                if (mDatabase == null) {
+                    StartupInitializer.getInstance().awaitDatabase();
+                    /* Don't use the DatabaseManager, since the OS may open and close this one with reckless abandon */
+                    try {
+                        mDatabase = (new DatabaseHelper(getContext()).getReadableDatabase());
+                    } catch (SQLException e) {
+                        /* Try again with the next query */
+                        return null;
+                    }
+                }
+                database = mDatabase;
+            }
+        }
+        return database;
+    }
+
     /**
      * Handles all the database searches and suggestion queries from the Search
      * Manager. When requesting a specific card, the uri alone is required. When
@@ -88,9 +120,10 @@ public class CardSearchProvider extends ContentProvider {
      * @return a Cursor pointing to the queried data
      */
     @Override
-    public synchronized Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
                                      String sortOrder) {
-        if (mDatabase == null) {
+        SQLiteDatabase database = getDatabase();
+        if (database == null) {
             return null;
         }
         String query;
@@ -103,15 +136,33 @@ public class CardSearchProvider extends ContentProvider {
                         //throw new IllegalArgumentException("selectionArgs must be provided for the Uri: " + uri);
                     }
                     query = selectionArgs[0].toLowerCase();
-
-                    return CardDbAdapter.getCardsByNamePrefix(query, mDatabase);
+                    boolean localizedNames = !"false".equals(uri.getQueryParameter(PARAM_LOCALIZED_NAMES));
+
+                    /* A newer query makes this one superseded, so it stops and returns nothing */
+                    final int generation = mSuggestionGeneration.incrementAndGet();
+                    CardNameIndex.Cancellation cancellation = new CardNameIndex.Cancellation() {
+                        @Override
+                        public boolean isCancelled() {
+                            return mSuggestionGeneration.get() != generation;
+                        }
+                    };
+
+                    /* Answer from memory if the name index is loaded, otherwise ask the database */
+                    CardNameIndex index = CardNameIndex.getIndex();
+                    if (index != null) {
+                        return index.suggestCursor(query, localizedNames, cancellation);
+                    }
+                    if (cancellation.isCancelled()) {
+                        return null;
+                    }
+                    return CardDbAdapter.getCardsByNamePrefix(query, localizedNames, database);
                 }
                 case REFRESH_SHORTCUT: {
                     String rowId1 = uri.getLastPathSegment();
                     String[] columns3 = new String[]{BaseColumns._ID, CardDbAdapter.KEY_NAME,
                             SearchManager.SUGGEST_COLUMN_SHORTCUT_ID, SearchManager.SUGGEST_COLUMN_INTENT_DATA_ID};
 
-                    return CardDbAdapter.getCardByRowId(rowId1, columns3, mDatabase);
+                    return CardDbAdapter.getCardByRowId(rowId1, columns3, database);
                 }
                 default:
                     throw new IllegalArgumentException("Unknown Uri: " + uri);
@@ -23,11 +23,15 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+
 /**
  * This class extends SQLiteOpenHelper in order to copy in the zipped database, and create tables
  */
 class DatabaseHelper extends SQLiteOpenHelper {
 
+    private final Context mContext;
+
     /**
      * Create a helper object to create, open, and/or manage a database. The database is not actually created or opened
      * until one of getWritableDatabase() or getReadableDatabase() is called. It also copies the zipped database if
@@ -37,6 +41,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
      */
     public DatabaseHelper(Context context) {
         super(context, CardDbAdapter.DATABASE_NAME, null, CardDbAdapter.DATABASE_VERSION);
+        mContext = context.getApplicationContext();
         if (CardDbAdapter.isDbOutOfDate(context)) {
             CardDbAdapter.copyDB(context);
         }
@@ -64,6 +69,33 @@ class DatabaseHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        /* necessary to override, not doing anything */
+        /* The tables come from the packaged database, but the indices may be out of date */
+        PreferenceAdapter.setDatabaseIndexVersion(mContext, -1);
+    }
+
+    /**
+     * Called when the database has been opened. If the secondary indices, full text index, and
+     * legality matrix are older than DATABASE_INDEX_VERSION, they are dropped and rebuilt here, and
+     * any columns missing from the packaged database are added.
+     *
+     * @param db the database which was opened
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(CardDbAdapter.SQL_CACHE_SIZE);
+        if (!db.isReadOnly() &&
+                PreferenceAdapter.getDatabaseIndexVersion(mContext) < CardDbAdapter.DATABASE_INDEX_VERSION) {
+            try {
+                CardDbAdapter.addContentHashColumn(db);
+                CardDbAdapter.dropIndices(db);
+                CardDbAdapter.createIndices(db);
+                CardDbAdapter.rebuildFullTextIndex(db);
+                CardDbAdapter.rebuildLegalityMatrix(db);
+                PreferenceAdapter.setDatabaseIndexVersion(mContext, CardDbAdapter.DATABASE_INDEX_VERSION);
+            } catch (FamiliarDbException e) {
+                /* Queries still work without the indices, they're just slower. Try again later */
+            }
+        }
     }
 }
\ No newline at end of file
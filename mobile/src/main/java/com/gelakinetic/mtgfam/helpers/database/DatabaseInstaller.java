@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Inflates the packaged, gzipped database onto disk with large buffers. An interrupted install
+ * isn't resumed. CardDbAdapter.copyDB() only records the database version once the whole file is
+ * written, so a half written database is just installed again from the start.
+ */
+class DatabaseInstaller {
+
+    /* Large reads and writes are much faster than the 1KB copies this used to do */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Inflate a gzipped database to the target file, replacing whatever is there.
+     *
+     * @param gzipped The gzipped database. It is closed when this returns
+     * @param target  The file to inflate the database into
+     * @throws IOException If the database can't be inflated or written, or it's corrupt
+     */
+    static void install(InputStream gzipped, File target) throws IOException {
+        GZIPInputStream gis = null;
+        FileOutputStream fos = null;
+        try {
+            gis = new GZIPInputStream(new BufferedInputStream(gzipped, BUFFER_SIZE), BUFFER_SIZE);
+            fos = new FileOutputStream(target);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = gis.read(buffer)) > 0) {
+                fos.write(buffer, 0, length);
+            }
+
+            /* Make sure it's all on disk before the version is recorded */
+            fos.getFD().sync();
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+            if (gis != null) {
+                gis.close();
+            } else {
+                gzipped.close();
+            }
+        }
+    }
+}
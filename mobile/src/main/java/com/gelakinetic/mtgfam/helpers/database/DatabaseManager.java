@@ -23,6 +23,8 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 
+import com.gelakinetic.mtgfam.helpers.StartupInitializer;
+
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -44,20 +46,24 @@ public class DatabaseManager {
     }
 
     /**
-     * Returns a DatabaseManager, in order to open databases
+     * Returns a DatabaseManager, in order to open databases. If the database is being installed in
+     * the background during startup, this blocks until it's done.
      *
      * @param context         A context to construct a DatabaseHelper if necessary
      * @param isTransactional Whether we should get a transactional instance or not
      * @return The DatabaseManager
      */
-    public static synchronized DatabaseManager getInstance(Context context,
-                                                           boolean isTransactional) {
-        if (isTransactional) {
-            return mTransactionalDatabase.getInstance(context);
+    public static DatabaseManager getInstance(Context context, boolean isTransactional) {
+        /* Wait outside of the lock, so the background install can take it */
+        StartupInitializer.getInstance().awaitDatabase();
+        synchronized (DatabaseManager.class) {
+            if (isTransactional) {
+                return mTransactionalDatabase.getInstance(context);
 
-        } else {
-            return mDatabase.getInstance(context);
+            } else {
+                return mDatabase.getInstance(context);
 
+            }
         }
     }
 
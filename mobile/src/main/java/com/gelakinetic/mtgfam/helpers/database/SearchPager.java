@@ -0,0 +1,409 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.gelakinetic.mtgfam.helpers.SearchCriteria;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class runs a search a page at a time, so the first results can be shown without Android
+ * filling a window with, and counting, every row of a very broad search. Each page continues after
+ * the sort keys and KEY_ID of the last row of the previous page, rather than skipping an offset, so
+ * rows before the page aren't stepped over again. The sort keys generally don't match an index,
+ * so SQLite still scans every matching row and sorts them for each page, even the first. It only
+ * keeps the best PAGE_SIZE rows while sorting, so a page is cheaper than the whole search, but it
+ * isn't free. The pages loaded so far are available as one Cursor.
+ * <p>
+ * A pager isn't thread safe, so only one thread may query pages at a time. Pages may be queried
+ * off the UI thread with queryNextPage(), but they should be added with addPage() on the thread
+ * which reads getCursor(), since the merged cursor moves the pages it wraps.
+ */
+public class SearchPager {
+
+    /* How many rows each page has */
+    public static final int PAGE_SIZE = 100;
+    /* Load the next page once the list shows a row this close to the end of the loaded rows */
+    public static final int READ_AHEAD = 40;
+
+    private final SQLiteDatabase mDatabase;
+    private final CardDbAdapter.SearchQuery mQuery;
+    private final List<SortKey> mSortKeys;
+    private final String mOrderBy;
+
+    private final ArrayList<Cursor> mPages = new ArrayList<>();
+    private Cursor mCursor;
+    private boolean mHasMore = true;
+    /* The sort key values of the last loaded row, null until a page is loaded */
+    private Object[] mLastValues;
+
+    /**
+     * One column the results are ordered by
+     */
+    static class SortKey {
+        final String mColumn;
+        final String mCollation;
+        final boolean mDescending;
+
+        SortKey(String column, String collation, boolean descending) {
+            mColumn = column;
+            mCollation = collation;
+            mDescending = descending;
+        }
+
+        /**
+         * @return This key as a term in an ORDER BY clause
+         */
+        String getOrderTerm() {
+            return mColumn + (mCollation == null ? "" : " COLLATE " + mCollation) +
+                    (mDescending ? " DESC" : " ASC");
+        }
+    }
+
+    /**
+     * Start a search. No rows are loaded until loadNextPage() is called.
+     *
+     * @param criteria    The criteria used to build the query
+     * @param returnTypes The columns which should be returned. This must include KEY_ID and every
+     *                    column in orderByStr
+     * @param consolidate true to not include multiple printings of the same card, false otherwise
+     * @param orderByStr  A string used to order the results, or null to order them by name
+     * @param database    The database to query
+     * @return A pager for the search, or null if the criteria don't narrow the search at all
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public static SearchPager search(SearchCriteria criteria, String[] returnTypes,
+                                     boolean consolidate, String orderByStr,
+                                     SQLiteDatabase database) throws FamiliarDbException {
+        CardDbAdapter.SearchQuery query = CardDbAdapter.buildSearchQuery(criteria, true,
+                returnTypes, consolidate, CardDbAdapter.hasFullTextIndex(database), database);
+        if (query == null) {
+            return null;
+        }
+        return new SearchPager(query, orderByStr, database);
+    }
+
+    /**
+     * @param query      The search to page through
+     * @param orderByStr A string used to order the results, or null to order them by name
+     * @param database   The database to query
+     */
+    SearchPager(CardDbAdapter.SearchQuery query, String orderByStr, SQLiteDatabase database) {
+        mDatabase = database;
+        mQuery = query;
+        mSortKeys = parseSortKeys(orderByStr, query.consolidated);
+
+        StringBuilder orderBy = new StringBuilder();
+        for (SortKey key : mSortKeys) {
+            if (orderBy.length() > 0) {
+                orderBy.append(", ");
+            }
+            orderBy.append(key.getOrderTerm());
+        }
+        mOrderBy = orderBy.toString();
+    }
+
+    /**
+     * Parse an ORDER BY string, like the ones SortOrderDialogFragment makes, and add keys so every
+     * row has a unique position. Like Search(), printings of the same card are ordered newest
+     * first.
+     *
+     * @param orderByStr   A string used to order the results, or null to order them by name
+     * @param consolidated true if there is one row per card name
+     * @return The keys the pages are ordered by, ending with KEY_ID
+     */
+    static List<SortKey> parseSortKeys(String orderByStr, boolean consolidated) {
+        if (null == orderByStr) {
+            orderByStr = CardDbAdapter.KEY_NAME + " COLLATE UNICODE";
+        }
+        ArrayList<SortKey> keys = new ArrayList<>();
+        for (String term : orderByStr.split(",")) {
+            String[] parts = term.trim().split("\\s+");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            String collation = null;
+            boolean descending = false;
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].equalsIgnoreCase("COLLATE") && i + 1 < parts.length) {
+                    collation = parts[++i];
+                } else if (parts[i].equalsIgnoreCase("DESC")) {
+                    descending = true;
+                }
+            }
+            keys.add(new SortKey(parts[0], collation, descending));
+        }
+        if (!consolidated) {
+            keys.add(new SortKey(CardDbAdapter.KEY_DATE, null, true));
+        }
+        keys.add(new SortKey(CardDbAdapter.KEY_ID, null, false));
+        return keys;
+    }
+
+    /**
+     * Load the next page of results, if there is one. Afterwards, getCursor() returns every loaded
+     * row.
+     *
+     * @return The number of rows which were loaded
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public int loadNextPage() throws FamiliarDbException {
+        Cursor page = queryNextPage();
+        if (page == null) {
+            return 0;
+        }
+        addPage(page);
+        return page.getCount();
+    }
+
+    /**
+     * Query the next page of results, if there is one, and fill its window. The page isn't part
+     * of getCursor() until it's passed to addPage(), so this may run off the UI thread while the
+     * loaded rows are shown. Pages must be added in the order they're queried.
+     *
+     * @return The next page, or null if there are no more rows
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public Cursor queryNextPage() throws FamiliarDbException {
+        if (!mHasMore) {
+            return null;
+        }
+
+        ArrayList<String> args = new ArrayList<>();
+        for (String arg : mQuery.args) {
+            args.add(arg);
+        }
+        String sql = "SELECT * FROM (" + mQuery.sql + ")";
+        if (mLastValues != null) {
+            sql += " WHERE " + getKeysetClause(args);
+        }
+        sql += " ORDER BY " + mOrderBy + " LIMIT " + PAGE_SIZE;
+
+        Cursor page;
+        try {
+            page = mDatabase.rawQuery(sql, args.toArray(new String[args.size()]));
+            /* Fill the window now, rather than when the list first draws */
+            int count = page.getCount();
+            if (count < PAGE_SIZE) {
+                mHasMore = false;
+            }
+            if (count == 0) {
+                page.close();
+                return null;
+            }
+            page.moveToLast();
+            mLastValues = new Object[mSortKeys.size()];
+            for (int i = 0; i < mSortKeys.size(); i++) {
+                int column = page.getColumnIndexOrThrow(mSortKeys.get(i).mColumn);
+                switch (page.getType(column)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        mLastValues[i] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        mLastValues[i] = page.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        mLastValues[i] = page.getDouble(column);
+                        break;
+                    default:
+                        mLastValues[i] = page.getString(column);
+                        break;
+                }
+            }
+            page.moveToFirst();
+        } catch (SQLiteException | IllegalStateException | IllegalArgumentException e) {
+            throw new FamiliarDbException(e);
+        }
+        return page;
+    }
+
+    /**
+     * Add a page from queryNextPage() to the loaded rows. getCursor() then returns a new cursor
+     * which includes it. The new cursor isn't positioned, whoever reads it positions it.
+     *
+     * @param page The page to add
+     */
+    public void addPage(Cursor page) {
+        mPages.add(page);
+        mCursor = new MergeCursor(mPages.toArray(new Cursor[mPages.size()]));
+    }
+
+    /**
+     * Build a WHERE clause which selects the rows after the last loaded one. With keys k0..kn,
+     * that's (k0 after v0) OR (k0 = v0 AND k1 after v1) OR ... SQLite sorts NULL before any value,
+     * and values of numeric columns are written into the SQL so they're compared as numbers.
+     *
+     * @param args The arguments for the clause's placeholders are added to this list
+     * @return The clause
+     */
+    private String getKeysetClause(List<String> args) {
+        StringBuilder clause = new StringBuilder();
+        StringBuilder equal = new StringBuilder();
+        ArrayList<String> equalArgs = new ArrayList<>();
+        for (int i = 0; i < mSortKeys.size(); i++) {
+            SortKey key = mSortKeys.get(i);
+            Object value = mLastValues[i];
+
+            ArrayList<String> afterArgs = new ArrayList<>();
+            String after;
+            if (value == null) {
+                /* Nothing comes after NULL in descending order */
+                after = key.mDescending ? null : key.mColumn + " IS NOT NULL";
+            } else if (key.mDescending) {
+                after = "(" + key.mColumn + " < " + getValueSql(key, value, afterArgs) +
+                        " OR " + key.mColumn + " IS NULL)";
+            } else {
+                after = key.mColumn + " > " + getValueSql(key, value, afterArgs);
+            }
+
+            if (after != null) {
+                if (clause.length() > 0) {
+                    clause.append(" OR ");
+                }
+                clause.append('(').append(equal).append(after).append(')');
+                args.addAll(equalArgs);
+                args.addAll(afterArgs);
+            }
+
+            /* Later keys only matter when this one is equal */
+            if (value == null) {
+                equal.append(key.mColumn).append(" IS NULL AND ");
+            } else {
+                equal.append(key.mColumn).append(" = ")
+                        .append(getValueSql(key, value, equalArgs)).append(" AND ");
+            }
+        }
+        if (clause.length() == 0) {
+            /* The last row was the last possible row */
+            return "(0)";
+        }
+        return "(" + clause + ")";
+    }
+
+    /**
+     * @param key   The key the value is for
+     * @param value The value, from the last loaded row
+     * @param args  If the value is a placeholder, its argument is added to this list
+     * @return The value as SQL, either a number or a placeholder with the key's collation
+     */
+    private static String getValueSql(SortKey key, Object value, List<String> args) {
+        if (value instanceof Long || value instanceof Double) {
+            return value.toString();
+        }
+        args.add(value.toString());
+        return key.mCollation == null ? "?" : "? COLLATE " + key.mCollation;
+    }
+
+    /**
+     * @return Every loaded row, or null if nothing has been loaded. Closing it closes every page
+     */
+    public Cursor getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * @return The number of rows loaded so far
+     */
+    public int getLoadedCount() {
+        return mCursor == null ? 0 : mCursor.getCount();
+    }
+
+    /**
+     * @return true if there may be more rows to load
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /**
+     * @param position The position of a row which is being shown
+     * @return true if the next page should be loaded so it's ready before it's scrolled to
+     */
+    public boolean shouldLoadMore(int position) {
+        return mHasMore && position >= getLoadedCount() - READ_AHEAD;
+    }
+
+    /**
+     * Get the KEY_ID of every result, in the same order as the pages, without loading any other
+     * columns into memory. This runs the whole search, so it should be called off the UI thread.
+     * It doesn't touch the loaded pages, so it may run while pages are being queried.
+     *
+     * @return The IDs of every result
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public long[] fetchAllIds() throws FamiliarDbException {
+        Cursor cursor = null;
+        try {
+            cursor = mDatabase.rawQuery("SELECT " + CardDbAdapter.KEY_ID +
+                    " FROM (" + mQuery.sql + ") ORDER BY " + mOrderBy, mQuery.args);
+            long ids[] = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Count every result. If everything is already loaded, the database isn't queried, otherwise
+     * this costs as much as running the whole search.
+     *
+     * @return The number of results
+     * @throws FamiliarDbException If something goes wrong
+     */
+    public int fetchCount() throws FamiliarDbException {
+        if (!mHasMore) {
+            return getLoadedCount();
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mDatabase.rawQuery("SELECT COUNT(*) FROM (" + mQuery.sql + ")", mQuery.args);
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } catch (SQLiteException | IllegalStateException e) {
+            throw new FamiliarDbException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Close every loaded page
+     */
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+    }
+}
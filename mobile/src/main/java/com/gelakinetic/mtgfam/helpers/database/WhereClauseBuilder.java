@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds a WHERE clause out of predicates with bound arguments, rather than literals. Search
+ * criteria with the same shape produce the same SQL, so SQLite's prepared statement cache is
+ * reused across searches.
+ *
+ * SQLite checks the terms it can't use an index for in the order they're written, so predicates
+ * are ordered by how cheap and selective they usually are. Indexed equality checks come first and
+ * infix LIKEs over long text come last.
+ */
+class WhereClauseBuilder {
+
+    /* Predicates which can use an index, like set codes, numbers, or full text matches */
+    static final int RANK_INDEXED = 0;
+    /* Predicates with sub-queries over the legality tables */
+    static final int RANK_FORMAT = 1;
+    /* Simple comparisons on a single column */
+    static final int RANK_COLUMN = 2;
+    /* LIKEs over short columns, like the type line */
+    static final int RANK_SHORT_LIKE = 3;
+    /* LIKEs over long columns, like the rules text */
+    static final int RANK_LONG_LIKE = 4;
+
+    /**
+     * A single predicate, and the arguments for its placeholders
+     */
+    private static class Predicate {
+        final int mRank;
+        final String mSql;
+        final List<String> mArgs;
+
+        Predicate(int rank, String sql, List<String> args) {
+            mRank = rank;
+            mSql = sql;
+            mArgs = args;
+        }
+    }
+
+    private final ArrayList<Predicate> mPredicates = new ArrayList<>();
+
+    /**
+     * Add a predicate to the WHERE clause. It should be self contained, i.e. parenthesized.
+     *
+     * @param rank One of the RANK_* constants
+     * @param sql  The predicate, with a ? placeholder for each argument
+     * @param args The arguments for the placeholders, in order
+     */
+    void add(int rank, String sql, String... args) {
+        add(rank, sql, Arrays.asList(args));
+    }
+
+    /**
+     * Add a predicate to the WHERE clause. It should be self contained, i.e. parenthesized.
+     *
+     * @param rank One of the RANK_* constants
+     * @param sql  The predicate, with a ? placeholder for each argument
+     * @param args The arguments for the placeholders, in order
+     */
+    void add(int rank, String sql, List<String> args) {
+        mPredicates.add(new Predicate(rank, sql, new ArrayList<>(args)));
+    }
+
+    /**
+     * @return true if no predicates were added, false otherwise
+     */
+    boolean isEmpty() {
+        return mPredicates.isEmpty();
+    }
+
+    /**
+     * Sort the predicates by rank. The sort is stable, so predicates of the same rank stay in the
+     * order they were added.
+     */
+    private void sort() {
+        Collections.sort(mPredicates, new Comparator<Predicate>() {
+            @Override
+            public int compare(Predicate lhs, Predicate rhs) {
+                return (lhs.mRank < rhs.mRank) ? -1 : ((lhs.mRank == rhs.mRank) ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * @return " WHERE " followed by all of the predicates, AND'd together and ordered by rank, or
+     * an empty string if there are no predicates
+     */
+    String getSql() {
+        if (mPredicates.isEmpty()) {
+            return "";
+        }
+        sort();
+        StringBuilder sql = new StringBuilder(" WHERE ");
+        for (int i = 0; i < mPredicates.size(); i++) {
+            if (i > 0) {
+                sql.append(" AND ");
+            }
+            sql.append(mPredicates.get(i).mSql);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * @return The arguments for every placeholder in getSql(), in order
+     */
+    String[] getArgs() {
+        sort();
+        ArrayList<String> args = new ArrayList<>();
+        for (Predicate predicate : mPredicates) {
+            args.addAll(predicate.mArgs);
+        }
+        return args.toArray(new String[args.size()]);
+    }
+}
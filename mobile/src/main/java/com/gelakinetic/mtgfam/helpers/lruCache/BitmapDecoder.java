@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.FileDescriptor;
+
+/**
+ * This class decodes images straight to the size they'll be displayed at. The image's bounds are
+ * decoded first, then it's decoded with the largest power of two sample size which keeps it at
+ * least as large as the target, into a bitmap from the BitmapPool if one fits. Finally it's scaled
+ * to exactly fit the target, into another pooled bitmap, and the sampled bitmap goes back into the
+ * pool. Once the pool is warm, decoding an image allocates no bitmaps at all.
+ */
+public class BitmapDecoder {
+
+    private static BitmapDecoder sInstance;
+
+    private final BitmapPool mPool;
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private int mDecodes;
+    private long mDecodeNanos;
+    private int mAllocations;
+    private long mAllocatedBytes;
+    private int mFullSizeAllocations;
+
+    /**
+     * @return The decoder for this application, which uses the application's BitmapPool
+     */
+    public static synchronized BitmapDecoder getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapDecoder(BitmapPool.getInstance());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param pool The pool to take bitmaps from and return them to
+     */
+    BitmapDecoder(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Something an image can be decoded from more than once
+     */
+    private interface Source {
+        /**
+         * @param options The options to decode with
+         * @return The decoded bitmap, or null if only the bounds were decoded or it failed
+         */
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    /**
+     * Decode an image so that it fits within a target size, keeping its aspect ratio
+     *
+     * @param data      The encoded image
+     * @param reqWidth  The width to fit the image in, or Integer.MAX_VALUE to not scale it
+     * @param reqHeight The height to fit the image in, or Integer.MAX_VALUE to not scale it
+     * @return The decoded image, or null if it can't be decoded
+     */
+    public Bitmap decodeToFit(final byte[] data, int reqWidth, int reqHeight) {
+        return decodeToFit(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+        }, reqWidth, reqHeight);
+    }
+
+    /**
+     * Decode an image so that it fits within a target size, keeping its aspect ratio. The
+     * descriptor's position isn't changed
+     *
+     * @param fd        A file descriptor for the encoded image
+     * @param reqWidth  The width to fit the image in, or Integer.MAX_VALUE to not scale it
+     * @param reqHeight The height to fit the image in, or Integer.MAX_VALUE to not scale it
+     * @return The decoded image, or null if it can't be decoded
+     */
+    public Bitmap decodeToFit(final FileDescriptor fd, int reqWidth, int reqHeight) {
+        return decodeToFit(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            }
+        }, reqWidth, reqHeight);
+    }
+
+    /**
+     * @param source    Where to decode the image from
+     * @param reqWidth  The width to fit the image in
+     * @param reqHeight The height to fit the image in
+     * @return The decoded image, or null if it can't be decoded
+     */
+    private Bitmap decodeToFit(Source source, int reqWidth, int reqHeight) {
+        long start = System.nanoTime();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        /* Figure out the size which fits, the same way the card view always has */
+        int width = options.outWidth;
+        int height = options.outHeight;
+        float scale = 1.0f;
+        if (reqWidth != Integer.MAX_VALUE && reqHeight != Integer.MAX_VALUE) {
+            scale = Math.min(reqWidth / (float) width, reqHeight / (float) height);
+        }
+        int fitWidth = Math.max(1, Math.round(width * scale));
+        int fitHeight = Math.max(1, Math.round(height * scale));
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(width, height, fitWidth, fitHeight);
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = mPool.getForDecode(options);
+
+        Bitmap sampled;
+        try {
+            sampled = source.decode(options);
+        } catch (IllegalArgumentException e) {
+            /* The pooled bitmap couldn't be used after all */
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            sampled = source.decode(options);
+        }
+        if (sampled == null) {
+            mPool.put(options.inBitmap);
+            return null;
+        }
+        if (sampled != options.inBitmap) {
+            countAllocation(sampled, fitWidth, fitHeight);
+        }
+
+        Bitmap fitted = sampled;
+        if (sampled.getWidth() != fitWidth || sampled.getHeight() != fitHeight) {
+            fitted = scale(sampled, fitWidth, fitHeight);
+            mPool.put(sampled);
+        }
+
+        synchronized (this) {
+            mDecodes++;
+            mDecodeNanos += System.nanoTime() - start;
+        }
+        return fitted;
+    }
+
+    /**
+     * Draw a bitmap scaled into a pooled bitmap of exactly the target size, or a new one if none
+     * fits
+     *
+     * @param bitmap The bitmap to scale
+     * @param width  The width to scale it to
+     * @param height The height to scale it to
+     * @return The scaled bitmap
+     */
+    private Bitmap scale(Bitmap bitmap, int width, int height) {
+        Bitmap scaled = mPool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (scaled == null) {
+            scaled = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            countAllocation(scaled, width, height);
+        } else {
+            scaled.eraseColor(Color.TRANSPARENT);
+        }
+        new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, width, height), mScalePaint);
+        return scaled;
+    }
+
+    /**
+     * Calculate the largest power of two sample size which keeps the decoded image at least as
+     * large as the size it will be scaled to
+     *
+     * @param width     The image's width
+     * @param height    The image's height
+     * @param fitWidth  The width it will be scaled to
+     * @param fitHeight The height it will be scaled to
+     * @return The value to use for inSampleSize
+     */
+    static int calculateInSampleSize(int width, int height, int fitWidth, int fitHeight) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= fitWidth && height / (inSampleSize * 2) >= fitHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Record that a new bitmap was allocated. It's full size if it's larger than the size it will
+     * be displayed at, which sampling and pooling should prevent
+     *
+     * @param bitmap    The new bitmap
+     * @param fitWidth  The width it will be displayed at
+     * @param fitHeight The height it will be displayed at
+     */
+    private synchronized void countAllocation(Bitmap bitmap, int fitWidth, int fitHeight) {
+        mAllocations++;
+        mAllocatedBytes += BitmapPool.getAllocationBytes(bitmap);
+        if (bitmap.getWidth() >= fitWidth * 2 || bitmap.getHeight() >= fitHeight * 2) {
+            mFullSizeAllocations++;
+        }
+    }
+
+    /**
+     * @return The number of images decoded
+     */
+    public synchronized int getDecodes() {
+        return mDecodes;
+    }
+
+    /**
+     * @return The average time to decode and scale an image, in milliseconds
+     */
+    public synchronized double getAverageDecodeMillis() {
+        return mDecodes == 0 ? 0 : mDecodeNanos / (mDecodes * 1000000.0);
+    }
+
+    /**
+     * @return The number of bitmaps allocated because none in the pool fit
+     */
+    public synchronized int getAllocations() {
+        return mAllocations;
+    }
+
+    /**
+     * @return The number of bytes of bitmaps allocated because none in the pool fit
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * @return The number of bitmaps allocated at least twice as large as they were displayed
+     */
+    public synchronized int getFullSizeAllocations() {
+        return mFullSizeAllocations;
+    }
+
+    /**
+     * @return A summary of decoding, including the pool's, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return "BitmapDecoder: " + mDecodes + " decodes, " +
+                String.format(java.util.Locale.US, "%.1f", getAverageDecodeMillis()) + "ms average, " +
+                mAllocations + " allocations (" + (mAllocatedBytes / 1024) + "KB), " +
+                mFullSizeAllocations + " full size; " + mPool;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * This class holds strong references to bitmaps which are no longer displayed, so they can be
+ * decoded into with BitmapFactory.Options.inBitmap instead of allocating new ones.
+ * <p>
+ * Bitmaps are kept in buckets so that finding one which fits takes constant time. From KitKat on,
+ * a bitmap can be reused for any image which needs no more bytes than it has allocated, so buckets
+ * are powers of two of allocated bytes. A bitmap is put in the bucket below its allocation, and
+ * looked for in the bucket above what's needed, so anything found always fits. Before KitKat the
+ * size has to match exactly, so buckets are exact widths, heights and configs.
+ * <p>
+ * The pool never holds more than its maximum number of bytes. The oldest bitmaps are recycled to
+ * make room for new ones.
+ */
+public class BitmapPool {
+
+    /* The pool takes up to this fraction of the heap */
+    private static final int HEAP_FRACTION = 8;
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxBytes;
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<>();
+    /* Every pooled bitmap, oldest first, for eviction */
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<>();
+    private long mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    /**
+     * @return The pool for this application, sized to a fraction of the heap
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxBytes The most bytes of bitmaps this pool will hold
+     */
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param config A bitmap config, may be null
+     * @return The number of bytes each pixel takes in that config
+     */
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        } else if (config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+    /**
+     * @param bitmap A bitmap
+     * @return The number of bytes allocated for its pixels, which may be more than it uses
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int getAllocationBytes(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * @param bytes A positive number of bytes
+     * @return The bucket for bitmaps with at least that many bytes allocated
+     */
+    private static long getBucketAtLeast(long bytes) {
+        return 64 - Long.numberOfLeadingZeros(bytes - 1);
+    }
+
+    /**
+     * @param bytes A positive number of bytes
+     * @return The bucket a bitmap with that many bytes allocated goes in
+     */
+    private static long getBucketAtMost(long bytes) {
+        return 63 - Long.numberOfLeadingZeros(bytes);
+    }
+
+    /**
+     * @param width  A bitmap's width
+     * @param height A bitmap's height
+     * @param config A bitmap's config
+     * @return The bucket for exactly that size of bitmap, before KitKat
+     */
+    private static long getExactBucket(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | (config == null ? 0xFF : config.ordinal());
+    }
+
+    /**
+     * @param bitmap A bitmap which may be put in the pool
+     * @return The bucket it goes in
+     */
+    private static long getBucket(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return getBucketAtMost(getAllocationBytes(bitmap));
+        }
+        return getExactBucket(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+    }
+
+    /**
+     * Find a bitmap to decode into
+     *
+     * @param options Options which have the out* fields, inSampleSize and inPreferredConfig set
+     * @return A bitmap for inBitmap, which is no longer in the pool, or null if none fits
+     */
+    public synchronized Bitmap getForDecode(BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        if (!Utils.hasKitKat() && sampleSize != 1) {
+            /* Before KitKat, inBitmap only works without sampling */
+            mMisses++;
+            return null;
+        }
+        return get(width, height, options.inPreferredConfig, false);
+    }
+
+    /**
+     * Find a bitmap to draw into
+     *
+     * @param width  The width it needs to be
+     * @param height The height it needs to be
+     * @param config The config it needs to have
+     * @return A mutable bitmap of exactly that size and config, which is no longer in the pool,
+     * or null if none fits. It isn't erased
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        return get(width, height, config, true);
+    }
+
+    /**
+     * @param width       The width needed
+     * @param height      The height needed
+     * @param config      The config needed
+     * @param reconfigure Whether to reconfigure a larger bitmap to the exact size
+     * @return A bitmap which fits, which is no longer in the pool, or null if none does
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap get(int width, int height, Bitmap.Config config, boolean reconfigure) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap bitmap = null;
+        if (Utils.hasKitKat()) {
+            long bytes = Math.max(1, (long) width * height * getBytesPerPixel(config));
+            long bucket = getBucketAtLeast(bytes);
+            /* The bucket above also fits, and usually isn't too much larger */
+            bitmap = poll(bucket);
+            if (bitmap == null) {
+                bitmap = poll(bucket + 1);
+            }
+            if (bitmap != null && reconfigure) {
+                bitmap.reconfigure(width, height, config);
+            }
+        } else {
+            bitmap = poll(getExactBucket(width, height, config));
+        }
+
+        if (bitmap == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param bucket The bucket to look in
+     * @return The newest bitmap in that bucket, which is removed from the pool, or null if
+     * there aren't any
+     */
+    private Bitmap poll(long bucket) {
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            return null;
+        }
+        Bitmap bitmap = bitmaps.pollLast();
+        if (bitmaps.isEmpty()) {
+            mBuckets.remove(bucket);
+        }
+        if (bitmap != null) {
+            mBitmaps.remove(bitmap);
+            mBytes -= getAllocationBytes(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Give a bitmap which is no longer displayed to the pool. If it can't be reused, or it's too
+     * large for the pool, it's recycled instead. Nothing else may use it afterwards.
+     *
+     * @param bitmap The bitmap to pool, may be null
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mBitmaps.contains(bitmap)) {
+            return;
+        }
+        int bytes = getAllocationBytes(bitmap);
+        if (!bitmap.isMutable() || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        while (mBytes + bytes > mMaxBytes) {
+            evictOldest();
+        }
+
+        long bucket = getBucket(bitmap);
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBuckets.put(bucket, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mBitmaps.add(bitmap);
+        mBytes += bytes;
+    }
+
+    /**
+     * Recycle the bitmap which has been in the pool the longest. Since buckets are appended to
+     * in order, it's at the front of its bucket
+     */
+    private void evictOldest() {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        Bitmap oldest = iterator.next();
+        iterator.remove();
+        long bucket = getBucket(oldest);
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        bitmaps.removeFirstOccurrence(oldest);
+        if (bitmaps.isEmpty()) {
+            mBuckets.remove(bucket);
+        }
+        mBytes -= getAllocationBytes(oldest);
+        oldest.recycle();
+        mEvictions++;
+    }
+
+    /**
+     * Recycle everything in the pool
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+        mBitmaps.clear();
+        mBuckets.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * @return The number of bytes of bitmaps in the pool
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return The number of times a bitmap was found in the pool
+     */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return The number of times no bitmap in the pool fit
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return The number of bitmaps recycled to keep the pool under its maximum size
+     */
+    public synchronized int getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * @return A summary of how well the pool is working, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        int lookups = mHits + mMisses;
+        return "BitmapPool: " + mBitmaps.size() + " bitmaps, " + (mBytes / 1024) + "/" +
+                (mMaxBytes / 1024) + "KB, " + mHits + "/" + lookups + " hits, " + mEvictions +
+                " evictions";
+    }
+}
@@ -40,14 +40,20 @@ import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * *****************************************************************************
@@ -154,44 +160,80 @@ public final class DiskLruCache implements Closeable {
      * it exists when the cache is opened.
      */
 
+    /*
+     * Concurrency: entries live in a ConcurrentHashMap, so committed entries are read without
+     * taking any lock. Everything which changes an entry holds that entry's stripe of
+     * keyLocks, so edits to different keys run in parallel. LRU order is kept with an access
+     * counter on each entry instead of an access-ordered map, which would need a lock for every
+     * read. Journal lines are queued and written in batches by the background thread, so no
+     * operation waits on the journal file. Since a DIRTY line may not reach the journal before a
+     * crash, files which no journal entry accounts for are deleted when the cache is opened.
+     */
+
+    /* The number of locks keys are striped over */
+    private static final int LOCK_STRIPES = 32;
+
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
     private final int appVersion;
-    private final long maxSize;
+    private volatile long maxSize;
     private final int valueCount;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private final ConcurrentHashMap<String, Entry> lruEntries
+            = new ConcurrentHashMap<String, Entry>();
+    private final Object[] keyLocks = new Object[LOCK_STRIPES];
     /**
-     * This cache uses a single background thread to evict entries.
+     * This cache uses a single background thread to evict entries and append to the journal.
      */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-    private long size = 0;
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicLong accessCounter = new AtomicLong(0);
+    private final AtomicInteger redundantOpCount = new AtomicInteger(0);
+
+    /* Journal lines waiting to be written, and the lock for writing them */
+    private final ConcurrentLinkedQueue<String> journalQueue = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean journalAppendScheduled = new AtomicBoolean(false);
+    private final Object journalLock = new Object();
     private Writer journalWriter;
-    private int redundantOpCount;
-    private final Callable<Void> cleanupCallable = new Callable<Void>() {
+    private volatile boolean closed;
+
+    private final Callable<Void> journalAppender = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
-            synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
-                    return null; // closed
-                }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+            journalAppendScheduled.set(false);
+            synchronized (journalLock) {
+                writeQueuedJournalLines();
+                if (journalWriter != null) {
+                    journalWriter.flush();
                 }
             }
             return null;
         }
     };
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean(false);
+    private final Callable<Void> cleanupCallable = new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+            cleanupScheduled.set(false);
+            if (closed) {
+                return null;
+            }
+            trimToSize();
+            if (journalRebuildRequired()) {
+                rebuildJournal();
+            }
+            return null;
+        }
+    };
+    /* Only one thread trims at a time */
+    private final Object trimLock = new Object();
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong(0);
 
     private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
         this.directory = directory;
@@ -200,6 +242,9 @@ public final class DiskLruCache implements Closeable {
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            keyLocks[i] = new Object();
+        }
     }
 
     /* From java.util.Arrays */
@@ -403,6 +448,8 @@ public final class DiskLruCache implements Closeable {
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
+        // every line but REMOVE counts as an access, in the order they were written
+        entry.accessOrder = accessCounter.incrementAndGet();
 
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
@@ -411,7 +458,7 @@ public final class DiskLruCache implements Closeable {
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // this work was already done by setting the access order
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -419,15 +466,19 @@ public final class DiskLruCache implements Closeable {
 
     /**
      * Computes the initial size and collects garbage as a part of opening the
-     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted,
+     * as will any file which no entry accounts for.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        HashSet<String> liveFiles = new HashSet<String>();
+        liveFiles.add(JOURNAL_FILE);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
-            if (entry.currentEditor == null) {
+            if (entry.currentEditor == null && entry.readable) {
                 for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+                    size.addAndGet(entry.lengths[t]);
+                    liveFiles.add(entry.getCleanFile(t).getName());
                 }
             } else {
                 entry.currentEditor = null;
@@ -438,47 +489,133 @@ public final class DiskLruCache implements Closeable {
                 i.remove();
             }
         }
+
+        // files from edits whose journal lines were never written
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !liveFiles.contains(file.getName())) {
+                    deleteIfExists(file);
+                }
+            }
+        }
     }
 
     /**
      * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * current journal if it exists. Lines which were queued but not written yet
+     * are dropped, since the entries they describe are written in full.
      */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
+    private void rebuildJournal() throws IOException {
+        synchronized (journalLock) {
+            journalQueue.clear();
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
+
+            Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write(Integer.toString(appVersion));
+            writer.write("\n");
+            writer.write(Integer.toString(valueCount));
+            writer.write("\n");
+            writer.write("\n");
+
+            // least recently used first, so the order survives a reopen
+            for (Entry entry : getEntriesByAccessOrder()) {
+                synchronized (lockFor(entry.key)) {
+                    if (entry.currentEditor != null) {
+                        writer.write(DIRTY + ' ' + entry.key + '\n');
+                    } else if (entry.readable && lruEntries.get(entry.key) == entry) {
+                        writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                    }
+                }
+            }
+
+            writer.close();
+            journalFileTmp.renameTo(journalFile);
+            journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+            redundantOpCount.set(0);
+        }
+    }
+
+    /**
+     * Writes every queued journal line. The caller must hold journalLock.
+     */
+    private void writeQueuedJournalLines() throws IOException {
+        String line;
+        while ((line = journalQueue.poll()) != null) {
+            if (journalWriter != null) {
+                journalWriter.write(line);
+            }
+        }
+    }
+
+    /**
+     * Queues a line to be appended to the journal by the background thread.
+     * Lines for the same key must be queued while holding that key's lock, so
+     * they're written in the order they happened.
+     */
+    private void appendJournal(String line) {
+        journalQueue.add(line);
+        if (journalAppendScheduled.compareAndSet(false, true)) {
+            executorService.submit(journalAppender);
         }
+    }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+    /**
+     * Queues a trim and journal compaction on the background thread, unless one
+     * is queued already.
+     */
+    private void scheduleCleanup() {
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Returns the lock which guards changes to the entry named {@code key}.
+     */
+    private Object lockFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return keyLocks[(hash & 0x7fffffff) % LOCK_STRIPES];
+    }
 
+    /**
+     * Returns every entry, least recently used first.
+     */
+    private ArrayList<Entry> getEntriesByAccessOrder() {
+        // copy the access orders first, since they change while this sorts
+        ArrayList<long[]> orders = new ArrayList<long[]>(lruEntries.size());
+        ArrayList<Entry> entries = new ArrayList<Entry>(lruEntries.size());
         for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            orders.add(new long[]{entry.accessOrder, entries.size()});
+            entries.add(entry);
+        }
+        Collections.sort(orders, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
             }
+        });
+        ArrayList<Entry> sorted = new ArrayList<Entry>(entries.size());
+        for (long[] order : orders) {
+            sorted.add(entries.get((int) order[1]));
         }
-
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        return sorted;
     }
 
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * the head of the LRU queue. This doesn't take any lock when each entry
+     * has a single value.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -486,32 +623,56 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
-
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
         InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        long sequenceNumber;
+        if (valueCount == 1) {
+            /*
+             * A commit renames the new value over the old one, so opening the
+             * single value sees one published edit or the other.
+             */
+            if (!entry.readable) {
+                return null;
+            }
+            sequenceNumber = entry.sequenceNumber;
+            try {
+                ins[0] = new FileInputStream(entry.getCleanFile(0));
+            } catch (FileNotFoundException e) {
+                // it was removed, or a file must have been deleted manually!
+                return null;
+            }
+        } else {
+            /*
+             * Open all streams eagerly while holding the key's lock, to
+             * guarantee that we see a single published snapshot. If we opened
+             * streams lazily then the streams could come from different edits.
+             */
+            synchronized (lockFor(key)) {
+                if (!entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
+                try {
+                    for (int i = 0; i < valueCount; i++) {
+                        ins[i] = new FileInputStream(entry.getCleanFile(i));
+                    }
+                } catch (FileNotFoundException e) {
+                    for (InputStream in : ins) {
+                        closeQuietly(in);
+                    }
+                    // a file must have been deleted manually!
+                    return null;
+                }
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ').append(key).append('\n');
+        entry.accessOrder = accessCounter.incrementAndGet();
+        redundantOpCount.incrementAndGet();
+        appendJournal(READ + ' ' + key + '\n');
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleCleanup();
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins);
     }
 
     /**
@@ -522,28 +683,30 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
+        synchronized (lockFor(key)) {
+            Entry entry = lruEntries.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                lruEntries.put(key, entry);
+            } else if (entry.currentEditor != null) {
+                return null; // another edit is in progress
+            }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+            Editor editor = new Editor(entry);
+            entry.currentEditor = editor;
+            entry.accessOrder = accessCounter.incrementAndGet();
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+            // if this line is lost, processJournal() deletes the dirty files
+            appendJournal(DIRTY + ' ' + key + '\n');
+            return editor;
+        }
     }
 
     /**
@@ -551,57 +714,76 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    public long size() {
+        return size.get();
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache can store and queues a job
+     * to trim the existing store, if necessary.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        scheduleCleanup();
+    }
+
+    private void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+        synchronized (lockFor(entry.key)) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size.addAndGet(newLength - oldLength);
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
-        }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            redundantOpCount.incrementAndGet();
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+                }
+                entry.readable = true;
+                appendJournal(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            } else {
+                lruEntries.remove(entry.key);
+                appendJournal(REMOVE + ' ' + entry.key + '\n');
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        if (size.get() > maxSize || journalRebuildRequired()) {
+            scheduleCleanup();
         }
     }
 
@@ -611,8 +793,9 @@ public final class DiskLruCache implements Closeable {
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+        int redundantOps = redundantOpCount.get();
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOps >= lruEntries.size();
     }
 
     /**
@@ -621,42 +804,44 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    synchronized void remove(String key) throws IOException {
+    void remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return;
-        }
+        synchronized (lockFor(key)) {
+            Entry entry = lruEntries.get(key);
+            if (entry == null || entry.currentEditor != null) {
+                return;
+            }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete() && file.exists()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                size.addAndGet(-entry.lengths[i]);
+                entry.lengths[i] = 0;
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ').append(key).append('\n');
-        lruEntries.remove(key);
+            redundantOpCount.incrementAndGet();
+            entry.readable = false;
+            lruEntries.remove(key);
+            appendJournal(REMOVE + ' ' + key + '\n');
+        }
 
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleCleanup();
         }
-
     }
 
     /**
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return closed;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (closed) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -664,34 +849,60 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        synchronized (journalLock) {
+            writeQueuedJournalLines();
+            journalWriter.flush();
+        }
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
-            return; // already closed
+    public void close() throws IOException {
+        synchronized (journalLock) {
+            if (closed || journalWriter == null) {
+                return; // already closed
+            }
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+            Editor editor;
+            synchronized (lockFor(entry.key)) {
+                editor = entry.currentEditor;
+            }
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IllegalStateException e) {
+                    // it was committed while we were looking
+                }
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        synchronized (journalLock) {
+            if (journalWriter == null) {
+                return;
+            }
+            writeQueuedJournalLines();
+            journalWriter.close();
+            journalWriter = null;
+            closed = true;
+        }
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        synchronized (trimLock) {
+            if (size.get() <= maxSize) {
+                return;
+            }
+            for (Entry entry : getEntriesByAccessOrder()) {
+                if (size.get() <= maxSize) {
+                    break;
+                }
+                remove(entry.key);
+            }
         }
     }
 
@@ -773,7 +984,7 @@ public final class DiskLruCache implements Closeable {
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (lockFor(entry.key)) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -801,7 +1012,7 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (lockFor(entry.key)) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -890,24 +1101,30 @@ public final class DiskLruCache implements Closeable {
         private final String key;
 
         /**
-         * Lengths of this entry's files.
+         * Lengths of this entry's files. Guarded by the key's lock.
          */
         private final long[] lengths;
 
         /**
-         * True if this entry has ever been published
+         * True if this entry has ever been published, and hasn't been removed
          */
-        private boolean readable;
+        private volatile boolean readable;
 
         /**
-         * The ongoing edit or null if this entry is not being edited.
+         * The ongoing edit or null if this entry is not being edited. Guarded
+         * by the key's lock.
          */
         private Editor currentEditor;
 
         /**
          * The sequence number of the most recently committed edit to this entry.
          */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /**
+         * When this entry was last used, from accessCounter. Lower is older.
+         */
+        private volatile long accessOrder;
 
         private Entry(String key) {
             this.key = key;
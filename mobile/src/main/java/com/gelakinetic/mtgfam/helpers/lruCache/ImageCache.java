@@ -20,7 +20,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
@@ -37,13 +36,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -62,9 +56,15 @@ public class ImageCache {
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
-    // Compression settings when writing images to disk cache
-    private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.PNG;
-    private static final int DEFAULT_COMPRESS_QUALITY = 100;
+    // The disk cache shrinks to fit in this fraction of the free space, but no smaller than this
+    private static final float MAX_FREE_SPACE_FRACTION = 0.5f;
+    private static final long MIN_DISK_CACHE_SIZE = 1024 * 1024 * 5; // 5MB
+
+    // Compression settings when writing bitmaps to disk cache. Downloaded images are stored as
+    // they were downloaded with addImageBytesToDiskCache(), so this is only for bitmaps which
+    // don't have their original bytes. Card scans are photos, so JPEG is a fraction of PNG's size
+    private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
+    private static final int DEFAULT_COMPRESS_QUALITY = 90;
     private static final int DISK_CACHE_INDEX = 0;
 
     // Constants to easily toggle various caches
@@ -72,11 +72,13 @@ public class ImageCache {
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
     private final Object mDiskCacheLock = new Object();
-    final private Set<SoftReference<Bitmap>> mReusableBitmaps = Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-    private DiskLruCache mDiskLruCache;
+    private final BitmapPool mBitmapPool = BitmapPool.getInstance();
+    /* mDiskCacheLock guards opening, closing and clearing the disk cache. Reading and writing
+     * entries doesn't take it, since DiskLruCache is safe to use from many threads at once */
+    private volatile DiskLruCache mDiskLruCache;
     private LruCache<String, BitmapDrawable> mMemoryCache;
     private ImageCacheParams mCacheParams;
-    private boolean mDiskCacheStarting = true;
+    private volatile boolean mDiskCacheStarting = true;
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -116,51 +118,6 @@ public class ImageCache {
         return imageCache;
     }
 
-    /**
-     * @param candidate     - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     * <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     *
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get a usable cache directory (external if available, internal otherwise).
      *
@@ -295,19 +252,8 @@ public class ImageCache {
         // Set up memory cache
         if (mCacheParams.memoryCacheEnabled) {
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-//            if (Utils.hasHoneycomb()) {
-//                mReusableBitmaps =
-//                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-//            }
+            // Bitmaps evicted from the memory cache go to the BitmapPool, which holds strong
+            // references to them up to a fixed size, so they can be used for inBitmap later.
 
             mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
 
@@ -321,13 +267,14 @@ public class ImageCache {
                         // The removed entry is a recycling drawable, so notify it
                         // that it has been removed from the memory cache
                         ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-                    } else {
-                        // The removed entry is a standard BitmapDrawable
+                    } else if (evicted || newValue != null) {
+                        // The removed entry is a standard BitmapDrawable. If it was taken with
+                        // takeBitmapFromMemCache(), it belongs to the caller now
 
                         if (Utils.hasHoneycomb()) {
                             // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                            // to the pool for possible use with inBitmap later
+                            mBitmapPool.put(oldValue.getBitmap());
                         }
                     }
                 }
@@ -368,13 +315,12 @@ public class ImageCache {
                     if (!diskCacheDir.exists()) {
                         diskCacheDir.mkdirs();
                     }
-                    if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
-                        try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
-                        } catch (final IOException e) {
-                            mCacheParams.diskCacheDir = null;
-                        }
+                    try {
+                        mDiskLruCache = DiskLruCache.open(
+                                diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                        adaptDiskCacheSize();
+                    } catch (final IOException e) {
+                        mCacheParams.diskCacheDir = null;
                     }
                 }
             }
@@ -383,6 +329,38 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Figure out how large the disk cache can be. It gets as large as was asked for, as long as
+     * it fits in a fraction of the free space. The space it already uses counts as free, since
+     * it would be freed if the cache shrank. It never gets smaller than MIN_DISK_CACHE_SIZE, so a
+     * nearly full disk only shrinks the cache, rather than turning it off.
+     *
+     * @param requestedSize The size the user asked for, in bytes
+     * @param usableSpace   The free space on the cache's disk, in bytes
+     * @param currentSize   The space the cache uses now, in bytes
+     * @return The size the cache should be, in bytes
+     */
+    static long getAdaptiveDiskCacheSize(long requestedSize, long usableSpace, long currentSize) {
+        long budget = (long) ((usableSpace + currentSize) * MAX_FREE_SPACE_FRACTION);
+        return Math.max(MIN_DISK_CACHE_SIZE, Math.min(requestedSize, budget));
+    }
+
+    /**
+     * Resize the disk cache to fit the free space, which may have changed since it was opened.
+     * Shrinking it evicts the least recently used entries, and it grows back on a later flush once
+     * there's room again. The caller must hold mDiskCacheLock.
+     */
+    private void adaptDiskCacheSize() {
+        if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            return;
+        }
+        long maxSize = getAdaptiveDiskCacheSize(mCacheParams.diskCacheSize,
+                getUsableSpace(mCacheParams.diskCacheDir), mDiskLruCache.size());
+        if (maxSize != mDiskLruCache.getMaxSize()) {
+            mDiskLruCache.setMaxSize(maxSize);
+        }
+    }
+
     /**
      * Adds a bitmap to both memory and disk cache.
      *
@@ -396,6 +374,53 @@ public class ImageCache {
         }
 
         // Add to memory cache
+        addBitmapToMemCache(data, value);
+
+        // Add to disk cache
+        final DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            final String key = hashKeyForDisk(data);
+            OutputStream out = null;
+            try {
+                DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    final DiskLruCache.Editor editor = diskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        value.getBitmap().compress(
+                                mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                        editor.commit();
+                        out.close();
+                    }
+                } else {
+                    snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                }
+            } catch (Exception e) {
+                /* Eat it */
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+        //END_INCLUDE(add_bitmap_to_cache)
+    }
+
+    /**
+     * Adds a bitmap to the memory cache only.
+     *
+     * @param data  Unique identifier for the bitmap to store
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToMemCache(String data, BitmapDrawable value) {
+        if (data == null || value == null) {
+            return;
+        }
+
         if (mMemoryCache != null) {
             if (RecyclingBitmapDrawable.class.isInstance(value)) {
                 // The removed entry is a recycling drawable, so notify it
@@ -404,40 +429,48 @@ public class ImageCache {
             }
             mMemoryCache.put(data, value);
         }
+    }
 
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
-                    }
-                } catch (Exception e) {
-                    /* Eat it */
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {
-                        /* Eat it */
-                    }
-                }
+    /**
+     * Remove a bitmap from the memory cache and hand it to the caller, who is responsible for it
+     * from then on.
+     *
+     * @param data Unique identifier for which item to take
+     * @return The bitmap drawable if found in cache, null otherwise
+     */
+    public BitmapDrawable takeBitmapFromMemCache(String data) {
+        if (mMemoryCache == null || data == null) {
+            return null;
+        }
+        return mMemoryCache.remove(data);
+    }
+
+    /**
+     * Check if an image is in the disk cache or an offline image pack, without decoding it. Note
+     * that this includes disk access so this should not be executed on the main/UI thread.
+     *
+     * @param data Unique identifier for which item to check
+     * @return true if it's in the disk cache, false otherwise
+     */
+    public boolean isInDiskCache(String data) {
+        if (mCacheParams.imagePacks != null && mCacheParams.imagePacks.contains(data)) {
+            return true;
+        }
+        DiskLruCache diskLruCache = awaitDiskCache();
+        if (diskLruCache == null) {
+            return false;
+        }
+        try {
+            DiskLruCache.Snapshot snapshot = diskLruCache.get(hashKeyForDisk(data));
+            if (snapshot == null) {
+                return false;
             }
+            snapshot.close();
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            /* IllegalStateException means the cache was closed while looking */
+            return false;
         }
-        //END_INCLUDE(add_bitmap_to_cache)
     }
 
     /**
@@ -458,6 +491,49 @@ public class ImageCache {
         //END_INCLUDE(get_bitmap_from_mem_cache)
     }
 
+    /**
+     * Adds an encoded image to the disk cache as-is, without decoding and compressing it again.
+     *
+     * @param data  Unique identifier for the image to store
+     * @param bytes The encoded image, as downloaded
+     */
+    public void addImageBytesToDiskCache(String data, byte[] bytes) {
+        if (data == null || bytes == null) {
+            return;
+        }
+
+        final DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            final String key = hashKeyForDisk(data);
+            OutputStream out = null;
+            try {
+                DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    final DiskLruCache.Editor editor = diskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        out.write(bytes);
+                        out.close();
+                        out = null;
+                        editor.commit();
+                    }
+                } else {
+                    snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                }
+            } catch (Exception e) {
+                /* Eat it */
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+
     /**
      * Get from disk cache.
      *
@@ -465,84 +541,89 @@ public class ImageCache {
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromDiskCache(String data) {
+        // We don't want to sample so give MAX_VALUE as the target dimensions
+        return getBitmapFromDiskCache(data, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get from an offline image pack or the disk cache, decoded straight to the size it will be
+     * displayed at.
+     *
+     * @param data      Unique identifier for which item to get
+     * @param reqWidth  The width to fit the bitmap in, or Integer.MAX_VALUE to not scale it
+     * @param reqHeight The height to fit the bitmap in, or Integer.MAX_VALUE to not scale it
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int reqWidth, int reqHeight) {
         //BEGIN_INCLUDE(get_bitmap_from_disk_cache)
+        /* Offline image packs are already open, so check them before opening any cache files */
+        if (mCacheParams.imagePacks != null) {
+            byte[] packed = mCacheParams.imagePacks.get(data);
+            if (packed != null) {
+                Bitmap bitmap = BitmapDecoder.getInstance().decodeToFit(packed, reqWidth, reqHeight);
+                if (bitmap != null) {
+                    return bitmap;
+                }
+            }
+        }
+
         final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
 
-        synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                    /* Eat it */
+        /* Decoding doesn't hold any lock, so many images can be read from the cache at once */
+        final DiskLruCache diskLruCache = awaitDiskCache();
+        if (diskLruCache != null) {
+            InputStream inputStream = null;
+            try {
+                final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot != null) {
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null) {
+                        FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+                        bitmap = BitmapDecoder.getInstance().decodeToFit(fd, reqWidth, reqHeight);
+                    }
                 }
-            }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
+            } catch (final IOException | IllegalStateException e) {
+                /* Eat it, IllegalStateException means the cache was closed while reading */
+            } finally {
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
+                    if (inputStream != null) {
+                        inputStream.close();
                     }
-                } catch (final IOException e) {
+                } catch (IOException e) {
                     /* Eat it */
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {
-                        /* Eat it */
-                    }
                 }
             }
-            return bitmap;
         }
+        return bitmap;
         //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
     /**
-     * @param options - BitmapFactory.Options with out* options populated
-     * @return Bitmap that case be used for inBitmap
+     * Wait for the disk cache to finish opening, if it's being opened
+     *
+     * @return The disk cache, or null if there isn't one
      */
-    Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
-
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
+    private DiskLruCache awaitDiskCache() {
+        synchronized (mDiskCacheLock) {
+            while (mDiskCacheStarting) {
+                try {
+                    mDiskCacheLock.wait();
+                } catch (InterruptedException e) {
+                    return null;
                 }
             }
+            return mDiskLruCache;
         }
+    }
 
-        return bitmap;
+    /**
+     * @param options - BitmapFactory.Options with out* options populated
+     * @return Bitmap that case be used for inBitmap
+     */
+    Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
+        //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
+        return mBitmapPool.getForDecode(options);
         //END_INCLUDE(get_bitmap_from_reusable_set)
     }
 
@@ -570,8 +651,9 @@ public class ImageCache {
     }
 
     /**
-     * Flushes the disk cache associated with this ImageCache object. Note that this includes
-     * disk access so this should not be executed on the main/UI thread.
+     * Flushes the disk cache associated with this ImageCache object, and resizes it if the free
+     * space changed. Note that this includes disk access so this should not be executed on the
+     * main/UI thread.
      */
     public void flush() {
         synchronized (mDiskCacheLock) {
@@ -581,6 +663,7 @@ public class ImageCache {
                 } catch (IOException e) {
                     /* Eat it */
                 }
+                adaptDiskCacheSize();
             }
         }
     }
@@ -608,14 +691,15 @@ public class ImageCache {
      * A holder class that contains cache parameters.
      */
     public static class ImageCacheParams {
-        public final CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
-        public final int compressQuality = DEFAULT_COMPRESS_QUALITY;
+        public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
+        public int compressQuality = DEFAULT_COMPRESS_QUALITY;
         public final boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public final boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public final boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
         public File diskCacheDir;
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public ImagePackStore imagePacks;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -633,6 +717,7 @@ public class ImageCache {
             } catch (NullPointerException e) {
                 diskCacheDir = null;
             }
+            imagePacks = ImagePackStore.getInstance(context);
         }
 
         /**
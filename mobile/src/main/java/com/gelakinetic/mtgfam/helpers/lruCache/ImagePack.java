@@ -0,0 +1,405 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * A read-only archive of many card images in one file. The file is an index of image keys sorted
+ * for binary search, followed by every image, encoded as it was downloaded. The whole file is
+ * memory mapped when it's opened, so reading an image is a lookup and a copy, without opening any
+ * more files.
+ * <p>
+ * The file format is:
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    number of images
+ * long   offset of the first image from the start of the file
+ * for each image, sorted by key:
+ *   UTF  key
+ *   long offset from the first image
+ *   int  length
+ * every image, concatenated
+ * </pre>
+ * Packs are written with a {@link Builder}, which can be interrupted and resumed.
+ */
+public class ImagePack {
+
+    private static final int MAGIC = 0x4D464950; /* MFIP */
+    private static final int VERSION = 1;
+
+    /* Suffixes for the files a Builder works in */
+    private static final String DATA_SUFFIX = ".data";
+    static final String INDEX_SUFFIX = ".index";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mFile;
+    private final String[] mKeys;
+    private final long[] mOffsets;
+    private final int[] mLengths;
+    private final MappedByteBuffer mBuffer;
+
+    /**
+     * Open a pack and map it into memory
+     *
+     * @param file The pack to open
+     * @throws IOException If the file can't be read, or isn't a pack
+     */
+    public ImagePack(File file) throws IOException {
+        mFile = file;
+        long dataStart;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not an image pack: " + file);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt image pack: " + file);
+            }
+            dataStart = in.readLong();
+            mKeys = new String[count];
+            mOffsets = new long[count];
+            mLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                mKeys[i] = in.readUTF();
+                mOffsets[i] = dataStart + in.readLong();
+                mLengths[i] = in.readInt();
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Image pack too large to map: " + file);
+            }
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mOffsets[i] < dataStart || mOffsets[i] + mLengths[i] > length) {
+                    throw new IOException("Corrupt image pack: " + file);
+                }
+            }
+            /* The mapping stays valid after the channel is closed */
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * @return The file this pack was opened from
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return The number of images in this pack
+     */
+    public int size() {
+        return mKeys.length;
+    }
+
+    /**
+     * @param key An image's key
+     * @return true if the image is in this pack, false otherwise
+     */
+    public boolean contains(String key) {
+        return Arrays.binarySearch(mKeys, key) >= 0;
+    }
+
+    /**
+     * Copy an image out of the pack. This is safe to call from any thread.
+     *
+     * @param key An image's key
+     * @return The encoded image, or null if it's not in this pack
+     */
+    public byte[] get(String key) {
+        int index = Arrays.binarySearch(mKeys, key);
+        if (index < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[mLengths[index]];
+        /* Each reader gets its own position into the shared mapping */
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position((int) mOffsets[index]);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Delete a pack, and any unfinished work for it
+     *
+     * @param packFile The pack's file
+     */
+    public static void delete(File packFile) {
+        //noinspection ResultOfMethodCallIgnored
+        packFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(packFile.getPath() + DATA_SUFFIX).delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(packFile.getPath() + INDEX_SUFFIX).delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(packFile.getPath() + TEMP_SUFFIX).delete();
+    }
+
+    /**
+     * Writes a pack one image at a time. Images are appended to a data file, and then recorded in
+     * an index file, so if the builder is interrupted, a new builder for the same pack picks up
+     * where the old one left off. Any image which was written but not recorded is thrown away.
+     * When every image is added, {@link #finish()} writes the real pack.
+     */
+    public static class Builder {
+
+        private final File mPackFile;
+        private final File mDataFile;
+        private final File mIndexFile;
+        private final ArrayList<String> mKeys = new ArrayList<>();
+        private final ArrayList<Long> mOffsets = new ArrayList<>();
+        private final ArrayList<Integer> mLengths = new ArrayList<>();
+        private final HashSet<String> mKeySet = new HashSet<>();
+        private long mDataLength = 0;
+        private DataOutputStream mIndexOut;
+        private FileOutputStream mDataOut;
+
+        /**
+         * Start building a pack, or resume building one
+         *
+         * @param packFile The file to eventually write the pack to
+         * @throws IOException If the work files can't be opened
+         */
+        public Builder(File packFile) throws IOException {
+            mPackFile = packFile;
+            mDataFile = new File(packFile.getPath() + DATA_SUFFIX);
+            mIndexFile = new File(packFile.getPath() + INDEX_SUFFIX);
+
+            /* Read whatever was recorded before */
+            long indexLength = 0;
+            if (mIndexFile.exists()) {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(mIndexFile)));
+                try {
+                    while (true) {
+                        String key = in.readUTF();
+                        int length = in.readInt();
+                        mKeys.add(key);
+                        mOffsets.add(mDataLength);
+                        mLengths.add(length);
+                        mKeySet.add(key);
+                        mDataLength += length;
+                        indexLength += 2 + modifiedUtf8Length(key) + 4;
+                    }
+                } catch (EOFException e) {
+                    /* That's everything, and maybe half of a record */
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+
+            /* If images which were recorded are missing, start over */
+            if (mDataFile.length() < mDataLength) {
+                mKeys.clear();
+                mOffsets.clear();
+                mLengths.clear();
+                mKeySet.clear();
+                mDataLength = 0;
+                indexLength = 0;
+            }
+
+            /* Throw away half-written records and images */
+            truncate(mIndexFile, indexLength);
+            truncate(mDataFile, mDataLength);
+
+            mIndexOut = new DataOutputStream(new FileOutputStream(mIndexFile, true));
+            mDataOut = new FileOutputStream(mDataFile, true);
+        }
+
+        /**
+         * @param file   A file to shorten
+         * @param length The length to shorten it to
+         * @throws IOException If the file can't be shortened
+         */
+        private static void truncate(File file, long length) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                IOUtils.closeQuietly(raf);
+            }
+        }
+
+        /**
+         * @param string A string
+         * @return How many bytes DataOutputStream.writeUTF() writes for it, after the length
+         */
+        private static int modifiedUtf8Length(String string) {
+            int length = 0;
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                if (c >= 0x0001 && c <= 0x007F) {
+                    length += 1;
+                } else if (c > 0x07FF) {
+                    length += 3;
+                } else {
+                    length += 2;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * @param key An image's key
+         * @return true if the image was already added, false otherwise
+         */
+        public boolean contains(String key) {
+            return mKeySet.contains(key);
+        }
+
+        /**
+         * @return The number of images added so far, including before a resume
+         */
+        public int size() {
+            return mKeys.size();
+        }
+
+        /**
+         * Add an image to the pack. It's on disk when this returns.
+         *
+         * @param key   The image's key
+         * @param bytes The encoded image
+         * @throws IOException If the image couldn't be written
+         */
+        public void add(String key, byte[] bytes) throws IOException {
+            if (mKeySet.contains(key)) {
+                return;
+            }
+            /* Write the image before recording it, so a recorded image is always complete */
+            mDataOut.write(bytes);
+            mDataOut.flush();
+            mIndexOut.writeUTF(key);
+            mIndexOut.writeInt(bytes.length);
+            mIndexOut.flush();
+
+            mKeys.add(key);
+            mOffsets.add(mDataLength);
+            mLengths.add(bytes.length);
+            mKeySet.add(key);
+            mDataLength += bytes.length;
+        }
+
+        /**
+         * Stop building for now. A new builder for the same file will resume
+         */
+        public void close() {
+            IOUtils.closeQuietly(mIndexOut);
+            IOUtils.closeQuietly(mDataOut);
+        }
+
+        /**
+         * Write the finished pack and delete the work files
+         *
+         * @return The finished pack, opened
+         * @throws IOException If the pack couldn't be written
+         */
+        public ImagePack finish() throws IOException {
+            close();
+
+            /* Sort the index by key, keeping track of where each image is in the data */
+            Integer[] order = new Integer[mKeys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return mKeys.get(i1).compareTo(mKeys.get(i2));
+                }
+            });
+
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            for (Integer i : order) {
+                index.writeUTF(mKeys.get(i));
+                index.writeLong(mOffsets.get(i));
+                index.writeInt(mLengths.get(i));
+            }
+            index.flush();
+
+            File tempFile = new File(mPackFile.getPath() + TEMP_SUFFIX);
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(order.length);
+                out.writeLong(4 + 4 + 4 + 8 + indexBytes.size());
+                indexBytes.writeTo(out);
+                out.flush();
+
+                /* Append the images without copying them through the heap */
+                FileInputStream dataIn = new FileInputStream(mDataFile);
+                try {
+                    FileChannel source = dataIn.getChannel();
+                    FileChannel destination = fileOut.getChannel();
+                    long position = 0;
+                    while (position < mDataLength) {
+                        position += source.transferTo(position, mDataLength - position, destination);
+                    }
+                } finally {
+                    IOUtils.closeQuietly(dataIn);
+                }
+                fileOut.getFD().sync();
+            } finally {
+                IOUtils.closeQuietly(fileOut);
+            }
+
+            if (!tempFile.renameTo(mPackFile)) {
+                throw new IOException("Couldn't write image pack: " + mPackFile);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mDataFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            mIndexFile.delete();
+            return new ImagePack(mPackFile);
+        }
+    }
+}
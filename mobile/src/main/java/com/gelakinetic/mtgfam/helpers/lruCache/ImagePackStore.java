@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.lruCache;
+
+import android.content.Context;
+import android.support.v4.content.ContextCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class keeps every downloaded offline image pack open, one per set, so card images can be
+ * read from them without touching the network. Packs are opened once, the first time any image is
+ * looked up, and stay mapped until they're deleted.
+ */
+public class ImagePackStore {
+
+    private static final String PACK_DIR = "image_packs";
+    private static final String PACK_SUFFIX = ".pack";
+
+    private static ImagePackStore sInstance;
+
+    private final File mDirectory;
+    /* Set code to open pack. null until the directory is scanned */
+    private HashMap<String, ImagePack> mPacks;
+    /* A copy of mPacks' values, so lookups only take the lock until the directory is scanned.
+     * null until then */
+    private volatile ImagePack[] mPackArray;
+
+    /**
+     * @param context A context to find the pack directory with
+     * @return The store for this application
+     */
+    public static synchronized ImagePackStore getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            /* Packs used to fall back to getFilesDir(), which gets exported with every backup */
+            deleteDirectory(new File(appContext.getFilesDir(), PACK_DIR));
+
+            File directory = appContext.getExternalFilesDir(PACK_DIR);
+            if (directory == null) {
+                /* Packs can always be downloaded again, so they're never backed up */
+                directory = new File(ContextCompat.getNoBackupFilesDir(appContext), PACK_DIR);
+            }
+            sInstance = new ImagePackStore(directory);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Delete a directory of packs, if it exists
+     *
+     * @param directory The directory to delete
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    /**
+     * @param directory Where the packs are kept
+     */
+    ImagePackStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Open every finished pack in the directory, if it hasn't been done yet. Packs which can't be
+     * opened are deleted, so they get downloaded again.
+     */
+    private synchronized void loadPacks() {
+        if (mPacks != null) {
+            return;
+        }
+        mPacks = new HashMap<>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(PACK_SUFFIX)) {
+                    try {
+                        mPacks.put(getSetCode(file), new ImagePack(file));
+                    } catch (IOException e) {
+                        ImagePack.delete(file);
+                    }
+                }
+            }
+        }
+        mPackArray = mPacks.values().toArray(new ImagePack[mPacks.size()]);
+    }
+
+    /**
+     * @return Every open pack, opening them first if it hasn't been done yet. Once they're open,
+     * this doesn't take the lock
+     */
+    private ImagePack[] getPackArray() {
+        ImagePack[] packs = mPackArray;
+        if (packs == null) {
+            loadPacks();
+            packs = mPackArray;
+        }
+        return packs;
+    }
+
+    /**
+     * @param file A pack's file
+     * @return The code of the set it holds images for
+     */
+    private static String getSetCode(File file) {
+        String name = file.getName();
+        return name.substring(0, name.length() - PACK_SUFFIX.length());
+    }
+
+    /**
+     * @param setCode A set's code
+     * @return The file that set's pack is, or will be, written to
+     */
+    public File getPackFile(String setCode) {
+        if (!mDirectory.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            mDirectory.mkdirs();
+        }
+        return new File(mDirectory, setCode + PACK_SUFFIX);
+    }
+
+    /**
+     * Look for an image in every pack. This does no file IO, and takes no lock, after the packs
+     * are first opened.
+     *
+     * @param imageKey The image's key, see CardImageInfo.getImageKey()
+     * @return The encoded image, or null if it isn't in any pack
+     */
+    public byte[] get(String imageKey) {
+        for (ImagePack pack : getPackArray()) {
+            byte[] bytes = pack.get(imageKey);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param imageKey The image's key, see CardImageInfo.getImageKey()
+     * @return true if the image is in any pack, false otherwise
+     */
+    public boolean contains(String imageKey) {
+        for (ImagePack pack : getPackArray()) {
+            if (pack.contains(imageKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The codes of every set with a finished pack
+     */
+    public synchronized Set<String> getSetCodes() {
+        loadPacks();
+        return new HashSet<>(mPacks.keySet());
+    }
+
+    /**
+     * @return The codes of every set whose pack was started, but not finished
+     */
+    public ArrayList<String> getUnfinishedSetCodes() {
+        ArrayList<String> setCodes = new ArrayList<>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(PACK_SUFFIX + ImagePack.INDEX_SUFFIX)) {
+                    setCodes.add(name.substring(0,
+                            name.length() - PACK_SUFFIX.length() - ImagePack.INDEX_SUFFIX.length()));
+                }
+            }
+        }
+        return setCodes;
+    }
+
+    /**
+     * Start serving images from a newly finished pack, replacing any older pack for the same set
+     *
+     * @param setCode The set the pack holds images for
+     * @param pack    The pack
+     */
+    public synchronized void add(String setCode, ImagePack pack) {
+        loadPacks();
+        mPacks.put(setCode, pack);
+        mPackArray = mPacks.values().toArray(new ImagePack[mPacks.size()]);
+    }
+
+    /**
+     * Stop serving images from a set's pack, and delete it along with any unfinished work
+     *
+     * @param setCode The set whose pack should be deleted
+     */
+    public synchronized void delete(String setCode) {
+        loadPacks();
+        mPacks.remove(setCode);
+        mPackArray = mPacks.values().toArray(new ImagePack[mPacks.size()]);
+        ImagePack.delete(getPackFile(setCode));
+    }
+}
@@ -48,30 +48,41 @@ public enum Comparison {
         return longDescriptionRes;
     }
 
+    /**
+     * @param column The column to compare
+     * @return A condition comparing the column to a single ? placeholder, or an empty string for
+     * EMPTY
+     */
     @NonNull
     @Contract(pure = true)
-    public String appendToSql(String sqlString, String part1, String part2) {
-        String searchCondition = "";
+    public String getSqlCondition(String column) {
         switch (this) {
             case EQ:
-                searchCondition = part1 + " = '" + part2 + "'";
-                break;
+                return column + " = ?";
             case NE:
-                searchCondition = part1 + " <> '" + part2 + "'";
-                break;
+                return column + " <> ?";
             case CT:
-                searchCondition = part1 + " LIKE '%" + part2 + "%'";
-                break;
+                return column + " LIKE ?";
             case NC:
-                searchCondition = part1 + " NOT LIKE '%" + part2 + "%'";
-                break;
+                return column + " NOT LIKE ?";
+            default:
+                return "";
         }
-        if (sqlString.isEmpty()) {
-            return searchCondition;
-        } else if (searchCondition.isEmpty()) {
-            return sqlString;
-        } else {
-            return sqlString + " AND " + searchCondition;
+    }
+
+    /**
+     * @param value The value to compare to
+     * @return The argument to bind to the placeholder in getSqlCondition()
+     */
+    @NonNull
+    @Contract(pure = true)
+    public String getSqlArgument(String value) {
+        switch (this) {
+            case CT:
+            case NC:
+                return "%" + value + "%";
+            default:
+                return value;
         }
     }
 }
@@ -25,19 +25,23 @@ import com.gelakinetic.GathererScraper.JsonTypes.Card;
 import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
 import com.gelakinetic.GathererScraper.JsonTypes.LegalityData;
 import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
-import com.gelakinetic.GathererScraper.JsonTypes.Patch;
+import com.gelakinetic.GathererScraper.JsonTypes.PatchDelta;
 import com.gelakinetic.GathererScraper.PrefixedFieldNamingStrategy;
 import com.gelakinetic.mtgfam.FamiliarActivity;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This class is used to parse various JSON update files and populate the database
@@ -52,7 +56,23 @@ class CardAndSetParser {
      */
     long mCurrentLegalityTimestamp = 0;
 
-    private static Gson getGson() {
+    /* How many cards are handed to a PatchConsumer at a time */
+    static final int CARD_BATCH_SIZE = 64;
+
+    /* The JSON keys for a patch's expansion and cards, as GathererScraper names them */
+    static final String PATCH_KEY_EXPANSION = "expansion";
+    static final String PATCH_KEY_CARDS = "cards";
+
+    /**
+     * This interface is implemented by whatever stores the contents of a patch as it is streamed in
+     */
+    interface PatchConsumer {
+        void onExpansion(Expansion expansion) throws IOException, InterruptedException;
+
+        void onCards(ArrayList<Card> cards) throws IOException, InterruptedException;
+    }
+
+    static Gson getGson() {
         GsonBuilder reader = new GsonBuilder();
         reader.setFieldNamingStrategy((new PrefixedFieldNamingStrategy("m")));
         reader.disableHtmlEscaping();
@@ -67,24 +87,77 @@ class CardAndSetParser {
      * The JSON uses single character keys, which is a silly thing I did in the name of compression. The patches are
      * zipped anyway, so it doesn't matter much, but we're stuck with it.
      *
-     * There is some special processing for weird power and toughness too
+     * The patch is streamed rather than parsed all at once. Cards are handed to the consumer in
+     * batches of CARD_BATCH_SIZE as soon as they are parsed, so only one batch is ever held here, no matter how
+     * large the set is.
      *
-     * @param reader     A JsonRead to parse from
-     * @param cardsToAdd An array list to place cards before adding to the database
-     * @param setsToAdd  An array list to place sets before adding to the database
+     * @param reader   A JsonRead to parse from
+     * @param consumer Something to hand the expansion and batches of cards to, i.e. the database writer
+     * @throws IOException          If the JSON can't be read, or the consumer can't store it
+     * @throws InterruptedException If the thread is interrupted while handing off cards
      */
-    public void readCardJsonStream(JsonReader reader, ArrayList<Card> cardsToAdd, ArrayList<Expansion> setsToAdd) {
+    public void readCardJsonStream(JsonReader reader, PatchConsumer consumer) throws IOException, InterruptedException {
 
         Gson gson = CardAndSetParser.getGson();
+        TypeAdapter<Card> cardAdapter = gson.getAdapter(Card.class);
+        TypeAdapter<Expansion> expansionAdapter = gson.getAdapter(Expansion.class);
+
+        /* Gson.fromJson() was lenient, so be lenient here too */
+        reader.setLenient(true);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (PATCH_KEY_EXPANSION.equals(name)) {
+                consumer.onExpansion(expansionAdapter.read(reader));
+            } else if (PATCH_KEY_CARDS.equals(name)) {
+                ArrayList<Card> batch = new ArrayList<>(CARD_BATCH_SIZE);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    batch.add(cardAdapter.read(reader));
+                    if (batch.size() == CARD_BATCH_SIZE) {
+                        consumer.onCards(batch);
+                        batch = new ArrayList<>(CARD_BATCH_SIZE);
+                    }
+                }
+                reader.endArray();
+                if (!batch.isEmpty()) {
+                    consumer.onCards(batch);
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
 
-        Patch patch = gson.fromJson(reader, Patch.class);
-        if (patch != null) {
-            cardsToAdd.addAll(patch.mCards);
-
-            /* Stage the sets and cards for database addition. */
-            if (setsToAdd != null) {
-                setsToAdd.add(patch.mExpansion);
+    /**
+     * Download and parse a delta patch. Deltas are small, so they're parsed in one go.
+     *
+     * @param delta     The manifest entry for the delta patch
+     * @param context   The context to build the User Agent with
+     * @param logWriter A writer to print debug statements when things go wrong
+     * @return The parsed delta, or null if it couldn't be downloaded or parsed
+     */
+    public PatchDelta readDeltaJsonStream(Manifest.DeltaEntry delta, Context context, PrintWriter logWriter) {
+        try {
+            InputStream stream = FamiliarActivity.getHttpInputStream(delta.mURL, logWriter, context);
+            if (stream == null) {
+                throw new IOException("No Stream");
+            }
+            try {
+                JsonReader reader = new JsonReader(new InputStreamReader(new GZIPInputStream(stream), "UTF-8"));
+                return CardAndSetParser.getGson().fromJson(reader, PatchDelta.class);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException | JsonParseException e) {
+            if (logWriter != null) {
+                e.printStackTrace(logWriter);
             }
+            return null;
         }
     }
 
@@ -25,43 +25,50 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Environment;
 import android.os.Handler;
+import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 
 import com.gelakinetic.GathererScraper.JsonTypes.Card;
-import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
 import com.gelakinetic.GathererScraper.JsonTypes.LegalityData;
 import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
+import com.gelakinetic.GathererScraper.JsonTypes.PatchDelta;
 import com.gelakinetic.mtgfam.FamiliarActivity;
 import com.gelakinetic.mtgfam.R;
 import com.gelakinetic.mtgfam.helpers.NotificationHelper;
 import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
 import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.CardDbBulkLoader;
+import com.gelakinetic.mtgfam.helpers.database.CardNameIndex;
 import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
 import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
-import com.google.gson.stream.JsonReader;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.Locale;
 
 /**
  * This service takes care of updating the database off of the UI thread
  */
 public class DbUpdaterService extends IntentService {
 
+    /* Drop the secondary indices while loading at least this many patches */
+    private static final int DROP_INDICES_PATCH_THRESHOLD = 10;
+
     /* Status Codes */
     private static final int STATUS_NOTIFICATION = 31;
     private static final int UPDATED_NOTIFICATION = 32;
 
+    /* mProgress value when the total isn't known */
+    private static final int PROGRESS_INDETERMINATE = -1;
+
     /* To build and display the notification */
     private NotificationManagerCompat mNotificationManager;
     private NotificationCompat.Builder mBuilder;
@@ -129,12 +136,19 @@ public class DbUpdaterService extends IntentService {
             /* Couldn't open log, oh well */
         }
 
+        /* Set if any cards were added or removed, even if the update fails afterwards */
+        boolean cardsChanged = false;
+        /* The cards delta patches touched, if the whole legality matrix isn't rebuilt anyway */
+        HashSet<String> deltaNames = new HashSet<>();
+
         try {
             ProgressReporter reporter = new ProgressReporter();
             ArrayList<String> updatedStuff = new ArrayList<>();
             CardAndSetParser parser = new CardAndSetParser();
             boolean commitDates = true;
             boolean newRulesParsed = false;
+            /* The legality matrix is rebuilt once at the end if the legality data or sets change */
+            boolean rebuildLegalityMatrix = false;
 
             try {
                 /* Look for updates with the banned / restricted lists and formats */
@@ -174,6 +188,7 @@ public class DbUpdaterService extends IntentService {
 
                     /* Close the writable database */
                     DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
+                    rebuildLegalityMatrix = true;
                 }
 
                 /* Change the notification to generic "checking for updates" */
@@ -203,81 +218,174 @@ public class DbUpdaterService extends IntentService {
                     }
                     DatabaseManager.getInstance(getApplicationContext(), false).closeDatabase(false);
 
-                    /* Look through the manifest and drop all out of date sets */
-                    database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                    /* Look through the manifest and patch all out of date sets, either with a delta
+                     * from the stored digest or by dropping and redownloading the whole set
+                     */
+                    ArrayList<Manifest.ManifestEntry> setsToDrop = new ArrayList<>();
                     for (Manifest.ManifestEntry set : manifest.mPatches) {
-                        try {
-                            /* If the digest doesn't match, mark the set for dropping
-                             * and remove it from currentSetCodes so it redownloads
-                             */
-                            if (set.mDigest != null && !storedDigests.get(set.mCode).equals(set.mDigest)) {
-                                if (logWriter != null) {
-                                    logWriter.write("Dropping expansion: " + set.mCode + '\n');
-                                }
-                                currentSetCodes.remove(set.mCode);
-                                CardDbAdapter.dropSetAndCards(set.mCode, database);
+                        String storedDigest = storedDigests.get(set.mCode);
+                        if (set.mDigest == null || storedDigest == null) {
+                            /* Either there's nothing to compare, or the set isn't in the database
+                             * yet and is downloaded in full below */
+                            continue;
+                        }
+                        if (storedDigest.equals(set.mDigest)) {
+                            continue;
+                        }
+                        Manifest.DeltaEntry deltaEntry = set.getDeltaFrom(storedDigest);
+                        CardDbBulkLoader deltaLoader = (deltaEntry == null) ? null :
+                                applyDelta(parser, set, storedDigest, deltaEntry, reporter, logWriter);
+                        if (deltaLoader == null) {
+                            setsToDrop.add(set);
+                        } else {
+                            updatedStuff.add(set.mName);
+                            /* Only the cards the delta touched need their legality rebuilt */
+                            deltaNames.addAll(deltaLoader.getTouchedNames());
+                            if (deltaLoader.haveNamesChanged()) {
+                                cardsChanged = true;
                             }
-                        } catch (NullPointerException e) {
-                            /* eat it */
                         }
                     }
+
+                    /* Drop the sets which couldn't be patched with a delta, and remove them from
+                     * currentSetCodes so they redownload
+                     */
+                    database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                    for (Manifest.ManifestEntry set : setsToDrop) {
+                        if (logWriter != null) {
+                            logWriter.write("Dropping expansion: " + set.mCode + '\n');
+                        }
+                        currentSetCodes.remove(set.mCode);
+                        CardDbAdapter.dropSetAndCards(set.mCode, database);
+                        rebuildLegalityMatrix = true;
+                        cardsChanged = true;
+                    }
                     DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
 
-                    /* Look through the list of available patches, and if it doesn't exist in the database, add it. */
+                    /* Figure out which patches need to be downloaded */
+                    ArrayList<Manifest.ManifestEntry> patchesToAdd = new ArrayList<>();
                     for (Manifest.ManifestEntry set : manifest.mPatches) {
                         if (!set.mCode.equals("DD3") && /* Never download the old Duel Deck Anthologies patch */
                                 !currentSetCodes.contains(set.mCode)) { /* check to see if the patch is known already */
-                            int retries = 5;
-                            while (retries > 0) {
+                            patchesToAdd.add(set);
+                        }
+                    }
+
+                    /* Whatever happens from here on, the secondary indices have to be recreated
+                     * if they're dropped, since nothing else would notice they're missing
+                     */
+                    try {
+                        /* Maintaining the secondary indices for every insert is slower than rebuilding
+                         * them once when loading lots of patches, i.e. on a fresh install
+                         */
+                        if (patchesToAdd.size() >= DROP_INDICES_PATCH_THRESHOLD) {
+                            database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                            CardDbAdapter.dropIndices(database);
+                            DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
+                        }
+
+                        /* Download and parse the patches in the background while this thread inserts
+                         * them into the database as they finish
+                         */
+                        PatchDownloader downloader = new PatchDownloader(getApplicationContext(), logWriter);
+                        downloader.start(patchesToAdd);
+                        try {
+                            PatchDownloader.PatchStream patch;
+                            while ((patch = downloader.take()) != null) {
+                                /* The failure was already logged, don't lock the database for nothing */
+                                if (patch.hasFailed()) {
+                                    continue;
+                                }
+
+                                /* Change the notification to the specific set */
+                                switchToUpdating(String.format(getString(R.string.update_updating_set), patch.mEntry.mName));
+
+                                /* Open the database. The patch was already downloaded and spooled,
+                                 * so the write lock is only held while it's inserted
+                                 */
+                                database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                                /* Insert the patch in a single transaction */
+                                CardDbBulkLoader loader = new CardDbBulkLoader(database, reporter);
+                                boolean patchAdded = false;
                                 try {
-                                    /* Change the notification to the specific set */
-                                    switchToUpdating(String.format(getString(R.string.update_updating_set), set.mName));
-                                    InputStream streamToRead = FamiliarActivity.getHttpInputStream(set.mURL, logWriter, getApplicationContext());
-                                    if (streamToRead != null) {
-                                        ArrayList<Card> cardsToAdd = new ArrayList<>();
-                                        ArrayList<Expansion> setsToAdd = new ArrayList<>();
-
-                                        GZIPInputStream gis = new GZIPInputStream(streamToRead);
-                                        JsonReader reader = new JsonReader(new InputStreamReader(gis, "UTF-8"));
-                                        parser.readCardJsonStream(reader, cardsToAdd, setsToAdd);
-                                        streamToRead.close();
-                                        updatedStuff.add(set.mName);
-                                        /* Everything was successful, retries = 0 breaks the while loop */
-                                        retries = 0;
-
-                                        /* After the download, open the database */
-                                        database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
-                                        /* Insert the newly downloaded info */
-                                        for (Expansion expansion : setsToAdd) {
-                                            if (logWriter != null) {
-                                                logWriter.write("Adding expansion: " + expansion.mCode_gatherer + '\n');
+                                    loader.beginPatch(patch.getCardCount());
+                                    PatchDownloader.PatchChunk chunk;
+                                    do {
+                                        chunk = patch.take();
+                                        switch (chunk.mType) {
+                                            case PatchDownloader.PatchChunk.EXPANSION: {
+                                                if (logWriter != null) {
+                                                    logWriter.write("Adding expansion: " + chunk.mExpansion.mCode_gatherer + '\n');
+                                                }
+                                                loader.addExpansion(chunk.mExpansion);
+                                                break;
+                                            }
+                                            case PatchDownloader.PatchChunk.CARDS: {
+                                                for (Card card : chunk.mCards) {
+                                                    loader.addCard(card);
+                                                }
+                                                break;
+                                            }
+                                            case PatchDownloader.PatchChunk.DONE: {
+                                                loader.commitPatch();
+                                                patchAdded = true;
+                                                if (logWriter != null) {
+                                                    logWriter.write("Added " + loader.getCardsAdded() + " cards at " +
+                                                            (int) loader.getCardsPerSecond() + " cards/sec" + '\n');
+                                                }
+                                                break;
+                                            }
+                                            default: {
+                                                /* The spool couldn't be read back. The failure was
+                                                 * already logged, and closing the loader rolls back
+                                                 * whatever was inserted
+                                                 */
+                                                break;
                                             }
-
-                                            CardDbAdapter.createSet(expansion, database);
-                                            CardDbAdapter.addTcgName(expansion.mName_tcgp, expansion.mCode_gatherer, database);
-                                            CardDbAdapter.addFoilInfo(expansion.mCanBeFoil, expansion.mCode_gatherer, database);
-                                        }
-                                        int cardsAdded = 0;
-                                        for (Card card : cardsToAdd) {
-                                            CardDbAdapter.createCard(card, database);
-                                            cardsAdded++;
-                                            mProgress = (int) (100 * (cardsAdded / (float) cardsToAdd.size()));
                                         }
-                                        /* Close the database */
-                                        DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
-                                    }
-                                } catch (IOException e) {
-                                    if (logWriter != null) {
-                                        logWriter.print("Retry " + retries + '\n');
-                                        e.printStackTrace(logWriter);
-                                    }
+                                    } while (chunk.mType != PatchDownloader.PatchChunk.DONE &&
+                                            chunk.mType != PatchDownloader.PatchChunk.FAILED);
+                                } finally {
+                                    loader.close();
+                                    /* Close the database */
+                                    DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
+                                }
+                                if (patchAdded) {
+                                    updatedStuff.add(patch.mEntry.mName);
+                                    rebuildLegalityMatrix = true;
+                                    cardsChanged = true;
                                 }
-                                retries--;
                             }
+                        } catch (InterruptedException e) {
+                            /* The service is being torn down, don't commit the dates */
+                            commitDates = false;
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            downloader.shutdown();
                         }
+                    } finally {
+                        /* Make sure the secondary indices exist after the bulk load, rebuilding
+                         * them if they were dropped
+                         */
+                        database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                        CardDbAdapter.createIndices(database);
+                        DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
                     }
                 }
 
+                /* Materialize every card's legality in every format, now that the cards and the
+                 * legality data are up to date
+                 */
+                if (rebuildLegalityMatrix) {
+                    SQLiteDatabase database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                    CardDbAdapter.rebuildLegalityMatrix(database);
+                    DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
+                } else if (!deltaNames.isEmpty()) {
+                    SQLiteDatabase database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+                    CardDbAdapter.updateLegalityMatrix(deltaNames, database);
+                    DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
+                }
+
                 /* Change the notification to generic "checking for updates" */
                 switchToChecking();
 
@@ -381,6 +489,11 @@ public class DbUpdaterService extends IntentService {
             }
         }
 
+        /* Rebuild name suggestions if any cards were added or removed */
+        if (cardsChanged) {
+            CardNameIndex.load(getApplicationContext());
+        }
+
         /* Always cancel the status notification */
         cancelStatusNotification();
 
@@ -390,6 +503,55 @@ public class DbUpdaterService extends IntentService {
         }
     }
 
+    /**
+     * Download a delta patch and apply it to a set in the database.
+     *
+     * @param parser       The parser to download the delta with
+     * @param set          The manifest entry for the set being patched
+     * @param storedDigest The digest of the set currently in the database
+     * @param deltaEntry   The delta patch's manifest entry
+     * @param reporter     Something to report progress to
+     * @param logWriter    A writer to print debug statements when things go wrong
+     * @return The loader which applied the delta, to find out which cards it touched, or null if
+     * the set should be redownloaded in full
+     */
+    @Nullable
+    private CardDbBulkLoader applyDelta(CardAndSetParser parser, Manifest.ManifestEntry set,
+                                        String storedDigest, Manifest.DeltaEntry deltaEntry,
+                                        ProgressReporter reporter, PrintWriter logWriter) {
+        switchToUpdating(String.format(getString(R.string.update_updating_set), set.mName));
+
+        PatchDelta delta = parser.readDeltaJsonStream(deltaEntry, getApplicationContext(), logWriter);
+        if (delta == null || delta.mExpansion == null ||
+                !set.mCode.equals(delta.mExpansion.mCode_gatherer) ||
+                !storedDigest.equals(delta.mBaseDigest)) {
+            return null;
+        }
+
+        CardDbBulkLoader loader = null;
+        boolean applied = false;
+        try {
+            SQLiteDatabase database = DatabaseManager.getInstance(getApplicationContext(), true).openDatabase(true);
+            loader = new CardDbBulkLoader(database, reporter);
+            applied = loader.applyDelta(delta);
+        } catch (FamiliarDbException e) {
+            /* Closing the loader rolls back whatever was written, and the set is reloaded */
+            if (logWriter != null) {
+                e.printStackTrace(logWriter);
+            }
+        } finally {
+            if (loader != null) {
+                loader.close();
+            }
+            DatabaseManager.getInstance(getApplicationContext(), true).closeDatabase(true);
+        }
+        if (logWriter != null) {
+            logWriter.write((applied ? "Applied" : "Couldn't apply") + " delta to expansion: " +
+                    set.mCode + '\n');
+        }
+        return applied ? loader : null;
+    }
+
     /**
      * Show the notification in the status bar
      */
@@ -411,6 +573,7 @@ public class DbUpdaterService extends IntentService {
         mHandler.removeCallbacks(mProgressUpdater);
         mBuilder.setContentTitle(getString(R.string.app_name))
                 .setContentText(getString(R.string.update_notification))
+                .setSubText(null)
                 .setProgress(0, 0, false);
 
         mNotificationManager.notify(STATUS_NOTIFICATION, mBuilder.build());
@@ -426,10 +589,14 @@ public class DbUpdaterService extends IntentService {
         mBuilder.setContentTitle(title);
         mNotificationManager.notify(STATUS_NOTIFICATION, mBuilder.build());
 
+        /* Don't leave the last updater running alongside the new one */
+        mHandler.removeCallbacks(mProgressUpdater);
+        mProgress = 0;
+
         /* Periodically update the progress bar */
         mProgressUpdater = new Runnable() {
             public void run() {
-                mBuilder.setProgress(100, mProgress, false);
+                mBuilder.setProgress(100, Math.max(mProgress, 0), mProgress == PROGRESS_INDETERMINATE);
                 mNotificationManager.notify(STATUS_NOTIFICATION, mBuilder.build());
                 if (mProgress != 100) {
                     mHandler.postDelayed(mProgressUpdater, 200);
@@ -468,7 +635,8 @@ public class DbUpdaterService extends IntentService {
     /**
      * This inner class is used by other parsers to pass progress percentages to the notification
      */
-    private class ProgressReporter implements RulesParser.RulesProgressReporter {
+    private class ProgressReporter implements RulesParser.RulesProgressReporter,
+            CardDbBulkLoader.BulkLoadProgressReporter {
         /**
          * This is used by RulesParser to report the progress for adding new rules
          *
@@ -477,6 +645,26 @@ public class DbUpdaterService extends IntentService {
         public void reportRulesProgress(int progress) {
             mProgress = progress;
         }
+
+        /**
+         * This is used by CardDbBulkLoader to report the progress for adding new cards
+         *
+         * @param rowsLoaded    The number of cards inserted so far
+         * @param totalRows     The total number of cards to insert, or 0 if it isn't known
+         * @param rowsPerSecond The number of cards inserted per second
+         */
+        public void reportBulkLoadProgress(int rowsLoaded, int totalRows, float rowsPerSecond) {
+            if (totalRows > 0) {
+                mProgress = (int) (100 * (rowsLoaded / (float) totalRows));
+                mBuilder.setSubText(String.format(Locale.getDefault(), "%d/%d (%.0f/s)",
+                        rowsLoaded, totalRows, rowsPerSecond));
+            } else {
+                /* Patches are streamed in, so the total isn't known */
+                mProgress = PROGRESS_INDETERMINATE;
+                mBuilder.setSubText(String.format(Locale.getDefault(), "%d (%.0f/s)",
+                        rowsLoaded, rowsPerSecond));
+            }
+        }
     }
 
 }
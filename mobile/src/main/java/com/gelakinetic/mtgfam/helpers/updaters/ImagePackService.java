@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.gelakinetic.mtgfam.R;
+import com.gelakinetic.mtgfam.helpers.CardImageInfo;
+import com.gelakinetic.mtgfam.helpers.NotificationHelper;
+import com.gelakinetic.mtgfam.helpers.PreferenceAdapter;
+import com.gelakinetic.mtgfam.helpers.database.CardDbAdapter;
+import com.gelakinetic.mtgfam.helpers.database.DatabaseManager;
+import com.gelakinetic.mtgfam.helpers.database.FamiliarDbException;
+import com.gelakinetic.mtgfam.helpers.lruCache.ImagePack;
+import com.gelakinetic.mtgfam.helpers.lruCache.ImagePackStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This service downloads every card image for the sets chosen in the preferences into offline
+ * image packs, and deletes the packs for sets which aren't chosen anymore. If it's interrupted,
+ * or the connection drops, the next time it runs it picks up where it left off.
+ */
+public class ImagePackService extends IntentService {
+
+    /* Give up on a set for now after this many images in a row can't be downloaded */
+    private static final int MAX_CONSECUTIVE_FAILURES = 10;
+
+    /* Status Codes */
+    private static final int STATUS_NOTIFICATION = 33;
+    private static final int FINISHED_NOTIFICATION = 34;
+
+    /* To build and display the notification */
+    private NotificationManagerCompat mNotificationManager;
+    private NotificationCompat.Builder mBuilder;
+
+    /**
+     * Default constructor with a default name.
+     * The string is used to name the worker thread, important only for debugging.
+     */
+    public ImagePackService() {
+        super("com.gelakinetic.mtgfam.helpers.updaters.ImagePackService");
+    }
+
+    /**
+     * When the service is created, set up the notification manager and the actual notification
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mNotificationManager = NotificationManagerCompat.from(this);
+
+        Intent intent = new Intent(this, FamiliarActivity.class);
+        PendingIntent notificationIntent = PendingIntent.getActivity(this, 0, intent, 0);
+
+        NotificationHelper.createChannels(this);
+        mBuilder = new NotificationCompat.Builder(this.getApplicationContext(), NotificationHelper.NOTIFICATION_CHANNEL_UPDATE);
+        mBuilder.setContentTitle(getString(R.string.app_name))
+                .setSmallIcon(R.drawable.notification_icon)
+                .setContentIntent(notificationIntent)
+                .setWhen(System.currentTimeMillis())
+                .setOngoing(true)
+                .setOnlyAlertOnce(true);
+    }
+
+    /**
+     * Bring the packs on disk in line with the chosen sets
+     *
+     * @param intent The value passed to startService(Intent), it's not used
+     */
+    @Override
+    public void onHandleIntent(Intent intent) {
+        ImagePackStore store = ImagePackStore.getInstance(this);
+        Set<String> chosenSets = PreferenceAdapter.getImagePackSets(this);
+
+        /* Delete packs, finished or not, for sets which aren't chosen anymore */
+        HashSet<String> existingSets = new HashSet<>(store.getSetCodes());
+        existingSets.addAll(store.getUnfinishedSetCodes());
+        for (String setCode : existingSets) {
+            if (!chosenSets.contains(setCode)) {
+                store.delete(setCode);
+            }
+        }
+
+        /* Download packs for chosen sets which don't have one, or only have part of one */
+        Set<String> finishedSets = store.getSetCodes();
+        ArrayList<String> unfinishedSets = store.getUnfinishedSetCodes();
+        ArrayList<String> downloadedSets = new ArrayList<>();
+        for (String setCode : chosenSets) {
+            if (!finishedSets.contains(setCode) || unfinishedSets.contains(setCode)) {
+                String setName = downloadPack(store, setCode);
+                if (setName != null) {
+                    downloadedSets.add(setName);
+                }
+            }
+        }
+
+        mNotificationManager.cancel(STATUS_NOTIFICATION);
+        showFinishedNotification(downloadedSets);
+    }
+
+    /**
+     * Download every image in a set into its pack, skipping images which were downloaded before
+     *
+     * @param store   Where packs are kept
+     * @param setCode The set to download images for
+     * @return The set's name if the pack was finished, or null if it'll have to be resumed later
+     * because some images couldn't be downloaded
+     */
+    private String downloadPack(ImagePackStore store, String setCode) {
+        ArrayList<CardImageInfo> cards;
+        String setName;
+        try {
+            SQLiteDatabase database = DatabaseManager.getInstance(getApplicationContext(), false).openDatabase(false);
+            cards = CardImageInfo.fetchSet(setCode, database);
+            setName = CardDbAdapter.getSetNameFromCode(setCode, database);
+        } catch (FamiliarDbException e) {
+            return null;
+        } finally {
+            DatabaseManager.getInstance(getApplicationContext(), false).closeDatabase(false);
+        }
+        if (cards.isEmpty()) {
+            return null;
+        }
+
+        String language = PreferenceAdapter.getCardLanguage(this);
+        if (language == null) {
+            language = "en";
+        }
+
+        ImagePack.Builder builder;
+        try {
+            builder = new ImagePack.Builder(store.getPackFile(setCode));
+        } catch (IOException e) {
+            return null;
+        }
+
+        try {
+            boolean complete = true;
+            int consecutiveFailures = 0;
+            for (int i = 0; i < cards.size(); i++) {
+                showProgress(setName, i, cards.size());
+
+                CardImageInfo card = cards.get(i);
+                String imageKey = card.getImageKey(language);
+                if (builder.contains(imageKey)) {
+                    continue;
+                }
+                try {
+                    builder.add(imageKey, card.downloadImage(this, language));
+                    consecutiveFailures = 0;
+                } catch (IOException e) {
+                    /* Keep going, but many failures in a row mean the connection is down. Try
+                     * again next time */
+                    complete = false;
+                    consecutiveFailures++;
+                    if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                        return null;
+                    }
+                }
+            }
+
+            /* Only finish a pack with every image in it. Otherwise it stays unfinished, and the
+             * next run only downloads the missing images */
+            if (!complete) {
+                return null;
+            }
+            store.add(setCode, builder.finish());
+            return setName;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            builder.close();
+        }
+    }
+
+    /**
+     * Set the notification to display "Downloading images for %s", with a progress bar
+     *
+     * @param setName    The name of the set being downloaded
+     * @param downloaded How many images have been downloaded so far
+     * @param total      How many images there are in the set
+     */
+    private void showProgress(String setName, int downloaded, int total) {
+        mBuilder.setContentText(getString(R.string.image_pack_notification, setName))
+                .setProgress(total, downloaded, false);
+        mNotificationManager.notify(STATUS_NOTIFICATION, mBuilder.build());
+    }
+
+    /**
+     * Show a notification which displays which sets were saved offline
+     *
+     * @param setNames The names of the sets whose packs were finished
+     */
+    private void showFinishedNotification(ArrayList<String> setNames) {
+        if (setNames.size() < 1) {
+            return;
+        }
+
+        StringBuilder body = new StringBuilder(getString(R.string.image_pack_added));
+        for (int i = 0; i < setNames.size(); i++) {
+            body.append(i == 0 ? " " : ", ").append(setNames.get(i));
+        }
+
+        mBuilder.setContentText(body.toString())
+                .setProgress(0, 0, false)
+                .setAutoCancel(true)
+                .setOngoing(false);
+
+        mNotificationManager.notify(FINISHED_NOTIFICATION, mBuilder.build());
+    }
+}
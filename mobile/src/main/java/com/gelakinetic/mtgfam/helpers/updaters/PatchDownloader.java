@@ -0,0 +1,403 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.updaters;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import com.gelakinetic.GathererScraper.JsonTypes.Card;
+import com.gelakinetic.GathererScraper.JsonTypes.Expansion;
+import com.gelakinetic.GathererScraper.JsonTypes.Manifest;
+import com.gelakinetic.mtgfam.FamiliarActivity;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class downloads and parses patches on a small pool of threads, and hands the parsed
+ * contents to a single consumer, i.e. the thread which writes them to the database. Each patch is
+ * parsed into a spool file in the cache directory as it downloads, including any retries, and is
+ * only handed over once it is complete, so the consumer only holds the database's write lock while
+ * inserting, never while waiting on the network. Patches are handed over in the order they finish,
+ * so a slow patch doesn't hold up the ones behind it.
+ * <p>
+ * Once a patch is handed over, its spool is read back and streamed to the consumer a batch of
+ * cards at a time, through a small bounded queue. No patch is ever held on the heap, only the few
+ * batches in flight between each download thread and the consumer.
+ */
+class PatchDownloader {
+
+    /* The number of patches downloaded and parsed at the same time */
+    private static final int DOWNLOAD_THREADS = 3;
+
+    /* How many times to try each patch, and how long to wait before the first retry */
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    /* How many chunks of a patch may wait for the consumer */
+    private static final int CHUNKS_IN_FLIGHT = 4;
+
+    private final Context mContext;
+    private final PrintWriter mLogWriter;
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMs;
+
+    /* Patches are added here once they are completely downloaded, or have failed */
+    private final BlockingQueue<PatchStream> mReadyPatches;
+    private final ExecutorService mExecutor;
+    private int mPatchesRemaining = 0;
+
+    /**
+     * A piece of a patch handed from the download threads to the consumer
+     */
+    static class PatchChunk {
+        /* An expansion to insert */
+        static final int EXPANSION = 0;
+        /* A batch of cards to insert */
+        static final int CARDS = 1;
+        /* The whole patch was parsed */
+        static final int DONE = 2;
+        /* Every attempt failed, or the spool couldn't be read back, don't commit the patch */
+        static final int FAILED = 3;
+
+        final int mType;
+        final Expansion mExpansion;
+        final ArrayList<Card> mCards;
+
+        /**
+         * @param type      One of EXPANSION, CARDS, DONE, or FAILED
+         * @param expansion The expansion, for EXPANSION chunks
+         * @param cards     The batch of cards, for CARDS chunks
+         */
+        PatchChunk(int type, @Nullable Expansion expansion, @Nullable ArrayList<Card> cards) {
+            mType = type;
+            mExpansion = expansion;
+            mCards = cards;
+        }
+    }
+
+    /**
+     * A single patch. A download thread parses it into a spool file, then reads the spool back
+     * into a bounded queue of chunks, which the consumer takes from.
+     */
+    class PatchStream {
+        final Manifest.ManifestEntry mEntry;
+        private final BlockingQueue<PatchChunk> mChunks = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+        private File mSpoolFile;
+        private int mCardCount = 0;
+        private boolean mFailed = false;
+
+        /**
+         * @param entry The manifest entry this patch is downloaded from
+         */
+        PatchStream(Manifest.ManifestEntry entry) {
+            mEntry = entry;
+        }
+
+        /**
+         * Wait for the next piece of this patch. The last chunk is always DONE or FAILED.
+         *
+         * @return The next piece of this patch
+         * @throws InterruptedException If the thread is interrupted while waiting
+         */
+        PatchChunk take() throws InterruptedException {
+            return mChunks.take();
+        }
+
+        /**
+         * @return true if every attempt to download this patch failed
+         */
+        boolean hasFailed() {
+            return mFailed;
+        }
+
+        /**
+         * @return The number of cards in this patch
+         */
+        int getCardCount() {
+            return mCardCount;
+        }
+
+        /**
+         * Parse a patch into the spool file, replacing anything spooled by an earlier attempt.
+         * The expansion and cards are written back out in the same shape they were read in, one
+         * batch at a time, so only a single batch is held on the heap.
+         *
+         * @param reader The patch to parse
+         * @throws IOException          If the patch can't be read, or the spool can't be written
+         * @throws InterruptedException If shutdown() was called, so parsing should stop
+         */
+        void spool(JsonReader reader) throws IOException, InterruptedException {
+            deleteSpool();
+            mCardCount = 0;
+            mSpoolFile = File.createTempFile("patch", ".json", mContext.getCacheDir());
+
+            Gson gson = CardAndSetParser.getGson();
+            final TypeAdapter<Card> cardAdapter = gson.getAdapter(Card.class);
+            final TypeAdapter<Expansion> expansionAdapter = gson.getAdapter(Expansion.class);
+            final JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(new FileOutputStream(mSpoolFile)), "UTF-8"));
+            try {
+                writer.beginObject();
+                new CardAndSetParser().readCardJsonStream(reader, new CardAndSetParser.PatchConsumer() {
+                    @Override
+                    public void onExpansion(Expansion expansion) throws IOException, InterruptedException {
+                        checkInterrupted();
+                        writer.name(CardAndSetParser.PATCH_KEY_EXPANSION);
+                        expansionAdapter.write(writer, expansion);
+                    }
+
+                    @Override
+                    public void onCards(ArrayList<Card> cards) throws IOException, InterruptedException {
+                        checkInterrupted();
+                        mCardCount += cards.size();
+                        /* Each batch is its own array, the parser reads them all back */
+                        writer.name(CardAndSetParser.PATCH_KEY_CARDS);
+                        writer.beginArray();
+                        for (Card card : cards) {
+                            cardAdapter.write(writer, card);
+                        }
+                        writer.endArray();
+                    }
+                });
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Read the spool back and hand it to the consumer a chunk at a time, waiting whenever
+         * the consumer falls behind. The spool is deleted afterwards.
+         *
+         * @throws InterruptedException If shutdown() was called, so the consumer is gone
+         */
+        void replay() throws InterruptedException {
+            try {
+                JsonReader reader = new JsonReader(new InputStreamReader(
+                        new BufferedInputStream(new FileInputStream(mSpoolFile)), "UTF-8"));
+                try {
+                    new CardAndSetParser().readCardJsonStream(reader, new CardAndSetParser.PatchConsumer() {
+                        @Override
+                        public void onExpansion(Expansion expansion) throws InterruptedException {
+                            mChunks.put(new PatchChunk(PatchChunk.EXPANSION, expansion, null));
+                        }
+
+                        @Override
+                        public void onCards(ArrayList<Card> cards) throws InterruptedException {
+                            mChunks.put(new PatchChunk(PatchChunk.CARDS, null, cards));
+                        }
+                    });
+                } finally {
+                    reader.close();
+                }
+                mChunks.put(new PatchChunk(PatchChunk.DONE, null, null));
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                if (mLogWriter != null) {
+                    mLogWriter.print("Reading the spool for " + mEntry.mCode + " failed" + '\n');
+                    e.printStackTrace(mLogWriter);
+                }
+                /* The consumer rolls back whatever it inserted */
+                mChunks.put(new PatchChunk(PatchChunk.FAILED, null, null));
+            } finally {
+                deleteSpool();
+            }
+        }
+
+        /**
+         * Mark this patch as failed, after every attempt to download it failed
+         */
+        void fail() {
+            deleteSpool();
+            mCardCount = 0;
+            mFailed = true;
+            mChunks.offer(new PatchChunk(PatchChunk.FAILED, null, null));
+        }
+
+        /**
+         * Delete the spool file, if there is one
+         */
+        void deleteSpool() {
+            if (mSpoolFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                mSpoolFile.delete();
+                mSpoolFile = null;
+            }
+        }
+
+        /**
+         * @throws InterruptedException If shutdown() was called, so parsing should stop
+         */
+        private void checkInterrupted() throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param context   A context to build the User Agent with
+     * @param logWriter A writer to print debug statements when things go wrong, may be null
+     */
+    PatchDownloader(Context context, @Nullable PrintWriter logWriter) {
+        this(context, logWriter, DOWNLOAD_THREADS, MAX_ATTEMPTS, INITIAL_BACKOFF_MS);
+    }
+
+    /**
+     * Constructor with configurable concurrency and retries
+     *
+     * @param context          A context to build the User Agent with
+     * @param logWriter        A writer to print debug statements when things go wrong, may be null
+     * @param threads          The number of patches to download and parse at the same time
+     * @param maxAttempts      How many times to try each patch before giving up
+     * @param initialBackoffMs How long to wait before the first retry. Doubles for every retry
+     */
+    PatchDownloader(Context context, @Nullable PrintWriter logWriter, int threads,
+                    int maxAttempts, long initialBackoffMs) {
+        mContext = context.getApplicationContext();
+        mLogWriter = logWriter;
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMs = initialBackoffMs;
+        mReadyPatches = new ArrayBlockingQueue<>(threads);
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PatchDownloader");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start downloading and parsing patches in the background. Each one will be returned by
+     * take() once it is completely downloaded, or every attempt has failed.
+     *
+     * @param patches The patches to download
+     */
+    void start(List<Manifest.ManifestEntry> patches) {
+        mPatchesRemaining += patches.size();
+        for (final Manifest.ManifestEntry patch : patches) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PatchStream stream = new PatchStream(patch);
+                    try {
+                        download(stream);
+                    } catch (InterruptedException e) {
+                        /* shutdown() was called, just stop */
+                    } finally {
+                        stream.deleteSpool();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Wait for the next patch to finish downloading. A patch which fails is returned once every
+     * attempt has failed, so it doesn't hold up the others.
+     *
+     * @return The next patch, or null if every patch has been returned
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    @Nullable
+    PatchStream take() throws InterruptedException {
+        if (mPatchesRemaining == 0) {
+            return null;
+        }
+        PatchStream patch = mReadyPatches.take();
+        mPatchesRemaining--;
+        return patch;
+    }
+
+    /**
+     * Stop all the download threads. Patches which haven't been consumed are dropped.
+     */
+    void shutdown() {
+        mExecutor.shutdownNow();
+        mReadyPatches.clear();
+    }
+
+    /**
+     * Download and parse a single patch into a stream, retrying with an exponential backoff if it
+     * fails, then hand it to the consumer and stream its contents to it.
+     *
+     * @param stream The stream to parse the patch into
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    private void download(PatchStream stream) throws InterruptedException {
+        long backoff = mInitialBackoffMs;
+        for (int attempt = 1; attempt <= mMaxAttempts; attempt++) {
+            try {
+                InputStream inputStream = FamiliarActivity.getHttpInputStream(stream.mEntry.mURL,
+                        mLogWriter, mContext);
+                if (inputStream == null) {
+                    throw new IOException("No Stream");
+                }
+                try {
+                    /* Start over from nothing, the consumer hasn't seen any of it */
+                    stream.spool(new JsonReader(new InputStreamReader(
+                            new GZIPInputStream(inputStream), "UTF-8")));
+                } finally {
+                    inputStream.close();
+                }
+                mReadyPatches.put(stream);
+                stream.replay();
+                return;
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                if (mLogWriter != null) {
+                    mLogWriter.print("Attempt " + attempt + " of " + stream.mEntry.mCode + " failed" + '\n');
+                    e.printStackTrace(mLogWriter);
+                }
+            }
+
+            if (attempt < mMaxAttempts) {
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+        stream.fail();
+        mReadyPatches.put(stream);
+    }
+}
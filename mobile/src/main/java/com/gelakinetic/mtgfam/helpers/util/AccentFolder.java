@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Adam Feinstein
+ *
+ * This file is part of MTG Familiar.
+ *
+ * MTG Familiar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MTG Familiar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MTG Familiar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.mtgfam.helpers.util;
+
+/**
+ * Removes accent marks from Latin letters with a lookup table indexed by character. Strings
+ * without anything to fold, which is nearly every card name, are returned as-is without copying.
+ * Letters which fold to more than one letter, like the ligatures, are left alone.
+ */
+public class AccentFolder {
+
+    /* Every character past the end of the table is left alone. This covers Latin-1 Supplement
+     * and Latin Extended-A */
+    private static final int TABLE_SIZE = 0x180;
+
+    private static final char[] FOLDS = new char[TABLE_SIZE];
+
+    /* The first and last character of each range, then what each character in it folds to */
+    private static final String[] RANGES = {
+            "\u00C0\u00C5", "AAAAAA",
+            "\u00C7\u00D6", "CEEEEIIIIDNOOOOO",
+            "\u00D7\u00DD", "xOUUUUY",
+            "\u00E0\u00E5", "aaaaaa",
+            "\u00E7\u00EF", "ceeeeiiii",
+            "\u00F1\u00F6", "nooooo",
+            "\u00F8\u00FD", "ouuuuy",
+            "\u00FF\u00FF", "y",
+            "\u0100\u0131", "AaAaAaCcCcCcCcDdDdEeEeEeEeEeGgGgGgGgHhHhIiIiIiIiIi",
+            "\u0134\u0137", "JjKk",
+            "\u0139\u0148", "LlLlLlLlLlNnNnNn",
+            "\u014C\u0151", "OoOoOo",
+            "\u0154\u017F", "RrRrRrSsSsSsSsTtTtTtUuUuUuUuUuUuWwYyYZzZzZzs"
+    };
+
+    static {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            FOLDS[i] = (char) i;
+        }
+        for (int i = 0; i < RANGES.length; i += 2) {
+            char first = RANGES[i].charAt(0);
+            char last = RANGES[i].charAt(1);
+            String folds = RANGES[i + 1];
+            if (folds.length() != last - first + 1) {
+                throw new IllegalStateException("Bad fold range " + RANGES[i]);
+            }
+            for (char c = first; c <= last; c++) {
+                FOLDS[c] = folds.charAt(c - first);
+            }
+        }
+    }
+
+    /* Each thread folds into its own buffer, which grows to fit the longest String it has seen */
+    private static final ThreadLocal<char[]> sBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[64];
+        }
+    };
+
+    /**
+     * @param c A character
+     * @return The character without accent marks
+     */
+    public static char fold(char c) {
+        return c < TABLE_SIZE ? FOLDS[c] : c;
+    }
+
+    /**
+     * Remove accent marks from every Latin letter in a String.
+     *
+     * @param str The String to remove accent marks from
+     * @return The accent-less String, which is str itself if nothing had accent marks
+     */
+    public static String removeAccentMarks(String str) {
+        int length = str.length();
+
+        /* Find the first character which changes, if any */
+        int first = 0;
+        while (first < length) {
+            char c = str.charAt(first);
+            if (c < TABLE_SIZE && FOLDS[c] != c) {
+                break;
+            }
+            first++;
+        }
+        if (first == length) {
+            return str;
+        }
+
+        char[] buffer = sBuffer.get();
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+            sBuffer.set(buffer);
+        }
+        str.getChars(0, length, buffer, 0);
+        for (int i = first; i < length; i++) {
+            char c = buffer[i];
+            if (c < TABLE_SIZE) {
+                buffer[i] = FOLDS[c];
+            }
+        }
+        return new String(buffer, 0, length);
+    }
+}